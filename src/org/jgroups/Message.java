@@ -46,6 +46,7 @@ public class Message implements Streamable {
     static final byte DEST_SET         =  1;
     static final byte SRC_SET          =  1 << 1;
     static final byte BUF_SET          =  1 << 2;
+    static final byte HDR_LENGTHS      =  1 << 3; // every header is preceded by its length (lazy decoding)
 
 
     // =============================== Flags ====================================
@@ -82,7 +83,8 @@ public class Message implements Streamable {
     // =========================== Transient flags ==============================
     public static enum TransientFlag {
         OOB_DELIVERED( (short)(1)),
-        DONT_LOOPBACK( (short)(1 << 1));   // don't loop back up if this flag is set and it is a multicast message
+        DONT_LOOPBACK( (short)(1 << 1)),   // don't loop back up if this flag is set and it is a multicast message
+        POOLED_BUFFER( (short)(1 << 2));   // the buffer points into a pooled receive buffer (TP.zero_copy_receive)
 
         final short value;
         TransientFlag(short flag) {value=flag;}
@@ -243,6 +245,30 @@ public class Message implements Streamable {
         }
     }
 
+    /**
+     * If the buffer points into a pooled receive buffer ({@link TransientFlag#POOLED_BUFFER}), replaces it with a copy
+     * of the payload, so that the message can be kept after the pooled buffer has been reused.<p/>
+     * Rule: a protocol which keeps a received message after up() returned - in a queue, a table, a timer task, or by
+     * handing it to another thread - has to call this method <em>before</em> the message becomes visible to other
+     * threads. Currently done by NAKACK2, UNICAST3 (after the duplicate check), NAKACK, UNICAST, UNICAST2, SEQUENCER2,
+     * FRAG2, BARRIER, SHUFFLE, MAKE_BATCH, SCOPE, PRIO, ENCRYPT, RMCast, TOA, AbaaS and Aramis. The same applies to
+     * applications which keep a received message after receive() returned.
+     * @return this message
+     */
+    public Message copyPooledBuffer() {
+        if(isTransientFlagSet(TransientFlag.POOLED_BUFFER)) {
+            if(buf != null) {
+                byte[] tmp=new byte[length];
+                System.arraycopy(buf, offset, tmp, 0, length);
+                buf=tmp;
+                offset=0;
+            }
+            headers.copyRawHeaders(); // serialized headers may also point into the pooled buffer
+            clearTransientFlag(TransientFlag.POOLED_BUFFER);
+        }
+        return this;
+    }
+
     /**
      * <em>
      * Note that the byte[] buffer passed as argument must not be modified. Reason: if we retransmit the
@@ -675,6 +701,14 @@ public class Message implements Streamable {
      * @throws Exception
      */
     public void writeTo(DataOutput out) throws Exception {
+        writeTo(out, false);
+    }
+
+    /**
+     * Streams the message to the output stream. If header_lengths is true, the length of every header is written,
+     * so the receiver can keep headers in serialized form and decode them only when they're accessed
+     */
+    public void writeTo(DataOutput out, boolean header_lengths) throws Exception {
         byte leading=0;
 
         if(dest_addr != null)
@@ -686,6 +720,9 @@ public class Message implements Streamable {
         if(buf != null)
             leading=Util.setFlag(leading, BUF_SET);
 
+        if(header_lengths)
+            leading=Util.setFlag(leading, HDR_LENGTHS);
+
         // 1. write the leading byte first
         out.write(leading);
 
@@ -704,11 +741,10 @@ public class Message implements Streamable {
         int size=headers.size();
         out.writeShort(size);
         final short[]  ids=headers.getRawIDs();
-        final Header[] hdrs=headers.getRawHeaders();
         for(int i=0; i < ids.length; i++) {
             if(ids[i] > 0) {
                 out.writeShort(ids[i]);
-                writeHeader(hdrs[i], out);
+                headers.writeHeader(i, out, header_lengths);
             }
         }
 
@@ -729,6 +765,14 @@ public class Message implements Streamable {
     * @throws Exception
     */
     public void writeToNoAddrs(Address src, DataOutput out, short ... excluded_headers) throws Exception {
+        writeToNoAddrs(src, out, false, excluded_headers);
+    }
+
+    /**
+     * Same as {@link #writeToNoAddrs(Address,DataOutput,short...)}, but writes the length of every header if
+     * header_lengths is true
+     */
+    public void writeToNoAddrs(Address src, DataOutput out, boolean header_lengths, short ... excluded_headers) throws Exception {
         byte leading=0;
 
         boolean write_src_addr=src == null || src_addr != null && !src_addr.equals(src);
@@ -739,6 +783,9 @@ public class Message implements Streamable {
         if(buf != null)
             leading=Util.setFlag(leading, BUF_SET);
 
+        if(header_lengths)
+            leading=Util.setFlag(leading, HDR_LENGTHS);
+
         // 1. write the leading byte first
         out.write(leading);
 
@@ -753,13 +800,12 @@ public class Message implements Streamable {
         int size=headers.size(excluded_headers);
         out.writeShort(size);
         final short[]  ids=headers.getRawIDs();
-        final Header[] hdrs=headers.getRawHeaders();
         for(int i=0; i < ids.length; i++) {
             if(ids[i] > 0) {
                 if(excluded_headers != null && Util.containsId(ids[i], excluded_headers))
                     continue;
                 out.writeShort(ids[i]);
-                writeHeader(hdrs[i], out);
+                headers.writeHeader(i, out, header_lengths);
             }
         }
 
@@ -788,22 +834,11 @@ public class Message implements Streamable {
             src_addr=Util.readAddress(in);
 
         // 5. headers
-        int len=in.readShort();
-        headers=createHeaders(len);
-
-        short[]  ids=headers.getRawIDs();
-        Header[] hdrs=headers.getRawHeaders();
-
-        for(int i=0; i < len; i++) {
-            short id=in.readShort();
-            Header hdr=readHeader(in);
-            ids[i]=id;
-            hdrs[i]=hdr;
-        }
+        readHeaders(in, Util.isFlagSet(leading, HDR_LENGTHS), false);
 
         // 6. buf
         if(Util.isFlagSet(leading, BUF_SET)) {
-            len=in.readInt();
+            int len=in.readInt();
             buf=new byte[len];
             in.readFully(buf, 0, len);
             length=len;
@@ -830,18 +865,7 @@ public class Message implements Streamable {
             src_addr=Util.readAddress(in);
 
         // 5. headers
-        int len=in.readShort();
-        headers=createHeaders(len);
-
-        short[]  ids=headers.getRawIDs();
-        Header[] hdrs=headers.getRawHeaders();
-
-        for(int i=0; i < len; i++) {
-            short id=in.readShort();
-            Header hdr=readHeader(in);
-            ids[i]=id;
-            hdrs[i]=hdr;
-        }
+        readHeaders(in, Util.isFlagSet(leading, HDR_LENGTHS), true);
 
         // 6. buf
         if(!Util.isFlagSet(leading, BUF_SET))
@@ -851,6 +875,43 @@ public class Message implements Streamable {
         return in.position();
     }
 
+    /**
+     * Reads the headers. If the sender wrote the length of every header, the headers are not decoded, but kept in
+     * serialized form until they're accessed. They then point into the buffer of in (which has to be a
+     * {@link ByteArrayDataInputStream}) if in_place is true, or are copied otherwise
+     */
+    protected void readHeaders(DataInput in, boolean header_lengths, boolean in_place) throws Exception {
+        int len=in.readShort();
+        headers=createHeaders(len);
+
+        if(!header_lengths) {
+            short[]  ids=headers.getRawIDs();
+            Header[] hdrs=headers.getRawHeaders();
+            for(int i=0; i < len; i++) {
+                short id=in.readShort();
+                Header hdr=readHeader(in);
+                ids[i]=id;
+                hdrs[i]=hdr;
+            }
+            return;
+        }
+
+        for(int i=0; i < len; i++) {
+            short id=in.readShort();
+            int hdr_len=in.readInt();
+            if(in_place) {
+                ByteArrayDataInputStream input=(ByteArrayDataInputStream)in;
+                headers.putRawHeader(id, input.buffer(), input.position(), hdr_len);
+                input.skipBytes(hdr_len);
+            }
+            else {
+                byte[] tmp=new byte[hdr_len];
+                in.readFully(tmp);
+                headers.putRawHeader(id, tmp, 0, hdr_len);
+            }
+        }
+    }
+
     /* --------------------------------- End of Interface Streamable ----------------------------- */
 
     /**
@@ -0,0 +1,867 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.Version;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Manages TCP connections between members, like {@link TCPConnectionMap}, but uses non-blocking SocketChannels which
+ * are served by a fixed number of reactor threads, instead of one receiver thread (and one sender thread) per
+ * connection. The wire format (cookie, version and address of the connecting member, followed by length-prefixed
+ * frames) is the same as that of TCPConnectionMap.<p/>
+ * Each connection is served by one reactor, which reads data into a direct buffer taken from a pool and passes
+ * complete frames to the {@link TCPConnectionMap.Receiver}. A connection only holds on to a buffer while it has an
+ * incomplete frame. The frames are passed to the receiver in a byte[] owned by the reactor, which is reused for
+ * the next frame, so the receiver must not hold on to it after receive() returns.<p/>
+ * Frames are written by the sender's thread with a gathering write of the length and the data. If the socket's send
+ * buffer is full, the rest is queued and written by the reactor when the socket becomes writable, in a gathering write
+ * of all queued frames. A sender is blocked (for at most sock_conn_timeout ms) when send_queue_size frames are queued.
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+public class NioConnectionMap {
+    protected static final byte[] COOKIE={'b', 'e', 'l', 'a'};
+    protected static final int    MAX_GATHER=64; // max number of buffers written by a single gathering write
+
+    protected final Mapper              mapper;
+    protected final InetAddress         bind_addr;
+    protected InetAddress               client_bind_addr;
+    protected int                       client_bind_port;
+    protected boolean                   defer_client_binding;
+    protected final Address             local_addr; // bind_addr + port of srv_channel
+    protected final ServerSocketChannel srv_channel;
+    protected final Reactor[]           reactors;
+    protected final AtomicInteger       next_reactor=new AtomicInteger(0);
+    protected final BufferPool          read_buffers;
+    protected TCPConnectionMap.Receiver recvr;
+    protected final long                conn_expire_time;
+    protected Log                       log=LogFactory.getLog(getClass());
+    protected int                       recv_buf_size=120000;
+    protected int                       send_buf_size=60000;
+    protected int                       send_queue_size=2000;
+    protected int                       sock_conn_timeout=1000;      // max time in millis to wait for connect() to return
+    protected int                       peer_addr_read_timeout=2000; // max time in millis to wait for the peer's address
+    protected boolean                   tcp_nodelay=false;
+    protected int                       linger=-1;
+    protected final AtomicBoolean       running=new AtomicBoolean(false);
+    protected TimeService               time_service;
+
+
+    /**
+     * Creates a connection map
+     * @param num_reactors the number of reactor threads; if 0, one thread per core is used
+     * @param read_buf_size the size of the pooled read buffers. Frames larger than this are read into a separate byte[]
+     */
+    public NioConnectionMap(ThreadFactory f,
+                            TCPConnectionMap.Receiver r,
+                            InetAddress bind_addr,
+                            InetAddress external_addr,
+                            int external_port,
+                            int srv_port,
+                            int max_port,
+                            long reaper_interval,
+                            long conn_expire_time,
+                            int num_reactors,
+                            int read_buf_size
+                            ) throws Exception {
+        if(read_buf_size <= Global.INT_SIZE)
+            throw new IllegalArgumentException("read_buf_size (" + read_buf_size + ") has to be greater than " + Global.INT_SIZE);
+        this.mapper=new Mapper(f, reaper_interval);
+        this.recvr=r;
+        this.bind_addr=bind_addr;
+        this.conn_expire_time=conn_expire_time;
+        this.srv_channel=Util.createServerSocketChannel(bind_addr, srv_port, max_port);
+        int srv_port_used=srv_channel.socket().getLocalPort();
+
+        if(external_addr != null)
+            local_addr=new IpAddress(external_addr, external_port <= 0? srv_port_used : external_port);
+        else if(bind_addr != null)
+            local_addr=new IpAddress(bind_addr, srv_port_used);
+        else
+            local_addr=new IpAddress(srv_port_used);
+
+        if(num_reactors <= 0)
+            num_reactors=Runtime.getRuntime().availableProcessors();
+        reactors=new Reactor[num_reactors];
+        try {
+            for(int i=0; i < reactors.length; i++)
+                reactors[i]=new Reactor("NioConnectionMap.Reactor-" + (i+1) + " [" + local_addr + "]");
+        }
+        catch(IOException ex) {
+            for(Reactor reactor: reactors)
+                if(reactor != null)
+                    reactor.close();
+            Util.close(srv_channel);
+            throw ex;
+        }
+        read_buffers=new BufferPool(num_reactors * 4, read_buf_size, true);
+    }
+
+    public Address          getLocalAddress()                       {return local_addr;}
+    public TCPConnectionMap.Receiver getReceiver()                  {return recvr;}
+    public void             setReceiver(TCPConnectionMap.Receiver r){this.recvr=r;}
+    public NioConnectionMap clientBindAddress(InetAddress addr)     {this.client_bind_addr=addr; return this;}
+    public NioConnectionMap clientBindPort(int port)                {this.client_bind_port=port; return this;}
+    public NioConnectionMap deferClientBinding(boolean defer)       {this.defer_client_binding=defer; return this;}
+    public void             setReceiveBufferSize(int recv_buf_size) {this.recv_buf_size=recv_buf_size;}
+    public void             setSocketConnectionTimeout(int timeout) {this.sock_conn_timeout=timeout;}
+    public NioConnectionMap peerAddressReadTimeout(int timeout)     {this.peer_addr_read_timeout=timeout; return this;}
+    public NioConnectionMap timeService(TimeService ts)             {this.time_service=ts; return this;}
+    public void             setSendBufferSize(int send_buf_size)    {this.send_buf_size=send_buf_size;}
+    public void             setLinger(int linger)                   {this.linger=linger;}
+    public void             setTcpNodelay(boolean tcp_nodelay)      {this.tcp_nodelay=tcp_nodelay;}
+    public void             setSendQueueSize(int send_queue_size)   {this.send_queue_size=send_queue_size;}
+    public int              getNumReactors()                        {return reactors.length;}
+    public int              getNumConnections()                     {return mapper.getNumConnections();}
+    public int              getNumOpenConnections()                 {return mapper.getNumOpenConnections();}
+    public boolean          connectionEstablishedTo(Address addr)   {return mapper.connectionEstablishedTo(addr);}
+    public String           printConnections()                      {return mapper.printConnections();}
+    public String           printReadBuffers()                      {return read_buffers.toString();}
+    public void             retainAll(Collection<Address> members)  {mapper.retainAll(members);}
+    public long             getConnectionExpiryTimeout()            {return conn_expire_time;}
+    public NioConnectionMap log(Log new_log)                        {this.log=new_log; return this;}
+
+    public void addConnectionMapListener(AbstractConnectionMap.ConnectionMapListener<NioConnection> l) {
+        mapper.addConnectionMapListener(l);
+    }
+
+    public void removeConnectionMapListener(AbstractConnectionMap.ConnectionMapListener<NioConnection> l) {
+        mapper.removeConnectionMapListener(l);
+    }
+
+
+    /** Calls the receiver callback. Called concurrently by the reactor threads, so the receiver needs to be reentrant */
+    public void receive(Address sender, byte[] data, int offset, int length) {
+        recvr.receive(sender, data, offset, length);
+    }
+
+    public void send(Address dest, byte[] data, int offset, int length) throws Exception {
+        if(dest == null) {
+            log.error(local_addr + ": destination is null");
+            return;
+        }
+        if(data == null) {
+            log.warn(local_addr + ": data is null; discarding message to " + dest);
+            return;
+        }
+        if(!running.get()) {
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": connection map is not running, discarding message to " + dest);
+            return;
+        }
+        if(dest.equals(local_addr)) {
+            receive(local_addr, data, offset, length);
+            return;
+        }
+
+        NioConnection conn=null;
+        try {
+            conn=mapper.getConnection(dest);
+        }
+        catch(Throwable t) {
+        }
+
+        if(conn != null && !conn.isOpen()) { // perhaps closed because of concurrent connections (JGRP-1549)
+            Util.sleepRandom(1, 50);
+            try {
+                conn=mapper.getConnection(dest); // try one more time
+            }
+            catch(Throwable t) {
+            }
+        }
+
+        if(conn != null) {
+            try {
+                conn.send(data, offset, length);
+            }
+            catch(Exception ex) {
+                mapper.removeConnectionIfPresent(dest, conn);
+                throw ex;
+            }
+        }
+    }
+
+    public void start() throws Exception {
+        if(running.compareAndSet(false, true)) {
+            srv_channel.configureBlocking(false);
+            srv_channel.register(reactors[0].selector, SelectionKey.OP_ACCEPT); // the reactor isn't selecting yet
+            for(Reactor reactor: reactors)
+                reactor.start(mapper.getThreadFactory());
+            mapper.start();
+        }
+    }
+
+    public void stop() {
+        if(running.compareAndSet(true, false)) {
+            Util.close(srv_channel);
+            for(Reactor reactor: reactors)
+                reactor.stop();
+            mapper.stop();
+            read_buffers.clear();
+        }
+    }
+
+    public String toString() {
+        StringBuilder ret=new StringBuilder();
+        ret.append("local_addr=" + local_addr).append("\n");
+        ret.append("connections (" + mapper.size() + "):\n");
+        ret.append(mapper.toString());
+        ret.append('\n');
+        return ret.toString();
+    }
+
+
+    protected void setSocketParameters(Socket client_sock) throws SocketException {
+        try {
+            client_sock.setSendBufferSize(send_buf_size);
+        }
+        catch(IllegalArgumentException ex) {
+            log.error(local_addr + ": exception setting send buffer size to " + send_buf_size + " bytes", ex);
+        }
+        try {
+            client_sock.setReceiveBufferSize(recv_buf_size);
+        }
+        catch(IllegalArgumentException ex) {
+            log.error(local_addr + ": exception setting receive buffer size to " + recv_buf_size + " bytes", ex);
+        }
+
+        client_sock.setKeepAlive(true);
+        client_sock.setTcpNoDelay(tcp_nodelay);
+        if(linger > 0)
+            client_sock.setSoLinger(true, linger);
+        else
+            client_sock.setSoLinger(false, -1);
+    }
+
+    protected long getTimestamp() {
+        return time_service != null? time_service.timestamp() : System.currentTimeMillis();
+    }
+
+    protected Reactor nextReactor() {
+        return reactors[(next_reactor.getAndIncrement() & Integer.MAX_VALUE) % reactors.length];
+    }
+
+    /** Accepts all pending connections. Called by the reactor with which srv_channel is registered */
+    protected void handleAccept() {
+        SocketChannel client_channel=null;
+        try {
+            while((client_channel=srv_channel.accept()) != null) {
+                setSocketParameters(client_channel.socket());
+                client_channel.configureBlocking(false);
+                nextReactor().register(new NioConnection(client_channel, null));
+            }
+        }
+        catch(Exception ex) {
+            Util.close(client_channel);
+            if(running.get())
+                log.warn(Util.getMessage("AcceptError"), ex);
+        }
+    }
+
+
+    /**
+     * A reactor thread: selects on the channels registered with it and reads from (and, when the send buffer was full,
+     * writes to) them. All fields except the registration queue are only accessed by the reactor thread.
+     */
+    protected class Reactor implements Runnable {
+        protected final Selector                             selector;
+        protected final String                               name;
+        protected final ConcurrentLinkedQueue<NioConnection> registrations=new ConcurrentLinkedQueue<NioConnection>();
+        protected final List<NioConnection>                  handshakes=new ArrayList<NioConnection>(); // accepted, no address yet
+        protected byte[]                                     frame=new byte[1024]; // reused for all frames passed up
+        protected Thread                                     thread;
+
+        protected Reactor(String name) throws IOException {
+            this.name=name;
+            this.selector=Selector.open();
+        }
+
+        protected void start(ThreadFactory f) {
+            thread=f.newThread(this, name);
+            thread.start();
+        }
+
+        protected void stop() {
+            selector.wakeup();
+            if(thread != null) {
+                try {
+                    thread.join(Global.THREAD_SHUTDOWN_WAIT_TIME);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            close();
+        }
+
+        protected void close() {
+            try {
+                selector.close();
+            }
+            catch(IOException e) {
+            }
+        }
+
+        /** Connections are registered by the reactor thread, as register() blocks while the selector is selecting */
+        protected void register(NioConnection conn) {
+            registrations.add(conn);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while(running.get()) {
+                try {
+                    selector.select(handshakes.isEmpty()? 0 : peer_addr_read_timeout);
+                    processRegistrations();
+                    Set<SelectionKey> selected=selector.selectedKeys();
+                    for(Iterator<SelectionKey> it=selected.iterator(); it.hasNext();) {
+                        SelectionKey key=it.next();
+                        it.remove();
+                        if(key.channel() == srv_channel)
+                            handleAccept();
+                        else
+                            process(key, (NioConnection)key.attachment());
+                    }
+                    if(!handshakes.isEmpty())
+                        closeExpiredHandshakes();
+                }
+                catch(ClosedSelectorException closed) {
+                    break;
+                }
+                catch(Throwable t) {
+                    if(running.get())
+                        log.error(name + ": failure in reactor", t);
+                }
+            }
+        }
+
+        protected void processRegistrations() {
+            NioConnection conn;
+            while((conn=registrations.poll()) != null) {
+                try {
+                    conn.registered(conn.channel.register(selector, SelectionKey.OP_READ, conn));
+                    if(conn.peer_addr == null)
+                        handshakes.add(conn);
+                }
+                catch(ClosedChannelException e) {
+                    conn.releaseReadBuffer();
+                }
+            }
+        }
+
+        protected void process(SelectionKey key, NioConnection conn) {
+            if(!key.isValid()) // closed by a different thread
+                return;
+            try {
+                if(key.isValid() && key.isReadable())
+                    conn.read(this);
+                if(key.isValid() && key.isWritable())
+                    conn.flushPending();
+            }
+            catch(Throwable t) {
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": closing connection " + conn + ": " + t);
+                conn.releaseReadBuffer();
+                if(conn.peer_addr != null)
+                    mapper.removeConnectionIfPresent(conn.peer_addr, conn);
+                Util.close(conn);
+            }
+        }
+
+        /** Closes accepted connections which haven't sent their address within peer_addr_read_timeout ms */
+        protected void closeExpiredHandshakes() {
+            long now=getTimestamp();
+            for(Iterator<NioConnection> it=handshakes.iterator(); it.hasNext();) {
+                NioConnection conn=it.next();
+                if(conn.peer_addr != null || !conn.isOpen())
+                    it.remove();
+                else if(now - conn.created >= peer_addr_read_timeout) {
+                    log.warn("%s: %s didn't send its address within %d ms; closing connection",
+                             local_addr, conn.getSockAddress(), peer_addr_read_timeout);
+                    it.remove();
+                    conn.releaseReadBuffer();
+                    Util.close(conn);
+                }
+            }
+        }
+
+        /** Returns a byte[] of at least size bytes, to pass frames to the receiver */
+        protected byte[] frame(int size) {
+            if(frame.length < size)
+                frame=new byte[Math.max(size, frame.length * 2)];
+            return frame;
+        }
+    }
+
+
+
+    public class NioConnection implements Connection {
+        protected final SocketChannel      channel;
+        protected volatile Address         peer_addr; // address of the 'other end', null until read from an accepted channel
+        protected final long               created=getTimestamp();
+        protected volatile long            last_access=created; // last time a message was sent or received
+        protected final AtomicBoolean      closed=new AtomicBoolean(false);
+
+        // send side, guarded by send_lock
+        protected final ReentrantLock      send_lock=new ReentrantLock();
+        protected final Condition          not_full=send_lock.newCondition();
+        protected final Deque<ByteBuffer>  pending=new ArrayDeque<ByteBuffer>(); // frames (or parts) not yet written
+        protected final ByteBuffer[]       gather=new ByteBuffer[MAX_GATHER];
+        protected final ByteBuffer         length_buf=ByteBuffer.allocate(Global.INT_SIZE);
+        protected SelectionKey             key; // null until registered with the reactor
+
+        // receive side, only accessed by the reactor
+        protected ByteBuffer               read_buf;    // from the pool, only held while a frame is incomplete
+        protected byte[]                   large_frame; // a frame which is larger than read_buf
+        protected int                      large_frame_pos;
+
+
+        protected NioConnection(SocketChannel channel, Address peer_addr) {
+            this.channel=channel;
+            this.peer_addr=peer_addr;
+        }
+
+        public Address getPeerAddress() {
+            return peer_addr;
+        }
+
+        public boolean isOpen() {
+            return !closed.get() && channel.isOpen() && channel.isConnected();
+        }
+
+        public boolean isExpired(long now) {
+            return conn_expire_time > 0 && now - last_access >= conn_expire_time;
+        }
+
+        public void close() throws IOException {
+            if(!closed.compareAndSet(false, true))
+                return;
+            send_lock.lock();
+            try {
+                Util.close(channel); // cancels the key
+                pending.clear();
+                not_full.signalAll();
+            }
+            finally {
+                send_lock.unlock();
+            }
+            if(peer_addr != null)
+                mapper.notifyConnectionClosed(peer_addr);
+        }
+
+        protected void updateLastAccessed() {
+            if(conn_expire_time > 0)
+                last_access=getTimestamp();
+        }
+
+        protected String getSockAddress() {
+            Socket sock=channel.socket();
+            StringBuilder sb=new StringBuilder();
+            if(sock.getLocalAddress() != null)
+                sb.append(sock.getLocalAddress().getHostAddress()).append(':').append(sock.getLocalPort());
+            if(sock.getInetAddress() != null)
+                sb.append(" - ").append(sock.getInetAddress().getHostAddress()).append(':').append(sock.getPort());
+            return sb.toString();
+        }
+
+
+        /** Called by the reactor when the channel has been registered */
+        protected void registered(SelectionKey key) {
+            send_lock.lock();
+            try {
+                this.key=key;
+                if(!pending.isEmpty())
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        /**
+         * Writes a frame. If frames are queued, or the frame cannot be written completely, it is queued and written
+         * by the reactor. The data is copied only in that case.
+         */
+        protected void send(byte[] data, int offset, int length) throws Exception {
+            send_lock.lock();
+            try {
+                if(pending.size() >= send_queue_size && !waitForSpace())
+                    return;
+                if(pending.isEmpty()) { // the reactor may have written all queued frames while we were waiting
+                    length_buf.clear();
+                    length_buf.putInt(length).flip();
+                    ByteBuffer body=ByteBuffer.wrap(data, offset, length);
+                    gather[0]=length_buf;
+                    gather[1]=body;
+                    try {
+                        channel.write(gather, 0, 2);
+                    }
+                    finally {
+                        gather[0]=gather[1]=null;
+                    }
+                    if(length_buf.hasRemaining() || body.hasRemaining()) {
+                        ByteBuffer rest=ByteBuffer.allocate(length_buf.remaining() + body.remaining());
+                        rest.put(length_buf).put(body).flip();
+                        pending.add(rest);
+                        enableWrites();
+                    }
+                }
+                else {
+                    ByteBuffer frame=ByteBuffer.allocate(Global.INT_SIZE + length);
+                    frame.putInt(length).put(data, offset, length).flip();
+                    pending.add(frame);
+                }
+                updateLastAccessed();
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        /** Blocks until fewer than send_queue_size frames are queued, or sock_conn_timeout ms have elapsed */
+        protected boolean waitForSpace() throws Exception {
+            long remaining=TimeUnit.MILLISECONDS.toNanos(sock_conn_timeout);
+            try {
+                while(pending.size() >= send_queue_size) {
+                    if(!isOpen())
+                        throw new ClosedChannelException();
+                    if(remaining <= 0) {
+                        log.warn("%s: discarding message to %s because the send queue is full and hasn't been drained for %d ms",
+                                 local_addr, peer_addr, sock_conn_timeout);
+                        return false;
+                    }
+                    remaining=not_full.awaitNanos(remaining);
+                }
+                return true;
+            }
+            catch(InterruptedException iex) {
+                Thread.currentThread().interrupt(); // set interrupt flag again
+                return false;
+            }
+        }
+
+        protected void enableWrites() {
+            if(key == null) // not yet registered, registered() enables writes
+                return;
+            try {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                key.selector().wakeup();
+            }
+            catch(CancelledKeyException ex) {
+            }
+        }
+
+        /** Called by the reactor when the channel is writable: writes as many queued frames as possible */
+        protected void flushPending() throws IOException {
+            send_lock.lock();
+            try {
+                while(!pending.isEmpty()) {
+                    int num=0;
+                    for(Iterator<ByteBuffer> it=pending.iterator(); it.hasNext() && num < gather.length;)
+                        gather[num++]=it.next();
+                    try {
+                        channel.write(gather, 0, num);
+                    }
+                    finally {
+                        Arrays.fill(gather, 0, num, null);
+                    }
+                    int written=0;
+                    while(!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                        pending.poll();
+                        written++;
+                    }
+                    if(written < num) // the send buffer is full
+                        break;
+                }
+                if(pending.isEmpty())
+                    key.interestOps(SelectionKey.OP_READ);
+                not_full.signalAll();
+                updateLastAccessed();
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+
+        /** Called by the reactor when the channel is readable: reads data and passes all complete frames up */
+        protected void read(Reactor reactor) throws Exception {
+            if(read_buf == null)
+                read_buf=read_buffers.acquire();
+            int num=channel.read(read_buf);
+            if(num < 0)
+                throw new EOFException("connection closed by " + (peer_addr != null? peer_addr : getSockAddress()));
+            read_buf.flip();
+            try {
+                if(peer_addr != null || readPeerAddress())
+                    readFrames(reactor);
+            }
+            finally {
+                if(read_buf != null) {
+                    read_buf.compact();
+                    if(read_buf.position() == 0)
+                        releaseReadBuffer();
+                }
+            }
+        }
+
+        protected void readFrames(Reactor reactor) throws Exception {
+            ByteBuffer buf=read_buf;
+            for(;;) {
+                if(large_frame != null) {
+                    int num=Math.min(buf.remaining(), large_frame.length - large_frame_pos);
+                    buf.get(large_frame, large_frame_pos, num);
+                    if((large_frame_pos+=num) < large_frame.length)
+                        return;
+                    byte[] tmp=large_frame;
+                    large_frame=null;
+                    deliver(tmp, tmp.length);
+                    continue;
+                }
+                if(buf.remaining() < Global.INT_SIZE)
+                    return;
+                int len=buf.getInt(buf.position());
+                if(len < 0)
+                    throw new IOException("invalid frame length " + len + " from " + peer_addr);
+                if(Global.INT_SIZE + len > buf.capacity()) {
+                    buf.getInt();
+                    large_frame=new byte[len];
+                    large_frame_pos=0;
+                    continue;
+                }
+                if(buf.remaining() < Global.INT_SIZE + len)
+                    return;
+                buf.getInt();
+                byte[] frame=reactor.frame(len);
+                buf.get(frame, 0, len);
+                deliver(frame, len);
+            }
+        }
+
+        protected void deliver(byte[] frame, int length) {
+            updateLastAccessed();
+            try {
+                receive(peer_addr, frame, 0, length);
+            }
+            catch(Throwable t) {
+                log.error(local_addr + ": failed passing up frame from " + peer_addr, t);
+            }
+        }
+
+        /**
+         * Reads the cookie, version and address sent by the peer of an accepted connection. Returns false if not enough
+         * data has been received yet
+         */
+        protected boolean readPeerAddress() throws Exception {
+            ByteBuffer buf=read_buf;
+            int pos=buf.position(), header=COOKIE.length + Global.SHORT_SIZE;
+            if(buf.remaining() < header + Global.BYTE_SIZE)
+                return false;
+            int addr_len=buf.get(pos + header);
+            int size=header + Global.BYTE_SIZE + addr_len + (addr_len == Global.IPV6_SIZE? Global.INT_SIZE : 0) + Global.SHORT_SIZE;
+            if(buf.remaining() < size)
+                return false;
+
+            byte[] tmp=new byte[size];
+            buf.get(tmp);
+            ByteArrayDataInputStream in=new ByteArrayDataInputStream(tmp);
+            for(byte b: COOKIE)
+                if(in.readByte() != b)
+                    throw new SocketException("cookie read by " + local_addr + " from " + getSockAddress() +
+                                                " does not match own cookie; terminating connection");
+            short version=in.readShort();
+            if(!Version.isBinaryCompatible(version))
+                throw new IOException("packet from " + getSockAddress() + " has different version (" + Version.print(version) +
+                                        ") from ours (" + Version.printVersion() + "); discarding it");
+            Address addr=new IpAddress();
+            addr.readFrom(in);
+            updateLastAccessed();
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": " + addr + " trying to connect to me");
+            if(!mapper.accepted(addr, this))
+                throw new IOException("rejected connection from " + addr);
+            return true;
+        }
+
+        protected void releaseReadBuffer() {
+            if(read_buf != null) {
+                read_buffers.release(read_buf);
+                read_buf=null;
+            }
+        }
+
+        public String toString() {
+            Socket sock=channel.socket();
+            InetAddress local=sock.getLocalAddress(), remote=sock.getInetAddress();
+            String local_str=local != null? Util.shortName(local) : "<null>";
+            String remote_str=remote != null? Util.shortName(remote) : "<null>";
+            int num_pending;
+            send_lock.lock();
+            try {
+                num_pending=pending.size();
+            }
+            finally {
+                send_lock.unlock();
+            }
+            return "<" + local_str + ':' + sock.getLocalPort() + " --> " + remote_str + ':' + sock.getPort() + "> (" +
+              ((getTimestamp() - last_access) / 1000) + " secs old, " + num_pending + " pending) [" +
+              (isOpen()? "open]" : "closed]");
+        }
+    }
+
+
+    protected class Mapper extends AbstractConnectionMap<NioConnection> {
+
+        public Mapper(ThreadFactory factory, long reaper_interval) {
+            super(factory, reaper_interval);
+        }
+
+        public NioConnection getConnection(Address dest) throws Exception {
+            NioConnection conn;
+            getLock().lock();
+            try {
+                if((conn=conns.get(dest)) != null && conn.isOpen()) // keep FAST path on the most common case
+                    return conn;
+            }
+            finally {
+                getLock().unlock();
+            }
+
+            sock_creation_lock.lockInterruptibly();
+            try {
+                getLock().lock();
+                try {
+                    conn=conns.get(dest); // check again after obtaining sock_creation_lock
+                    if(conn != null && conn.isOpen())
+                        return conn;
+                }
+                finally {
+                    getLock().unlock();
+                }
+
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": connecting to " + dest);
+                conn=connect(dest);
+
+                getLock().lock();
+                try {
+                    NioConnection existing_conn=conns.get(dest);
+                    if(existing_conn != null && existing_conn.isOpen()) { // added by a concurrent accept()
+                        if(log.isTraceEnabled())
+                            log.trace(local_addr + ": found existing connection to " + dest + ", using it and closing own conn");
+                        Util.close(conn);
+                        return existing_conn;
+                    }
+                    addConnection(dest, conn);
+                    nextReactor().register(conn);
+                    if(log.isTraceEnabled())
+                        log.trace(local_addr + ": connected to " + dest);
+                    return conn;
+                }
+                finally {
+                    getLock().unlock();
+                }
+            }
+            finally {
+                sock_creation_lock.unlock();
+            }
+        }
+
+        /** Connects to dest and sends the local address, using a blocking channel */
+        protected NioConnection connect(Address dest) throws Exception {
+            SocketAddress dest_addr=new InetSocketAddress(((IpAddress)dest).getIpAddress(), ((IpAddress)dest).getPort());
+            SocketChannel ch=SocketChannel.open();
+            try {
+                Socket sock=ch.socket();
+                setSocketParameters(sock);
+                if(!defer_client_binding)
+                    sock.bind(new InetSocketAddress(client_bind_addr, client_bind_port));
+                if(sock.getLocalSocketAddress() != null && sock.getLocalSocketAddress().equals(dest_addr))
+                    throw new IllegalStateException("socket's bind and connect address are the same: " + dest_addr);
+                sock.connect(dest_addr, sock_conn_timeout);
+
+                ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(COOKIE.length + Global.SHORT_SIZE + local_addr.size());
+                out.write(COOKIE, 0, COOKIE.length);
+                out.writeShort(Version.version);
+                local_addr.writeTo(out);
+                ByteBuffer buf=ByteBuffer.wrap(out.buffer(), 0, out.position());
+                while(buf.hasRemaining())
+                    ch.write(buf);
+                ch.configureBlocking(false);
+                return new NioConnection(ch, dest);
+            }
+            catch(Exception ex) {
+                Util.close(ch);
+                throw ex;
+            }
+        }
+
+        /** Adds an accepted connection, unless an open connection to the peer exists and our address is higher */
+        protected boolean accepted(Address peer_addr, NioConnection conn) {
+            getLock().lock();
+            try {
+                NioConnection existing=conns.get(peer_addr);
+                boolean conn_exists=existing != null && existing.isOpen(),
+                  replace=conn_exists && local_addr.compareTo(peer_addr) < 0; // bigger conn wins
+                if(conn_exists && !replace) {
+                    if(log.isTraceEnabled())
+                        log.trace(local_addr + ": rejected connection from " + peer_addr +
+                                    TCPConnectionMap.explanation(conn_exists, replace));
+                    return false;
+                }
+                conn.peer_addr=peer_addr;
+                addConnection(peer_addr, conn); // closes the old conn
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": accepted connection from " + peer_addr +
+                                TCPConnectionMap.explanation(conn_exists, replace));
+                return true;
+            }
+            finally {
+                getLock().unlock();
+            }
+        }
+
+        public boolean connectionEstablishedTo(Address address) {
+            getLock().lock();
+            try {
+                NioConnection conn=conns.get(address);
+                return conn != null && conn.isOpen();
+            }
+            finally {
+                getLock().unlock();
+            }
+        }
+
+        public int size() {return conns.size();}
+
+        public String toString() {
+            StringBuilder sb=new StringBuilder();
+            getLock().lock();
+            try {
+                for(Map.Entry<Address,NioConnection> entry: conns.entrySet())
+                    sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+                return sb.toString();
+            }
+            finally {
+                getLock().unlock();
+            }
+        }
+    }
+}
@@ -143,7 +143,7 @@ public class BARRIER extends Protocol {
 
                 if(barrier_closed.get()) {
                     final Map<Address,Message> map=msg.getDest() == null? mcast_queue : ucast_queue;
-                    map.put(msg.getSrc(), msg);
+                    map.put(msg.getSrc(), msg.copyPooledBuffer()); // replayed after up() returned
                     return null; // queue and drop the message
                 }
                 Thread current_thread=Thread.currentThread();
@@ -177,7 +177,8 @@ public class BARRIER extends Protocol {
 
         if(barrier_closed.get()) {
             final Map<Address,Message> map=batch.dest() == null? mcast_queue : ucast_queue;
-            map.put(batch.sender(), batch.last().putHeader(transport.getId(),new TpHeader(batch.clusterName())));
+            map.put(batch.sender(), batch.last().copyPooledBuffer() // replayed after up() returned
+              .putHeader(transport.getId(),new TpHeader(batch.clusterName())));
             return; // queue the last message of the batch and drop the batch
         }
 
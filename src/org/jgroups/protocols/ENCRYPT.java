@@ -566,7 +566,7 @@ public class ENCRYPT extends Protocol {
         // if queueing then pass into queue to be dealt with later
         if(queue_up) {
             log.trace("queueing up message as no session key established: %s", msg);
-            upMessageQueue.put(msg);
+            upMessageQueue.put(msg.copyPooledBuffer()); // decrypted when the key has been received
             return null;
         }
 
@@ -973,7 +973,7 @@ public class ENCRYPT extends Protocol {
         protected void queueUpMessage(Message msg, MessageBatch batch) {
             log.trace("queueing up message as no session key established: " + msg);
             try {
-                upMessageQueue.put(msg);
+                upMessageQueue.put(msg.copyPooledBuffer()); // decrypted when the key has been received
                 batch.remove(msg);
             }
             catch(InterruptedException e) {
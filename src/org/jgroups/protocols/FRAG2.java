@@ -339,7 +339,7 @@ public class FRAG2 extends Protocol {
             // don't count an already received fragment (should not happen though because the
             // reliable transmission protocol(s) below should weed out duplicates
             if(fragments[frag_id] == null) {
-                fragments[frag_id]=frag;
+                fragments[frag_id]=frag.copyPooledBuffer(); // kept until all fragments have been received
                 number_of_frags_recvd++;
             }
         }
@@ -3,6 +3,7 @@ package org.jgroups.protocols.HiTab;
 import org.jgroups.*;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
@@ -42,7 +43,15 @@ public class HiTab extends Protocol {
     @Property(name = "buffer_timeout", description = "The amount of time in milliseconds for the buffer to wait after sending a message request")
     private int bufferTimeout = 5;
 
+    @Property(name = "timeout_tick", description = "The duration, in milliseconds, of each tick of the timing wheel " +
+            "used for request timeouts")
+    private int timeoutTick = 1;
+
+    @Property(name = "timeout_wheel_size", description = "The number of ticks of the timing wheel used for request timeouts")
+    private int timeoutWheelSize = 512;
+
     private HiTabBuffer buffer;
+    private TimeoutWheel timeouts; // Ticked by the delivery thread
     public Address localAddress = null; // TODO CHANGE TO PRIVATE
     private TimeScheduler timer;
     private long maxError; // The maximum error rate of the probabilistic clock synch
@@ -66,6 +75,7 @@ public class HiTab extends Protocol {
     public void init() throws Exception{
         timer = getTransport().getTimer();
         buffer = new HiTabBuffer(this, ackWait);
+        timeouts = new TimeoutWheel(timeoutWheelSize, timeoutTick, TimeUnit.MILLISECONDS);
         maxError = (Integer) down(new Event(Event.USER_DEFINED, new HiTabEvent(HiTabEvent.GET_CLOCK_ERROR)));
     }
 
@@ -100,28 +110,8 @@ public class HiTab extends Protocol {
                 else if (header == null)
                     return up_prot.up(event);
 
-                switch (header.getType()) {
-                    case HiTabHeader.EMPTY_ACK_MESSAGE:
-                        buffer.addPlaceholders(header.getAckInformer(), header.getAckList());
-                        break;
-                    case HiTabHeader.RETRANSMISSION:
-                        requestsInProgress.remove(header.getId());
-                        Future request = requests.get(header.getId());
-                        if (request != null)
-                            request.cancel(true);
-
-                        if (messageStore.containsKey(header.getId()))
-                            break;
-                    case HiTabHeader.BROADCAST:
-                        messageStore.put(header.getId(), message);
-                        buffer.addMessage(message, view);
-                        break;
-                    case HiTabHeader.PLACEHOLDER_REQUEST:
-                        if (message.getSrc().equals(localAddress))
-                            break;
-                        handlePlaceholderRequest(header);
-                        break;
-                }
+                if (handleMessage(message, header))
+                    buffer.addMessage(message, view);
                 // Return null so that the up event only occurrs if a message has been delivered from the buffer
                 // or its not HiTab message or is OOB
                 return null;
@@ -148,6 +138,57 @@ public class HiTab extends Protocol {
         return up_prot.up(event);
     }
 
+    @Override
+    public void up(MessageBatch batch) {
+        List<Message> messages = null; // Messages to be added to the buffer
+        for (Iterator<Message> it = batch.iterator(); it.hasNext(); ) {
+            Message message = it.next();
+            HiTabHeader header;
+            if (message == null || (header = (HiTabHeader) message.getHeader(id)) == null)
+                continue;
+            it.remove();
+
+            if (handleMessage(message, header)) {
+                if (messages == null)
+                    messages = new ArrayList<Message>(batch.size() + 1);
+                messages.add(message);
+            }
+        }
+
+        if (messages != null)
+            buffer.addMessages(messages, view);
+
+        if (!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+    // Returns true if the message must be added to the buffer, this is left to the caller so that the messages of a
+    // batch can be added to the buffer in one operation
+    private boolean handleMessage(Message message, HiTabHeader header) {
+        switch (header.getType()) {
+            case HiTabHeader.EMPTY_ACK_MESSAGE:
+                buffer.addPlaceholders(header.getAckInformer(), header.getAckList());
+                break;
+            case HiTabHeader.RETRANSMISSION:
+                requestsInProgress.remove(header.getId());
+                Future request = requests.get(header.getId());
+                if (request != null)
+                    request.cancel(true);
+
+                if (messageStore.containsKey(header.getId()))
+                    break;
+            case HiTabHeader.BROADCAST:
+                messageStore.put(header.getId(), message);
+                return true;
+            case HiTabHeader.PLACEHOLDER_REQUEST:
+                if (message.getSrc().equals(localAddress))
+                    break;
+                handlePlaceholderRequest(header);
+                break;
+        }
+        return false;
+    }
+
     @Override
     public Object down(Event event) {
         switch (event.getType()) {
@@ -318,12 +359,12 @@ public class HiTab extends Protocol {
         int delay = (int) Math.ceil(data.getOmega() + data.getXMax());
         Future oldRequest = requests.get(id);
         if (oldRequest == null || oldRequest.isDone()) {
-            Future f = timer.schedule(new Runnable() {
+            Future f = timeouts.schedule(new Runnable() {
                 @Override
                 public void run() {
                     Random r = new Random();
                     int delay = r.nextInt((int) Math.ceil(data.getEta()));
-                    Future f = timer.schedule(new Runnable() {
+                    Future f = timeouts.schedule(new Runnable() {
                         @Override
                         public void run() {
                             resendMessage(message);
@@ -381,6 +422,7 @@ public class HiTab extends Protocol {
             while (true) {
                 try {
                     List<Message> messages = buffer.process();
+                    timeouts.tick();
                     for (Message message : messages) {
                         deliverMessage(message);
                         HiTabHeader h = (HiTabHeader) message.getHeader(id);
@@ -24,17 +24,21 @@ public class HiTabBuffer {
     final private ReentrantLock lock;
     final private Condition notEmpty;
     final private HiTab hitab;
-    final private List<MessageRecord> buffer; // Stores the message record
+    final private NavigableSet<MessageRecord> buffer; // Stores the message records in delivery order
+    final private Map<MessageId, MessageRecord> bufferIndex; // The records in the buffer, indexed by their id
     final private Map<Address, AtomicLong> sequenceRecord; // Stores the largest delivered sequence for each known node
     final private Queue<MessageRecord> recordQueue; // Stores message records before they are processed
     final private Queue<MessageId> rejectedMessages;
     private volatile MessageRecord lastDeliveredMessage; // The MessageRecord of the last message that was delivered
 
-    private View view; // The latest view of the cluster
+    private volatile View view; // The latest view of the cluster
+    private View rankedView; // The view used to create memberRanks
+    private Map<Address, Integer> memberRanks = Collections.emptyMap(); // The index of each member in rankedView
 
     public HiTabBuffer(HiTab hitab, int ackWait) {
         this.hitab = hitab;
-        this.buffer = new ArrayList<MessageRecord>(500);
+        this.buffer = new TreeSet<MessageRecord>(new MessageRecordComparator());
+        this.bufferIndex = new HashMap<MessageId, MessageRecord>(500);
         this.recordQueue = new ConcurrentLinkedQueue<MessageRecord>();
         this.lastDeliveredMessage = null;
         this.sequenceRecord = Collections.synchronizedMap(new HashMap<Address, AtomicLong>());
@@ -57,6 +61,22 @@ public class HiTabBuffer {
         addRecordToQueue(record);
     }
 
+    // Adds the records of all messages, and their placeholders, to the queue in one operation
+    public void addMessages(Collection<Message> messages, View view) {
+        this.view = view;
+        updateSequences(view);
+
+        List<MessageRecord> records = new ArrayList<MessageRecord>(messages.size() * 2);
+        for (Message message : messages) {
+            MessageRecord record = new MessageRecord(message);
+            if (!oldSequence(record))
+                addRecord(record, records);
+        }
+
+        if (!records.isEmpty())
+            recordQueue.addAll(records);
+    }
+
     private void calculateDeliveryTime(MessageRecord record) {
         NMCData data = hitab.getNMCData();
         HiTabHeader header = record.getHeader();
@@ -64,8 +84,14 @@ public class HiTabBuffer {
     }
 
     private void addRecordToQueue(MessageRecord record) {
-        addPlaceholders(record);
-        recordQueue.add(record);
+        addRecord(record, recordQueue);
+    }
+
+    // Placeholders for the record's acks are added before the record itself
+    private void addRecord(MessageRecord record, Collection<MessageRecord> records) {
+        for (MessageId id : record.getHeader().getAckList())
+            records.add(new MessageRecord(record.ackInformer, id));
+        records.add(record);
     }
 
     public void addPlaceholder(Address ackInformer, MessageId id) {
@@ -81,137 +107,67 @@ public class HiTabBuffer {
         }
     }
 
-    private void addPlaceholders(MessageRecord record) {
-        addPlaceholders(record.ackInformer, record.getHeader().getAckList());
-    }
-
     private void addPlaceholderToBuffer(MessageRecord placeholder) {
-        if (oldSequence(placeholder) || !validMsgTime(placeholder) || buffer.contains(placeholder))
+        if (oldSequence(placeholder) || !validMsgTime(placeholder) || bufferIndex.containsKey(placeholder.id))
             return;
 
-        if (buffer.isEmpty()) {
-            buffer.add(placeholder);
-            return;
-        }
-
-        if (placeholder.id.getTimestamp() < buffer.get(0).id.getTimestamp()) {
-            buffer.add(0, placeholder);
-        } else if (placeholder.id.getTimestamp() > buffer.get(buffer.size()-1).id.getTimestamp()) {
-            buffer.add(buffer.size(), placeholder);
-        } else {
-            MessageRecord previous;
-            MessageRecord next = null;
-            for (int i = 0; i < buffer.size(); i++) {
-                int index = i;
-                previous = next;
-                next = buffer.get(i);
-
-                // If the times are original timestamp is the same for two messages, tie-break
-                // Preference is given to the node which has the lowest index in the view
-                if (placeholder.id.getTimestamp() == next.id.getTimestamp()) {
-                    if (view.getMembers().indexOf(placeholder.id.getOriginator()) > view.getMembers().indexOf(next.id.getOriginator())) {
-                        index = i;
-                        index++;
-                    }
-                    buffer.add(index, placeholder);
-                    break;
-                }
-                if (previous != null && placeholder.id.getTimestamp() > previous.id.getTimestamp()
-                        && placeholder.id.getTimestamp() < next.id.getTimestamp()) {
-                    index = i;
-                    buffer.add(index, placeholder);
-                    break;
-                }
-            }
-        }
+        addToBuffer(placeholder);
     }
 
     private void addMessageToBuffer(MessageRecord record) {
-        // Add the message to the message store
-        if (buffer.isEmpty()) {
-            buffer.add(record);
-            return;
-        }
         // If a placeholder already exists for this message then simply replace it with the actual message
-        int placeholderIndex = buffer.indexOf(record);
-        if (placeholderIndex > -1) {
-            buffer.set(placeholderIndex, record);
-            return;
-        }
+        MessageRecord placeholder = bufferIndex.get(record.id);
+        if (placeholder != null)
+            buffer.remove(placeholder);
 
-        // If message was created before the oldest message in the buffer then add to the start of the buffer
-        if (record.id.getTimestamp() < buffer.get(0).id.getTimestamp()) {
-            for (MessageRecord newerRecord : buffer) {
-                if (!newerRecord.placeholder) {
-                    if (record.deliveryTime > newerRecord.deliveryTime) {
-                        newerRecord.deliveryTime = record.deliveryTime;
-                    } else {
-                        break;
-                    }
-                }
-            }
-            buffer.add(0, record);
-        }
-        // If this message was created before all other messages add to the end of the buffer
-        else if (record.id.getTimestamp() > buffer.get(buffer.size()-1).id.getTimestamp()) {
-            // Get the lastMessageDelay in the buffer that is not equal to -1 (placeholder) if no other messages use
-            // original deliver delay
-            long lastMessageDelay = -1;
-            ListIterator<MessageRecord> li = buffer.listIterator();
-            while (li.hasPrevious()) {
-                lastMessageDelay = li.previous().deliveryTime;
-                if (lastMessageDelay != -1)
-                    break;
-            }
-            if (lastMessageDelay != -1 && lastMessageDelay > record.deliveryTime)
-                record.deliveryTime = lastMessageDelay;
+        // It's not necessary to update the delivery time of newer messages, as process() only delivers a message once
+        // all older messages have been delivered, i.e. after their delivery times have passed
+        addToBuffer(record);
+    }
 
-            buffer.add(buffer.size(), record);
-        }
-        // Otherwise find its appropriate place in the buffer and update delivery times where necessary
-        else {
-            MessageRecord previous = null;
-            MessageRecord next = null;
-
-            for (int i = 0; i < buffer.size(); i++) {
-                int index = -1;
-                previous = next;
-                next = buffer.get(i);
-
-                if (record.id.getTimestamp() == next.id.getTimestamp()
-                        || (previous != null && record.id.getTimestamp() > previous.id.getTimestamp()
-                        && record.id.getTimestamp() < next.id.getTimestamp())) {
-                    index = i;
-                    // If previous record is a placeholder then deliveryTime will always be less than this message
-                    if (previous != null && previous.deliveryTime > record.deliveryTime)
-                        record.deliveryTime = previous.deliveryTime;
-
-                    // If the times are original timestamp is the same for two messages, tie-break
-                    // Preference is given to the node which has the lowest index in the view
-                    if (record.id.getTimestamp() == next.id.getTimestamp())
-                        if (view.getMembers().indexOf(record.id.getOriginator()) > view.getMembers().indexOf(next.id.getOriginator()))
-                            index++;
-
-                    for (int j = i; j < buffer.size(); j++) {
-                        MessageRecord futureMessage = buffer.get(j);
-                        if (record.deliveryTime > futureMessage.deliveryTime) {
-                            if (!futureMessage.placeholder)
-                                futureMessage.deliveryTime = record.deliveryTime;
-                        } else
-                            break;
-                    }
-                    buffer.add(index, record);
-                    break;
-                }
-            }
+    private void addToBuffer(MessageRecord record) {
+        View current = view;
+        if (current != rankedView)
+            rankBuffer(current);
+        record.rank = getRank(record.id.getOriginator());
+        buffer.add(record);
+        bufferIndex.put(record.id, record);
+    }
+
+    // The ranks are part of the buffer's ordering, so the ranks of buffered records can only change while they're
+    // out of the set: on a view change the ranks are recomputed and the set is rebuilt, else it couldn't find records
+    private void rankBuffer(View current) {
+        Map<Address, Integer> ranks = new HashMap<Address, Integer>();
+        if (current != null) {
+            List<Address> members = current.getMembers();
+            for (int i = 0; i < members.size(); i++)
+                ranks.put(members.get(i), i);
         }
+        memberRanks = ranks;
+        rankedView = current;
+        if (buffer.isEmpty())
+            return;
+
+        List<MessageRecord> records = new ArrayList<MessageRecord>(buffer);
+        buffer.clear();
+        for (MessageRecord record : records)
+            record.rank = getRank(record.id.getOriginator());
+        buffer.addAll(records);
+    }
+
+    // If the original timestamp is the same for two messages, preference is given to the node which has the lowest
+    // index in the view
+    private int getRank(Address address) {
+        Integer rank = memberRanks.get(address);
+        return rank == null ? -1 : rank;
     }
 
     public List<Message> process() throws InterruptedException {
         List<Message> deliverable = new ArrayList<Message>();
         lock.lock(); // Lock access to the buffer
         try {
-            while(recordQueue.isEmpty() && buffer.isEmpty())
+            // Return after waiting, so that the delivery thread can tick HiTab's timeouts
+            if (recordQueue.isEmpty() && buffer.isEmpty())
                 notEmpty.await(1, TimeUnit.MILLISECONDS);
 
             queueToBuffer();
@@ -219,7 +175,7 @@ public class HiTabBuffer {
             if (buffer.isEmpty())
                 return deliverable;
 
-            MessageRecord record = buffer.get(0);
+            MessageRecord record = buffer.first();
             if (record.placeholder) {
                 if(!record.id.getOriginator().equals(hitab.localAddress)) {
 //                    System.out.println("SEND PLACEHOLDER REQUEST | " + record.id + " | " + System.nanoTime());
@@ -236,6 +192,7 @@ public class HiTabBuffer {
                 if(!record.placeholder && hitab.getCurrentTime() >= record.deliveryTime) {
                     deliverable.add(record.message);
                     i.remove();
+                    bufferIndex.remove(record.id);
                     updateSequence(record);
                     lastDeliveredMessage = record;
                 } else {
@@ -316,6 +273,7 @@ public class HiTabBuffer {
         final Address ackInformer;
         final boolean placeholder;
         volatile long deliveryTime;
+        int rank = -1; // The index of the originator in rankedView, only changed while not in the buffer
 
         MessageRecord(MessageId id, Message message, Address ackInformer, boolean placeholder, long deliveryTime) {
             this.id = id;
@@ -377,61 +335,24 @@ public class HiTabBuffer {
     }
 
 
-    /*
-        Alternative QueueToBuffer() method.  Much more concise code, but slightly slower then using the
-        addPlaceholderToBuffer() and addMessageToBuffer() methods
-    */
-//    private void queueToBuffer() {
-//        MessageRecord newRecord;
-//        int bufferSize = buffer.size();
-//        while ((newRecord = recordQueue.poll()) != null) {
-//            if (newRecord.placeholder) {
-//                if (oldSequence(newRecord) || !validMsgTime(newRecord) || buffer.contains(newRecord))
-//                    continue;
-//                buffer.add(newRecord);
-//            } else {
-//                calculateDeliveryTime(newRecord);
-//                if (validMsgTime(newRecord)) {
-//                    buffer.remove(newRecord); // Remove old placeholder
-//                    buffer.add(newRecord);
-//                } else {
-//                    rejectMessage(newRecord, false);
-//                }
-//            }
-//        }
-//        if (buffer.size() > bufferSize) {
-//            Collections.sort(buffer, new MessageRecordComparator());
-//            for (int i = 0; i < buffer.size() - 1; i++) {
-//                MessageRecord record = buffer.get(i);
-//                MessageRecord futureMessage = buffer.get(i+1);
-//                if (record.deliveryTime > futureMessage.deliveryTime) {
-//                    if (!futureMessage.placeholder)
-//                        futureMessage.deliveryTime = record.deliveryTime;
-//                }
-//            }
-//        }
-//    }
-//    /*
-//        Subject to change
-//     */
-//    private boolean compareNodeSeniority(Address a1, Address a2) {
-//        return view.getMembers().indexOf(a1) > view.getMembers().indexOf(a2);
-//    }
-//
-//    class MessageRecordComparator implements Comparator<MessageRecord> {
-//        @Override
-//        public int compare(MessageRecord leftRecord, MessageRecord rightRecord) {
-//            if (leftRecord.id.getTimestamp() == rightRecord.id.getTimestamp()) {
-//                if (compareNodeSeniority(leftRecord.id.getOriginator(), rightRecord.id.getOriginator()))
-//                    return -1;
-//                else
-//                    return 1;
-//            } else {
-//                if (leftRecord.id.getTimestamp() < rightRecord.id.getTimestamp())
-//                    return -1;
-//                else
-//                    return 1;
-//            }
-//        }
-//    }
+    // Orders records by their original timestamp, ties are broken by the originator's index in the view (all records
+    // in the buffer are ranked by the same view, see rankBuffer()), then by address and sequence
+    final class MessageRecordComparator implements Comparator<MessageRecord> {
+        @Override
+        public int compare(MessageRecord leftRecord, MessageRecord rightRecord) {
+            MessageId left = leftRecord.id;
+            MessageId right = rightRecord.id;
+            if (left.getTimestamp() != right.getTimestamp())
+                return left.getTimestamp() < right.getTimestamp() ? -1 : 1;
+
+            if (leftRecord.rank != rightRecord.rank)
+                return leftRecord.rank < rightRecord.rank ? -1 : 1;
+
+            int result = left.getOriginator().compareTo(right.getOriginator());
+            if (result != 0)
+                return result;
+
+            return left.getSequence() < right.getSequence() ? -1 : left.getSequence() == right.getSequence() ? 0 : 1;
+        }
+    }
 }
\ No newline at end of file
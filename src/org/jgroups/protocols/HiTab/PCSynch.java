@@ -4,12 +4,15 @@ import org.jgroups.*;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.Bits;
+import org.jgroups.util.HybridClock;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.SizeStreamable;
 import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.util.Iterator;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -32,9 +35,14 @@ public class PCSynch extends Protocol {
             "Specified in milliseconds")
     private long attemptDuration = 100;
 
-    @Property(name = "clocl_adjustment", description = "Time which takes the clock’s adjustment, in milliseconds")
+    @Property(name = "clocl_adjustment", description = "Time which takes the clock’s adjustment, in milliseconds.  " +
+            "After the first synchronisation the clock is slewed over (at least) this period instead of being stepped")
     private long clockAdjustmentTime = 100; // In milliseconds // alpha
 
+    @Property(name = "max_drift", description = "The maximum drift rate, in parts per million, that is assumed " +
+            "between this node's clock and the master's clock")
+    private double maxDrift = 500;
+
     @Property(name = "max_drift_rate", description = "Maximum drift rate between a clock and real time")
     private long rho = 0;
 
@@ -49,7 +57,7 @@ public class PCSynch extends Protocol {
     private int maxSynchMessages = 100;
 
     private View view;
-    private VirtualClock clock;
+    private HybridClock clock;
     private Address master;
     private Address localAddress;
     private TimeScheduler timer;
@@ -64,7 +72,7 @@ public class PCSynch extends Protocol {
 
     public void startClockSynch() {
         System.out.println("Start Clock Synch");
-        clock = new VirtualClock();
+        clock = new HybridClock(maxDrift);
         timer = getTransport().getTimer();
         timer.scheduleAtFixedRate(new RequestSender(), 0, synchFrequency, TimeUnit.MINUTES);
     }
@@ -89,20 +97,8 @@ public class PCSynch extends Protocol {
                 if (header == null)
                     return up_prot.up(event);
 
-                if (clock == null) // Do nothing if this nodes clock has not being created yet
-                    return null;
-
-                PCSynchData data  = header.data;
-                switch (header.type) {
-                    case PCSynchHeader.SYNCH_REQ:
-                        sendResponse(data);
-                        return null;
-                    case PCSynchHeader.SYNCH_RSP:
-                        handleResponse(data);
-                        return null;
-                    default:
-                        return null;
-                }
+                handleHeader(header);
+                return null;
             case Event.VIEW_CHANGE:
                 if (synchronised) // If not synchronised then don't update as the old view is still being used
                     view = (View) event.getArg();
@@ -123,6 +119,36 @@ public class PCSynch extends Protocol {
         return up_prot.up(event);
     }
 
+    @Override
+    public void up(MessageBatch batch) {
+        for (Iterator<Message> it = batch.iterator(); it.hasNext(); ) {
+            Message message = it.next();
+            PCSynchHeader header;
+            if (message != null && (header = (PCSynchHeader) message.getHeader(id)) != null) {
+                it.remove();
+                handleHeader(header);
+            }
+        }
+
+        if (!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+    private void handleHeader(PCSynchHeader header) {
+        if (clock == null) // Do nothing if this nodes clock has not being created yet
+            return;
+
+        PCSynchData data  = header.data;
+        switch (header.type) {
+            case PCSynchHeader.SYNCH_REQ:
+                sendResponse(data);
+                break;
+            case PCSynchHeader.SYNCH_RSP:
+                handleResponse(data);
+                break;
+        }
+    }
+
     @Override
     public Object down(Event event) {
         switch (event.getType()) {
@@ -165,14 +191,9 @@ public class PCSynch extends Protocol {
             attemptSucceed = true;
             final long M = data.responseTime + D;
 //            final long M = data.getResponseTime() + D * (1 + 2 * rho) - 0 * rho;
-            clock.startSynchronisation(clockAdjustmentTime, M);
-            timer.schedule(new Runnable() {
-                public void run() {
-                    clock.finishSynchronisation(clockAdjustmentTime, M);
-                    synchronised = true;
-                    synchInProgress = false;
-                }
-            }, clockAdjustmentTime, TimeUnit.MILLISECONDS);
+            clock.synchronise(M, TimeUnit.MILLISECONDS.toNanos(clockAdjustmentTime));
+            synchronised = true;
+            synchInProgress = false;
         }
     }
 
@@ -335,40 +356,4 @@ public class PCSynch extends Protocol {
                     '}';
         }
     }
-
-    /**
-     * Class used as a virtual clock, modifies the hardclock and allows synchronisation with an other clock.
-     */
-    final private class VirtualClock {
-        private long n = 0;
-        private long N = 0;
-
-        public VirtualClock() {
-            n = 0;
-            N = 0;
-        }
-
-        public long getTime() {
-            long hardTime = System.nanoTime();
-            return ((n + 1) * hardTime + N);
-        }
-
-        // M is the estimate of the virtual time of the master clock at t
-        public void startSynchronisation(long alpha, long m) {
-            long H = System.nanoTime(); // H is the hardtime at t
-            long L = (n + 1) * H + N; // L is the virtual time at t
-            n = (m - L) / alpha;
-            N = L - (n + 1) * H;
-        }
-
-        public void finishSynchronisation(long alpha, long m) {
-            long H = System.nanoTime(); // H is the hardtime at t+alpha
-            n = 0;
-            N = m + alpha - H;
-        }
-
-        public long getDifference() {
-            return Math.abs(System.nanoTime() - getTime());
-        }
-    }
-}
\ No newline at end of file
+}
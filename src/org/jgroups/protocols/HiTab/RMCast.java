@@ -4,11 +4,14 @@ import org.jgroups.*;
 import org.jgroups.annotations.Property;
 import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.StripedLongMap;
 import org.jgroups.util.TimeScheduler;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -31,12 +34,14 @@ public class RMCast extends Protocol {
     private AtomicInteger numberOfExplicitCopies = new AtomicInteger();
     private AtomicInteger numberOfMessageRequests = new AtomicInteger();
 
-    private final Map<MessageId, MessageRecord> messageRecords = new ConcurrentHashMap<MessageId, MessageRecord>();
-    private final Map<MessageId, Message> receivedMessages = new ConcurrentHashMap<MessageId, Message>();
+    // Records are keyed by the originator's ordinal and the message's sequence or timestamp, see getKey(MessageId).
+    // Each record stores its message and responsiveness task, so that only one map entry is created per message
+    private final StripedLongMap<MessageRecord> messageRecords = new StripedLongMap<MessageRecord>(64, 32, 0);
+    private final ConcurrentMap<Address, Integer> memberOrdinals = new ConcurrentHashMap<Address, Integer>();
+    private final AtomicInteger nextOrdinal = new AtomicInteger();
     private final Map<RMCastHeader, Future> messageCopyTasks = new ConcurrentHashMap<RMCastHeader, Future>();
     private final Map<RMCastHeader, MessageBroadcaster> messageCopyBroadcaster = new ConcurrentHashMap<RMCastHeader, MessageBroadcaster>();
     private final Queue<RMCastHeader> messageCopyQueue = new ConcurrentLinkedQueue<RMCastHeader>();
-    private final Map<MessageId, Future> responsiveTasks = new ConcurrentHashMap<MessageId, Future>();
     private Address localAddress = null;
     private TimeScheduler timer;
     private View view;
@@ -68,16 +73,10 @@ public class RMCast extends Protocol {
 
                 if (message.isFlagSet(Message.Flag.OOB))
                     return up_prot.up(event);
-                RMCastHeader header = (RMCastHeader) message.getHeader(this.id);
-                if (header == null) {
-                    header = (RMCastHeader) message.getHeader(ClassConfigurator.getProtocolId(HiTab.class));
-                    if (header == null)
-                        return up_prot.up(event);
-                }
-
-                byte type = ((HiTabHeader) header).getType();
-                if (type == HiTabHeader.BROADCAST || type == HiTabHeader.RETRANSMISSION) {
-                    handleMessage(event, header);
+                RMCastHeader header = getBroadcastHeader(message);
+                if (header != null) {
+                    message.copyPooledBuffer(); // Kept for retransmission and by HiTab until it is delivered
+                    handleMessage(message, header, null);
                     return null;
                 }
                 // If its not a MessageBroadcaster, Retransmission or an Empty ack message, then it must be a request. Send to HiTab protocol
@@ -88,6 +87,25 @@ public class RMCast extends Protocol {
         return up_prot.up(event);
     }
 
+    @Override
+    public void up(MessageBatch batch) {
+        for (Iterator<Message> it = batch.iterator(); it.hasNext(); ) {
+            Message message = it.next();
+            RMCastHeader header;
+            if (message == null || message.isFlagSet(Message.Flag.OOB) || (header = getBroadcastHeader(message)) == null)
+                continue;
+
+            message.copyPooledBuffer(); // Kept for retransmission and by HiTab until it is delivered
+
+            // Messages that have already been received are removed, all other messages are passed up in the batch
+            if (!handleMessage(message, header, batch))
+                it.remove();
+        }
+
+        if (!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
     @Override
     public Object down(Event event) {
         switch (event.getType()) {
@@ -104,7 +122,7 @@ public class RMCast extends Protocol {
                 switch (e.getType()) {
                     case HiTabEvent.BROADCAST_COMPLETE:
                         MessageId id = (MessageId) e.getArg();
-                        MessageRecord record = messageRecords.get(id);
+                        MessageRecord record = messageRecords.get(getKey(id));
                         boolean complete = true;
                         if (record != null)
                             complete = record.isBroadcastComplete();
@@ -130,24 +148,66 @@ public class RMCast extends Protocol {
         return view.getMembers().indexOf(node);
     }
 
-    private void handleMessage(Event event, RMCastHeader header) {
+    // Packs the originator's ordinal and the message's sequence into a long.  The ids created by RMCast itself have no
+    // sequence (-1) and are told apart by their timestamp (in milliseconds), which is marked by bit 47 of the key
+    private long getKey(MessageId id) {
+        Address originator = id.getOriginator();
+        Integer ordinal = memberOrdinals.get(originator);
+        if (ordinal == null) {
+            Integer newOrdinal = nextOrdinal.getAndIncrement();
+            ordinal = memberOrdinals.putIfAbsent(originator, newOrdinal);
+            if (ordinal == null)
+                ordinal = newOrdinal;
+        }
+        long sequence = id.getSequence();
+        long low = sequence >= 0 ? sequence & 0x7FFFFFFFFFFFL : (1L << 47) | (id.getTimestamp() & 0x7FFFFFFFFFFFL);
+        return ((long) ordinal << 48) | low;
+    }
+
+    // Returns the header of a broadcast or retransmission, or null if the message is not handled by RMCast
+    // If it's not a MessageBroadcaster, Retransmission or an Empty ack message, then it must be a request for the HiTab protocol
+    private RMCastHeader getBroadcastHeader(Message message) {
+        RMCastHeader header = (RMCastHeader) message.getHeader(this.id);
+        if (header == null) {
+            header = (RMCastHeader) message.getHeader(ClassConfigurator.getProtocolId(HiTab.class));
+            if (header == null)
+                return null;
+        }
+
+        byte type = ((HiTabHeader) header).getType();
+        return type == HiTabHeader.BROADCAST || type == HiTabHeader.RETRANSMISSION ? header : null;
+    }
+
+    // If batch != null the message is passed up as part of the batch, instead of being sent up immediately
+    // Returns true if the message has been, or will be, passed up the stack
+    private boolean handleMessage(Message message, RMCastHeader header, MessageBatch batch) {
 //        System.out.println("--------------------------------------------------------------");
 //        System.out.println("Received := " + header);
 
         final MessageRecord record;
-        MessageRecord newRecord = new MessageRecord(header);
-        MessageRecord tmp = (MessageRecord) ((ConcurrentHashMap)messageRecords).putIfAbsent(header.getId(), newRecord);
+        final boolean passUp;
+        long key = getKey(header.getId());
+        MessageRecord tmp = messageRecords.get(key); // A record is only created the first time a message is received
+        MessageRecord newRecord = null;
+        if (tmp == null) {
+            newRecord = new MessageRecord(header);
+            newRecord.message = message; // Store actual message, need for retransmission
+            tmp = messageRecords.putIfAbsent(key, newRecord);
+        }
         if (tmp == null) {
-            up_prot.up(event); // Deliver to the above layer (Application or HiTab) if this is the first time RMCast has received M
+            passUp = true;
+            if (batch == null)
+                up_prot.up(new Event(Event.MSG, message)); // Deliver to the above layer (Application or HiTab) if this is the first time RMCast has received M
             record = newRecord;
-            receivedMessages.put(header.getId(), (Message) event.getArg()); // Store actual message, need for retransmission
             handlePiggyBacks(header);
         } else {
-            if (((HiTabHeader)header).getType() == HiTabHeader.RETRANSMISSION)
-                up_prot.up(event);
+            passUp = ((HiTabHeader)header).getType() == HiTabHeader.RETRANSMISSION;
+            if (passUp && batch == null)
+                up_prot.up(new Event(Event.MSG, message));
             record = tmp;
         }
         handleRMCastCopies(header, record);
+        return passUp;
     }
 
     private void handleRMCastCopies(RMCastHeader header, MessageRecord record) {
@@ -158,10 +218,10 @@ public class RMCast extends Protocol {
 
         if (record.largestCopyReceived == header.getCopyTotal() && record.crashNotified) {
             // Cancel any responsiveness tasks that belong to this message and remove the record
-            Future f = responsiveTasks.get(header.getId());
+            Future f = record.task;
             if (f != null)
                 f.cancel(true);
-            receivedMessages.remove(header.getId());
+            record.message = null;
             return;
         }
 
@@ -265,10 +325,10 @@ public class RMCast extends Protocol {
         List<RMCastHeader> headers = header.getPiggyBackedHeaders();
         if (headers != null) {
             for (RMCastHeader h : headers) {
-                if (!messageRecords.containsKey(h.getId())) {
+                if (messageRecords.get(getKey(h.getId())) == null) {
                     requestFullMessage(h.getId());
                 } else {
-                    MessageRecord record = messageRecords.get(header.getId());
+                    MessageRecord record = messageRecords.get(getKey(header.getId()));
                     if (record.largestCopyReceived < h.getCopy())
                         record.largestCopyReceived = h.getCopy(); // Set the largest copy to == this piggybacks copy
                     handleRMCastCopies(header, record);
@@ -290,7 +350,7 @@ public class RMCast extends Protocol {
         final int timeout = (int) Math.ceil(data.getEta() + data.getOmega());
         // If there is already a responsiveness timeout in progress (Executing), do nothing
         // Otherwise cancel the timeout and start a new one
-        Future oldTask = responsiveTasks.get(record.id);
+        Future oldTask = record.task;
         if (oldTask == null || oldTask.cancel(false)) {
             // Final check before creating the task ensuring another thread hasn't completed the broadcast of this message
             if (record.largestCopyReceived >= header.getCopyTotal())
@@ -315,20 +375,22 @@ public class RMCast extends Protocol {
                         }, ran, TimeUnit.MILLISECONDS);
                         // Set the responsivenes task to be this newTask.
                         // Allows this newTask to be cancelled if this method is called by a subsequent message copy
-                        responsiveTasks.put(record.id, nextTask);
+                        record.task = nextTask;
                     }
                 }
             }, timeout, TimeUnit.MILLISECONDS);
             // Store this task so that it can be used by the above if statement when the method is called again
-            responsiveTasks.put(record.id, task);
+            record.task = task;
         }
     }
 
     private void  collectGarbage(List<MessageId> messages) {
         for (MessageId id : messages) {
-            messageRecords.remove(id);
-            receivedMessages.remove(id); // Shouldn't be necessary
-            Future f = responsiveTasks.remove(id);
+            MessageRecord record = messageRecords.remove(getKey(id));
+            if (record == null)
+                continue;
+            record.message = null;
+            Future f = record.task;
             if (f != null)
                 f.cancel(true);
         }
@@ -424,7 +486,7 @@ public class RMCast extends Protocol {
             this.record = record;
             this.header = header;
             this.delay = delay;
-            this.message = receivedMessages.get(header.getId());
+            this.message = record.message;
         }
 
         @Override
@@ -472,6 +534,8 @@ public class RMCast extends Protocol {
         private volatile int lastBroadcast;
         private volatile boolean crashNotified; // Not currently used for anything
         private volatile boolean ackNotified;
+        private volatile Message message; // Stored for retransmission, null once all copies have been received
+        private volatile Future task; // The responsiveness task
 
         public MessageRecord(RMCastHeader header) {
             this(header.getId(), header.getCopyTotal(), -1, null, -1, false, false);
@@ -0,0 +1,149 @@
+package org.jgroups.protocols.HiTab;
+
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A hashed timing wheel used by HiTab for the timeouts of its placeholder requests, based on
+ * {@link org.jgroups.util.HashedTimingWheel}.  Unlike HashedTimingWheel, this class does not have its own thread or
+ * thread pool; instead {@link #tick()} must be called regularly (by HiTab's delivery thread) and expired tasks are
+ * executed by the calling thread.  This prevents a large number of short lived tasks from being submitted to the
+ * transport's TimeScheduler when messages are lost.
+ * <p/>
+ * Scheduling and cancelling a task is O(1).  The accuracy of a timeout is limited by tickTime and the frequency at
+ * which tick() is called.
+ *
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+final class TimeoutWheel {
+    private static final Log log = LogFactory.getLog(TimeoutWheel.class);
+
+    private final List<List<Timeout>> wheel;
+    private final long tickTime; // The duration of each tick in nanoseconds
+    private int position = 0; // The index of the next slot to be processed
+    private long nextTick; // The time, in nanoseconds, at which the slot at position expires
+
+    TimeoutWheel(int wheelSize, long tickTime, TimeUnit unit) {
+        if (wheelSize < 1 || tickTime < 1)
+            throw new IllegalArgumentException("wheelSize and tickTime must be greater than 0 | wheelSize := " +
+                    wheelSize + " | tickTime := " + tickTime);
+
+        this.tickTime = unit.toNanos(tickTime);
+        this.nextTick = System.nanoTime() + this.tickTime;
+        wheel = new ArrayList<List<Timeout>>(wheelSize);
+        for (int i = 0; i < wheelSize; i++)
+            wheel.add(new LinkedList<Timeout>());
+    }
+
+    synchronized Future<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        long ticks = Math.max(0, (System.nanoTime() + unit.toNanos(delay) - nextTick + tickTime - 1) / tickTime);
+        Timeout timeout = new Timeout(task, (int) (ticks / wheel.size()));
+        wheel.get((int) ((position + ticks) % wheel.size())).add(timeout);
+        return timeout;
+    }
+
+    // Executes all tasks that have expired since the last call, must only be called by one thread at a time
+    void tick() {
+        List<Timeout> expired = null;
+        synchronized (this) {
+            long now = System.nanoTime();
+            while (now - nextTick >= 0) {
+                for (Iterator<Timeout> it = wheel.get(position).iterator(); it.hasNext(); ) {
+                    Timeout timeout = it.next();
+                    if (timeout.cancelled) {
+                        it.remove();
+                    } else if (timeout.round-- <= 0) {
+                        it.remove();
+                        if (expired == null)
+                            expired = new ArrayList<Timeout>();
+                        expired.add(timeout);
+                    }
+                }
+                position = (position + 1) % wheel.size();
+                nextTick += tickTime;
+            }
+        }
+
+        if (expired != null)
+            for (Timeout timeout : expired)
+                timeout.run();
+    }
+
+    synchronized int size() {
+        int size = 0;
+        for (List<Timeout> slot : wheel)
+            size += slot.size();
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "TimeoutWheel{" +
+                "wheelSize=" + wheel.size() +
+                ", tickTime=" + TimeUnit.NANOSECONDS.toMillis(tickTime) + "ms" +
+                ", size=" + size() +
+                '}';
+    }
+
+    private static final class Timeout implements Future<Object>, Runnable {
+        private final Runnable task;
+        private volatile boolean cancelled = false;
+        private volatile boolean done = false;
+        private int round; // The number of rotations remaining before this timeout expires
+
+        Timeout(Runnable task, int round) {
+            this.task = task;
+            this.round = round;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean retval = !isDone();
+            cancelled = true;
+            return retval;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done || cancelled;
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return null;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled)
+                return;
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.error("failed executing task " + task, t);
+            } finally {
+                done = true;
+            }
+        }
+    }
+}
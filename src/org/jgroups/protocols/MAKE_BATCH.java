@@ -105,7 +105,7 @@ public class MAKE_BATCH extends Protocol {
             List<Message> list=map.get(sender);
             if(list == null)
                 map.put(sender, list=new ArrayList<Message>());
-            list.add(msg);
+            list.add(msg.copyPooledBuffer()); // passed up by the batcher task
         }
     }
 
@@ -109,6 +109,7 @@ public class PRIO extends Protocol {
 					PrioHeader hdr=(PrioHeader)message.getHeader(id);
 					if(hdr != null) {
 						log.trace("%s: adding priority message %d to UP queue", local_addr, hdr.getPriority());
+						message.copyPooledBuffer(); // delivered by the UpMessageThread
 						upMessageQueue.add( new PriorityMessage( evt, hdr.getPriority() ) );
 						// send with hdr.prio
 						return null;
@@ -128,7 +129,7 @@ public class PRIO extends Protocol {
             PrioHeader hdr=(PrioHeader)msg.getHeader(id);
             if(hdr != null) {
                 log.trace("%s: adding priority message %d to UP queue", local_addr, hdr.getPriority());
-                upMessageQueue.add( new PriorityMessage( new Event(Event.MSG, msg), hdr.getPriority() ) );
+                upMessageQueue.add( new PriorityMessage( new Event(Event.MSG, msg.copyPooledBuffer()), hdr.getPriority() ) );
                 batch.remove(msg); // sent up by UpMessageThread; we don't need to send it up, too
             }
         }
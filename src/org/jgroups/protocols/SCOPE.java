@@ -381,7 +381,7 @@ public class SCOPE extends Protocol {
         }
 
         public void add(Message msg) {
-            queue.add(msg);
+            queue.add(msg.copyPooledBuffer()); // delivered by a QueueThread
         }
 
         public Message remove() {
@@ -267,7 +267,7 @@ public class SEQUENCER2 extends Protocol {
                 case SequencerHeader.BCAST:
                     if(msgs == null)
                         msgs=new ArrayList<Tuple<Long,Message>>(batch.size());
-                    msgs.add(new Tuple<Long,Message>(hdr.seqno, msg));
+                    msgs.add(new Tuple<Long,Message>(hdr.seqno, msg.copyPooledBuffer())); // may be delivered by another thread
                     break;
 
                 default:
@@ -394,7 +394,7 @@ public class SEQUENCER2 extends Protocol {
         }
         
         final Table<Message> win=received_msgs;
-        win.add(hdr.seqno, msg);
+        win.add(hdr.seqno, msg.copyPooledBuffer()); // may be delivered by another thread
 
         final AtomicBoolean processing=win.getProcessing();
         if(processing.compareAndSet(false, true)) 
@@ -0,0 +1,533 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.SharedMemoryRing;
+import org.jgroups.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Transport which exchanges messages and message bundles with members on the same host through memory-mapped files,
+ * and uses {@link UDP} for members on other hosts.<p/>
+ * Every member has an inbox: a directory under shm_dir, named after its physical address. A sender creates a
+ * {@link SharedMemoryRing} in the inbox of each co-located receiver it sends to (when it first sends to it), so every
+ * ring has exactly one producer (the sender's bundler or sending threads, serialized by a lock) and one consumer (the
+ * receiver thread of the inbox). The first record of a ring is the sender's physical address.<p/>
+ * The receiver thread polls its rings; when they're empty, it spins for spin_count rounds, then parks for an
+ * increasing time (up to max_park_time), until a record is available. No system call is needed to hand off a message
+ * between processes.<p/>
+ * Every inbox has a control file, which is created before and marked as closed when the member stops. The receiver
+ * thread updates a heartbeat in the control file, so that the inboxes of crashed members can be removed: the inbox of
+ * a member is only removed once the member left the view and its heartbeat is older than heartbeat_timeout, so a
+ * member which is merely stalled (e.g. by a GC pause) keeps its inbox. If a message
+ * is too big for a ring, or if the ring is still full after full_ring_retries attempts, the message is sent via UDP.
+ * A multicast is written to the rings of all members if all of them are co-located, and sent via UDP otherwise.
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+public class SHARED_MEMORY extends UDP {
+
+    /* ------------------------------------------ Properties  ------------------------------------------ */
+
+    @Property(description="Directory in which the inboxes are created. Should be on a memory based file system. " +
+      "Defaults to /dev/shm/jgroups if /dev/shm exists, or a directory under java.io.tmpdir otherwise",writable=false)
+    protected String shm_dir;
+
+    @Property(description="Size (in bytes) of a ring; rounded up to the next power of 2",writable=false)
+    protected int ring_size=4 * 1024 * 1024;
+
+    @Property(description="Number of rounds the receiver thread polls the empty rings before it parks")
+    protected int spin_count=1000;
+
+    @Property(description="Max time (in microseconds) the receiver thread parks when all rings are empty. " +
+      "The park time starts at 1 microsecond and is doubled every round the rings are empty")
+    protected long max_park_time=1000;
+
+    @Property(description="Number of times a sender retries writing to a full ring before it sends the message via UDP")
+    protected int full_ring_retries=100;
+
+    @Property(description="Interval (in ms) at which the receiver thread rescans its inbox for new rings, even if no " +
+      "sender signalled a new ring")
+    protected long rescan_interval=1000;
+
+    @Property(description="Time (in ms) after which the inbox of a member which is not in the view is considered dead " +
+      "if its heartbeat hasn't been updated. Dead inboxes are removed. Inboxes of members in the view are never removed")
+    protected long heartbeat_timeout=10000;
+
+
+    /* --------------------------------------------- Fields ------------------------------------------------ */
+
+    /** Layout of the control file: the heartbeat (ms), the number of rings created and the state of the inbox */
+    protected static final int    HEARTBEAT=0, CHANGES=8, STATE=16, CTL_SIZE=64;
+    protected static final int    OPEN=1, CLOSED=2;
+    protected static final String CTL="ctl";
+
+    protected File                                        root, inbox;
+    protected String                                      local_key;
+    protected MappedByteBuffer                            ctl;       // the control file of our inbox
+    protected volatile Thread                             shm_receiver;
+
+    /** Outbound rings to co-located members, keyed by the physical address of the receiver */
+    protected final ConcurrentMap<PhysicalAddress,Outbound> outbound=new ConcurrentHashMap<PhysicalAddress,Outbound>();
+
+    /** Physical addresses which don't have an inbox on this host. Cleared on a view change */
+    protected final Set<PhysicalAddress>                  remote=Collections.newSetFromMap(new ConcurrentHashMap<PhysicalAddress,Boolean>());
+
+    /** Rings in our inbox, only modified by the receiver thread */
+    protected final List<Inbound>                         inbound=new CopyOnWriteArrayList<Inbound>();
+
+    protected final AtomicLong                            num_shm_msgs_sent=new AtomicLong();
+    protected final AtomicLong                            num_ring_full=new AtomicLong();
+    protected volatile long                               num_shm_msgs_received;
+
+
+    public SHARED_MEMORY() {}
+
+    @ManagedAttribute(description="Number of messages and bundles written to rings")
+    public long getNumShmMessagesSent()     {return num_shm_msgs_sent.get();}
+
+    @ManagedAttribute(description="Number of messages and bundles read from rings")
+    public long getNumShmMessagesReceived() {return num_shm_msgs_received;}
+
+    @ManagedAttribute(description="Number of messages and bundles sent via UDP because a ring was full or the message " +
+      "was bigger than the ring")
+    public long getNumRingFull()            {return num_ring_full.get();}
+
+    @ManagedAttribute(description="Number of outbound rings")
+    public int getNumOutboundRings()        {return outbound.size();}
+
+    @ManagedAttribute(description="Number of inbound rings")
+    public int getNumInboundRings()         {return inbound.size();}
+
+    @ManagedAttribute(description="The inbox of this member, or null if the shared memory transport is disabled")
+    public String getInbox()                {return inbox != null? inbox.getPath() : null;}
+
+    @ManagedOperation(description="Prints the inbound and outbound rings")
+    public String printRings() {
+        StringBuilder sb=new StringBuilder("inbound:\n");
+        for(Inbound in: inbound)
+            sb.append(in.sender).append(": ").append(in.ring).append("\n");
+        sb.append("outbound:\n");
+        for(Map.Entry<PhysicalAddress,Outbound> entry: outbound.entrySet())
+            sb.append(entry.getKey()).append(": ").append(entry.getValue().ring).append("\n");
+        return sb.toString();
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_shm_msgs_sent.set(0);
+        num_ring_full.set(0);
+        num_shm_msgs_received=0;
+    }
+
+
+    public void init() throws Exception {
+        super.init();
+        if(ring_size < 1024)
+            throw new IllegalArgumentException("ring_size (" + ring_size + ") has to be >= 1024");
+        if(heartbeat_timeout <= 0)
+            throw new IllegalArgumentException("heartbeat_timeout (" + heartbeat_timeout + ") has to be > 0");
+        if(shm_dir == null) {
+            File dev_shm=new File("/dev/shm");
+            shm_dir=dev_shm.isDirectory()? new File(dev_shm, "jgroups").getPath()
+              : new File(System.getProperty("java.io.tmpdir"), "jgroups-shm").getPath();
+        }
+    }
+
+    /** Creates the sockets, then the inbox and its receiver thread */
+    public void start() throws Exception {
+        super.start();
+        if(!SharedMemoryRing.isSupported()) {
+            log.warn("%s: shared memory rings are not supported by this JVM, using UDP for co-located members", local_addr);
+            return;
+        }
+        try {
+            createInbox();
+        }
+        catch(IOException ex) { // not fatal: we simply use UDP for all members
+            log.warn("%s: failed creating inbox under %s, using UDP for co-located members: %s", local_addr, shm_dir, ex);
+            deleteDirectory(inbox);
+            inbox=null;
+            return;
+        }
+        shm_receiver=getThreadFactory().newThread(new Runnable() {
+            public void run() {
+                receiveFromRings();
+            }
+        }, "shm receiver");
+        shm_receiver.setDaemon(true);
+        shm_receiver.start();
+    }
+
+    public void stop() {
+        Thread tmp=shm_receiver;
+        shm_receiver=null;
+        if(tmp != null) {
+            LockSupport.unpark(tmp);
+            try {
+                tmp.join(1000);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(ctl != null) {
+            ctl.putInt(STATE, CLOSED);
+            ctl=null;
+        }
+        for(Outbound out: outbound.values())
+            out.ring.delete();
+        outbound.clear();
+        remote.clear();
+        for(Inbound in: inbound)
+            in.ring.delete();
+        inbound.clear();
+        deleteDirectory(inbox);
+        inbox=null;
+        super.stop();
+    }
+
+
+    public void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {
+        Outbound out=inbox != null? getOutbound(dest) : null;
+        if(out == null || !write(dest, out, data, offset, length))
+            super.sendUnicast(dest, data, offset, length);
+    }
+
+    /**
+     * Writes the multicast to the rings of all members if all of them are co-located, otherwise sends it via UDP
+     * (which also reaches the co-located members). If a ring is full, the multicast is sent to its receiver via UDP
+     */
+    public void sendMulticast(byte[] data, int offset, int length) throws Exception {
+        List<PhysicalAddress> targets=inbox != null? getLocalMembers() : null;
+        if(targets == null) {
+            super.sendMulticast(data, offset, length);
+            return;
+        }
+        for(PhysicalAddress target: targets) {
+            Outbound out=getOutbound(target);
+            if(out == null || !write(target, out, data, offset, length))
+                super.sendUnicast(target, data, offset, length);
+        }
+    }
+
+
+    protected Object handleDownEvent(Event evt) {
+        Object retval=super.handleDownEvent(evt);
+        if(evt.getType() == Event.VIEW_CHANGE && inbox != null) {
+            Set<PhysicalAddress> physical_mbrs=new HashSet<PhysicalAddress>();
+            for(Address mbr: members) {
+                PhysicalAddress physical_addr=getPhysicalAddressFromCache(mbr);
+                if(physical_addr != null)
+                    physical_mbrs.add(physical_addr);
+            }
+            // close the rings to members which left or whose inbox is closed, and remove the inboxes of members which
+            // left and whose heartbeat is older than heartbeat_timeout (crashed)
+            for(Iterator<Map.Entry<PhysicalAddress,Outbound>> it=outbound.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<PhysicalAddress,Outbound> entry=it.next();
+                Outbound out=entry.getValue();
+                boolean left=!physical_mbrs.contains(entry.getKey());
+                if(left || !isOpen(out.ctl)) {
+                    it.remove();
+                    synchronized(out) {
+                        out.ring.delete();
+                    }
+                    if(left && isDead(out.ctl)) {
+                        File dir=new File(root, key(entry.getKey()));
+                        log.debug("%s: removing dead inbox %s", local_addr, dir);
+                        deleteDirectory(dir);
+                    }
+                }
+            }
+            remote.clear();
+        }
+        return retval;
+    }
+
+
+    /**
+     * Returns the physical addresses of all members except ourself, or null if there are no other members, if the
+     * physical address of a member is not known, or if a member is not co-located
+     */
+    protected List<PhysicalAddress> getLocalMembers() {
+        List<PhysicalAddress> targets=null;
+        for(Address mbr: members) {
+            if(mbr.equals(local_addr))
+                continue;
+            PhysicalAddress physical_addr=getPhysicalAddressFromCache(mbr);
+            if(physical_addr == null || remote.contains(physical_addr)
+              || (!outbound.containsKey(physical_addr) && getOutbound(physical_addr) == null))
+                return null;
+            if(targets == null)
+                targets=new ArrayList<PhysicalAddress>(members.size());
+            targets.add(physical_addr);
+        }
+        return targets;
+    }
+
+    /** Returns the ring to dest, creating it if dest has an inbox on this host, or null if dest is not co-located */
+    protected Outbound getOutbound(PhysicalAddress dest) {
+        Outbound out=outbound.get(dest);
+        if(out != null || remote.contains(dest) || !(dest instanceof IpAddress))
+            return out;
+        synchronized(outbound) {
+            if((out=outbound.get(dest)) != null)
+                return out;
+            try {
+                out=createOutbound(dest);
+            }
+            catch(Exception ex) {
+                log.warn("%s: failed creating ring to %s, using UDP: %s", local_addr, dest, ex);
+            }
+            if(out != null)
+                outbound.put(dest, out);
+            else
+                remote.add(dest);
+            return out;
+        }
+    }
+
+    protected Outbound createOutbound(PhysicalAddress dest) throws Exception {
+        File dir=new File(root, key(dest)), ctl_file=new File(dir, CTL);
+        if(!ctl_file.isFile())
+            return null;
+        MappedByteBuffer dest_ctl=map(ctl_file, false);
+        if(!isOpen(dest_ctl))
+            return null;
+        if(isDead(dest_ctl) && !isMember(dest)) { // a stalled member keeps its inbox as long as it is in the view
+            log.debug("%s: removing dead inbox %s", local_addr, dir);
+            deleteDirectory(dir);
+            return null;
+        }
+
+        // remove the rings of a previous incarnation of this member
+        String prefix=local_key + "#";
+        File[] files=dir.listFiles();
+        if(files != null)
+            for(File file: files)
+                if(file.getName().startsWith(prefix))
+                    file.delete();
+
+        SharedMemoryRing ring=SharedMemoryRing.create(new File(dir, prefix + Long.toHexString(Util.random(Long.MAX_VALUE))),
+                                                      ring_size);
+        byte[] addr=Util.streamableToByteBuffer((IpAddress)getPhysicalAddress());
+        ring.offer(addr, 0, addr.length);
+        dest_ctl.putLong(CHANGES, dest_ctl.getLong(CHANGES) + 1); // concurrent increments can get lost: rescan_interval
+        log.debug("%s: created ring %s to %s", local_addr, ring.file(), dest);
+        return new Outbound(ring, dest_ctl);
+    }
+
+    /** Writes the data to the ring, returns false if the data has to be sent via UDP */
+    protected boolean write(PhysicalAddress dest, Outbound out, byte[] data, int offset, int length) {
+        if(out.ctl.getInt(STATE) != OPEN) { // the receiver left: remove the ring
+            if(outbound.remove(dest, out)) {
+                synchronized(out) {
+                    out.ring.delete();
+                }
+            }
+            return false;
+        }
+        synchronized(out) {
+            for(int i=0; i <= full_ring_retries; i++) {
+                if(out.ring.offer(data, offset, length)) {
+                    num_shm_msgs_sent.incrementAndGet();
+                    return true;
+                }
+                if(length + 8 > out.ring.capacity())
+                    break;
+                Thread.yield();
+            }
+        }
+        num_ring_full.incrementAndGet();
+        return false;
+    }
+
+
+    protected void createInbox() throws IOException {
+        root=new File(shm_dir);
+        local_key=key(getPhysicalAddress());
+        inbox=new File(root, local_key);
+        deleteDirectory(inbox); // left behind by a crashed member with the same address
+        if(!inbox.mkdirs())
+            throw new IOException("failed creating " + inbox);
+
+        // create the control file under a temporary name, so that senders never see a partial file
+        File tmp=new File(inbox, "." + CTL + ".tmp"), ctl_file=new File(inbox, CTL);
+        MappedByteBuffer buf=map(tmp, true);
+        buf.putLong(HEARTBEAT, System.currentTimeMillis());
+        buf.putInt(STATE, OPEN);
+        if(!tmp.renameTo(ctl_file))
+            throw new IOException("failed renaming " + tmp + " to " + ctl_file);
+        ctl=buf;
+    }
+
+    /** Loop of the receiver thread: polls all rings, and spins and parks when they're empty */
+    protected void receiveFromRings() {
+        final long max_park=TimeUnit.NANOSECONDS.convert(max_park_time, TimeUnit.MICROSECONDS);
+        final MappedByteBuffer control=ctl;
+        long changes=-1, last_scan=0, park_time=1;
+        int idle=0;
+
+        while(shm_receiver == Thread.currentThread()) {
+            long now=System.currentTimeMillis();
+            control.putLong(HEARTBEAT, now);
+            long tmp=control.getLong(CHANGES);
+            if(tmp != changes || now - last_scan >= rescan_interval) {
+                changes=tmp;
+                last_scan=now;
+                scanInbox();
+            }
+
+            boolean received=false;
+            for(Inbound in: inbound) {
+                for(int i=0; i < 64; i++) { // don't let a single sender monopolize the receiver thread
+                    int length=in.ring.poll();
+                    if(length < 0)
+                        break;
+                    received=true;
+                    deliver(in, length);
+                }
+            }
+            if(received) {
+                idle=0;
+                park_time=1;
+                continue;
+            }
+            if(++idle <= spin_count)
+                continue;
+            LockSupport.parkNanos(park_time);
+            park_time=Math.min(park_time * 2, max_park);
+        }
+    }
+
+    protected void deliver(Inbound in, int length) {
+        byte[] buf=in.ring.buffer();
+        if(in.sender == null) { // the first record is the address of the sender
+            try {
+                in.sender=(PhysicalAddress)Util.streamableFromByteBuffer(IpAddress.class, buf, 0, length);
+            }
+            catch(Exception ex) {
+                log.error("%s: failed reading sender of ring %s: %s", local_addr, in.ring.file(), ex);
+            }
+            return;
+        }
+        num_shm_msgs_received++;
+        try {
+            receive(in.sender, buf, 0, length);
+        }
+        catch(Throwable t) {
+            log.error("%s: failed handling message from %s: %s", local_addr, in.sender, t);
+        }
+    }
+
+    /** Opens new rings in the inbox, and removes empty rings whose file has been deleted by the sender */
+    protected void scanInbox() {
+        File[] files=inbox.listFiles();
+        if(files == null)
+            return;
+        Set<File> ring_files=new HashSet<File>(files.length);
+        for(File file: files)
+            if(file.getName().indexOf('#') > 0 && !file.getName().startsWith("."))
+                ring_files.add(file);
+
+        for(Inbound in: inbound) {
+            if(!ring_files.remove(in.ring.file()) && in.ring.isEmpty()) {
+                inbound.remove(in);
+                in.ring.close();
+            }
+        }
+        for(File file: ring_files) {
+            try {
+                inbound.add(new Inbound(SharedMemoryRing.open(file)));
+            }
+            catch(IOException ex) {
+                log.warn("%s: failed opening ring %s: %s", local_addr, file, ex);
+            }
+        }
+    }
+
+    protected static boolean isOpen(MappedByteBuffer ctl) {
+        return ctl.getInt(STATE) == OPEN;
+    }
+
+    /** An inbox is dead if it is open, but its heartbeat hasn't been updated for heartbeat_timeout ms */
+    protected boolean isDead(MappedByteBuffer ctl) {
+        return isOpen(ctl) && System.currentTimeMillis() - ctl.getLong(HEARTBEAT) >= heartbeat_timeout;
+    }
+
+    protected boolean isMember(PhysicalAddress addr) {
+        for(Address mbr: members)
+            if(addr.equals(getPhysicalAddressFromCache(mbr)))
+                return true;
+        return false;
+    }
+
+    /** Maps the control file. The mapping stays valid after the file has been closed */
+    protected static MappedByteBuffer map(File file, boolean create) throws IOException {
+        RandomAccessFile raf=new RandomAccessFile(file, "rw");
+        try {
+            if(create)
+                raf.setLength(CTL_SIZE);
+            else if(raf.length() < CTL_SIZE)
+                throw new IOException(file + " is not a control file (size: " + raf.length() + ")");
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CTL_SIZE);
+        }
+        finally {
+            Util.close(raf);
+        }
+    }
+
+    protected static String key(PhysicalAddress addr) {
+        IpAddress ip=(IpAddress)addr;
+        return ip.getIpAddress().getHostAddress().replaceAll("[^\\w.-]", "-") + "_" + ip.getPort();
+    }
+
+    protected static void deleteDirectory(File dir) {
+        if(dir == null)
+            return;
+        File[] files=dir.listFiles();
+        if(files != null)
+            for(File file: files)
+                file.delete();
+        dir.delete();
+    }
+
+
+    /** Ring to a co-located member, with the mapped control file of its inbox */
+    protected static class Outbound {
+        protected final SharedMemoryRing ring;
+        protected final MappedByteBuffer ctl;
+
+        public Outbound(SharedMemoryRing ring, MappedByteBuffer ctl) {
+            this.ring=ring;
+            this.ctl=ctl;
+        }
+    }
+
+    /** Ring in our inbox; the address of the sender is null until the first record has been read */
+    protected static class Inbound {
+        protected final SharedMemoryRing ring;
+        protected PhysicalAddress        sender;
+
+        public Inbound(SharedMemoryRing ring) {
+            this.ring=ring;
+        }
+    }
+}
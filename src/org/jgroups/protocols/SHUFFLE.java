@@ -93,7 +93,7 @@ public class SHUFFLE extends Protocol {
             return up_prot.up(evt);
         Message msg=(Message)evt.getArg();
         synchronized(up_msgs) {
-            up_msgs.add(msg);
+            up_msgs.add(msg.copyPooledBuffer());
         }
         if(up_msgs.size() >= max_size) {
             shuffleAndSendMessages();
@@ -111,7 +111,7 @@ public class SHUFFLE extends Protocol {
 
         synchronized(up_msgs) {
             for(Message msg: batch)
-                up_msgs.add(msg);
+                up_msgs.add(msg.copyPooledBuffer());
         }
         batch.clear();
 
@@ -0,0 +1,113 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.blocks.NioConnectionMap;
+import org.jgroups.blocks.TCPConnectionMap;
+
+import java.util.Collection;
+
+/**
+ * TCP based transport which uses non-blocking channels. Unlike {@link TCP}, which runs a receiver thread (and, if
+ * use_send_queues is true, a sender thread) per connection, all connections are served by a fixed number of reactor
+ * threads, so the number of threads doesn't grow with the cluster size.<p/>
+ * Messages are written by the sending thread (usually the bundler), and only queued when the socket's send buffer is
+ * full, so use_send_queues is ignored; send_queue_size is the max number of messages queued per connection.
+ * See {@link NioConnectionMap} for details.
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+public class TCP_NIO2 extends BasicTCP implements TCPConnectionMap.Receiver {
+
+    @Property(description="Number of reactor threads which read from and write to the connections. " +
+      "If 0, one thread per core is used")
+    protected int reactor_threads=0;
+
+    @Property(description="Size (in bytes) of the pooled direct buffers into which data is read. " +
+      "Messages larger than this are read into a separate byte[]")
+    protected int read_buf_size=128000;
+
+    protected NioConnectionMap ct;
+
+
+    public TCP_NIO2() {}
+
+
+    @ManagedAttribute
+    public int getOpenConnections() {
+        return ct.getNumConnections();
+    }
+
+    @ManagedAttribute(description="Number of reactor threads")
+    public int getNumReactorThreads() {
+        return ct != null? ct.getNumReactors() : 0;
+    }
+
+    @ManagedOperation
+    public String printConnections() {
+        return ct.printConnections();
+    }
+
+    @ManagedOperation(description="Prints the pool of read buffers")
+    public String printReadBuffers() {
+        return ct != null? ct.printReadBuffers() : "n/a";
+    }
+
+    public void send(Address dest, byte[] data, int offset, int length) throws Exception {
+        if(ct != null)
+            ct.send(dest, data, offset, length);
+    }
+
+    public void retainAll(Collection<Address> members) {
+        ct.retainAll(members);
+    }
+
+    public void start() throws Exception {
+        ct=new NioConnectionMap(getThreadFactory(), this, bind_addr, external_addr, external_port,
+                                bind_port, bind_port+port_range, reaper_interval, conn_expire_time,
+                                reactor_threads, read_buf_size)
+          .clientBindAddress(client_bind_addr).clientBindPort(client_bind_port).deferClientBinding(defer_client_bind_addr)
+          .peerAddressReadTimeout(peer_addr_read_timeout).timeService(time_service).log(log);
+        ct.setReceiveBufferSize(recv_buf_size);
+        ct.setSendQueueSize(send_queue_size);
+        ct.setSendBufferSize(send_buf_size);
+        ct.setSocketConnectionTimeout(sock_conn_timeout);
+        ct.setTcpNodelay(tcp_nodelay);
+        ct.setLinger(linger);
+        super.start();
+    }
+
+    public void stop() {
+        if(log.isDebugEnabled()) log.debug("closing sockets and stopping threads");
+        ct.stop();
+        super.stop();
+    }
+
+
+    protected void handleConnect() throws Exception {
+        if(isSingleton()) {
+            if(connect_count == 0)
+                ct.start();
+            super.handleConnect();
+        }
+        else
+            ct.start();
+    }
+
+    protected void handleDisconnect() {
+        if(isSingleton()) {
+            super.handleDisconnect();
+            if(connect_count == 0)
+                ct.stop();
+        }
+        else
+            ct.stop();
+    }
+
+    protected PhysicalAddress getPhysicalAddress() {
+        return ct != null? (PhysicalAddress)ct.getLocalAddress() : null;
+    }
+}
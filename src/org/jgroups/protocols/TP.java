@@ -22,7 +22,11 @@ import java.net.SocketException;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 
@@ -58,6 +62,9 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     protected static final int     MSG_OFFSET=Global.SHORT_SIZE + Global.BYTE_SIZE*2; // offset for flags for single msgs
     protected static final int     MSG_OVERHEAD=Global.SHORT_SIZE + Global.BYTE_SIZE; // version + flags
     protected static final boolean can_bind_to_mcast_addr; // are we running on Linux ?
+    protected static final int     RECEIVE_BUF_OVERHEAD=1024; // version, flags, addresses and cluster name of a list
+    protected static final int     DEFAULT_MAX_TASKS_VIRTUAL=10000; // cap of a thread-per-task pool with virtual threads
+    protected static final int     DEFAULT_MAX_TASKS_PLATFORM=500;  // cap of a thread-per-task pool with platform threads
     protected static final String  BUNDLE_MSG="%s: sending %d msgs (%d bytes (%.2f of max_bundle_size) to %d dests(s): %s";
 
     protected static NumberFormat f;
@@ -161,6 +168,23 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             "Default=true",writable=false)
     protected boolean oob_thread_pool_enabled=true;
 
+    @Property(name="oob_thread_pool.mode",description="\"pool\": a pool of min_threads to max_threads threads, with " +
+      "an optional queue and a rejection policy. \"thread-per-task\": every message (or batch) is run in a new thread, " +
+      "and at most max_tasks are running. When they are, messages are added to a queue of max_queued_tasks elements, " +
+      "and dropped when it is full; the receiver never blocks. The pool properties (min_threads, max_threads, " +
+      "keep_alive_time, the queue and the rejection policy) are ignored in this mode",
+              writable=false)
+    protected String oob_thread_pool_mode="pool";
+
+    @Property(name="oob_thread_pool.max_tasks",description="Max number of OOB messages processed concurrently in " +
+      "thread-per-task mode. 0 uses a default of " + DEFAULT_MAX_TASKS_VIRTUAL + " with virtual threads and " +
+      DEFAULT_MAX_TASKS_PLATFORM + " with platform threads",writable=false)
+    protected int oob_thread_pool_max_tasks;
+
+    @Property(name="oob_thread_pool.max_queued_tasks",description="Max number of OOB messages queued in " +
+      "thread-per-task mode while max_tasks are running",writable=false)
+    protected int oob_thread_pool_max_queued_tasks=10000;
+
     @Property(name="oob_thread_pool.min_threads",description="Minimum thread pool size for the OOB thread pool")
     protected int oob_thread_pool_min_threads=2;
 
@@ -192,6 +216,31 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     @Property(name="thread_pool.enabled",description="Switch for enabling thread pool for regular messages")
     protected boolean thread_pool_enabled=true;
 
+    @Property(name="thread_pool.mode",description="\"pool\" or \"thread-per-task\" (see oob_thread_pool.mode)",
+              writable=false)
+    protected String thread_pool_mode="pool";
+
+    @Property(name="thread_pool.max_tasks",description="Max number of regular messages processed concurrently in " +
+      "thread-per-task mode (see oob_thread_pool.max_tasks)",writable=false)
+    protected int thread_pool_max_tasks;
+
+    @Property(name="thread_pool.max_queued_tasks",description="Max number of regular messages queued in " +
+      "thread-per-task mode while max_tasks are running",writable=false)
+    protected int thread_pool_max_queued_tasks=10000;
+
+    @Property(description="If true, regular messages are not passed to the regular thread pool, but added to a " +
+      "queue per sender. Each queue is drained by its own thread, which passes the queued messages up as message " +
+      "batches. This preserves the order of a sender's messages, and avoids pool threads contending for the same " +
+      "sender in NAKACK2 and UNICAST3",writable=false)
+    protected boolean per_sender_delivery=false;
+
+    @Property(description="Max number of batches (or single messages) in a per-sender queue if per_sender_delivery " +
+      "is true. When a queue is full, messages from that sender are discarded",writable=false)
+    protected int per_sender_delivery_queue_size=1000;
+
+    @Property(description="Time (in ms) after which an idle per-sender delivery thread terminates",writable=false)
+    protected long per_sender_delivery_keep_alive_time=30000;
+
     @Property(name="thread_pool.queue_enabled", description="Queue to enqueue incoming regular messages")
     protected boolean thread_pool_queue_enabled=true;
 
@@ -208,6 +257,22 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
               writable=false)
     protected boolean internal_thread_pool_enabled=true;
 
+    @Property(name="internal_thread_pool.mode",description="\"pool\" or \"thread-per-task\" (see oob_thread_pool.mode)",
+              writable=false)
+    protected String internal_thread_pool_mode="pool";
+
+    @Property(name="internal_thread_pool.max_tasks",description="Max number of internal messages processed " +
+      "concurrently in thread-per-task mode (see oob_thread_pool.max_tasks)",writable=false)
+    protected int internal_thread_pool_max_tasks;
+
+    @Property(name="internal_thread_pool.max_queued_tasks",description="Max number of internal messages queued in " +
+      "thread-per-task mode while max_tasks are running",writable=false)
+    protected int internal_thread_pool_max_queued_tasks=10000;
+
+    @Property(description="Whether thread pools in \"thread-per-task\" mode use virtual threads. Only has an effect " +
+      "if the JVM supports virtual threads, otherwise platform threads are used",writable=false)
+    protected boolean use_virtual_threads=true;
+
     @Property(name="internal_thread_pool.min_threads",description="Minimum thread pool size for the internal thread pool")
     protected int internal_thread_pool_min_threads=2;
 
@@ -348,13 +413,28 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     @Property(name="max_bundle_timeout", description="Max number of milliseconds until queued messages are sent")
     protected long max_bundle_timeout=20;
 
-    @Property(description="The type of bundler used. Has to be \"sender-sends-with-timer\", \"transfer-queue\" (default) " +
-      "or \"sender-sends\"")
+    @Property(description="The type of bundler used. Has to be \"sender-sends-with-timer\", \"transfer-queue\" (default), " +
+      "\"sender-sends\" or \"ring-buffer\"")
     protected String bundler_type="transfer-queue";
 
-    @Property(description="The max number of elements in a bundler if the bundler supports size limitations")
+    @Property(description="The max number of elements in a bundler if the bundler supports size limitations. " +
+      "The ring-buffer bundler rounds it up to the next power of 2")
     protected int bundler_capacity=20000;
 
+    @Property(description="If true, received datagrams are copied into pooled buffers, and the payloads of the " +
+      "messages read from them point into these buffers instead of being copied. Protocols and applications which " +
+      "keep a received message after up() or receive() returned have to call Message.copyPooledBuffer()",writable=false)
+    protected boolean zero_copy_receive=false;
+
+    @Property(description="If true, the length of every header is sent, so that receivers can keep the headers of a " +
+      "received message in serialized form and decode a header only when a protocol accesses it. Headers no " +
+      "protocol looks at are then never decoded. All members need to understand this format")
+    protected boolean lazy_headers=false;
+
+    @Property(description="Max number of buffers kept in the pool of receive buffers if zero_copy_receive is true",
+              writable=false)
+    protected int zero_copy_pool_size=64;
+
 
     public void setMaxBundleSize(int size) {
         if(size <= 0)
@@ -376,9 +456,17 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     @ManagedAttribute public int getBundlerBufferSize() {
         if(bundler instanceof TransferQueueBundler)
             return ((TransferQueueBundler)bundler).getBufferSize();
+        if(bundler instanceof RingBufferBundler)
+            return ((RingBufferBundler)bundler).getBufferSize();
         return 0;
     }
 
+    @ManagedOperation(description="Prints the pool of receive buffers used if zero_copy_receive is true")
+    public String printZeroCopyPool() {
+        BufferPool tmp=zero_copy_pool;
+        return tmp != null? tmp.toString() : "n/a";
+    }
+
     @ManagedAttribute(description="Returns the average batch size of received batches")
     public double getAvgBatchSize() {
         return avg_batch_size.getAverage();
@@ -409,6 +497,16 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     public int getOOBThreadPoolMaxThreads() {return oob_thread_pool_max_threads;}
 
+    public void setOOBThreadPoolMaxTasks(int max) {
+        oob_thread_pool_max_tasks=max;
+        if(oob_thread_pool instanceof ThreadPerTaskExecutor)
+            ((ThreadPerTaskExecutor)oob_thread_pool).setMaxThreads(maxTasks(max));
+    }
+
+    public int getOOBThreadPoolMaxTasks() {return oob_thread_pool_max_tasks;}
+
+    public String getOOBThreadPoolMode() {return oob_thread_pool_mode;}
+
     public void setOOBThreadPoolQueueEnabled(boolean flag) {this.oob_thread_pool_queue_enabled=flag;}
 
 
@@ -429,6 +527,18 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     public int getThreadPoolMaxThreads() {return thread_pool_max_threads;}
 
+    public void setThreadPoolMaxTasks(int max) {
+        thread_pool_max_tasks=max;
+        if(thread_pool instanceof ThreadPerTaskExecutor)
+            ((ThreadPerTaskExecutor)thread_pool).setMaxThreads(maxTasks(max));
+    }
+
+    public int getThreadPoolMaxTasks() {return thread_pool_max_tasks;}
+
+    public String getThreadPoolMode() {return thread_pool_mode;}
+
+    public String getInternalThreadPoolMode() {return internal_thread_pool_mode;}
+
 
     public void setThreadPoolKeepAliveTime(long time) {
         thread_pool_keep_alive_time=time;
@@ -619,6 +729,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     protected Bundler                 bundler;
 
+    /** The buffers received datagrams are copied into, if zero_copy_receive is true */
+    protected BufferPool              zero_copy_pool;
+
+    /** The per-sender queues regular messages are added to, if per_sender_delivery is true */
+    protected PerSenderDelivery       per_sender_queues;
+
     protected DiagnosticsHandler      diag_handler;
     protected final List<DiagnosticsHandler.ProbeHandler> preregistered_probe_handlers=new LinkedList<DiagnosticsHandler.ProbeHandler>();
 
@@ -763,6 +879,8 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         default_thread_factory=factory;
         if(thread_pool instanceof ThreadPoolExecutor)
             ((ThreadPoolExecutor)thread_pool).setThreadFactory(factory);
+        else if(thread_pool instanceof ThreadPerTaskExecutor)
+            ((ThreadPerTaskExecutor)thread_pool).setThreadFactory(factory);
     }
 
     public Executor getOOBThreadPool() {
@@ -784,6 +902,8 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         oob_thread_factory=factory;
         if(oob_thread_pool instanceof ThreadPoolExecutor)
             ((ThreadPoolExecutor)oob_thread_pool).setThreadFactory(factory);
+        else if(oob_thread_pool instanceof ThreadPerTaskExecutor)
+            ((ThreadPerTaskExecutor)oob_thread_pool).setThreadFactory(factory);
     }
 
     public ThreadFactory getInternalThreadPoolThreadFactory() {
@@ -794,6 +914,8 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         internal_thread_factory=factory;
         if(internal_thread_pool instanceof ThreadPoolExecutor)
             ((ThreadPoolExecutor)internal_thread_pool).setThreadFactory(factory);
+        else if(internal_thread_pool instanceof ThreadPerTaskExecutor)
+            ((ThreadPerTaskExecutor)internal_thread_pool).setThreadFactory(factory);
     }
 
     public ThreadFactory getTimerThreadFactory() {
@@ -887,11 +1009,15 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     
     @ManagedAttribute(description="Current number of threads in the OOB thread pool")
     public int getOOBPoolSize() {
+        if(oob_thread_pool instanceof ThreadPerTaskExecutor) // threads only exist while they're running a task
+            return ((ThreadPerTaskExecutor)oob_thread_pool).getActiveCount();
         return oob_thread_pool instanceof ThreadPoolExecutor? ((ThreadPoolExecutor)oob_thread_pool).getPoolSize() : 0;
     }
 
     @ManagedAttribute(description="Current number of active threads in the OOB thread pool")
     public int getOOBPoolSizeActive() {
+        if(oob_thread_pool instanceof ThreadPerTaskExecutor)
+            return ((ThreadPerTaskExecutor)oob_thread_pool).getActiveCount();
         return oob_thread_pool instanceof ThreadPoolExecutor? ((ThreadPoolExecutor)oob_thread_pool).getActiveCount() : 0;
     }
 
@@ -899,6 +1025,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         return num_oob_msgs_received;
     }
 
+    @ManagedAttribute(description="Number of messages queued because all threads of the OOB thread pool were busy " +
+      "(only in \"thread-per-task\" mode)")
+    public long getOOBPoolQueued() {
+        return oob_thread_pool instanceof ThreadPerTaskExecutor? ((ThreadPerTaskExecutor)oob_thread_pool).getNumQueued() : 0;
+    }
+
     @ManagedAttribute(description="Number of messages in the OOB thread pool's queue")
     public int getOOBQueueSize() {
         return oob_thread_pool_queue != null? oob_thread_pool_queue.size() : 0;
@@ -918,11 +1050,15 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     @ManagedAttribute(description="Current number of threads in the default thread pool")
     public int getRegularPoolSize() {
+        if(thread_pool instanceof ThreadPerTaskExecutor) // threads only exist while they're running a task
+            return ((ThreadPerTaskExecutor)thread_pool).getActiveCount();
         return thread_pool instanceof ThreadPoolExecutor? ((ThreadPoolExecutor)thread_pool).getPoolSize() : 0;
     }
 
     @ManagedAttribute(description="Current number of active threads in the default thread pool")
     public int getRegularPoolSizeActive() {
+        if(thread_pool instanceof ThreadPerTaskExecutor)
+            return ((ThreadPerTaskExecutor)thread_pool).getActiveCount();
         return thread_pool instanceof ThreadPoolExecutor? ((ThreadPoolExecutor)thread_pool).getActiveCount() : 0;
     }
 
@@ -930,6 +1066,27 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         return num_incoming_msgs_received;
     }
 
+    @ManagedAttribute(description="Number of messages queued because all threads of the default thread pool were busy " +
+      "(only in \"thread-per-task\" mode)")
+    public long getRegularPoolQueued() {
+        return thread_pool instanceof ThreadPerTaskExecutor? ((ThreadPerTaskExecutor)thread_pool).getNumQueued() : 0;
+    }
+
+    @ManagedAttribute(description="Number of per-sender delivery queues (only if per_sender_delivery is true)")
+    public int getNumPerSenderQueues() {
+        return per_sender_queues != null? per_sender_queues.size() : 0;
+    }
+
+    @ManagedAttribute(description="Number of messages discarded because a per-sender delivery queue was full")
+    public long getNumPerSenderDiscarded() {
+        return per_sender_queues != null? per_sender_queues.num_discarded.get() : 0;
+    }
+
+    @ManagedOperation(description="Prints the per-sender delivery queues")
+    public String printPerSenderQueues() {
+        return per_sender_queues != null? per_sender_queues.toString() : "n/a";
+    }
+
     @ManagedAttribute(description="Number of messages in the default thread pool's queue")
     public int getRegularQueueSize() {
         return thread_pool_queue != null? thread_pool_queue.size() : 0;
@@ -942,11 +1099,15 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     @ManagedAttribute(description="Current number of threads in the internal thread pool")
     public int getInternalPoolSize() {
+        if(internal_thread_pool instanceof ThreadPerTaskExecutor) // threads only exist while they're running a task
+            return ((ThreadPerTaskExecutor)internal_thread_pool).getActiveCount();
         return internal_thread_pool instanceof ThreadPoolExecutor? ((ThreadPoolExecutor)internal_thread_pool).getPoolSize() : 0;
     }
 
     @ManagedAttribute(description="Current number of active threads in the internal thread pool")
     public int getInternalPoolSizeActive() {
+        if(internal_thread_pool instanceof ThreadPerTaskExecutor)
+            return ((ThreadPerTaskExecutor)internal_thread_pool).getActiveCount();
         return internal_thread_pool instanceof ThreadPoolExecutor? ((ThreadPoolExecutor)internal_thread_pool).getActiveCount() : 0;
     }
 
@@ -954,6 +1115,13 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         return num_internal_msgs_received;
     }
 
+    @ManagedAttribute(description="Number of messages queued because all threads of the internal thread pool were busy " +
+      "(only in \"thread-per-task\" mode)")
+    public long getInternalPoolQueued() {
+        return internal_thread_pool instanceof ThreadPerTaskExecutor?
+          ((ThreadPerTaskExecutor)internal_thread_pool).getNumQueued() : 0;
+    }
+
     @ManagedAttribute(description="Number of messages in the internal thread pool's queue")
     public int getInternalQueueSize() {
         return internal_thread_pool_queue != null? internal_thread_pool_queue.size() : 0;
@@ -1112,9 +1280,15 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
         // ========================================== OOB thread pool ==============================
 
-        if(oob_thread_pool == null
-          || (oob_thread_pool instanceof ThreadPoolExecutor && ((ThreadPoolExecutor)oob_thread_pool).isShutdown())) {
-            if(oob_thread_pool_enabled) {
+        if(oob_thread_pool == null || isShutdown(oob_thread_pool)) {
+            if(oob_thread_pool_enabled && isThreadPerTask(oob_thread_pool_mode)) {
+                ThreadPerTaskExecutor tmp=new ThreadPerTaskExecutor(oob_thread_factory, "OOB",
+                                                                    maxTasks(oob_thread_pool_max_tasks), oob_thread_pool_max_queued_tasks,
+                                                                    use_virtual_threads);
+                oob_thread_pool_queue=tmp.getQueue();
+                oob_thread_pool=tmp;
+            }
+            else if(oob_thread_pool_enabled) {
                 if(oob_thread_pool_queue_enabled)
                     oob_thread_pool_queue=new LinkedBlockingQueue<Runnable>(oob_thread_pool_queue_max_size);
                 else
@@ -1129,9 +1303,15 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
         // ====================================== Regular thread pool ===========================
 
-        if(thread_pool == null
-          || (thread_pool instanceof ThreadPoolExecutor && ((ThreadPoolExecutor)thread_pool).isShutdown())) {
-            if(thread_pool_enabled) {
+        if(thread_pool == null || isShutdown(thread_pool)) {
+            if(thread_pool_enabled && isThreadPerTask(thread_pool_mode)) {
+                ThreadPerTaskExecutor tmp=new ThreadPerTaskExecutor(default_thread_factory, "Incoming",
+                                                                    maxTasks(thread_pool_max_tasks), thread_pool_max_queued_tasks,
+                                                                    use_virtual_threads);
+                thread_pool_queue=tmp.getQueue();
+                thread_pool=tmp;
+            }
+            else if(thread_pool_enabled) {
                 if(thread_pool_queue_enabled)
                     thread_pool_queue=new LinkedBlockingQueue<Runnable>(thread_pool_queue_max_size);
                 else
@@ -1147,9 +1327,15 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
         // ========================================== Internal thread pool ==============================
 
-        if(internal_thread_pool == null
-          || (internal_thread_pool instanceof ThreadPoolExecutor && ((ThreadPoolExecutor)internal_thread_pool).isShutdown())) {
-            if(internal_thread_pool_enabled) {
+        if(internal_thread_pool == null || isShutdown(internal_thread_pool)) {
+            if(internal_thread_pool_enabled && isThreadPerTask(internal_thread_pool_mode)) {
+                ThreadPerTaskExecutor tmp=new ThreadPerTaskExecutor(internal_thread_factory, "INT",
+                                                                    maxTasks(internal_thread_pool_max_tasks), internal_thread_pool_max_queued_tasks,
+                                                                    use_virtual_threads);
+                internal_thread_pool_queue=tmp.getQueue();
+                internal_thread_pool=tmp;
+            }
+            else if(internal_thread_pool_enabled) {
                 if(internal_thread_pool_queue_enabled)
                     internal_thread_pool_queue=new LinkedBlockingQueue<Runnable>(internal_thread_pool_queue_max_size);
                 else
@@ -1160,6 +1346,11 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             // if the internal thread pool is disabled, we won't create it (not even a DirectExecutor)
         }
 
+        // ========================================== Per-sender delivery ==============================
+
+        if(per_sender_delivery && per_sender_queues == null)
+            per_sender_queues=new PerSenderDelivery(per_sender_delivery_queue_size, per_sender_delivery_keep_alive_time);
+
 
         Map<String, Object> m=new HashMap<String, Object>(2);
         if(bind_addr != null)
@@ -1204,14 +1395,19 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             timer.stop();
 
         // 3. Stop the thread pools
-        if(oob_thread_pool instanceof ThreadPoolExecutor)
+        if(oob_thread_pool instanceof ThreadPoolExecutor || oob_thread_pool instanceof ThreadPerTaskExecutor)
             shutdownThreadPool(oob_thread_pool);
 
-        if(thread_pool instanceof ThreadPoolExecutor)
+        if(thread_pool instanceof ThreadPoolExecutor || thread_pool instanceof ThreadPerTaskExecutor)
             shutdownThreadPool(thread_pool);
 
-        if(internal_thread_pool instanceof ThreadPoolExecutor)
+        if(internal_thread_pool instanceof ThreadPoolExecutor || internal_thread_pool instanceof ThreadPerTaskExecutor)
             shutdownThreadPool(internal_thread_pool);
+
+        if(per_sender_queues != null) {
+            per_sender_queues.stop();
+            per_sender_queues=null;
+        }
     }
 
     /**
@@ -1239,6 +1435,9 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             else if(bundler_type.startsWith("sender-sends")) {
                 bundler=new SenderSendsBundler();
             }
+            else if(bundler_type.startsWith("ring-buffer")) {
+                bundler=new RingBufferBundler(bundler_capacity);
+            }
             else
                 log.warn(Util.getMessage("UnknownBundler"), bundler_type);
             if(bundler == null)
@@ -1246,6 +1445,9 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         }
         bundler.start();
 
+        if(zero_copy_receive && zero_copy_pool == null)
+            zero_copy_pool=new BufferPool(zero_copy_pool_size, max_bundle_size + RECEIVE_BUF_OVERHEAD, false);
+
         // local_addr is null when shared transport
         setInAllThreadFactories(cluster_name != null? cluster_name.toString() : null, local_addr, thread_naming_pattern);
     }
@@ -1586,8 +1788,138 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             handleSingleMessage(sender, data, offset, length);
     }
 
+    /**
+     * Called by transports which receive datagrams into buffers acquired from a pool of their own (e.g. UDP with
+     * use_datagram_channel). The caller's reference to pooled is handed over and released when all messages read from
+     * the datagram have been processed. If zero_copy_receive is true, the payloads of the messages point directly into
+     * pooled, so the datagram is not copied into a buffer of the zero copy pool first.
+     */
+    public void receive(Address sender, PooledBuffer pooled, int offset, int length) {
+        if(zero_copy_pool == null) { // payloads are copied, so pooled can be reused as soon as we return
+            try {
+                receive(sender, pooled.array(), offset, length);
+            }
+            finally {
+                pooled.release();
+            }
+            return;
+        }
+        byte[] data=pooled.array();
+        if(local_physical_addr != null && local_physical_addr.equals(sender)) {
+            pooled.release();
+            return;
+        }
+
+        byte flags=data[offset + Global.SHORT_SIZE];
+        if((flags & LIST) == LIST)
+            handleMessageBatch(sender, data, offset, length, pooled);
+        else
+            handleSingleMessage(sender, data, offset, length, pooled);
+    }
+
+
+    /**
+     * Called by transports which read several datagrams at once (e.g. UDP's ChannelReceiver). Rather than one batch or
+     * message per datagram, the messages of all datagrams are passed up as one batch per sender, destination, cluster
+     * name and type (regular, OOB, internal), and each batch is submitted to its thread pool once. If
+     * per_sender_delivery is enabled, regular messages are added to the queue of their sender instead, which merges
+     * them in the same way. OOB messages tagged as DONT_BUNDLE are still passed up one by one.<p/>
+     * The caller's references to bufs are handed over and released when all messages have been processed.
+     * @param senders The physical addresses of the senders of the datagrams
+     * @param bufs The buffers holding the datagrams (starting at offset 0)
+     * @param lengths The lengths of the datagrams
+     * @param num The number of datagrams
+     */
+    public void receive(Address[] senders, PooledBuffer[] bufs, int[] lengths, int num) {
+        List<ReceivedBatch> received=new ArrayList<ReceivedBatch>(num);
+        try {
+            for(int i=0; i < num; i++) {
+                try {
+                    readDatagram(senders[i], bufs[i], lengths[i], received);
+                }
+                catch(Throwable t) {
+                    log.error(Util.getMessage("IncomingMsgFailure"), local_addr, t);
+                }
+            }
+            for(ReceivedBatch batch: received)
+                batch.submit();
+        }
+        finally {
+            for(int i=0; i < num; i++)
+                bufs[i].release(); // the buffers are returned to the pool when all handlers are done
+        }
+    }
+
+    /** Reads the messages of a datagram and adds them to the matching batches in received */
+    protected void readDatagram(Address sender, PooledBuffer buf, int length, List<ReceivedBatch> received) throws Exception {
+        if(local_physical_addr != null && local_physical_addr.equals(sender))
+            return;
+        PooledBuffer pooled=zero_copy_pool != null? buf : null; // if null, the payloads are copied
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(buf.array(), 0, length);
+        short version=in.readShort();
+        if(!versionMatch(version, sender))
+            return;
+
+        byte flags=in.readByte();
+        final boolean multicast=(flags & MULTICAST) == MULTICAST;
+        if((flags & LIST) == LIST) {
+            MessageBatch[] batches=readMessageBatch(in, multicast, pooled != null);
+            removeAndDispatchNonBundledMessages(pooled, batches[1], batches[2]);
+            for(int type=0; type < batches.length; type++)
+                if(batches[type] != null && !batches[type].isEmpty())
+                    addToReceived(received, batches[type], type, pooled);
+            return;
+        }
+
+        Message msg=new Message(false); // don't create headers, readFrom() will do this
+        if(pooled != null)
+            readPooledMessage(msg, in);
+        else
+            msg.readFrom(in);
+        boolean oob=msg.isFlagSet(Message.Flag.OOB), internal=msg.isFlagSet(Message.Flag.INTERNAL);
+        if(oob && msg.isFlagSet(Message.Flag.DONT_BUNDLE)) {
+            num_oob_msgs_received++;
+            pickThreadPool(oob, internal).execute(new SingleMessageHandler(msg, pooled));
+            return;
+        }
+        TpHeader hdr=(TpHeader)msg.getHeader(id);
+        int type=oob? (internal? 2 : 1) : (internal? 3 : 0);
+        MessageBatch.Mode mode=oob? MessageBatch.Mode.OOB : internal? MessageBatch.Mode.INTERNAL : MessageBatch.Mode.REG;
+        MessageBatch batch=new MessageBatch(msg.getDest(), msg.getSrc(), new AsciiString(hdr.cluster_name), multicast, mode, 1);
+        addToReceived(received, batch.add(msg), type, pooled);
+    }
+
+    protected void addToReceived(List<ReceivedBatch> received, MessageBatch batch, int type, PooledBuffer pooled) {
+        if(type == 0 && per_sender_queues != null) {
+            num_incoming_msgs_received+=batch.size();
+            if(acceptBatch(batch))
+                per_sender_queues.add(batch, pooled);
+            return;
+        }
+        for(ReceivedBatch rb: received) {
+            if(rb.matches(batch, type)) {
+                rb.add(batch, pooled);
+                return;
+            }
+        }
+        received.add(new ReceivedBatch(batch, type, pooled));
+    }
+
 
     protected void handleMessageBatch(Address sender, byte[] data, int offset, int length) {
+        PooledBuffer pooled=null;
+        if(zero_copy_pool != null && length <= zero_copy_pool.bufferSize()) {
+            // data is reused by the transport, so copy it once; the payloads of the messages point into the copy
+            pooled=new PooledBuffer(zero_copy_pool);
+            System.arraycopy(data, offset, pooled.array(), 0, length);
+            data=pooled.array();
+            offset=0;
+        }
+        handleMessageBatch(sender, data, offset, length, pooled);
+    }
+
+    /** Reads a batch from data and passes it up. If not null, pooled is the buffer data belongs to; it is released */
+    protected void handleMessageBatch(Address sender, byte[] data, int offset, int length, PooledBuffer pooled) {
         try {
             ByteArrayDataInputStream in=new ByteArrayDataInputStream(data, offset, length);
             short version=in.readShort();
@@ -1597,28 +1929,33 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             byte flags=in.readByte();
             final boolean multicast=(flags & MULTICAST) == MULTICAST;
 
-            final MessageBatch[] batches=readMessageBatch(in, multicast);
+            final MessageBatch[] batches=readMessageBatch(in, multicast, pooled != null);
             final MessageBatch batch=batches[0], oob_batch=batches[1], internal_batch_oob=batches[2], internal_batch=batches[3];
 
-            removeAndDispatchNonBundledMessages(oob_batch, internal_batch_oob);
+            removeAndDispatchNonBundledMessages(pooled, oob_batch, internal_batch_oob);
 
             if(oob_batch != null && !oob_batch.isEmpty()) {
                 num_oob_msgs_received+=oob_batch.size();
-                oob_thread_pool.execute(new BatchHandler(oob_batch));
+                oob_thread_pool.execute(new BatchHandler(oob_batch, pooled));
             }
             if(batch != null) {
                 num_incoming_msgs_received+=batch.size();
-                thread_pool.execute(new BatchHandler(batch));
+                if(per_sender_queues != null) {
+                    if(acceptBatch(batch))
+                        per_sender_queues.add(batch, pooled);
+                }
+                else
+                    thread_pool.execute(new BatchHandler(batch, pooled));
             }
             if(internal_batch_oob != null && !internal_batch_oob.isEmpty()) {
                 num_oob_msgs_received+=internal_batch_oob.size();
                 Executor pool=internal_thread_pool != null? internal_thread_pool : oob_thread_pool;
-                pool.execute(new BatchHandler(internal_batch_oob));
+                pool.execute(new BatchHandler(internal_batch_oob, pooled));
             }
             if(internal_batch != null) {
                 num_internal_msgs_received+=internal_batch.size();
                 Executor pool=internal_thread_pool != null? internal_thread_pool : oob_thread_pool;
-                pool.execute(new BatchHandler(internal_batch));
+                pool.execute(new BatchHandler(internal_batch, pooled));
             }
         }
         catch(RejectedExecutionException rejected) {
@@ -1627,9 +1964,18 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         catch(Throwable t) {
             log.error(Util.getMessage("IncomingMsgFailure"), local_addr, t);
         }
+        finally {
+            if(pooled != null)
+                pooled.release(); // the buffer is returned to the pool when all handlers are done
+        }
     }
 
     protected void handleSingleMessage(Address sender, byte[] data, int offset, int length) {
+        handleSingleMessage(sender, data, offset, length, null);
+    }
+
+    /** If not null, pooled is the buffer data belongs to; it is handed over to the handler, which releases it */
+    protected void handleSingleMessage(Address sender, byte[] data, int offset, int length, PooledBuffer pooled) {
         // the message flags are at indexes 4-5
         short   msg_flags=Bits.makeShort(data[offset + MSG_OFFSET], data[offset + MSG_OFFSET +1]);
         boolean internal=(msg_flags & Message.Flag.INTERNAL.value()) == Message.Flag.INTERNAL.value();
@@ -1645,8 +1991,32 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         Executor pool=pickThreadPool(oob, internal);
 
         try {
-            if(pool instanceof DirectExecutor)
+            if(pooled != null) { // data is not reused by the transport, so it doesn't need to be copied
+                if(per_sender_queues != null && !oob && !internal)
+                    new MyHandler(sender, data, offset, length, pooled).run();
+                else
+                    pool.execute(new MyHandler(sender, data, offset, length, pooled));
+            }
+            else if(per_sender_queues != null && !oob && !internal) {
+                // the message is read on this thread and added to its sender's queue, so we only need to copy the data
+                if(zero_copy_pool != null && length <= zero_copy_pool.bufferSize()) {
+                    PooledBuffer copy=new PooledBuffer(zero_copy_pool); // released by the handler
+                    System.arraycopy(data, offset, copy.array(), 0, length);
+                    new MyHandler(sender, copy.array(), 0, length, copy).run();
+                }
+                else {
+                    byte[] tmp=new byte[length];
+                    System.arraycopy(data, offset, tmp, 0, length);
+                    new MyHandler(sender, tmp, 0, tmp.length).run();
+                }
+            }
+            else if(pool instanceof DirectExecutor)
                 pool.execute(new MyHandler(sender, data, offset, length)); // we don't make a copy if we execute on this thread
+            else if(zero_copy_pool != null && length <= zero_copy_pool.bufferSize()) {
+                PooledBuffer copy=new PooledBuffer(zero_copy_pool); // released by the handler
+                System.arraycopy(data, offset, copy.array(), 0, length);
+                pool.execute(new MyHandler(sender, copy.array(), 0, length, copy));
+            }
             else {
                 byte[] tmp=new byte[length];
                 System.arraycopy(data, offset, tmp, 0, length);
@@ -1661,7 +2031,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     /**
      * Removes messages with flags DONT_BUNDLE and OOB set and executes them in the oob or internal thread pool. JGRP-1737
      */
-    protected void removeAndDispatchNonBundledMessages(MessageBatch ... oob_batches) {
+    protected void removeAndDispatchNonBundledMessages(PooledBuffer pooled, MessageBatch ... oob_batches) {
         for(MessageBatch oob_batch: oob_batches) {
             if(oob_batch == null)
                 continue;
@@ -1672,7 +2042,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
                     msg.putHeader(id, new TpHeader(oob_batch.clusterName()));
                     Executor pool=pickThreadPool(oob, internal);
                     try {
-                        pool.execute(new SingleMessageHandler(msg));
+                        pool.execute(new SingleMessageHandler(msg, pooled));
                         oob_batch.remove(msg);
                         num_oob_msgs_received++;
                     }
@@ -1708,16 +2078,22 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
 
     protected class MyHandler implements Runnable {
-        protected final Address sender;
-        protected final byte[]  data; // this is always a copy, or we use a DirectExecutor
-        protected final int     offset;
-        protected final int     length;
+        protected final Address      sender;
+        protected final byte[]       data; // this is always a copy, or we use a DirectExecutor
+        protected final int          offset;
+        protected final int          length;
+        protected final PooledBuffer pooled; // the buffer data belongs to (released when done), or null
 
         protected MyHandler(Address sender, byte[] data, int offset, int length) {
+            this(sender, data, offset, length, null);
+        }
+
+        protected MyHandler(Address sender, byte[] data, int offset, int length, PooledBuffer pooled) {
             this.sender=sender;
             this.data=data;
             this.offset=offset;
             this.length=length;
+            this.pooled=pooled;
         }
 
         public void run() {
@@ -1740,8 +2116,11 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
                     }
                 }
 
-                if(payload_offset >= 0)
+                if(payload_offset >= 0) {
                     msg.setBuffer(data, payload_offset, length - payload_offset);
+                    if(pooled != null)
+                        msg.setTransientFlag(Message.TransientFlag.POOLED_BUFFER);
+                }
 
                 if(stats) {
                     num_msgs_received++;
@@ -1751,19 +2130,33 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
                 TpHeader hdr=(TpHeader)msg.getHeader(id);
                 AsciiString cname=new AsciiString(hdr.cluster_name);
-                passMessageUp(msg, cname, true, multicast, true);
+                if(per_sender_queues != null && !msg.isFlagSet(Message.Flag.OOB) && !msg.isFlagSet(Message.Flag.INTERNAL))
+                    per_sender_queues.add(new MessageBatch(msg.getDest(), msg.getSrc(), cname, multicast, MessageBatch.Mode.REG, 1)
+                                            .add(msg), pooled);
+                else
+                    passMessageUp(msg, cname, true, multicast, true);
             }
             catch(Throwable t) {
                 log.error(Util.getMessage("IncomingMsgFailure"), local_addr, t);
             }
+            finally {
+                if(pooled != null)
+                    pooled.release();
+            }
         }
     }
 
     protected class SingleMessageHandler implements Runnable {
-        protected final Message msg;
+        protected final Message      msg;
+        protected final PooledBuffer pooled;
 
         protected SingleMessageHandler(final Message msg) {
+            this(msg, null);
+        }
+
+        protected SingleMessageHandler(final Message msg, PooledBuffer pooled) {
             this.msg=msg;
+            this.pooled=pooled != null? pooled.retain() : null;
         }
 
         public void run() {
@@ -1790,39 +2183,367 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             catch(Throwable t) {
                 log.error(Util.getMessage("PassUpFailure"), t);
             }
+            finally {
+                if(pooled != null)
+                    pooled.release();
+            }
         }
     }
 
 
 
     protected class BatchHandler implements Runnable {
-        protected final MessageBatch batch;
+        protected final MessageBatch   batch;
+        protected final PooledBuffer[] pooled; // the buffers the payloads point into (released when done), or null
 
         public BatchHandler(final MessageBatch batch) {
+            this(batch, (PooledBuffer[])null);
+        }
+
+        public BatchHandler(final MessageBatch batch, PooledBuffer ... pooled) {
             this.batch=batch;
+            this.pooled=pooled;
+            if(pooled != null)
+                for(PooledBuffer buf: pooled)
+                    if(buf != null)
+                        buf.retain();
         }
 
         public void run() {
-            if(stats) {
-                int batch_size=batch.size();
-                num_msgs_received+=batch_size;
-                num_batches_received++;
-                num_bytes_received+=batch.length();
-                avg_batch_size.add(batch_size);
-            }
-
-            if(!batch.multicast()) {
-                Address dest=batch.dest(), target=local_addr;
-                if(dest != null && target != null && !dest.equals(target)) {
-                    log.warn(Util.getMessage("IncorrectDest"), local_addr, "batch",  batch.sender(), dest, "n/a");
+            try {
+                if(acceptBatch(batch))
+                    passBatchUp(batch, true, true);
+            }
+            finally {
+                if(pooled != null)
+                    for(PooledBuffer buf: pooled)
+                        if(buf != null)
+                            buf.release();
+            }
+        }
+    }
+
+
+    /**
+     * The messages of the datagrams read by {@link #receive(Address[],PooledBuffer[],int[],int)} with the same
+     * sender, destination, cluster name and type, and the buffers their payloads point into
+     */
+    protected class ReceivedBatch {
+        protected final MessageBatch       batch;
+        protected final int                type; // index into the array returned by readMessageBatch()
+        protected final List<PooledBuffer> bufs=new ArrayList<PooledBuffer>(2);
+
+        protected ReceivedBatch(MessageBatch batch, int type, PooledBuffer pooled) {
+            this.batch=batch;
+            this.type=type;
+            if(pooled != null)
+                bufs.add(pooled);
+        }
+
+        protected boolean matches(MessageBatch other, int other_type) {
+            Address sender=batch.sender();
+            return type == other_type && (sender == null? other.sender() == null : sender.equals(other.sender()))
+              && sameTarget(batch, other);
+        }
+
+        protected void add(MessageBatch other, PooledBuffer pooled) {
+            for(Message msg: other)
+                batch.add(msg);
+            if(pooled != null && !bufs.contains(pooled))
+                bufs.add(pooled);
+        }
+
+        protected void submit() {
+            Executor pool;
+            switch(type) {
+                case 0:
+                    num_incoming_msgs_received+=batch.size();
+                    pool=thread_pool;
+                    break;
+                case 1:
+                    num_oob_msgs_received+=batch.size();
+                    pool=oob_thread_pool;
+                    break;
+                case 2:
+                    num_oob_msgs_received+=batch.size();
+                    pool=internal_thread_pool != null? internal_thread_pool : oob_thread_pool;
+                    break;
+                default:
+                    num_internal_msgs_received+=batch.size();
+                    pool=internal_thread_pool != null? internal_thread_pool : oob_thread_pool;
+                    break;
+            }
+            try {
+                pool.execute(new BatchHandler(batch, bufs.toArray(new PooledBuffer[bufs.size()])));
+            }
+            catch(RejectedExecutionException rejected) {
+                num_rejected_msgs++;
+            }
+        }
+    }
+
+
+    /** Updates the stats with a received batch, and returns false if the batch is not addressed to this member */
+    protected boolean acceptBatch(MessageBatch batch) {
+        if(stats) {
+            int batch_size=batch.size();
+            num_msgs_received+=batch_size;
+            num_batches_received++;
+            num_bytes_received+=batch.length();
+            avg_batch_size.add(batch_size);
+        }
+
+        if(!batch.multicast()) {
+            Address dest=batch.dest(), target=local_addr;
+            if(dest != null && target != null && !dest.equals(target)) {
+                log.warn(Util.getMessage("IncorrectDest"), local_addr, "batch",  batch.sender(), dest, "n/a");
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Queues for regular messages, one per sender, used if per_sender_delivery is true. Regular messages and batches
+     * are read by the receiver thread and added to the queue of their sender. The thread of a queue removes all queued
+     * elements at once and passes them up as a single batch (or as one batch per destination and cluster name, if
+     * they differ). Since a queue has only one consumer, the order of a sender's messages is preserved, and
+     * NAKACK2 and UNICAST3 never see more than one thread per sender.<p/>
+     * A queue's thread is started when an element is added to an idle queue, and terminates when the queue has been
+     * empty for keep_alive_time ms. Queues of senders which are not members anymore are removed when idle.
+     */
+    protected class PerSenderDelivery {
+        protected final ConcurrentMap<Address,SenderQueue> queues=Util.createConcurrentMap();
+        protected final int                                queue_size;
+        protected final long                               keep_alive_time;
+        protected final AtomicLong                         num_discarded=new AtomicLong();
+        protected volatile boolean                         running=true;
+        protected static final String                      THREAD_NAME="Delivery";
+
+        protected PerSenderDelivery(int queue_size, long keep_alive_time) {
+            if(queue_size <= 0)
+                throw new IllegalArgumentException("per_sender_delivery_queue_size (" + queue_size + ") has to be > 0");
+            this.queue_size=queue_size;
+            this.keep_alive_time=keep_alive_time;
+        }
+
+        protected int size() {return queues.size();}
+
+        /** Adds a batch of regular messages to the queue of its sender. The pooled buffer (if non-null) is retained
+         * until the batch has been passed up */
+        protected void add(MessageBatch batch, PooledBuffer pooled) {
+            if(batch.isEmpty())
+                return;
+            Address sender=batch.sender();
+            while(running) {
+                SenderQueue queue=queues.get(sender);
+                if(queue == null) {
+                    SenderQueue tmp=queues.putIfAbsent(sender, queue=new SenderQueue(sender, queue_size));
+                    if(tmp != null)
+                        queue=tmp;
+                }
+                if(queue.add(batch, pooled))
                     return;
+                // the queue was removed by retainAll() after we got it: retry with a new queue
+            }
+        }
+
+        /**
+         * Removes the idle queues of senders which are not in members. A queue is only removed while holding its lock,
+         * and is marked as removed, so a concurrent add() cannot add a batch to a removed queue: this would create
+         * a second queue (and thread) for the same sender, and break the order of its messages
+         */
+        protected void retainAll(Collection<Address> members) {
+            for(Map.Entry<Address,SenderQueue> entry: queues.entrySet()) {
+                if(!members.contains(entry.getKey()))
+                    entry.getValue().removeIfIdle();
+            }
+        }
+
+        /** Stops the threads and releases the pooled buffers of the batches which haven't been passed up yet */
+        protected void stop() {
+            running=false;
+            for(SenderQueue queue: queues.values())
+                queue.stop();
+            queues.clear();
+        }
+
+        public String toString() {
+            StringBuilder sb=new StringBuilder();
+            for(SenderQueue queue: queues.values())
+                sb.append(queue).append("\n");
+            return sb.toString();
+        }
+
+
+        protected class SenderQueue implements Runnable {
+            protected final Address                     sender;
+            protected final BlockingQueue<QueuedBatch>  queue;
+            protected final AtomicBoolean               processing=new AtomicBoolean(false);
+            protected final List<QueuedBatch>           removed=new ArrayList<QueuedBatch>(); // accessed only by the thread
+            protected final ReentrantLock               lock=new ReentrantLock(); // guards adding and closed
+            protected boolean                           closed; // set when removed from queues, or when stopped
+            protected volatile Thread                   thread;
+
+            protected SenderQueue(Address sender, int capacity) {
+                this.sender=sender;
+                this.queue=new ArrayBlockingQueue<QueuedBatch>(capacity);
+            }
+
+            protected boolean isIdle() {return !processing.get() && queue.isEmpty();}
+
+            /** Returns false if the queue has been removed or stopped, true otherwise (even if the batch was discarded) */
+            protected boolean add(MessageBatch batch, PooledBuffer pooled) {
+                lock.lock();
+                try {
+                    if(closed)
+                        return false;
+                    if(!queue.offer(new QueuedBatch(batch, pooled != null? pooled.retain() : null))) {
+                        if(pooled != null)
+                            pooled.release();
+                        num_discarded.addAndGet(batch.size());
+                        num_rejected_msgs++;
+                        return true;
+                    }
+                    if(processing.compareAndSet(false, true))
+                        start();
+                    return true;
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+
+            protected void removeIfIdle() {
+                lock.lock();
+                try {
+                    if(!closed && isIdle()) {
+                        closed=true;
+                        queues.remove(sender, this);
+                    }
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+
+            protected void start() {
+                Thread tmp=default_thread_factory.newThread(this, THREAD_NAME);
+                thread=tmp;
+                try {
+                    tmp.start();
+                }
+                catch(Throwable t) {
+                    processing.set(false);
+                    log.error("%s: failed starting delivery thread for %s: %s", local_addr, sender, t);
+                }
+            }
+
+            protected void stop() {
+                lock.lock();
+                try {
+                    closed=true;
+                }
+                finally {
+                    lock.unlock();
+                }
+                Thread tmp=thread;
+                if(tmp != null)
+                    tmp.interrupt();
+                // batches taken by the thread are released by it; the others are released here
+                for(QueuedBatch qb; (qb=queue.poll()) != null;)
+                    if(qb.pooled != null)
+                        qb.pooled.release();
+            }
+
+            public void run() {
+                try {
+                    while(running) {
+                        QueuedBatch first=queue.poll(keep_alive_time, TimeUnit.MILLISECONDS);
+                        if(first == null) {
+                            processing.set(false);
+                            // a batch added after poll() timed out, but before processing was cleared, didn't start a thread
+                            if(!running || queue.isEmpty() || !processing.compareAndSet(false, true))
+                                return;
+                            continue;
+                        }
+                        removed.add(first);
+                        queue.drainTo(removed);
+                        deliver();
+                    }
+                }
+                catch(InterruptedException e) {
+                    processing.set(false);
+                }
+                finally {
+                    if(thread == Thread.currentThread()) // a new thread may have been started after processing was cleared
+                        thread=null;
+                }
+            }
+
+            /** Passes the removed batches up, merging adjacent batches with the same destination and cluster name */
+            protected void deliver() {
+                try {
+                    if(!running) // stopped: only release the buffers
+                        return;
+                    for(int i=0, size=removed.size(); i < size;) {
+                        MessageBatch batch=removed.get(i).batch;
+                        int end=i+1, num_msgs=batch.size();
+                        while(end < size && sameTarget(batch, removed.get(end).batch))
+                            num_msgs+=removed.get(end++).batch.size();
+                        if(end - i > 1) {
+                            MessageBatch merged=new MessageBatch(batch.dest(), batch.sender(), batch.clusterName(),
+                                                                 batch.multicast(), MessageBatch.Mode.REG, num_msgs);
+                            for(int j=i; j < end; j++)
+                                for(Message msg: removed.get(j).batch)
+                                    merged.add(msg);
+                            batch=merged;
+                        }
+                        passUp(batch);
+                        i=end;
+                    }
+                }
+                finally {
+                    for(QueuedBatch qb: removed)
+                        if(qb.pooled != null)
+                            qb.pooled.release();
+                    removed.clear();
                 }
             }
 
-            passBatchUp(batch, true, true);
+            protected void passUp(MessageBatch batch) {
+                try {
+                    passBatchUp(batch, true, true);
+                }
+                catch(Throwable t) {
+                    log.error(Util.getMessage("PassUpFailure"), t);
+                }
+            }
+
+            public String toString() {
+                return String.format("%s: %d queued batches%s", sender, queue.size(), processing.get()? " (processing)" : "");
+            }
+        }
+    }
+
+    protected static class QueuedBatch {
+        protected final MessageBatch batch;
+        protected final PooledBuffer pooled; // the buffer the payloads point into, or null
+
+        protected QueuedBatch(MessageBatch batch, PooledBuffer pooled) {
+            this.batch=batch;
+            this.pooled=pooled;
         }
     }
 
+    protected static boolean sameTarget(MessageBatch one, MessageBatch two) {
+        Address dest=one.dest();
+        AsciiString cname=one.clusterName();
+        return one.multicast() == two.multicast() && (dest == null? two.dest() == null : dest.equals(two.dest()))
+          && (cname == null? two.clusterName() == null : cname.equals(two.clusterName()));
+    }
+
 
     /** Serializes and sends a message. This method is not reentrant */
     protected void send(Message msg, Address dest) throws Exception {
@@ -1837,8 +2558,8 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
         // we can create between 300'000 - 400'000 output streams and do the marshalling per second,
         // so this is not a bottleneck !
-        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream((int)(msg.size() + MSG_OVERHEAD)); // version+flag+msg
-        writeMessage(msg, out, dest == null);
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream((int)(marshalledSize(msg) + MSG_OVERHEAD)); // version+flag+msg
+        writeMessage(msg, out, dest == null, lazy_headers);
         doSend(out.buffer(), 0, out.position(), dest);
         if(stats)
             num_single_msgs_sent++;
@@ -1926,12 +2647,23 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
      * @throws java.io.IOException
      */
     protected static void writeMessage(Message msg, DataOutput dos, boolean multicast) throws Exception {
+        writeMessage(msg, dos, multicast, false);
+    }
+
+    /** Writes a message, including the length of every header if header_lengths is true (see lazy_headers) */
+    protected static void writeMessage(Message msg, DataOutput dos, boolean multicast, boolean header_lengths) throws Exception {
         byte flags=0;
         dos.writeShort(Version.version); // write the version
         if(multicast)
             flags+=MULTICAST;
         dos.writeByte(flags);
-        msg.writeTo(dos);
+        msg.writeTo(dos, header_lengths);
+    }
+
+    /** The marshalled size of a message, including the header lengths written if lazy_headers is true */
+    protected long marshalledSize(Message msg) {
+        long size=msg.size();
+        return lazy_headers? size + msg.getNumHeaders() * Global.INT_SIZE : size;
     }
 
     public static Message readMessage(DataInput instream) throws Exception {
@@ -1961,6 +2693,26 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
      */
     public static void writeMessageList(Address dest, Address src, byte[] cluster_name,
                                         List<Message> msgs, DataOutput dos, boolean multicast, short transport_id) throws Exception {
+        writeMessageList(dest, src, cluster_name, msgs, dos, multicast, transport_id, false);
+    }
+
+    /** Same as above, but writes the length of every header if header_lengths is true (see lazy_headers) */
+    public static void writeMessageList(Address dest, Address src, byte[] cluster_name, List<Message> msgs,
+                                        DataOutput dos, boolean multicast, short transport_id,
+                                        boolean header_lengths) throws Exception {
+        writeMessageListHeader(dest, src, cluster_name, msgs != null? msgs.size() : 0, dos, multicast);
+
+        if(msgs != null)
+            for(Message msg: msgs)
+                msg.writeToNoAddrs(src, dos, header_lengths, transport_id); // exclude the transport header
+    }
+
+    /**
+     * Writes the header of a message list, which has to be followed by num_msgs messages written with
+     * {@link Message#writeToNoAddrs(Address,DataOutput,short...)}
+     */
+    public static void writeMessageListHeader(Address dest, Address src, byte[] cluster_name, int num_msgs,
+                                              DataOutput dos, boolean multicast) throws Exception {
         dos.writeShort(Version.version);
 
         byte flags=LIST;
@@ -1978,11 +2730,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             dos.write(cluster_name);
 
         // Number of messages (0 == no messages)
-        dos.writeInt(msgs != null? msgs.size() : 0);
-
-        if(msgs != null)
-            for(Message msg: msgs)
-                msg.writeToNoAddrs(src, dos, transport_id); // exclude the transport header
+        dos.writeInt(num_msgs);
     }
 
 
@@ -2027,6 +2775,15 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
      * @throws Exception
      */
     public static MessageBatch[] readMessageBatch(DataInput in, boolean multicast) throws Exception {
+        return readMessageBatch(in, multicast, false);
+    }
+
+    /**
+     * Same as {@link #readMessageBatch(DataInput,boolean)}, but if pooled is true, the payloads of the messages are not
+     * copied: they point into the buffer of in (which has to be a {@link ByteArrayDataInputStream}) and the messages
+     * are marked with {@link Message.TransientFlag#POOLED_BUFFER}
+     */
+    public static MessageBatch[] readMessageBatch(DataInput in, boolean multicast, boolean pooled) throws Exception {
         MessageBatch[] batches=new MessageBatch[4]; // [0]: reg, [1]: OOB, [2]: internal-oob, [3]: internal
         Address dest=Util.readAddress(in);
         Address src=Util.readAddress(in);
@@ -2039,7 +2796,10 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         int len=in.readInt();
         for(int i=0; i < len; i++) {
             Message msg=new Message(false);
-            msg.readFrom(in);
+            if(pooled)
+                readPooledMessage(msg, (ByteArrayDataInputStream)in);
+            else
+                msg.readFrom(in);
             msg.setDest(dest);
             if(msg.getSrc() == null)
                 msg.setSrc(src);
@@ -2066,6 +2826,17 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
 
+    /** Reads a message, setting its payload to point into the buffer of in rather than copying it */
+    protected static void readPooledMessage(Message msg, ByteArrayDataInputStream in) throws Exception {
+        int payload_offset=msg.readFromSkipPayload(in);
+        if(payload_offset < 0)
+            return;
+        int length=msg.getLength();
+        msg.setBuffer(in.buffer(), payload_offset, length).setTransientFlag(Message.TransientFlag.POOLED_BUFFER);
+        in.skipBytes(length);
+    }
+
+
     @SuppressWarnings("unchecked")
     protected Object handleDownEvent(Event evt) {
         switch(evt.getType()) {
@@ -2101,6 +2872,9 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
                     if(left_mbrs != null && !left_mbrs.isEmpty())
                         UUID.removeAll(left_mbrs);
 
+                    if(per_sender_queues != null)
+                        per_sender_queues.retainAll(members);
+
                     if(suppress_log_different_version != null)
                         suppress_log_different_version.removeExpired(suppress_time_different_version_warnings);
                     if(suppress_log_different_cluster != null)
@@ -2266,6 +3040,28 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
 
+    /** Returns max_tasks if set, otherwise the default for the kind of threads used in thread-per-task mode */
+    protected int maxTasks(int max_tasks) {
+        if(max_tasks > 0)
+            return max_tasks;
+        return use_virtual_threads && ThreadPerTaskExecutor.virtualThreadFactory() != null?
+          DEFAULT_MAX_TASKS_VIRTUAL : DEFAULT_MAX_TASKS_PLATFORM;
+    }
+
+    protected static boolean isThreadPerTask(String mode) {
+        if(mode.equalsIgnoreCase("thread-per-task"))
+            return true;
+        if(mode.equalsIgnoreCase("pool"))
+            return false;
+        throw new IllegalArgumentException("thread pool mode \"" + mode + "\" is invalid: has to be \"pool\" or \"thread-per-task\"");
+    }
+
+    protected static boolean isShutdown(Executor thread_pool) {
+        if(thread_pool instanceof ThreadPoolExecutor)
+            return ((ThreadPoolExecutor)thread_pool).isShutdown();
+        return thread_pool instanceof ThreadPerTaskExecutor && ((ThreadPerTaskExecutor)thread_pool).isShutdown();
+    }
+
     protected static void shutdownThreadPool(Executor thread_pool) {
         if(thread_pool instanceof ExecutorService) {
             ExecutorService service=(ExecutorService)thread_pool;
@@ -2394,7 +3190,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             try {
                 if(reset)
                     out.position(0);
-                writeMessage(msg, out, dest == null);
+                writeMessage(msg, out, dest == null, lazy_headers);
                 doSend(out.buffer(), 0, out.position(), dest);
                 if(stats)
                     num_single_msgs_sent++;
@@ -2416,7 +3212,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             try {
                 if(reset)
                     out.position(0);
-                writeMessageList(dest, src, cluster_name, list, out, dest == null, id); // flushes output stream when done
+                writeMessageList(dest, src, cluster_name, list, out, dest == null, id, lazy_headers); // flushes output stream when done
                 doSend(out.buffer(), 0, out.position(), dest);
             }
             catch(SocketException sock_ex) {
@@ -2462,7 +3258,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         protected int              num_bundling_tasks=0;
 
         public void send(Message msg) throws Exception {
-            long    size=msg.size();
+            long    size=marshalledSize(msg);
             boolean do_schedule=false;
             checkLength(size);
 
@@ -2510,7 +3306,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         protected final AtomicInteger num_senders=new AtomicInteger(0); // current senders adding msgs to the bundler
 
         public void send(Message msg) throws Exception {
-            long size=msg.size();
+            long size=marshalledSize(msg);
             checkLength(size);
             num_senders.incrementAndGet();
 
@@ -2581,7 +3377,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         }
 
         public void send(Message msg) throws Exception {
-            long size=msg.size();
+            long size=marshalledSize(msg);
             checkLength(size);
             if(bundler_thread != null)
                 queue.put(msg);
@@ -2595,13 +3391,13 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
                         msg=queue.take();
                         if(msg == null)
                             continue;
-                        long size=msg.size();
+                        long size=marshalledSize(msg);
                         if(count + size >= max_bundle_size || queue.size() >= threshold)
                             sendBundledMessages(msgs, output);
                         addMessage(msg, size);
                     }
                     while(null != (msg=queue.poll())) {
-                        long size=msg.size();
+                        long size=marshalledSize(msg);
                         if(count + size >= max_bundle_size || queue.size() >= threshold)
                             sendBundledMessages(msgs, output);
                         addMessage(msg, size);
@@ -2616,6 +3412,249 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
 
+    /**
+     * Bundler based on a preallocated ring buffer whose capacity is a power of 2 (disruptor-style). Sender threads
+     * claim a slot by incrementing the write index with a CAS and then publish their message into it; a single bundler
+     * thread removes the published messages. Contrary to {@link TransferQueueBundler}, no node is allocated per message
+     * and senders don't contend on a lock. Senders block (spinning, then parking) only when the ring buffer is full.<p/>
+     * Message sizes are computed once by the senders and accumulated as primitives. Messages are grouped by destination
+     * in a single pass over the batch, with a map and destination entries which are reused for all batches, and all
+     * message lists are written into the same output stream.
+     */
+    protected class RingBufferBundler extends BaseBundler implements Runnable {
+        protected final AtomicReferenceArray<Message> buf;
+        protected final int[]                         sizes;       // sizes of the msgs in buf, set before publication
+        protected final int                           capacity;
+        protected final int                           mask;        // capacity-1
+        protected final AtomicLong                    write_index=new AtomicLong(0); // next slot to be claimed
+        protected volatile long                       read_index;  // next slot to be read by the bundler thread
+        protected final Message[]                     batch;       // msgs removed from buf, accessed only by the bundler thread
+        protected final int[]                         next;        // index of the next msg in batch to the same destination
+        protected int                                 batch_size;
+        protected final Map<Address,Destination>      dests=new HashMap<Address,Destination>(); // keys: dest (null: mcast)
+        protected final List<Destination>             dest_list=new ArrayList<Destination>(); // in order of first msg
+        protected int                                 num_dests;   // number of entries of dest_list used by the batch
+        protected volatile boolean                    waiting;     // true when the bundler thread is parked
+        protected volatile Thread                     bundler_thread;
+        protected static final String                 THREAD_NAME="RingBufferBundler";
+        protected static final int                    SPINS=10;     // yields before a sender parks on a full buffer
+        protected static final long                   PARK_NANOS=1000;
+
+
+        protected RingBufferBundler(int capacity) {
+            if(capacity <=0) throw new IllegalArgumentException("bundler capacity cannot be " + capacity);
+            this.capacity=Util.getNextHigherPowerOfTwo(capacity);
+            this.mask=this.capacity - 1;
+            buf=new AtomicReferenceArray<Message>(this.capacity);
+            sizes=new int[this.capacity];
+            batch=new Message[this.capacity];
+            next=new int[this.capacity];
+        }
+
+        public Thread getThread()     {return bundler_thread;}
+        public int    getBufferSize() {return (int)(write_index.get() - read_index);}
+        public int    getCapacity()   {return capacity;}
+
+        public synchronized void start() {
+            if(bundler_thread != null)
+                stop();
+            bundler_thread=getThreadFactory().newThread(this, THREAD_NAME);
+            bundler_thread.start();
+        }
+
+        public synchronized void stop() {
+            Thread tmp=bundler_thread;
+            bundler_thread=null;
+            if(tmp != null) {
+                tmp.interrupt();
+                if(tmp.isAlive()) {
+                    try {tmp.join(500);} catch(InterruptedException e) {}
+                }
+            }
+            for(int i=0; i < capacity; i++)
+                buf.set(i, null);
+            Arrays.fill(batch, null);
+            batch_size=0;
+            dests.clear();
+            num_dests=0;
+            count=0;
+            read_index=write_index.get();
+        }
+
+        public void send(Message msg) throws Exception {
+            long size=marshalledSize(msg);
+            checkLength(size);
+            if(bundler_thread == null)
+                return;
+            long index=claim();
+            if(index < 0)
+                return;
+            int slot=(int)index & mask;
+            sizes[slot]=(int)size;
+            buf.set(slot, msg); // publishes the msg (and its size) to the bundler thread
+            if(waiting) {
+                Thread tmp=bundler_thread;
+                if(tmp != null)
+                    LockSupport.unpark(tmp);
+            }
+        }
+
+        public void run() {
+            while(Thread.currentThread() == bundler_thread) {
+                try {
+                    if(waitForMessages())
+                        drain();
+                }
+                catch(Throwable t) {
+                    log.error("%s: failed sending bundled messages: %s", local_addr, t);
+                }
+            }
+        }
+
+        /** Claims the next slot, blocking while the buffer is full. Returns -1 if the bundler was stopped */
+        protected long claim() {
+            for(int i=0;;) {
+                long index=write_index.get();
+                if(index - read_index < capacity) {
+                    if(write_index.compareAndSet(index, index+1))
+                        return index;
+                    continue;
+                }
+                if(bundler_thread == null)
+                    return -1;
+                if(++i < SPINS)
+                    Thread.yield();
+                else
+                    LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+
+        /** Blocks until the message at read_index has been published. Returns false if the bundler was stopped */
+        protected boolean waitForMessages() {
+            int slot=(int)read_index & mask;
+            while(buf.get(slot) == null) {
+                if(Thread.currentThread() != bundler_thread)
+                    return false;
+                if(write_index.get() != read_index) { // the slot has been claimed, but not yet published
+                    Thread.yield();
+                    continue;
+                }
+                waiting=true;
+                if(buf.get(slot) == null) // a sender sets the msg before reading waiting, so we can't miss an unpark
+                    LockSupport.park(this);
+                waiting=false;
+            }
+            return true;
+        }
+
+        /** Removes all published messages from the buffer and sends them, max_bundle_size bytes at a time */
+        protected void drain() {
+            long index=read_index;
+            for(;;) {
+                int slot=(int)index & mask;
+                Message msg=buf.get(slot);
+                if(msg == null)
+                    break;
+                int size=sizes[slot];
+                buf.lazySet(slot, null);
+                if(count + size >= max_bundle_size) {
+                    read_index=index; // frees the slots of the batch for the senders
+                    sendBatch();
+                }
+                batch[batch_size++]=msg;
+                count+=size;
+                index++;
+            }
+            read_index=index;
+            if(batch_size > 0)
+                sendBatch();
+        }
+
+        /**
+         * Sends the messages in batch: messages to the same destination are sent as a message list. The messages are
+         * grouped by destination in a single pass: the messages to a destination are linked through next, and the
+         * destinations are sent in the order of their first message
+         */
+        protected void sendBatch() {
+            if(log.isTraceEnabled()) {
+                double percentage=100.0 / max_bundle_size * count;
+                log.trace("%s: sending %d msgs (%d bytes (%.2f of max_bundle_size)", local_addr, batch_size, count, percentage);
+            }
+            boolean singleton=isSingleton();
+            for(int i=0; i < batch_size; i++) {
+                Message msg=batch[i];
+                Address dest=msg.getDest();
+                byte[] cname=clusterName(msg);
+                Address key=singleton? new SingletonAddress(cname, dest) : dest;
+                Destination d=dests.get(key);
+                if(d == null) {
+                    if(num_dests == dest_list.size())
+                        dest_list.add(new Destination());
+                    d=dest_list.get(num_dests++);
+                    d.dest=dest;
+                    d.cname=cname;
+                    d.first=d.last=i;
+                    d.num_msgs=1;
+                    dests.put(key, d);
+                }
+                else {
+                    next[d.last]=i;
+                    d.last=i;
+                    d.num_msgs++;
+                }
+                next[i]=-1;
+            }
+
+            for(int i=0; i < num_dests; i++) {
+                Destination d=dest_list.get(i);
+                output.position(0);
+                if(d.num_msgs == 1)
+                    sendSingleMessage(batch[d.first], false, output);
+                else {
+                    sendMessageList(d, output);
+                    if(stats)
+                        num_batches_sent++;
+                }
+                d.dest=null;
+                d.cname=null;
+            }
+            Arrays.fill(batch, 0, batch_size, null);
+            dests.clear();
+            num_dests=0;
+            batch_size=0;
+            count=0;
+        }
+
+        /** Writes and sends the messages in batch to the given destination */
+        protected void sendMessageList(final Destination d, final ByteArrayDataOutputStream out) {
+            try {
+                Address src=batch[d.first].getSrc();
+                writeMessageListHeader(d.dest, src, d.cname, d.num_msgs, out, d.dest == null);
+                for(int i=d.first; i >= 0; i=next[i])
+                    batch[i].writeToNoAddrs(src, out, lazy_headers, id); // exclude the transport header
+                doSend(out.buffer(), 0, out.position(), d.dest);
+            }
+            catch(SocketException sock_ex) {
+                log.debug(Util.getMessage("FailureSendingMsgBundle"),local_addr,sock_ex);
+            }
+            catch(Throwable e) {
+                log.error(Util.getMessage("FailureSendingMsgBundle"), local_addr, e);
+            }
+        }
+
+        protected byte[] clusterName(Message msg) {
+            return !isSingleton()? TP.this.cluster_name.chars() : ((TpHeader)msg.getHeader(id)).cluster_name;
+        }
+
+        /** The messages of a batch to the same destination: the first and last message and their number */
+        protected class Destination {
+            protected Address dest;
+            protected byte[]  cname;
+            protected int     first, last, num_msgs;
+        }
+    }
+
+
 
 
 
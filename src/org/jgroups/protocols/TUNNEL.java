@@ -2,6 +2,7 @@ package org.jgroups.protocols;
 
 import org.jgroups.Address;
 import org.jgroups.Event;
+import org.jgroups.Global;
 import org.jgroups.Message;
 import org.jgroups.PhysicalAddress;
 import org.jgroups.annotations.Experimental;
@@ -18,6 +19,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Replacement for UDP. Instead of sending packets via UDP, a TCP connection is opened to a Router
@@ -31,6 +33,10 @@ import java.util.List;
  * to the outside world, however, they do not permit outside hosts to initiate a TCP connection to a
  * host inside the firewall. Therefore, the connection created by the inside host is reused by
  * Router to send traffic from an outside host to a host inside the firewall.
+ * <p>
+ * If bundle is true, messages are bundled by the transport's bundler, and all messages of a bundle (for any number of
+ * destinations) are sent to the router in a single MESSAGE_LIST request, which the router fans out to the
+ * destinations. Otherwise every message is sent to the router separately.
  * 
  * @author Bela Ban
  * @author Vladimir Blagojevic
@@ -49,6 +55,10 @@ public class TUNNEL extends TP {
     @Property(description="Should TCP no delay flag be turned on")
     boolean tcp_nodelay=false;
 
+    @Property(description="Bundles messages and sends all messages of a bundle to the GossipRouter in one request, " +
+      "which the router forwards to the destinations. Requires a GossipRouter which supports MESSAGE_LIST")
+    protected boolean bundle=false;
+
     /*
     * --------------------------------------------- Fields
     * ------------------------------------------------------
@@ -115,6 +125,12 @@ public class TUNNEL extends TP {
         sock = getSocketFactory().createDatagramSocket("jgroups.tunnel.ucast_sock", bind_port, bind_addr);
     }
     
+    public void start() throws Exception {
+        if(bundle && bundler == null)
+            bundler=new TunnelBundler(bundler_capacity);
+        super.start();
+    }
+
     public void destroy() {        
         stubManager.destroyStubs();
         super.destroy();
@@ -235,25 +251,39 @@ public class TUNNEL extends TP {
 
     @Override
     protected void send(Message msg, Address dest) throws Exception {
+        if(bundle) {
+            super.send(msg, dest);
+            return;
+        }
 
-        // we don't currently support message bundling in TUNNEL
+        // without bundling, every message is sent to the router separately
         TpHeader hdr=(TpHeader)msg.getHeader(this.id);
         if(hdr == null)
             throw new Exception("message " + msg + " doesn't have a transport header, cannot route it");
-        String group=cluster_name != null? cluster_name.toString() : null;
 
         ByteArrayDataOutputStream dos=new ByteArrayDataOutputStream((int)(msg.size() + 50));
-        writeMessage(msg, dos, dest == null);
+        writeMessage(msg, dos, dest == null, lazy_headers);
+        doSend(dos.buffer(), 0, dos.position(), dest);
+    }
 
+    @Override
+    protected void doSend(byte[] buf, int offset, int length, Address dest) throws Exception {
         if(stats) {
             num_msgs_sent++;
-            num_bytes_sent+=dos.position();
+            num_bytes_sent+=length;
         }
+        String group=cluster_name != null? cluster_name.toString() : null;
         List<RouterStub> stubs = stubManager.getStubs();
         if(dest == null)
-            tunnel_policy.sendToAllMembers(stubs, group, dos.buffer(), 0, dos.position());
+            tunnel_policy.sendToAllMembers(stubs, group, buf, offset, length);
         else
-            tunnel_policy.sendToSingleMember(stubs, group, dest, dos.buffer(), 0, dos.position());
+            tunnel_policy.sendToSingleMember(stubs, group, dest, buf, offset, length);
+    }
+
+    /** Sends a MESSAGE_LIST request, created by {@link TunnelBundler}, to the router */
+    protected void sendBundle(byte[] buf, int offset, int length) throws Exception {
+        String group=cluster_name != null? cluster_name.toString() : null;
+        tunnel_policy.sendMessageList(stubManager.getStubs(), group, buf, offset, length);
     }
 
 
@@ -277,6 +307,71 @@ public class TUNNEL extends TP {
       return sock != null ? new IpAddress(bind_addr, sock.getLocalPort()) : null;
    }
 
+
+    /**
+     * Writes all bundled messages into a single MESSAGE_LIST request: the number of entries, followed by the
+     * destination, length and serialized message (or message list) of each destination. The router forwards every
+     * entry to its destination(s), so the receivers get the same data as when every entry is sent separately.
+     */
+    protected class TunnelBundler extends TransferQueueBundler {
+
+        protected TunnelBundler(int capacity) {
+            super(capacity);
+        }
+
+        protected void sendBundledMessages(final Map<SingletonAddress,List<Message>> msgs, final ByteArrayDataOutputStream out) {
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": sending " + numMessages(msgs) + " msgs (" + count + " bytes) to " +
+                            msgs.size() + " destinations in a single request");
+            try {
+                int num=0;
+                out.position(0);
+                out.writeInt(0); // number of entries, set when done
+                for(Map.Entry<SingletonAddress,List<Message>> entry: msgs.entrySet()) {
+                    List<Message> list=entry.getValue();
+                    if(list.isEmpty())
+                        continue;
+                    SingletonAddress dst=entry.getKey();
+                    Address dest=dst.getAddress();
+                    Util.writeAddress(dest, out);
+                    int len_pos=out.position();
+                    out.writeInt(0); // length of the entry, set below
+                    if(list.size() == 1)
+                        writeMessage(list.get(0), out, dest == null, lazy_headers);
+                    else
+                        writeMessageList(dest, list.get(0).getSrc(), dst.getClusterName(), list, out, dest == null, id, lazy_headers);
+                    int end=out.position(), length=end - len_pos - Global.INT_SIZE;
+                    out.position(len_pos);
+                    out.writeInt(length);
+                    out.position(end);
+                    num++;
+                    if(stats) {
+                        num_msgs_sent++;
+                        num_bytes_sent+=length;
+                        if(list.size() == 1)
+                            num_single_msgs_sent++;
+                        else
+                            num_batches_sent++;
+                    }
+                }
+                if(num > 0) {
+                    int end=out.position();
+                    out.position(0);
+                    out.writeInt(num);
+                    out.position(end);
+                    sendBundle(out.buffer(), 0, end);
+                }
+            }
+            catch(Throwable t) {
+                log.error(Util.getMessage("FailureSendingMsgBundle"), local_addr, t);
+            }
+            finally {
+                msgs.clear();
+                count=0;
+            }
+        }
+    }
+
    public interface TUNNELPolicy {
       public void connect(List<RouterStub> stubs, String group, Address addr, String logical_name, List<PhysicalAddress> phys_addrs);
 
@@ -284,6 +379,9 @@ public class TUNNEL extends TP {
 
        public void sendToSingleMember(List<RouterStub> stubs, String group, Address dest, byte[] data, int offset,
                int length) throws Exception;
+
+       /** Sends a MESSAGE_LIST request, carrying messages for any number of destinations */
+       public void sendMessageList(List<RouterStub> stubs, String group, byte[] data, int offset, int length) throws Exception;
    }
 
    private class DefaultTUNNELPolicy implements TUNNELPolicy {
@@ -335,6 +433,28 @@ public class TUNNEL extends TP {
                      + " accepted a message for dest " + dest);
       }
 
+      public void sendMessageList(List<RouterStub> stubs, String group, byte[] data, int offset, int length) throws Exception {
+         boolean sent = false;
+          if(stubs.size() > 1)
+              Collections.shuffle(stubs);
+         for (RouterStub stub : stubs) {
+            try {
+                if(!stub.isConnected())
+                    continue;
+                stub.sendMessageList(group, data, offset, length);
+               if (log.isTraceEnabled())
+                  log.trace("sent a message list, GR used " + stub.getGossipRouterAddress());
+               sent = true;
+               break;
+            } catch (Exception e) {
+                if (log.isWarnEnabled())
+                    log.warn("failed sending a message list, GR used " + stub.getGossipRouterAddress());
+            }
+         }
+         if (!sent)
+            throw new Exception("None of the available stubs " + stubs + " accepted a message list");
+      }
+
        public void connect(List<RouterStub> stubs, String group, Address addr, String logical_name, List<PhysicalAddress> phys_addrs) {
            for (RouterStub stub : stubs) {
                try {
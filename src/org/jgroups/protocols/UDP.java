@@ -1,17 +1,37 @@
 package org.jgroups.protocols;
 
 
+import org.jgroups.Address;
 import org.jgroups.Global;
 import org.jgroups.PhysicalAddress;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.IpAddress;
+import org.jgroups.util.BufferPool;
+import org.jgroups.util.PooledBuffer;
 import org.jgroups.util.Util;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Formatter;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -89,6 +109,20 @@ public class UDP extends TP {
       "multicast packets). IP multicast packets send on a host P will therefore not be received by anyone on P. Use with caution.")
     protected boolean disable_loopback=false;
 
+    @Property(description="Number of threads receiving datagrams on each of the unicast and multicast sockets",
+              writable=false)
+    protected int receiver_threads=1;
+
+    @Property(description="If true, the unicast and multicast sockets are non-blocking DatagramChannels, and their " +
+      "receiver threads read up to receive_batch_size datagrams into pooled buffers per wakeup, and pass their " +
+      "messages up as one batch per sender and type. A multicast socket is used if the JVM can't join multicast " +
+      "groups with a DatagramChannel (before Java 7)", writable=false)
+    protected boolean use_datagram_channel=false;
+
+    @Property(description="Max number of datagrams read from the DatagramChannel per wakeup of a receiver thread",
+              writable=false)
+    protected int receive_batch_size=32;
+
 
     /* --------------------------------------------- Fields ------------------------------------------------ */
 
@@ -110,12 +144,33 @@ public class UDP extends TP {
     /** IP multicast socket for <em>receiving</em> multicast packets */
     protected MulticastSocket mcast_sock=null;
 
+    /** Non-blocking channel for <em>receiving</em> multicast packets, used instead of mcast_sock if use_datagram_channel is true */
+    protected DatagramChannel mcast_channel;
+
     /** Runnable to receive multicast packets */
     protected PacketReceiver  mcast_receiver=null;
 
     /** Runnable to receive unicast packets */
     protected PacketReceiver  ucast_receiver=null;
 
+    /** The channel of sock if use_datagram_channel is true, null otherwise */
+    protected DatagramChannel channel;
+
+    /** Senders wait on this selector until channel is writable again, created when its send buffer is first full */
+    protected volatile Selector write_selector;
+
+    protected final Lock      write_lock=new ReentrantLock();
+
+    /** The buffers into which datagrams are read from channel and mcast_channel */
+    protected BufferPool      receive_buffers;
+
+    protected final AtomicLong num_receive_errors=new AtomicLong();
+
+    /** Size of the buffers datagrams are received into: IPv6 == 65575 bytes, IPv4 = 65535 */
+    protected static final int RECEIVE_BUF_SIZE=66000;
+
+    protected static final String PROC_NET_SNMP="/proc/net/snmp";
+
     protected static final boolean is_android;
 
     static  {
@@ -152,6 +207,30 @@ public class UDP extends TP {
         return this.ip_ttl;
     }
 
+    @ManagedAttribute(description="Number of exceptions thrown while receiving or processing datagrams")
+    public long getNumReceiveErrors() {return num_receive_errors.get();}
+
+    @ManagedAttribute(description="Number of UDP datagrams dropped by the kernel because the receive buffer of a " +
+      "socket was full. Host-wide: counts the drops of all UDP sockets on this host (of all processes), not only " +
+      "of this transport, since the host was booted. Only available on Linux (-1 otherwise)")
+    public long getHostReceiveBufferErrors() {return readUdpStatistic("RcvbufErrors");}
+
+    @ManagedAttribute(description="Number of UDP datagrams which couldn't be delivered by the kernel, e.g. because " +
+      "of a full receive buffer or a checksum error. Host-wide: counts the errors of all UDP sockets on this host " +
+      "(of all processes), not only of this transport, since the host was booted. Only available on Linux (-1 otherwise)")
+    public long getHostInErrors() {return readUdpStatistic("InErrors");}
+
+    @ManagedOperation(description="Prints the pool of receive buffers")
+    public String printReceiveBuffers() {
+        BufferPool tmp=receive_buffers;
+        return tmp != null? tmp.toString() : "n/a";
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_receive_errors.set(0);
+    }
+
     public void setMaxBundleSize(int size) {
         super.setMaxBundleSize(size);
         if(size > Global.MAX_DATAGRAM_PACKET_SIZE)
@@ -180,6 +259,18 @@ public class UDP extends TP {
 
 
     protected void _send(InetAddress dest, int port, boolean mcast, byte[] data, int offset, int length) throws Exception {
+        if(channel != null) {
+            ByteBuffer buf=ByteBuffer.wrap(data, offset, length);
+            SocketAddress dst=new InetSocketAddress(dest, port);
+            try {
+                if(channel.send(buf, dst) == 0) // non-blocking channel: the send buffer is full
+                    sendWhenWritable(buf, dst);
+            }
+            catch(ClosedChannelException closed) { // same as a closed DatagramSocket
+                throw new SocketException("Socket is closed");
+            }
+            return;
+        }
         DatagramPacket packet=new DatagramPacket(data, offset, length, dest, port);
         // using the datagram socket to send multicasts or unicasts (https://issues.jboss.org/browse/JGRP-1765)
         if(sock != null)
@@ -206,6 +297,39 @@ public class UDP extends TP {
     }
 
 
+    /**
+     * Waits until the send buffer of channel has room for the datagram, then sends it. Senders wait on write_selector
+     * one at a time, rather than spinning, as they'd be blocked in a send on a blocking socket
+     */
+    protected void sendWhenWritable(ByteBuffer buf, SocketAddress dst) throws IOException {
+        write_lock.lock();
+        try {
+            Selector selector=write_selector;
+            if(selector == null) {
+                selector=Selector.open();
+                try {
+                    channel.register(selector, SelectionKey.OP_WRITE);
+                }
+                catch(IOException ex) {
+                    selector.close();
+                    throw ex;
+                }
+                write_selector=selector;
+            }
+            while(channel.send(buf, dst) == 0) {
+                selector.select();
+                selector.selectedKeys().clear();
+            }
+        }
+        catch(ClosedSelectorException closed) { // closed by closeUnicastSocket()
+            throw new ClosedChannelException();
+        }
+        finally {
+            write_lock.unlock();
+        }
+    }
+
+
     /* ------------------------------------------------------------------------------- */
 
 
@@ -214,6 +338,14 @@ public class UDP extends TP {
 
 
 
+    public void init() throws Exception {
+        super.init();
+        if(receiver_threads < 1)
+            throw new IllegalArgumentException("receiver_threads (" + receiver_threads + ") has to be >= 1");
+        if(receive_batch_size < 1)
+            throw new IllegalArgumentException("receive_batch_size (" + receive_batch_size + ") has to be >= 1");
+    }
+
     /**
      * Creates the unicast and multicast sockets and starts the unicast and multicast receiver threads
      */
@@ -226,22 +358,30 @@ public class UDP extends TP {
             destroySockets();
             throw ex;
         }
-        ucast_receiver=new PacketReceiver(sock,
-                                          "unicast receiver",
-                                          new Runnable() {
-                                              public void run() {
-                                                  closeUnicastSocket();
-                                              }
-                                          });
+        Runnable close_ucast=new Runnable() {
+            public void run() {
+                closeUnicastSocket();
+            }
+        };
+        Runnable close_mcast=new Runnable() {
+            public void run() {
+                closeMulticastSocket();
+            }
+        };
+        if(channel != null) {
+            // with zero_copy_receive, buffers are kept until their messages have been delivered, so pool more of them
+            int num_receivers=mcast_channel != null? 2 : 1;
+            int num_bufs=num_receivers * receiver_threads * receive_batch_size + (zero_copy_receive? zero_copy_pool_size : 0);
+            receive_buffers=new BufferPool(num_bufs, RECEIVE_BUF_SIZE, false);
+            ucast_receiver=new ChannelReceiver(channel, "unicast receiver", close_ucast, receiver_threads);
+        }
+        else
+            ucast_receiver=new PacketReceiver(sock, "unicast receiver", close_ucast, receiver_threads);
 
-        if(ip_mcast)
-            mcast_receiver=new PacketReceiver(mcast_sock,
-                                              "multicast receiver",
-                                              new Runnable() {
-                                                  public void run() {
-                                                      closeMulticastSocket();
-                                                  }
-                                              });
+        if(mcast_channel != null)
+            mcast_receiver=new ChannelReceiver(mcast_channel, "multicast receiver", close_mcast, receiver_threads);
+        else if(ip_mcast)
+            mcast_receiver=new PacketReceiver(mcast_sock, "multicast receiver", close_mcast, receiver_threads);
     }
 
 
@@ -321,7 +461,11 @@ public class UDP extends TP {
 
         // 2. Create socket for receiving unicast UDP packets. The address and port
         //    of this socket will be our local address (local_addr)
-        if(bind_port > 0)
+        if(use_datagram_channel) {
+            channel=createDatagramChannel();
+            sock=channel.socket();
+        }
+        else if(bind_port > 0)
             sock=createDatagramSocketWithBindPort();
         else
             sock=createEphemeralDatagramSocket();
@@ -339,51 +483,125 @@ public class UDP extends TP {
 
         // 3. Create socket for receiving IP multicast packets
         if(ip_mcast) {
-            // https://jira.jboss.org/jira/browse/JGRP-777 - this doesn't work on MacOS, and we don't have
-            // cross talking on Windows anyway, so we just do it for Linux. (How about Solaris ?)
-            if(can_bind_to_mcast_addr)
-                mcast_sock=Util.createMulticastSocket(getSocketFactory(), "jgroups.udp.mcast_sock", mcast_group_addr, mcast_port, log);
-            else
-                mcast_sock=getSocketFactory().createMulticastSocket("jgroups.udp.mcast_sock", mcast_port);
-
-            if(disable_loopback)
-                mcast_sock.setLoopbackMode(disable_loopback);
-
-            mcast_sock.setTimeToLive(ip_ttl);
-
             mcast_addr=new IpAddress(mcast_group_addr, mcast_port);
 
             // check that we're not using the same mcast address and port as the diagnostics socket
             if(enable_diagnostics && diagnostics_addr.equals(mcast_group_addr) && diagnostics_port == mcast_port)
                 throw new IllegalArgumentException("diagnostics_addr:diagnostics_port and mcast_addr:mcast_port " +
                                                      "have to be different");
+            if(use_datagram_channel)
+                mcast_channel=createMulticastChannel();
+            if(mcast_channel == null)
+                createMulticastSocket();
+        }
+
+        setBufferSizes();
+        log.debug("socket information:\n%s", dumpSocketInfo());
+    }
+
+
+    /** Creates the multicast socket and joins mcast_group_addr on the receive interfaces (or bind_addr) */
+    protected void createMulticastSocket() throws Exception {
+        // https://jira.jboss.org/jira/browse/JGRP-777 - this doesn't work on MacOS, and we don't have
+        // cross talking on Windows anyway, so we just do it for Linux. (How about Solaris ?)
+        if(can_bind_to_mcast_addr)
+            mcast_sock=Util.createMulticastSocket(getSocketFactory(), "jgroups.udp.mcast_sock", mcast_group_addr, mcast_port, log);
+        else
+            mcast_sock=getSocketFactory().createMulticastSocket("jgroups.udp.mcast_sock", mcast_port);
 
+        if(disable_loopback)
+            mcast_sock.setLoopbackMode(disable_loopback);
+
+        mcast_sock.setTimeToLive(ip_ttl);
+
+        if(tos > 0) {
+            try {
+                mcast_sock.setTrafficClass(tos);
+            }
+            catch(SocketException e) {
+                log.warn(Util.getMessage("TrafficClass"), tos, e);
+            }
+        }
+
+        if(receive_on_all_interfaces || (receive_interfaces != null && !receive_interfaces.isEmpty())) {
+            List<NetworkInterface> interfaces;
+            if(receive_interfaces != null)
+                interfaces=receive_interfaces;
+            else
+                interfaces=Util.getAllAvailableInterfaces();
+            bindToInterfaces(interfaces, mcast_sock, mcast_addr.getIpAddress());
+        }
+        else {
+            if(bind_addr != null)
+                mcast_sock.setInterface(bind_addr);
+             mcast_sock.joinGroup(mcast_group_addr);
+        }
+    }
+
+
+    /**
+     * Creates a non-blocking DatagramChannel bound to mcast_port, which joins mcast_group_addr on the receive
+     * interfaces (or bind_addr). Returns null if the JVM can't join multicast groups with a DatagramChannel
+     */
+    protected DatagramChannel createMulticastChannel() throws Exception {
+        Method join;
+        try {
+            // DatagramChannel.join(), which doesn't compile against JDKs older than 7
+            join=DatagramChannel.class.getMethod("join", InetAddress.class, NetworkInterface.class);
+        }
+        catch(NoSuchMethodException ex) {
+            log.warn("the JVM can't join multicast groups with a DatagramChannel, using a MulticastSocket");
+            return null;
+        }
+        List<NetworkInterface> interfaces;
+        if(receive_on_all_interfaces || (receive_interfaces != null && !receive_interfaces.isEmpty()))
+            interfaces=receive_interfaces != null? receive_interfaces : Util.getAllAvailableInterfaces();
+        else {
+            NetworkInterface intf=NetworkInterface.getByInetAddress(bind_addr);
+            if(intf == null)
+                throw new IllegalArgumentException("no network interface found for bind_addr " + bind_addr);
+            interfaces=Collections.singletonList(intf);
+        }
+
+        DatagramChannel ch=DatagramChannel.open();
+        try {
+            DatagramSocket s=ch.socket();
+            s.setReuseAddress(true);
+            // https://jira.jboss.org/jira/browse/JGRP-777: binding to the mcast address only works on Linux
+            s.bind(can_bind_to_mcast_addr? new InetSocketAddress(mcast_group_addr, mcast_port)
+                     : new InetSocketAddress(mcast_port));
             if(tos > 0) {
                 try {
-                    mcast_sock.setTrafficClass(tos);
+                    s.setTrafficClass(tos);
                 }
                 catch(SocketException e) {
                     log.warn(Util.getMessage("TrafficClass"), tos, e);
                 }
             }
-
-            if(receive_on_all_interfaces || (receive_interfaces != null && !receive_interfaces.isEmpty())) {
-                List<NetworkInterface> interfaces;
-                if(receive_interfaces != null)
-                    interfaces=receive_interfaces;
-                else
-                    interfaces=Util.getAllAvailableInterfaces();
-                bindToInterfaces(interfaces, mcast_sock, mcast_addr.getIpAddress());
-            }
-            else {
-                if(bind_addr != null)
-                    mcast_sock.setInterface(bind_addr);
-                 mcast_sock.joinGroup(mcast_group_addr);
+            for(NetworkInterface intf: interfaces) {
+                try {
+                    join.invoke(ch, mcast_group_addr, intf);
+                    log.trace("joined %s on %s", mcast_addr, intf.getName());
+                }
+                catch(InvocationTargetException ex) {
+                    Throwable cause=ex.getCause();
+                    if(cause instanceof UnsupportedOperationException) { // e.g. an IPv4 group on an IPv6 channel
+                        log.warn("failed joining %s with a DatagramChannel (%s), using a MulticastSocket", mcast_addr, cause);
+                        Util.close(ch);
+                        return null;
+                    }
+                    if(interfaces.size() == 1)
+                        throw cause instanceof Exception? (Exception)cause : ex;
+                    log.warn(Util.getMessage("InterfaceJoinFailed"), mcast_addr, intf.getName());
+                }
             }
+            ch.configureBlocking(false);
+            return ch;
+        }
+        catch(Exception ex) {
+            Util.close(ch);
+            throw ex;
         }
-
-        setBufferSizes();
-        log.debug("socket information:\n%s", dumpSocketInfo());
     }
 
 
@@ -490,6 +708,62 @@ public class UDP extends TP {
     }
 
 
+    /**
+     * Creates a non-blocking DatagramChannel bound to bind_port (or the next free port in range
+     * [bind_port .. bind_port+port_range]), or to an ephemeral port if bind_port is 0
+     */
+    protected DatagramChannel createDatagramChannel() throws Exception {
+        int rcv_port=bind_port, max_port=bind_port > 0? bind_port + port_range : 0;
+        while(true) {
+            DatagramChannel ch=DatagramChannel.open();
+            try {
+                ch.socket().bind(new InetSocketAddress(bind_addr, rcv_port));
+                ch.configureBlocking(false);
+                return ch;
+            }
+            catch(SocketException bind_ex) {
+                Util.close(ch);
+                if(rcv_port == 0 || ++rcv_port > max_port)
+                    throw new Exception("failed to open a port in range " + bind_port + '-' + max_port, bind_ex);
+            }
+        }
+    }
+
+
+    /**
+     * Returns a field of the Udp section of /proc/net/snmp (e.g. RcvbufErrors), or -1 if not available. The counters
+     * are host-wide, i.e. the sum over all UDP sockets on this host, so they can't be attributed to a single socket
+     */
+    protected static long readUdpStatistic(String field) {
+        BufferedReader in=null;
+        try {
+            in=new BufferedReader(new FileReader(PROC_NET_SNMP));
+            String line;
+            String[] names=null;
+            while((line=in.readLine()) != null) {
+                if(!line.startsWith("Udp:"))
+                    continue;
+                String[] tokens=line.trim().split("\\s+");
+                if(names == null) {
+                    names=tokens; // the first line has the names, the second line the values
+                    continue;
+                }
+                for(int i=1; i < names.length && i < tokens.length; i++)
+                    if(names[i].equals(field))
+                        return Long.parseLong(tokens[i]);
+                return -1;
+            }
+            return -1;
+        }
+        catch(Exception e) {
+            return -1;
+        }
+        finally {
+            Util.close(in);
+        }
+    }
+
+
     protected String dumpSocketInfo() throws Exception {
         StringBuilder sb=new StringBuilder(128);
         Formatter formatter=new Formatter(sb);
@@ -504,6 +778,10 @@ public class UDP extends TP {
             formatter.format("\nmcast_sock: bound to %s:%d, send buffer size=%d, receive buffer size=%d",
                              mcast_sock.getInterface().getHostAddress(), mcast_sock.getLocalPort(),
                              mcast_sock.getSendBufferSize(), mcast_sock.getReceiveBufferSize());
+
+        if(mcast_channel != null)
+            formatter.format("\nmcast_channel: bound to %s, receive buffer size=%d",
+                             mcast_channel.socket().getLocalSocketAddress(), mcast_channel.socket().getReceiveBufferSize());
         return sb.toString();
     }
 
@@ -514,6 +792,8 @@ public class UDP extends TP {
 
         if(mcast_sock != null)
             setBufferSize(mcast_sock, mcast_send_buf_size, mcast_recv_buf_size);
+        if(mcast_channel != null)
+            setBufferSize(mcast_channel.socket(), mcast_send_buf_size, mcast_recv_buf_size);
     }
 
     protected void setBufferSize(DatagramSocket sock, int send_buf_size, int recv_buf_size) {
@@ -545,6 +825,12 @@ public class UDP extends TP {
 
 
     void closeMulticastSocket() {
+        if(mcast_channel != null) {
+            Util.close(mcast_channel); // drops the group memberships and causes the mcast receiver threads to terminate
+            mcast_channel=null;
+            mcast_addr=null;
+            if(log.isDebugEnabled()) log.debug("multicast channel closed");
+        }
         if(mcast_sock != null) {
             try {
                 if(mcast_addr != null) {
@@ -563,6 +849,12 @@ public class UDP extends TP {
 
     protected void closeUnicastSocket() {
         getSocketFactory().close(sock);
+        if(channel != null)
+            Util.close(channel);
+        Selector tmp=write_selector;
+        if(tmp != null) {
+            try {tmp.close();} catch(IOException e) {} // wakes up senders waiting in sendWhenWritable()
+        }
     }
 
 
@@ -613,28 +905,39 @@ public class UDP extends TP {
     /* ----------------------------- Inner Classes ---------------------------------------- */
 
 
+    /** Receives packets from a (blocking) DatagramSocket with one or more threads */
     public class PacketReceiver implements Runnable {
-        private       Thread         thread=null;
-        private final DatagramSocket receiver_socket;
-        private final String         name;
-        private final Runnable       close_strategy;
+        protected volatile Thread[]      threads;
+        protected final DatagramSocket   receiver_socket;
+        protected final String           name;
+        protected final Runnable         close_strategy;
+        protected final int              num_threads;
 
         public PacketReceiver(DatagramSocket socket, String name, Runnable close_strategy) {
+            this(socket, name, close_strategy, 1);
+        }
+
+        public PacketReceiver(DatagramSocket socket, String name, Runnable close_strategy, int num_threads) {
             this.receiver_socket=socket;
             this.name=name;
             this.close_strategy=close_strategy;
+            this.num_threads=num_threads;
         }
 
         public synchronized void start() {
-            if(thread == null || !thread.isAlive()) {
-                thread=getThreadFactory().newThread(this, name);
+            if(threads != null && isAlive())
+                return;
+            Thread[] tmp=new Thread[num_threads];
+            for(int i=0; i < tmp.length; i++)
+                tmp[i]=getThreadFactory().newThread(this, num_threads > 1? name + "-" + (i+1) : name);
+            threads=tmp;
+            for(Thread thread: tmp)
                 thread.start();
-            }
         }
 
         public synchronized void stop() {
-            Thread tmp=thread;
-            thread=null;
+            Thread[] tmp=threads;
+            threads=null;
             try {
                 close_strategy.run();
             }
@@ -644,23 +947,49 @@ public class UDP extends TP {
                 Util.close(receiver_socket); // second line of defense
             }
 
-            if(tmp != null && tmp.isAlive()) {
-                tmp.interrupt();
-                try {
-                    tmp.join(Global.THREAD_SHUTDOWN_WAIT_TIME);
-                }
-                catch(InterruptedException e) {
-                    Thread.currentThread().interrupt(); // set interrupt flag again
+            if(tmp == null)
+                return;
+            for(Thread thread: tmp) {
+                if(thread.isAlive()) {
+                    thread.interrupt();
+                    try {
+                        thread.join(Global.THREAD_SHUTDOWN_WAIT_TIME);
+                    }
+                    catch(InterruptedException e) {
+                        Thread.currentThread().interrupt(); // set interrupt flag again
+                        break;
+                    }
                 }
             }
         }
 
+        protected boolean isAlive() {
+            Thread[] tmp=threads;
+            if(tmp != null)
+                for(Thread thread: tmp)
+                    if(thread.isAlive())
+                        return true;
+            return false;
+        }
+
+        /** Returns true if the current thread is one of the receiver threads */
+        protected boolean isRunning() {
+            Thread[] tmp=threads;
+            if(tmp != null) {
+                Thread current=Thread.currentThread();
+                for(Thread thread: tmp)
+                    if(thread == current)
+                        return true;
+            }
+            return false;
+        }
+
 
         public void run() {
-            final byte           receive_buf[]=new byte[66000]; // to be on the safe side (IPv6 == 65575 bytes, IPv4 = 65535)
+            final byte           receive_buf[]=new byte[RECEIVE_BUF_SIZE]; // to be on the safe side
             final DatagramPacket packet=new DatagramPacket(receive_buf, receive_buf.length);
 
-            while(thread != null && Thread.currentThread().equals(thread)) {
+            while(isRunning()) {
                 try {
 
                     // solves Android ISSUE #24748 - DatagramPacket truncated UDP in ICS
@@ -686,18 +1015,125 @@ public class UDP extends TP {
                         if(log.isDebugEnabled()) log.debug("receiver socket is closed, exception=" + sock_ex);
                         break;
                     }
+                    num_receive_errors.incrementAndGet();
                     log.error("failed receiving packet", sock_ex);
                 }
                 catch(Throwable ex) {
+                    num_receive_errors.incrementAndGet();
                     if(log.isErrorEnabled())
                         log.error("failed receiving packet", ex);
                 }
             }
-            if(log.isDebugEnabled()) log.debug(name + " thread terminated");
+            if(log.isDebugEnabled()) log.debug(Thread.currentThread().getName() + " thread terminated");
         }
 
         public String toString() {
             return receiver_socket != null? receiver_socket.getLocalSocketAddress().toString() : "null";
         }
     }
+
+
+    /**
+     * Receives packets from a non-blocking DatagramChannel. Each thread has its own selector. When woken up, a thread
+     * first reads up to receive_batch_size datagrams into buffers acquired from the pool, and then passes their
+     * messages up as one batch per sender and type (regular, OOB, internal), so that a burst of datagrams from the
+     * same sender is handled by one thread. Reading all available datagrams before processing them empties the
+     * socket's receive buffer quickly, so fewer datagrams are dropped by the kernel in bursts.<p/>
+     * The buffers are handed over to the transport, which returns them to the pool when the messages read from them
+     * have been processed. If zero_copy_receive is true, the payloads of the messages point directly into them.
+     */
+    public class ChannelReceiver extends PacketReceiver {
+        protected final DatagramChannel ch;
+
+        public ChannelReceiver(DatagramChannel ch, String name, Runnable close_strategy, int num_threads) {
+            super(ch.socket(), name, close_strategy, num_threads);
+            this.ch=ch;
+        }
+
+        public void run() {
+            final PooledBuffer[]  bufs=new PooledBuffer[receive_batch_size];
+            final SocketAddress[] senders=new SocketAddress[receive_batch_size];
+            final Address[]       addrs=new Address[receive_batch_size];
+            final int[]           lengths=new int[receive_batch_size];
+            Selector selector=null;
+            try {
+                selector=Selector.open();
+                ch.register(selector, SelectionKey.OP_READ);
+                while(isRunning()) {
+                    try {
+                        selector.select();
+                        selector.selectedKeys().clear();
+                        int num=read(bufs, senders);
+                        process(bufs, senders, addrs, lengths, num);
+                    }
+                    catch(ClosedChannelException closed) {
+                        break;
+                    }
+                    catch(ClosedSelectorException closed) {
+                        break;
+                    }
+                    catch(Throwable ex) {
+                        if(!ch.isOpen())
+                            break;
+                        num_receive_errors.incrementAndGet();
+                        log.error("failed receiving packet", ex);
+                    }
+                }
+            }
+            catch(IOException ex) {
+                if(ch.isOpen())
+                    log.error("failed registering channel", ex);
+            }
+            finally {
+                if(selector != null) {
+                    try {selector.close();} catch(IOException e) {}
+                }
+            }
+            if(log.isDebugEnabled()) log.debug(Thread.currentThread().getName() + " thread terminated");
+        }
+
+        /** Reads up to bufs.length datagrams without blocking, returns the number of datagrams read */
+        protected int read(PooledBuffer[] bufs, SocketAddress[] senders) throws IOException {
+            int num=0;
+            try {
+                while(num < bufs.length) {
+                    PooledBuffer buf=new PooledBuffer(receive_buffers);
+                    SocketAddress sender=ch.receive(buf.buffer());
+                    if(sender == null) {
+                        buf.release();
+                        break;
+                    }
+                    bufs[num]=buf;
+                    senders[num++]=sender;
+                }
+            }
+            catch(IOException ex) {
+                if(num == 0)
+                    throw ex;
+                num_receive_errors.incrementAndGet(); // process the datagrams read so far
+            }
+            return num;
+        }
+
+        /** Passes the datagrams up as one batch per sender and type, and hands the buffers over to the transport */
+        protected void process(PooledBuffer[] bufs, SocketAddress[] senders, Address[] addrs, int[] lengths, int num) {
+            for(int i=0; i < num; i++) {
+                InetSocketAddress sender=(InetSocketAddress)senders[i];
+                addrs[i]=new IpAddress(sender.getAddress(), sender.getPort());
+                lengths[i]=bufs[i].buffer().position();
+            }
+            try {
+                receive(addrs, bufs, lengths, num);
+            }
+            catch(Throwable ex) {
+                num_receive_errors.incrementAndGet();
+                log.error("failed processing packets", ex);
+            }
+            finally {
+                Arrays.fill(bufs, 0, num, null);
+                Arrays.fill(senders, 0, num, null);
+                Arrays.fill(addrs, 0, num, null);
+            }
+        }
+    }
 }
@@ -627,7 +627,7 @@ public class UNICAST extends Protocol implements AgeOutCache.Handler<Address> {
         if(conn_expiry_timeout > 0)
             entry.update();
         Table<Message> win=entry.received_msgs;
-        boolean added=win.add(seqno, msg); // win is guaranteed to be non-null if we get here
+        boolean added=win.add(seqno, msg.copyPooledBuffer()); // win is guaranteed to be non-null if we get here
         num_msgs_received++;
 
         // An OOB message is passed up immediately. Later, when remove() is called, we discard it. This affects ordering !
@@ -676,7 +676,7 @@ public class UNICAST extends Protocol implements AgeOutCache.Handler<Address> {
                 if(entry == null)
                     continue;
                 Table<Message> win=entry.received_msgs;
-                boolean msg_added=win.add(hdr.seqno, msg); // win is guaranteed to be non-null if we get here
+                boolean msg_added=win.add(hdr.seqno, msg.copyPooledBuffer()); // win is guaranteed to be non-null if we get here
                 num_msgs_received++;
 
                 if(hdr.first && msg_added)
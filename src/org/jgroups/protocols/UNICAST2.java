@@ -785,7 +785,7 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
         if(conn_expiry_timeout > 0)
             entry.update();
         Table<Message> win=entry.received_msgs;
-        boolean added=win.add(seqno, msg); // win is guaranteed to be non-null if we get here
+        boolean added=win.add(seqno, msg.copyPooledBuffer()); // win is guaranteed to be non-null if we get here
         num_messages_received++;
 
         if(added) {
@@ -832,7 +832,7 @@ public class UNICAST2 extends Protocol implements AgeOutCache.Handler<Address> {
                 if(entry == null)
                     continue;
                 win=entry.received_msgs;
-                boolean msg_added=win.add(hdr.seqno, msg); // win is guaranteed to be non-null if we get here
+                boolean msg_added=win.add(hdr.seqno, msg.copyPooledBuffer()); // win is guaranteed to be non-null if we get here
                 added|=msg_added;
                 num_messages_received++;
                 total_len+=msg.getLength();
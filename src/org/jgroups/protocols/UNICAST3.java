@@ -10,6 +10,7 @@ import org.jgroups.util.*;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
@@ -57,6 +58,25 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
       "is compacted (only for experts)",writable=false)
     protected long    xmit_table_max_compaction_time=10 * 60 * 1000;
 
+    @Property(description="If true, the send and receive windows are ConcurrentTables, which don't use a lock: " +
+      "threads adding messages don't contend with the thread delivering them",writable=false)
+    protected boolean concurrent_xmit_table=false;
+
+    @Property(description="Max number of bytes (payload) of unacked messages retained in a single send window. " +
+      "When exceeded, the oldest messages are spilled to a file in spill_dir, from which they are retransmitted. " +
+      "0 disables this",writable=false)
+    protected long max_retained_bytes_per_table=0;
+
+    @Property(description="Max number of bytes (payload) of unacked messages retained in all send windows. When " +
+      "exceeded, the oldest messages of the biggest send windows are spilled to disk. 0 disables this",writable=false)
+    protected long max_retained_bytes=0;
+
+    @Property(description="Directory in which the spill files are created",writable=false)
+    protected String spill_dir=System.getProperty("java.io.tmpdir");
+
+    @Property(description="Size (in bytes) of the memory-mapped segments of a spill file",writable=false)
+    protected int spill_segment_size=16 * 1024 * 1024;
+
     // @Property(description="Max time (in ms) after which a connection to a non-member is closed")
     protected long    max_retransmit_time=60 * 1000L;
 
@@ -66,6 +86,10 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     @Property(description="If true, trashes warnings about retransmission messages not found in the xmit_table (used for testing)")
     protected boolean log_not_found_msgs=true;
 
+    @Property(description="If true, missing seqnos are sent as bitmap when smaller. Only members running 4.0 or later " +
+      "can read these requests, so this must be false as long as older members are in the cluster",writable=false)
+    protected boolean compact_xmit_reqs=false;
+
     @Property(description="Send an ack for a batch immediately instead of using a delayed ack",
               deprecatedMessage="replaced by ack_threshold")
     @Deprecated
@@ -104,6 +128,9 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     /** RetransmitTask running every xmit_interval ms */
     protected Future<?>                    xmit_task;
 
+    /** Accounts for unacked messages in the send windows and spills them to disk; null if disabled */
+    protected MessageBudget                budget;
+
     protected volatile List<Address>       members=new ArrayList<Address>(11);
 
     protected Address                      local_addr;
@@ -240,6 +267,29 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     }
 
 
+    @ManagedAttribute(description="Number of bytes (payload) of unacked messages retained in all send windows, " +
+      "excluding spilled messages")
+    public long getRetainedBytes() {return budget != null? budget.getRetainedBytes() : 0;}
+
+    @ManagedAttribute(description="Number of bytes of the messages currently spilled to disk")
+    public long getSpilledBytes() {return budget != null? budget.getSpilledBytes() : 0;}
+
+    @ManagedAttribute(description="Number of messages currently spilled to disk")
+    public int getNumSpilledMessages() {return budget != null? budget.getNumSpilledMessages() : 0;}
+
+    @ManagedAttribute(description="Total number of messages spilled to disk")
+    public long getNumMessagesSpilled() {return budget != null? budget.getNumMessagesSpilled() : 0;}
+
+    @ManagedAttribute(description="Number of messages read from spill files for retransmission")
+    public long getNumSpillReads() {return budget != null? budget.getNumSpillReads() : 0;}
+
+    @ManagedAttribute(description="Size of all spill files")
+    public long getSpillFileSize() {return budget != null? budget.getSpillFileSize() : 0;}
+
+    @ManagedOperation(description="Prints the bytes retained and spilled by the send windows")
+    public String printBudget() {return budget != null? budget.toString() : "n/a";}
+
+
     @ManagedAttribute(description="Total number of undelivered messages in all receive windows")
     public long getXmitTableUndeliveredMessages() {
         long retval=0;
@@ -341,6 +391,8 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
     public void resetStats() {
         num_msgs_sent=num_msgs_received=num_acks_sent=num_acks_received=num_xmits=0;
+        if(budget != null)
+            budget.resetStats();
     }
 
 
@@ -357,6 +409,9 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         time_service=getTransport().getTimeService();
         if(time_service == null)
             throw new IllegalStateException("time service from transport is null");
+        if(max_retained_bytes > 0 || max_retained_bytes_per_table > 0)
+            budget=new MessageBudget(new File(spill_dir), getName().toLowerCase(), max_retained_bytes,
+                                     max_retained_bytes_per_table, spill_segment_size, true, log);
     }
 
     public void start() throws Exception {
@@ -592,6 +647,8 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                     }
                 }
                 while(running);
+                if(budget != null && !dst.equals(local_addr)) // messages to self are removed when delivered
+                    budget.added(entry.msgs, msg);
 
                 if(log.isTraceEnabled()) {
                     StringBuilder sb=new StringBuilder();
@@ -668,6 +725,8 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         SenderEntry entry=send_table.remove(mbr);
         if(entry != null) {
             entry.state(State.CLOSED);
+            if(budget != null)
+                budget.remove(entry.msgs);
             sendClose(mbr, entry.connId());
         }
     }
@@ -686,12 +745,14 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     public void removeAllConnections() {
         send_table.clear();
         recv_table.clear();
+        if(budget != null)
+            budget.clear();
     }
 
 
     /** Sends a retransmit request to the given sender */
     protected void retransmit(SeqnoList missing, Address sender) {
-        Message xmit_msg=new Message(sender, missing).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
+        Message xmit_msg=new Message(sender, missing.useBitmap(compact_xmit_reqs)).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
           .putHeader(id, Header.createXmitReqHeader());
         log.trace("%s: sending XMIT_REQ (%s) to %s", local_addr, missing, sender);
         down_prot.down(new Event(Event.MSG, xmit_msg));
@@ -737,6 +798,8 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         update(entry, 1);
         boolean oob=msg.isFlagSet(Message.Flag.OOB);
         final Table<Message> win=entry.msgs;
+        if(!oob && !win.contains(seqno))
+            msg.copyPooledBuffer(); // copied before it is added, as another thread may deliver it right after adding it
         boolean added=win.add(seqno, oob? DUMMY_OOB_MSG : msg); // adding the same dummy OOB msg saves space (we won't remove it)
 
         if(ack_threshold <= 1)
@@ -816,6 +879,11 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         int batch_size=msgs.size();
         Table<Message> win=entry.msgs;
 
+        if(!oob)
+            for(Tuple<Long,Message> tuple: msgs)
+                if(!win.contains(tuple.getVal1())) // copied before it is added, as it may be delivered right after
+                    tuple.getVal2().copyPooledBuffer();
+
         // adds all messages to the table, removing messages from 'msgs' which could not be added (already present)
         boolean added=win.add(msgs, oob, oob? DUMMY_OOB_MSG : null);
 
@@ -927,8 +995,8 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     protected SenderEntry getSenderEntry(Address dst) {
         SenderEntry entry=send_table.get(dst);
         if(entry == null || entry.state() == State.CLOSED) {
-            if(entry != null)
-                send_table.remove(dst, entry);
+            if(entry != null && send_table.remove(dst, entry) && budget != null)
+                budget.remove(entry.msgs);
             entry=new SenderEntry(getNewConnectionId());
             SenderEntry existing=send_table.putIfAbsent(dst, entry);
             if(existing != null)
@@ -946,10 +1014,16 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     }
 
 
-    protected ReceiverEntry createReceiverEntry(Address sender, long seqno, short conn_id) {
-        Table<Message> table=new Table<Message>(xmit_table_num_rows, xmit_table_msgs_per_row, seqno-1,
+    protected Table<Message> createTable(long offset) {
+        if(concurrent_xmit_table)
+            return new ConcurrentTable<Message>(xmit_table_num_rows, xmit_table_msgs_per_row, offset,
                                                 xmit_table_resize_factor, xmit_table_max_compaction_time);
-        ReceiverEntry entry=new ReceiverEntry(table, conn_id);
+        return new Table<Message>(xmit_table_num_rows, xmit_table_msgs_per_row, offset,
+                                  xmit_table_resize_factor, xmit_table_max_compaction_time);
+    }
+
+    protected ReceiverEntry createReceiverEntry(Address sender, long seqno, short conn_id) {
+        ReceiverEntry entry=new ReceiverEntry(createTable(seqno-1), conn_id);
         ReceiverEntry entry2=recv_table.putIfAbsent(sender, entry);
         if(entry2 != null)
             return entry2;
@@ -970,7 +1044,10 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
         Table<Message> win=entry != null? entry.msgs : null;
         if(win != null) {
-            win.purge(seqno, true); // removes all messages <= seqno (forced purge)
+            if(budget != null)
+                budget.purge(win, seqno, true);
+            else
+                win.purge(seqno, true); // removes all messages <= seqno (forced purge)
             num_acks_received++;
         }
     }
@@ -990,7 +1067,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
             return;
         }
 
-        Message rsp=win.get(win.getLow() +1);
+        Message rsp=budget != null? budget.get(win, win.getLow() +1) : win.get(win.getLow() +1);
         if(rsp != null) {
             // We need to copy the UnicastHeader and put it back into the message because Message.copy() doesn't copy
             // the headers and therefore we'd modify the original message in the sender retransmission window
@@ -1013,7 +1090,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         Table<Message> win=entry != null? entry.msgs : null;
         if(win != null) {
             for(long seqno: missing) {
-                Message msg=win.get(seqno);
+                Message msg=budget != null? budget.get(win, seqno) : win.get(seqno);
                 if(msg == null) {
                     if(log.isWarnEnabled() && log_not_found_msgs && !local_addr.equals(sender) && seqno > win.getLow())
                         log.warn(Util.getMessage("MessageNotFound"), local_addr, sender, seqno);
@@ -1367,8 +1444,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         protected final long[]      watermark={0,0};   // the highest acked and highest sent seqno
 
         public SenderEntry(short send_conn_id) {
-            super(send_conn_id, new Table<Message>(xmit_table_num_rows, xmit_table_msgs_per_row, 0,
-                                                   xmit_table_resize_factor, xmit_table_max_compaction_time));
+            super(send_conn_id, createTable(0));
         }
 
         long[]      watermark()                 {return watermark;}
@@ -1468,7 +1544,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
                 if(highest_acked < highest_sent && val.watermark[0] == highest_acked && val.watermark[1] == highest_sent) {
                     // highest acked and sent hasn't moved up - let's resend the HS
-                    Message highest_sent_msg=win.get(highest_sent);
+                    Message highest_sent_msg=budget != null? budget.get(win, highest_sent) : win.get(highest_sent);
                     if(highest_sent_msg != null)
                         retransmit(highest_sent_msg);
                 }
@@ -1478,6 +1554,9 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         }
 
 
+        if(budget != null)
+            budget.check();
+
         // close idle connections
         if(conn_expiry_timeout > 0)
             closeIdleConnections();
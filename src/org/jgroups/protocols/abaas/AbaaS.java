@@ -1,12 +1,17 @@
 package org.jgroups.protocols.abaas;
 
 import org.jgroups.*;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.protocols.aramis.PCSynch;
 import org.jgroups.protocols.aramis.Aramis;
 import org.jgroups.protocols.tom.TOA;
 import org.jgroups.stack.Protocol;
 import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.LongMap;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Tuple;
 
 import java.util.*;
 import java.util.concurrent.*;
@@ -21,6 +26,7 @@ import java.util.logging.Logger;
  * @author Ryan Emerson
  * @since 4.0
  */
+@MBean(description = "Abaas total order as a service protocol")
 public class AbaaS extends Protocol {
 
     public static int minimumNodes = 2; // Static hack to allow experiments to dynamically change the value.
@@ -37,8 +43,21 @@ public class AbaaS extends Protocol {
     @Property(name = "msg_size", description = "The max size of a msg between box members.  Determines the number of msgs that can be bundled")
     private int MSG_SIZE = 1000;
 
-    @Property(name = "queue_capacity", description = "The maximum number of ordering requests that can be queued")
-    private int QUEUE_CAPACITY = 500;
+    @Property(name = "queue_capacity", description = "The maximum number of ordering requests that can be queued by a " +
+            "box member.  Should be at least the number of clients multiplied by max_in_flight")
+    private int QUEUE_CAPACITY = 10000;
+
+    @Property(name = "max_in_flight", description = "The maximum number of ordering requests that a client can have in " +
+            "flight to each box member.  Once reached, the client blocks until a response is received")
+    private int MAX_IN_FLIGHT = 50;
+
+    @Property(name = "max_block_time", description = "The maximum time, in milliseconds, that a client blocks waiting " +
+            "for ordering credits before sending the request anyway")
+    private long MAX_BLOCK_TIME = 1000;
+
+    @Property(name = "single_order_point", description = "If true then ordering requests will only be sent to one box " +
+            "member, otherwise requests are sent to the box member with the most available credits")
+    private boolean singleOrderPoint = false;
 
     @Property(name = "bundle_msgs", description = "If true then ordering requests will be bundled when possible" +
             "in order to reduce the number of total order broadcasts between box members")
@@ -51,16 +70,17 @@ public class AbaaS extends Protocol {
     private Address localAddress = null;
     private final ViewManager viewManager = new ViewManager();
     private final DeliveryManager deliveryManager = new DeliveryManager(log, viewManager);
-    private final Map<MessageId, Message> messageStore = Collections.synchronizedMap(new HashMap<MessageId, Message>());
-    private final BlockingQueue<AbaaSHeader> inputQueue = new ArrayBlockingQueue<AbaaSHeader>(QUEUE_CAPACITY);
+    // Local messages awaiting their ordering, keyed by sequence as the originator is always this node.  Access must be
+    // synchronized on messageStore
+    private final LongMap<Message> messageStore = new LongMap<Message>();
+    private BlockingQueue<AbaaSHeader> inputQueue;
+    private OrderingCredits credits;
     private final List<Address> boxMembers = new ArrayList<Address>();
     private View view = null;
     private OrderingBox box;
     private AtomicInteger localSequence = new AtomicInteger(); // This nodes sequence number
     private Random random = new Random(); // Random object for selecting which box member to use
     private ExecutorService executor;
-    // If true then ordering requests will only be sent to one box member, otherwise all box members are used
-    private final boolean singleOrderPoint = false;
 
     public AbaaS() {
     }
@@ -78,6 +98,10 @@ public class AbaaS extends Protocol {
 //        logHack();
 //        setLevel("info");
 
+        // Created here, as the property values are not set when fields are initialised
+        inputQueue = new ArrayBlockingQueue<AbaaSHeader>(QUEUE_CAPACITY);
+        credits = new OrderingCredits(MAX_IN_FLIGHT);
+
         if (boxMember) {
             createProtocolStack();
             getTransport().getTimer().schedule(new BoxMemberAnnouncement(), 20, TimeUnit.SECONDS);
@@ -153,35 +177,15 @@ public class AbaaS extends Protocol {
                 if (header == null)
                     break;
 
-                switch (header.getType()) {
-                    case AbaaSHeader.BOX_MEMBER:
-                        boxMembers.add(message.getSrc());
-                        if (log.isInfoEnabled())
-                            log.info("Box Member discovered | " + message.getSrc());
-                        break;
-                    case AbaaSHeader.BOX_REQUEST:
-                        handleOrderingRequest(header);
-                        break;
-                    case AbaaSHeader.BOX_ORDERING:
-                        box.receiveOrdering(header, message);
-                        break;
-                    case AbaaSHeader.BUNDLED_MESSAGE:
-                        box.receiveMultipleOrderings(header, message);
-                        break;
-                    case AbaaSHeader.BOX_RESPONSE:
-                        handleOrderingResponse(header);
-                        break;
-                    case AbaaSHeader.BROADCAST:
-                        handleBroadcast(header, message);
-                        break;
-                    case AbaaSHeader.SINGLE_DESTINATION:
-                        handleSingleDestination(message);
-                        break;
-                }
+                if (header.getType() == AbaaSHeader.BROADCAST)
+                    handleBroadcast(header, message.copyPooledBuffer()); // Kept until it is ordered
+                else
+                    handleMessage(header, message);
                 return null;
             case Event.VIEW_CHANGE:
                 view = (View) event.getArg();
                 viewManager.setCurrentView(view);
+                credits.retainAll(view.getMembers());
                 if (log.isTraceEnabled())
                     log.trace("New View := " + view);
                 break;
@@ -189,6 +193,70 @@ public class AbaaS extends Protocol {
         return up_prot.up(event);
     }
 
+    @Override
+    public void up(MessageBatch batch) {
+        List<Tuple<AbaaSHeader, Message>> broadcasts = null;
+        for (Iterator<Message> it = batch.iterator(); it.hasNext(); ) {
+            Message message = it.next();
+            AbaaSHeader header;
+            if (message == null || (header = (AbaaSHeader) message.getHeader(id)) == null)
+                continue;
+            it.remove();
+
+            if (header.getType() == AbaaSHeader.BROADCAST) {
+                if (log.isTraceEnabled())
+                    log.trace("Broadcast received | " + header.getMessageInfo().getOrdering() + " | Src := " + message.getSrc());
+
+                if (broadcasts == null)
+                    broadcasts = new ArrayList<Tuple<AbaaSHeader, Message>>(batch.size() + 1);
+                broadcasts.add(new Tuple<AbaaSHeader, Message>(header, message.copyPooledBuffer())); // Kept until it is ordered
+            } else {
+                handleMessage(header, message);
+            }
+        }
+
+        // All broadcasts are added to the delivery manager in one operation
+        if (broadcasts != null)
+            deliveryManager.addMessagesToDeliver(broadcasts);
+
+        if (!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+    // Handles all message types except BROADCAST
+    private void handleMessage(AbaaSHeader header, Message message) {
+        switch (header.getType()) {
+            case AbaaSHeader.BOX_MEMBER:
+                boxMembers.add(message.getSrc());
+                credits.addMember(message.getSrc());
+                if (log.isInfoEnabled())
+                    log.info("Box Member discovered | " + message.getSrc());
+                break;
+            case AbaaSHeader.BOX_REQUEST:
+                handleOrderingRequest(header);
+                break;
+            case AbaaSHeader.BOX_ORDERING:
+                box.receiveOrdering(header, message);
+                break;
+            case AbaaSHeader.BUNDLED_MESSAGE:
+                box.receiveMultipleOrderings(header, message);
+                break;
+            case AbaaSHeader.BOX_RESPONSE:
+                handleOrderingResponse(header.getMessageInfo());
+                credits.release(message.getSrc(), 1);
+                break;
+            case AbaaSHeader.BUNDLED_RESPONSE:
+                Collection<MessageInfo> responses = header.getBundledMsgInfo();
+                for (MessageInfo info : responses)
+                    handleOrderingResponse(info);
+                credits.release(message.getSrc(), responses.size());
+                break;
+            case AbaaSHeader.SINGLE_DESTINATION:
+                handleSingleDestination(message);
+                break;
+        }
+    }
+
     @Override
     public Object down(Event event) {
         switch (event.getType()) {
@@ -277,9 +345,14 @@ public class AbaaS extends Protocol {
         if (destinations.isEmpty())
             destinations.addAll(view.getMembers());
 
+        // Blocks if there are too many requests in flight, must be before the localSequence is incremented
+        Address destination = acquireBoxMember();
+
         // Create messageId for this message and store it for later
         MessageId messageId = new MessageId(localAddress, localSequence.getAndIncrement()); // Increment localSequence
-        messageStore.put(messageId, message);
+        synchronized (messageStore) {
+            messageStore.put(messageId.getSequence(), message);
+        }
 
         byte[] dest = viewManager.getDestinationsAsByteArray(destinations);
         if (log.isTraceEnabled())
@@ -288,18 +361,36 @@ public class AbaaS extends Protocol {
         MessageInfo messageInfo = new MessageInfo(messageId, view.getViewId(), dest);
         AbaaSHeader header = AbaaSHeader.createBoxRequest(messageInfo);
 
-        Address destination = singleOrderPoint ? boxMembers.get(0) : boxMembers.get(random.nextInt(boxMembers.size())); // Select box at random;
         Message requestMessage = new Message(destination).src(localAddress).putHeader(id, header);
         down_prot.down(new Event(Event.MSG, requestMessage));
     }
 
-    private void handleOrderingResponse(AbaaSHeader responseHeader) {
+    private Address acquireBoxMember() {
+        if (boxMembers.isEmpty())
+            throw new IllegalStateException("No box members have been discovered");
+
+        Address singleBox = singleOrderPoint ? boxMembers.get(0) : null;
+        try {
+            Address destination = credits.acquire(singleBox, MAX_BLOCK_TIME);
+            if (destination != null)
+                return destination;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (log.isWarnEnabled())
+                log.warn("Interrupted whilst waiting for ordering credits, sending request without a credit");
+        }
+        return singleBox != null ? singleBox : boxMembers.get(random.nextInt(boxMembers.size())); // Select box at random
+    }
+
+    private void handleOrderingResponse(MessageInfo messageInfo) {
         if (log.isTraceEnabled())
-            log.trace("Ordering response received | " + responseHeader);
+            log.trace("Ordering response received | " + messageInfo);
 
-        MessageInfo messageInfo = responseHeader.getMessageInfo();
         AbaaSHeader header = AbaaSHeader.createBroadcast(messageInfo);
-        Message message = messageStore.get(messageInfo.getId());
+        Message message;
+        synchronized (messageStore) {
+            message = messageStore.get(messageInfo.getId().getSequence());
+        }
         message.putHeader(id, header);
 
         broadcastMessage(viewManager.getDestinations(messageInfo), message);
@@ -329,7 +420,17 @@ public class AbaaS extends Protocol {
             message.setDest(localAddress);
             deliveryManager.addMessageToDeliver(header, message, true);
         } else {
-            messageStore.remove(header.getMessageInfo().getId());
+            removeStoredMessage(header.getMessageInfo().getId());
+        }
+    }
+
+    private void removeStoredMessage(MessageId id) {
+        // Only local messages are stored
+        if (!id.getOriginator().equals(localAddress))
+            return;
+
+        synchronized (messageStore) {
+            messageStore.remove(id.getSequence());
         }
     }
 
@@ -347,7 +448,7 @@ public class AbaaS extends Protocol {
 
     private void deliverMessage(Message message) {
         MessageId id = ((AbaaSHeader)message.getHeader(this.id)).getMessageInfo().getId();
-        messageStore.remove(id);
+        removeStoredMessage(id);
         message.setDest(localAddress);
 
         if (log.isTraceEnabled())
@@ -356,6 +457,16 @@ public class AbaaS extends Protocol {
         up_prot.up(new Event(Event.MSG, message));
     }
 
+    @ManagedAttribute(description = "The number of times a client blocked because it had no ordering credits")
+    public int getNumberOfCreditBlockings() {
+        return credits == null ? 0 : credits.getNumberOfBlockings();
+    }
+
+    @ManagedAttribute(description = "The number of ordering requests sent without a credit because max_block_time elapsed")
+    public int getNumberOfCreditTimeouts() {
+        return credits == null ? 0 : credits.getNumberOfTimeouts();
+    }
+
     final class MessageHandler implements Runnable {
         @Override
         public void run() {
@@ -24,6 +24,7 @@ final public class AbaaSHeader extends Header {
     public static final byte BROADCAST = 5; // Actual broadcsat of a message to anycast destinations
     public static final byte SINGLE_DESTINATION = 6; // Request for a missing message (shouldn't be necessary)
     public static final byte BUNDLED_MESSAGE = 7; // A AbaaS message that contains multiple requests
+    public static final byte BUNDLED_RESPONSE = 8; // A response from the box that contains multiple orderings
 
     private byte type = 0;
     private MessageInfo messageInfo = null;
@@ -57,6 +58,10 @@ final public class AbaaSHeader extends Header {
         return new AbaaSHeader(BUNDLED_MESSAGE, requestHeaders);
     }
 
+    public static AbaaSHeader createBundledResponse(Collection<MessageInfo> responses) {
+        return new AbaaSHeader(BUNDLED_RESPONSE, responses);
+    }
+
     public AbaaSHeader() {
     }
 
@@ -126,6 +131,7 @@ final public class AbaaSHeader extends Header {
             case BROADCAST:	            return "BROADCAST";
             case SINGLE_DESTINATION:    return "SINGLE_DESTINATION";
             case BUNDLED_MESSAGE:       return "BUNDLED_MESSAGE";
+            case BUNDLED_RESPONSE:      return "BUNDLED_RESPONSE";
             default:                    return "UNDEFINED(" + t + ")";
         }
     }
@@ -3,6 +3,7 @@ package org.jgroups.protocols.abaas;
 import org.jgroups.Address;
 import org.jgroups.Message;
 import org.jgroups.logging.Log;
+import org.jgroups.util.Tuple;
 
 import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
@@ -80,25 +81,53 @@ public class DeliveryManager {
     }
 
     public void addMessageToDeliver(AbaaSHeader header, Message message, boolean local) {
+        if (isOldMessage(header, local))
+            return;
+
+        MessageRecord record = new MessageRecord(header, message);
+        synchronized (deliverySet) {
+            if (addRecord(record))
+                deliverySet.notify();
+        }
+    }
+
+    // Adds the remote messages of a MessageBatch whilst only acquiring the deliverySet's lock once
+    public void addMessagesToDeliver(Collection<Tuple<AbaaSHeader, Message>> messages) {
+        boolean deliverable = false;
+        synchronized (deliverySet) {
+            for (Tuple<AbaaSHeader, Message> tuple : messages) {
+                AbaaSHeader header = tuple.getVal1();
+                if (!isOldMessage(header, false))
+                    deliverable |= addRecord(new MessageRecord(header, tuple.getVal2()));
+            }
+
+            if (deliverable)
+                deliverySet.notify();
+        }
+    }
+
+    private boolean isOldMessage(AbaaSHeader header, boolean local) {
         if (header.getMessageInfo().getOrdering() <= lastDelivered.longValue()) {
             if (log.isDebugEnabled())
                 log.debug("Message already received or Missed! | " + header.getMessageInfo().getOrdering() + " | local := " + local);
-            return;
+            return true;
         }
 
         if (log.isTraceEnabled())
             log.trace("Add message to deliver | " + header.getMessageInfo() + " | lastDelivered := " + lastDelivered.longValue());
+        return false;
+    }
 
-        MessageRecord record = new MessageRecord(header, message);
-        synchronized (deliverySet) {
-            readyToDeliver(record);
-            deliverySet.add(record);
-            MessageRecord firstRecord = deliverySet.first();
-            if (firstRecord.isDeliverable) {
-                recheckRecords(firstRecord);
-                deliverySet.notify();
-            }
+    // Must be called whilst holding the deliverySet lock.  Returns true if the first record is deliverable
+    private boolean addRecord(MessageRecord record) {
+        readyToDeliver(record);
+        deliverySet.add(record);
+        MessageRecord firstRecord = deliverySet.first();
+        if (firstRecord.isDeliverable) {
+            recheckRecords(firstRecord);
+            return true;
         }
+        return false;
     }
 
     private boolean readyToDeliver(MessageRecord record) {
@@ -6,7 +6,6 @@ import org.jgroups.protocols.aramis.RMCastHeader;
 import org.jgroups.stack.Protocol;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class manages all client requests and stores each request as part of the require 'immediate predecessor' information
@@ -21,8 +20,8 @@ public class OrderingBox {
     private final Protocol downProtocol;
     private final ViewManager viewManager;
     private final List<Address> boxMembers;
-    private final Map<Address, Long> orderStore;
-    private final AtomicInteger globalSequence;
+    private final Map<Address, Long> orderStore; // Also guards globalSequence
+    private long globalSequence = 0;
     private final Set<MessageId> requestCache;
     private Address localAddress;
     private Profiler profiler;
@@ -54,8 +53,7 @@ public class OrderingBox {
         this.viewManager = viewManager;
         this.boxMembers = boxMembers;
         this.profiler = profiler;
-        orderStore = Collections.synchronizedMap(new HashMap<Address, Long>());
-        globalSequence = new AtomicInteger();
+        orderStore = new HashMap<Address, Long>();
         requestCache = Collections.synchronizedSet(new HashSet<MessageId>());
     }
 
@@ -115,8 +113,29 @@ public class OrderingBox {
         if (checkTotalOrder)
             checkTotalOrder(message);
 
-        for (MessageInfo info : orderings)
-            receiveOrdering(info);
+        // Responses are bundled per client, so that a client with multiple requests in the bundle receives one response
+        Map<Address, List<MessageInfo>> responses = new HashMap<Address, List<MessageInfo>>();
+        long firstOrdering;
+        synchronized (orderStore) {
+            // The whole bundle is stamped with a contiguous range of sequences
+            firstOrdering = globalSequence + 1;
+            globalSequence += orderings.size();
+
+            long ordering = firstOrdering;
+            for (MessageInfo info : orderings) {
+                info.setOrdering(ordering++);
+                setLastOrderSequences(info);
+                addResponse(info, responses);
+            }
+        }
+
+        if (log.isDebugEnabled())
+            log.debug("Global Sequence := " + firstOrdering + " to " + (firstOrdering + orderings.size() - 1));
+
+        for (Map.Entry<Address, List<MessageInfo>> entry : responses.entrySet())
+            sendOrderingResponses(entry.getKey(), entry.getValue());
+
+        profiler.ordersReceived(orderings.size());
     }
 
     public void receiveOrdering(AbaaSHeader header, Message message) {
@@ -127,23 +146,23 @@ public class OrderingBox {
         if (checkTotalOrder)
             checkTotalOrder(message);
 
-        receiveOrdering(messageInfo);
-    }
-
-    private void receiveOrdering(MessageInfo messageInfo) {
         // Once a message has been received at this layer, it will have been received at others (at least in the same order)
         // Increment sequence, retrieve ordering request, place into ordered list
         // If you are the source of the message: update ordering request and return to the originator
-        messageInfo.setOrdering(globalSequence.incrementAndGet());
+        boolean respond;
+        synchronized (orderStore) {
+            messageInfo.setOrdering(++globalSequence);
 
-        // Prepare header lastOrderSequence and save messageOrdering
-        setLastOrderSequences(messageInfo);
+            // Prepare header lastOrderSequence and save messageOrdering
+            setLastOrderSequences(messageInfo);
+            respond = requestCache.remove(messageInfo.getId());
+        }
 
         if (log.isDebugEnabled())
-            log.debug("Global Sequence := " + globalSequence.intValue() + " | " + messageInfo.getId());
+            log.debug("Global Sequence := " + messageInfo.getOrdering() + " | " + messageInfo.getId());
 
-        // If the messageId is in the requestCache then this node handled the original request, send a response
-        if (requestCache.contains(messageInfo.getId()))
+        // If the messageId was in the requestCache then this node handled the original request, send a response
+        if (respond)
             sendOrderingResponse(messageInfo);
         else if (log.isTraceEnabled())
             log.trace("Don't respond request did not originate here | " + messageInfo.getOrdering() + " | " + messageInfo.getId());
@@ -151,6 +170,37 @@ public class OrderingBox {
         profiler.orderReceived();
     }
 
+    private void addResponse(MessageInfo messageInfo, Map<Address, List<MessageInfo>> responses) {
+        // If the messageId is in the requestCache then this node handled the original request
+        if (!requestCache.remove(messageInfo.getId())) {
+            if (log.isTraceEnabled())
+                log.trace("Don't respond request did not originate here | " + messageInfo.getOrdering() + " | " + messageInfo.getId());
+            return;
+        }
+
+        Address originator = messageInfo.getId().getOriginator();
+        List<MessageInfo> clientResponses = responses.get(originator);
+        if (clientResponses == null) {
+            clientResponses = new ArrayList<MessageInfo>();
+            responses.put(originator, clientResponses);
+        }
+        clientResponses.add(messageInfo);
+    }
+
+    private void sendOrderingResponses(Address client, List<MessageInfo> responses) {
+        if (responses.size() == 1) {
+            sendOrderingResponse(responses.get(0));
+            return;
+        }
+
+        if (log.isTraceEnabled())
+            log.trace("Send bundled ordering response (" + responses.size() + ") | " + client);
+
+        AbaaSHeader header = AbaaSHeader.createBundledResponse(responses);
+        Message message = new Message(client).src(localAddress).putHeader(id, header);
+        downProtocol.down(new Event(Event.MSG, message));
+    }
+
     private void sendOrderingResponse(MessageInfo messageInfo) {
         if (log.isTraceEnabled())
             log.trace("Send ordering response | " + messageInfo);
@@ -159,9 +209,9 @@ public class OrderingBox {
         AbaaSHeader header = AbaaSHeader.createBoxResponse(messageInfo);
         Message message = new Message(messageInfo.getId().getOriginator()).src(localAddress).putHeader(id, header);
         downProtocol.down(new Event(Event.MSG, message));
-        requestCache.remove(messageInfo.getId()); // Remove old id
     }
 
+    // Must be called whilst holding the orderStore lock
     private void setLastOrderSequences(MessageInfo messageInfo) {
         long[] lastOrderSequences = new long[messageInfo.getDestinations().length];
         List<Address> destinations = viewManager.getDestinations(messageInfo);
@@ -0,0 +1,148 @@
+package org.jgroups.protocols.abaas;
+
+import org.jgroups.Address;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credit based flow control used by AbaaS clients to limit the number of ordering requests that are in flight to each
+ * box member.
+ * <p/>
+ * A credit is consumed when an ordering request is sent to a box member and is returned when the box member's response
+ * is received.  A client that has no credits left is blocked until a response is received, instead of requests
+ * accumulating in the box member's input queue.  If no credits are returned within maxBlockTime the request is sent
+ * anyway, so that a box member which has crashed cannot block a client indefinitely.
+ *
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+final class OrderingCredits {
+    private final Map<Address, Credit> credits = new HashMap<Address, Credit>();
+    private final List<Credit> creditList = new ArrayList<Credit>(); // Used to iterate the credits in a random order
+    private final Random random = new Random();
+    private final int maxCredits;
+    private int numberOfBlockings = 0;
+    private int numberOfTimeouts = 0;
+
+    OrderingCredits(int maxCredits) {
+        if (maxCredits < 1)
+            throw new IllegalArgumentException("maxCredits must be greater than 0 | maxCredits := " + maxCredits);
+
+        this.maxCredits = maxCredits;
+    }
+
+    synchronized void addMember(Address member) {
+        if (credits.containsKey(member))
+            return;
+
+        Credit credit = new Credit(member, maxCredits);
+        credits.put(member, credit);
+        creditList.add(credit);
+        notifyAll();
+    }
+
+    // Removes the credits of all box members that are not in members
+    synchronized void retainAll(Collection<Address> members) {
+        credits.keySet().retainAll(members);
+        creditList.retainAll(credits.values());
+    }
+
+    /**
+     * Consumes a credit of the box member with the most credits available, or of the given member if it is not null.
+     * Blocks for up to maxBlockTime milliseconds if no credits are available.
+     *
+     * @return the box member whose credit was consumed, or null if there are no box members
+     */
+    synchronized Address acquire(Address member, long maxBlockTime) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBlockTime);
+        boolean blocked = false;
+        while (true) {
+            Credit credit = member == null ? getMostAvailable() : credits.get(member);
+            if (credit == null)
+                return null;
+
+            long remaining = deadline - System.nanoTime();
+            if (credit.available > 0 || remaining <= 0) {
+                if (credit.available <= 0)
+                    numberOfTimeouts++;
+                credit.available--;
+                return credit.member;
+            }
+
+            if (!blocked) {
+                numberOfBlockings++;
+                blocked = true;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    synchronized void release(Address member, int numberOfCredits) {
+        Credit credit = credits.get(member);
+        if (credit == null)
+            return;
+
+        credit.available = Math.min(credit.available + numberOfCredits, maxCredits);
+        notifyAll();
+    }
+
+    synchronized int getAvailable(Address member) {
+        Credit credit = credits.get(member);
+        return credit == null ? 0 : credit.available;
+    }
+
+    synchronized int getNumberOfBlockings() {
+        return numberOfBlockings;
+    }
+
+    synchronized int getNumberOfTimeouts() {
+        return numberOfTimeouts;
+    }
+
+    // Ties are broken randomly, so that clients do not all favour the same box member
+    private Credit getMostAvailable() {
+        int size = creditList.size();
+        if (size == 0)
+            return null;
+
+        int start = random.nextInt(size);
+        Credit mostAvailable = null;
+        for (int i = 0; i < size; i++) {
+            Credit credit = creditList.get((start + i) % size);
+            if (mostAvailable == null || credit.available > mostAvailable.available)
+                mostAvailable = credit;
+        }
+        return mostAvailable;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OrderingCredits{" +
+                "maxCredits=" + maxCredits +
+                ", credits=" + credits.values() +
+                ", numberOfBlockings=" + numberOfBlockings +
+                ", numberOfTimeouts=" + numberOfTimeouts +
+                '}';
+    }
+
+    private static final class Credit {
+        private final Address member;
+        private int available;
+
+        Credit(Address member, int available) {
+            this.member = member;
+            this.available = available;
+        }
+
+        @Override
+        public String toString() {
+            return member + "=" + available;
+        }
+    }
+}
@@ -46,11 +46,15 @@ public class Profiler {
         counters.get(Counter.TOTAL_ORDER_MSGS).incrementAndGet();
     }
 
-    public void orderReceived() {
+    public void ordersReceived(int numberOfOrders) {
         if (!profileEnabled)
             return;
 
-        counters.get(Counter.ORDERS_RECEIVED).incrementAndGet();
+        counters.get(Counter.ORDERS_RECEIVED).addAndGet(numberOfOrders);
+    }
+
+    public void orderReceived() {
+        ordersReceived(1);
     }
 
     private int calculateAverageBundleSize() {
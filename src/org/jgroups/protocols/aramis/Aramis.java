@@ -1,9 +1,13 @@
 package org.jgroups.protocols.aramis;
 
 import org.jgroups.*;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
 import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.StripedLongMap;
 import org.jgroups.util.TimeScheduler;
 
 import java.util.*;
@@ -18,6 +22,7 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @author Ryan Emerson
  * @since 4.0
  */
+@MBean(description = "Aramis and Base probabilistic total order protocol")
 final public class Aramis extends Protocol {
 
     @Property(name = "minimum_nodes", description = "The minimum number of nodes allowed in a cluster")
@@ -37,9 +42,24 @@ final public class Aramis extends Protocol {
     @Property(name = "max_acks_per_message", description = "The maximum number of messages that can be acked in one message")
     private int numberOfAcks = 10;
 
-    private final Map<MessageId, MessageRecord> messageRecords = new ConcurrentHashMap<MessageId, MessageRecord>();
-    private final Map<MessageId, Message> receivedMessages = new ConcurrentHashMap<MessageId, Message>();
-    private final Map<MessageId, Future> responsiveTasks = new ConcurrentHashMap<MessageId, Future>();
+    @Property(name = "flow_control_pacing", description = "If true, sending threads add messages to a queue without " +
+            "blocking and a single thread broadcasts them in buckets whose size and delay adapt to the NMC values")
+    private boolean flowControlPacing = false;
+
+    @Property(name = "max_bucket_size", description = "The maximum number of messages that can be broadcast in one " +
+            "bucket when flow_control_pacing is enabled")
+    private int maxBucketSize = 100;
+
+    @Property(name = "max_queue_size", description = "The maximum number of messages queued when flow_control_pacing " +
+            "is enabled.  Sending threads block whilst the queue is full")
+    private int maxQueueSize = 10000;
+
+    // Records are keyed by the originator's ordinal and the message's sequence, see getKey(MessageId).  Each record
+    // stores its message and responsiveness task, so that only one object is created per message.  Records are
+    // recycled once their message has been delivered, see MessageRecord.generation
+    private final StripedLongMap<MessageRecord> messageRecords = new StripedLongMap<MessageRecord>(64, 32, 32);
+    private final ConcurrentMap<Address, Integer> memberOrdinals = new ConcurrentHashMap<Address, Integer>();
+    private final AtomicInteger nextOrdinal = new AtomicInteger();
 
     private Random random = new Random();
     private PCSynch clock = null;
@@ -112,7 +132,8 @@ final public class Aramis extends Protocol {
         nmc = new LongNMC(clock, this, profiler);
         deliveryManager = new DeliveryManager(this, profiler);
         senderManager = new SenderManager(clock, numberOfAcks);
-        flowControl = new FlowControl(this, nmc);
+        flowControl = new FlowControl(this, nmc, flowControlPacing, maxBucketSize, maxQueueSize);
+        flowControl.start();
 
         executor = Executors.newSingleThreadExecutor();
         executor.execute(new DeliverMessages());
@@ -123,6 +144,9 @@ final public class Aramis extends Protocol {
 
     @Override
     public void stop() {
+        if (flowControl != null)
+            flowControl.stop();
+
         if (log.isDebugEnabled()) {
             log.debug(nmc.getData().toString());
             log.debug(profiler.toString());
@@ -140,7 +164,9 @@ final public class Aramis extends Protocol {
                 if (header == null)
                     break;
 
-                handleMessage(event, header);
+                message.copyPooledBuffer(); // Messages are kept until their delivery time
+                if (handleMessage(message, header))
+                    deliveryManager.addMessage(message);
                 return null;
             case Event.VIEW_CHANGE:
                 View oldView = view;
@@ -171,6 +197,31 @@ final public class Aramis extends Protocol {
         return up_prot.up(event);
     }
 
+    @Override
+    public void up(MessageBatch batch) {
+        List<Message> messages = null; // Messages to be passed to the DeliveryManager
+        for (Iterator<Message> it = batch.iterator(); it.hasNext(); ) {
+            Message message = it.next();
+            RMCastHeader header;
+            if (message == null || (header = (RMCastHeader) message.getHeader(id)) == null)
+                continue;
+            it.remove();
+
+            message.copyPooledBuffer(); // Messages are kept until their delivery time
+            if (handleMessage(message, header)) {
+                if (messages == null)
+                    messages = new ArrayList<Message>(batch.size() + 1);
+                messages.add(message);
+            }
+        }
+
+        if (messages != null)
+            deliveryManager.addMessages(messages);
+
+        if (!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
     @Override
     public Object down(Event event) {
         switch (event.getType()) {
@@ -190,6 +241,26 @@ final public class Aramis extends Protocol {
         return down_prot.down(event);
     }
 
+    @ManagedAttribute(description = "The broadcast rate, in messages per second, calculated by flow control")
+    public double getBroadcastRate() {
+        return flowControl != null ? flowControl.getBroadcastRate() : 0;
+    }
+
+    @ManagedAttribute(description = "The number of messages in each flow control bucket")
+    public int getBucketSize() {
+        return flowControl != null ? flowControl.getBucketSize() : 0;
+    }
+
+    @ManagedAttribute(description = "The number of messages waiting to be broadcast by flow control")
+    public int getFlowControlQueueSize() {
+        return flowControl != null ? flowControl.getQueueSize() : 0;
+    }
+
+    @ManagedAttribute(description = "The number of times a sending thread blocked because the flow control queue was full")
+    public int getFlowControlBlockings() {
+        return flowControl != null ? flowControl.getNumberOfBlockings() : 0;
+    }
+
     public PCSynch getClock() {
         return clock;
     }
@@ -199,16 +270,46 @@ final public class Aramis extends Protocol {
     }
 
     public void collectGarbage(MessageId id) {
-        messageRecords.remove(id);
-        receivedMessages.remove(id);
+        long key = getKey(id);
+        MessageRecord record = messageRecords.remove(key);
+        if (record == null)
+            return;
 
         if (rhoOptimisationEnabled) {
 //            Cancel any pending future tasks associated with the message id
-            Future future = responsiveTasks.get(id);
+            Future future = record.task;
             if (future != null)
                 future.cancel(false);
         }
-        responsiveTasks.remove(id);
+        record.clear();
+        messageRecords.recycle(key, record);
+    }
+
+    // Packs the originator's ordinal and the sequence into a long, sequences are unique per originator.  The ordinal of
+    // an originator never changes, so a key can never refer to a different message
+    private long getKey(MessageId id) {
+        Address originator = id.getOriginator();
+        Integer ordinal = memberOrdinals.get(originator);
+        if (ordinal == null) {
+            Integer newOrdinal = nextOrdinal.getAndIncrement();
+            ordinal = memberOrdinals.putIfAbsent(originator, newOrdinal);
+            if (ordinal == null)
+                ordinal = newOrdinal;
+        }
+        return ((long) ordinal << 48) | (id.getSequence() & 0xFFFFFFFFFFFFL);
+    }
+
+    private MessageRecord getRecord(MessageId id) {
+        return messageRecords.get(getKey(id));
+    }
+
+    // Returns a recycled record of the key's stripe, or a new record if there is none
+    private MessageRecord createRecord(long key, RMCastHeader header, Message message) {
+        MessageRecord record = messageRecords.pollRecycled(key);
+        if (record == null)
+            record = new MessageRecord();
+        record.init(header, message);
+        return record;
     }
 
     private void deliver(Message message) {
@@ -241,8 +342,8 @@ final public class Aramis extends Protocol {
 
         // Generate message header and store locally
         RMCastHeader header = deliveryManager.addLocalMessage(senderManager, message, localAddress, data, id, destinations);
-        messageRecords.put(header.getId(), new MessageRecord(header));
-        receivedMessages.put(header.getId(), message); // Store actual message, need for retransmission
+        long key = getKey(header.getId());
+        messageRecords.put(key, createRecord(key, header, message)); // Store actual message, need for retransmission
 
         // schedule message broadcast
         new MessageBroadcaster(message, 0, data.getMessageCopies(), data.getEta(), id).run();
@@ -272,13 +373,16 @@ final public class Aramis extends Protocol {
             sendEmptyAckMessage();
     }
 
-    private void handleMessage(Event event, RMCastHeader header) {
+    // Returns true if the message must be passed to the DeliveryManager, this is left to the caller so that the
+    // messages of a batch can be added to the DeliveryManager in one operation
+    private boolean handleMessage(Message message, RMCastHeader header) {
         if (log.isTraceEnabled())
             log.trace("Message received | " + header);
 
+        boolean addToDeliveryManager = false;
 //        recordProbe(header); // Record probe latency
         if (header.getType() == RMCastHeader.EMPTY_ACK_MESSAGE) {
-            deliveryManager.processEmptyAckMessage((Message) event.getArg());
+            addToDeliveryManager = true;
             profiler.emptyAckMessageReceived();
         }
         // No need to RMCast empty probe messages as we only want the latency
@@ -286,28 +390,36 @@ final public class Aramis extends Protocol {
             // If this headers sequence has already expired then we don't want to process it again
             if (deliveryManager.hasMessageExpired(header)) {
                 recordProbe(header); // Record probe latency
-                return;
+                return false;
             }
 
-            final MessageRecord record;
-            MessageRecord newRecord = new MessageRecord(header);
-            MessageRecord oldRecord = (MessageRecord) ((ConcurrentHashMap) messageRecords).putIfAbsent(header.getId(), newRecord);
-            if (oldRecord == null) {
-                handleAcks(header); // Handle acks ASAP so that other nodes know about the message via VectorClocks ASAP
-                Message message = (Message) event.getArg();
-                deliveryManager.addMessage(message); // Add to the delivery manager if this is the first time RMCast has received M
-                receivedMessages.put(header.getId(), message); // Store actual message, need for retransmission
+            // A record is only created the first time a message is received, not for every copy
+            boolean newRecord = false;
+            long key = getKey(header.getId());
+            MessageRecord record = messageRecords.get(key);
+            if (record == null) {
+                MessageRecord tmp = createRecord(key, header, message); // Store actual message, need for retransmission
+                record = messageRecords.putIfAbsent(key, tmp);
+                if (record == null) {
+                    record = tmp;
+                    newRecord = true;
+                } else {
+                    tmp.clear();
+                    messageRecords.recycle(key, tmp);
+                }
+            }
 
-                record = newRecord;
+            if (newRecord) {
+                handleAcks(header); // Handle acks ASAP so that other nodes know about the message via VectorClocks ASAP
+                addToDeliveryManager = true; // Add to the delivery manager if this is the first time RMCast has received M
                 profiler.messageReceived(header.getCopy() > 0);
-            } else {
-                record = oldRecord;
             }
             handleRMCastCopies(header, record);
         } else {
             profiler.emptyProbeMessageReceived();
         }
         recordProbe(header); // Record probe latency
+        return addToDeliveryManager;
     }
 
     // Schedule an emptyAckMessage to be sent after ackWait period of time
@@ -339,17 +451,22 @@ final public class Aramis extends Protocol {
         // Only record probe information if the message has come directly from its source i.e not disseminated
         if (header.getDisseminator().equals(originator)) {
             nmc.receiveProbe(header); // Record probe information piggybacked on this message
+            clock.receiveProbe(originator, header.getId().getTimestamp()); // Used to estimate the clock drift
             profiler.probeReceieved();
         }
     }
 
     private void handleRMCastCopies(RMCastHeader header, MessageRecord record) {
+        // The record was recycled by a concurrent delivery, i.e. the message has already been delivered
+        if (!header.getId().equals(record.id))
+            return;
+
         if (record.largestCopyReceived == header.getCopyTotal() && record.crashNotified) {
             // Cancel any responsiveness tasks that belong to this message and remove the record
-            Future f = responsiveTasks.get(header.getId());
+            Future f = record.task;
             if (f != null)
                 f.cancel(true);
-            responsiveTasks.remove(header.getId());
+            record.task = null;
             return;
         }
 
@@ -379,6 +496,7 @@ final public class Aramis extends Protocol {
 
     private void responsivenessTimeout(final MessageRecord record, final RMCastHeader header) {
         final NMCData data = header.getNmcData(); // Use included NMC data to ensure that the values relate to this message
+        final int generation = record.generation;
         record.largestCopyReceived = header.getCopy();
         record.broadcastLeader = header.getDisseminator();
 
@@ -387,31 +505,30 @@ final public class Aramis extends Protocol {
         final int timeout = data.getEta() + data.getOmega() + randomWait;
         // If there is already a responsiveness timeout in progress (Executing), do nothing
         // Otherwise cancel the timeout and start a new one
-        Future oldTask = responsiveTasks.get(record.id);
+        Future oldTask = record.task;
         if (oldTask == null || oldTask.cancel(false)) {
             // Final check before creating the task ensuring another thread hasn't completed the broadcast of this message
             if (record.largestCopyReceived >= header.getCopyTotal())
                 return;
             // Store this task so that it can be used by the above if statement when the method is called again
-            createResponsiveTask(header, new Runnable() {
+            createResponsiveTask(record, new Runnable() {
                 @Override
                 public void run() {
-                    if (record.largestCopyReceived < header.getCopyTotal()) {
+                    if (record.isCurrent(generation) && record.largestCopyReceived < header.getCopyTotal()) {
                         if (log.isTraceEnabled())
                             log.trace("Responsiveness timeout expired ( " + (timeout + randomWait) + "ms) ... " +
                                     "Starting to disseminate message | " + record.id);
 
                         record.broadcastLeader = localAddress;
-                        timer.execute(new MessageDisseminator(record, header, data.getEta()));
+                        timer.execute(new MessageDisseminator(record, generation, header, data.getEta()));
                     }
                 }
             }, timeout);
         }
     }
 
-    private void createResponsiveTask(RMCastHeader header, Runnable r, int timeout) {
-        Future task = timer.schedule(r, timeout, TimeUnit.MILLISECONDS);
-        responsiveTasks.put(header.getId(), task);
+    private void createResponsiveTask(MessageRecord record, Runnable r, int timeout) {
+        record.task = timer.schedule(r, timeout, TimeUnit.MILLISECONDS);
     }
 
     private void broadcastMessage(Message message) {
@@ -545,28 +662,34 @@ final public class Aramis extends Protocol {
         // of the time it takes with DynamicInterval.
         private void executeAgain() {
             RMCastHeader header = (RMCastHeader) message.getHeader(headerId);
-            if (header.getCopy() < header.getCopyTotal())
-                responsiveTasks.put(header.getId(), timer.schedule(nextCopy(), delay, TimeUnit.MILLISECONDS));
+            if (header.getCopy() < header.getCopyTotal()) {
+                Future task = timer.schedule(nextCopy(), delay, TimeUnit.MILLISECONDS);
+                MessageRecord record = getRecord(header.getId());
+                if (record != null && header.getId().equals(record.id))
+                    record.task = task;
+            }
         }
     }
 
     final class MessageDisseminator implements Runnable {
         private final Message message;
         private final MessageRecord record;
+        private final int generation; // The generation of record when this task was created
         private final RMCastHeader header;
         private final int delay;
 
-        public MessageDisseminator(MessageRecord record, RMCastHeader header, int delay) {
+        public MessageDisseminator(MessageRecord record, int generation, RMCastHeader header, int delay) {
             this.record = record;
+            this.generation = generation;
             this.header = header;
             this.delay = delay;
-            Message storedMessage = receivedMessages.get(header.getId());
-            this.message = storedMessage != null ? storedMessage.copy() : null;
+            Message storedMessage = record.message;
+            this.message = storedMessage != null && record.isCurrent(generation) ? storedMessage.copy() : null;
         }
 
         @Override
         public void run() {
-            if (record.largestCopyReceived >= header.getCopyTotal() || message == null)
+            if (!record.isCurrent(generation) || record.largestCopyReceived >= header.getCopyTotal() || message == null)
                 return;
 
             int messageCopy = Math.max(record.lastBroadcast + 1, record.largestCopyReceived);
@@ -584,6 +707,8 @@ final public class Aramis extends Protocol {
 
             message.setDest(new AnycastAddress(header.getDestinations()));
             broadcastMessage(message);
+            if (!record.isCurrent(generation))
+                return; // The message was delivered whilst it was broadcast
             // Update to show that the largestCopy received == last broadcast i.e we're the disseminator
             record.largestCopyReceived = messageCopy;
             record.lastBroadcast = messageCopy;
@@ -594,67 +719,54 @@ final public class Aramis extends Protocol {
         // We use this instead of timer.scheduleWithDynamicInterval because using timer.execute() executes the initial task
         // 6 times faster than using DynamicInterval.
         public void executeAgain() {
-            if (record.largestCopyReceived < header.getCopyTotal() && record.broadcastLeader.equals(localAddress))
-                responsiveTasks.put(header.getId(), timer.schedule(new MessageDisseminator(record, header, delay), delay, TimeUnit.MILLISECONDS));
+            if (record.largestCopyReceived < header.getCopyTotal() && localAddress.equals(record.broadcastLeader))
+                record.task = timer.schedule(new MessageDisseminator(record, generation, header, delay), delay,
+                        TimeUnit.MILLISECONDS);
         }
     }
 
+    /**
+     * The state of a message, from when it is first sent or received until it is delivered.  Records are recycled once
+     * their message has been delivered, but tasks scheduled for a message may still reference its record afterwards.
+     * The generation is incremented every time a record is cleared, so a task captures the generation when it is
+     * created and does nothing if the record has been recycled since, see isCurrent(int)
+     */
     final class MessageRecord {
-        private final MessageId id;
-        private final int totalCopies;
+        private volatile MessageId id;
+        private volatile int totalCopies;
+        private volatile int generation;
         private volatile int largestCopyReceived; // Largest copy received
         private volatile Address broadcastLeader; // Set to null if none
         private volatile int lastBroadcast;
         private volatile boolean crashNotified; // Not currently used for anything
+        private volatile Message message; // Stored for retransmission, null once the message has been delivered
+        private volatile Future task; // The responsiveness task, or the task that broadcasts the next copy
 
-        public MessageRecord(RMCastHeader header) {
-            this(header.getId(), header.getCopyTotal(), -1, null, -1, false, false);
-        }
-
-        public MessageRecord(MessageId id, int totalCopies) {
-            this(id, totalCopies, -1, null, -1, false, false);
-        }
-
-        public MessageRecord(MessageId id, int totalCopies, int largestCopyReceived, Address broadcastLeader,
-                             int lastBroadcast, boolean crashNotified, boolean ackNotified) {
-            if (id == null)
+        void init(RMCastHeader header, Message message) {
+            if (header.getId() == null)
                 throw new IllegalArgumentException("A message records id feel cannot be null");
 
-            this.id = id;
-            this.totalCopies = totalCopies;
-            this.largestCopyReceived = largestCopyReceived;
-            this.broadcastLeader = broadcastLeader;
-            this.lastBroadcast = lastBroadcast;
-            this.crashNotified = crashNotified;
+            this.id = header.getId();
+            this.totalCopies = header.getCopyTotal();
+            this.largestCopyReceived = -1;
+            this.broadcastLeader = null;
+            this.lastBroadcast = -1;
+            this.crashNotified = false;
+            this.message = message;
+            this.task = null;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            MessageRecord that = (MessageRecord) o;
-
-            if (crashNotified != that.crashNotified) return false;
-            if (largestCopyReceived != that.largestCopyReceived) return false;
-            if (lastBroadcast != that.lastBroadcast) return false;
-            if (totalCopies != that.totalCopies) return false;
-            if (broadcastLeader != null ? !broadcastLeader.equals(that.broadcastLeader) : that.broadcastLeader != null)
-                return false;
-            if (!id.equals(that.id)) return false;
-
-            return true;
+        // Invalidates all tasks which reference this record, called before the record is recycled
+        void clear() {
+            generation++; // Only the thread which removed the record from messageRecords clears it
+            id = null;
+            message = null;
+            task = null;
+            broadcastLeader = null;
         }
 
-        @Override
-        public int hashCode() {
-            int result = id.hashCode();
-            result = 31 * result + totalCopies;
-            result = 31 * result + largestCopyReceived;
-            result = 31 * result + (broadcastLeader != null ? broadcastLeader.hashCode() : 0);
-            result = 31 * result + lastBroadcast;
-            result = 31 * result + (crashNotified ? 1 : 0);
-            return result;
+        boolean isCurrent(int generation) {
+            return this.generation == generation;
         }
 
         @Override
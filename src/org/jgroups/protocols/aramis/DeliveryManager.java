@@ -10,24 +10,26 @@ import org.jgroups.tests.ABService.InfiniteClients;
 import org.jgroups.util.Util;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Class responsible for holding messages until they are ready to be delivered.
+ * <p/>
+ * Receiving threads only add messages to the lock-free messageQueue; all other state is owned by the delivery thread,
+ * which drains the queue into the {@link DeliverySet} before removing every deliverable record.
  *
  * @author Ryan Emerson
  * @since 4.0
  */
 public class DeliveryManager {
     private final Comparator<MessageRecord> COMPARATOR = new MessageRecordComparator();
-    private final Map<MessageId, MessageRecord> messageRecords = new HashMap<MessageId, MessageRecord>();
-    private final TreeSet<MessageRecord> deliverySet = new TreeSet<MessageRecord>(COMPARATOR);
-    // Synchronised because it is used for a single operation outside of a synchonised block (hasMessageExpired())
-    private final Map<Address, MessageId> deliveredMsgRecord = Collections.synchronizedMap(new HashMap<Address, MessageId>());
-    // Sequences that have been received but not yet delivered
-    private final Map<Address, Set<Long>> receivedSeqRecord = new HashMap<Address, Set<Long>>();
+    // Only accessed by the delivery thread
+    private final DeliverySet deliverySet = new DeliverySet();
+    // Concurrent because it is read by the receiving threads (hasMessageExpired())
+    private final Map<Address, MessageId> deliveredMsgRecord = new ConcurrentHashMap<Address, MessageId>();
     private final Queue<Message> messageQueue = new ConcurrentLinkedQueue<Message>();
     private final Queue<MessageId> localMsgQueue = new ConcurrentLinkedQueue<MessageId>();
     private final Log log = LogFactory.getLog(Aramis.class);
@@ -43,39 +45,29 @@ public class DeliveryManager {
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
             @Override
             public void run() {
-                synchronized (deliverySet) {
+                // Best effort, the delivery thread may still be modifying the deliverySet
+                try {
                     System.out.println("---------------------------------------------------------------------------------");
-                    int i = 0;
-                    Iterator<MessageRecord> it = deliverySet.iterator();
-                    while (i < 20 && it.hasNext()) {
-                        MessageRecord record = it.next();
+                    List<MessageRecord> records = deliverySet.toList();
+                    Collections.sort(records, COMPARATOR);
+                    for (int i = 0; i < 20 && i < records.size(); i++) {
+                        MessageRecord record = records.get(i);
                         System.out.println(record);
                         System.out.println(record.isDeliverablePrint());
                         MessageId temp = localMsgQueue.poll();
-                        MessageRecord r = checkDeliverySet(temp);
+                        MessageRecord r = temp == null ? null : deliverySet.get(temp);
                         System.out.println("LOCAL QUEUE | [" + i + "]" + temp +
-                                " | In MessageRecords := " + messageRecords.containsKey(temp) +
-                                " | index in DS := " + (r != null ? deliverySet.headSet(r).size() : -1) +
+                                " | index in DS := " + (r != null ? records.indexOf(r) : -1) +
                                 " In deliverySet := " + r);
-                        i++;
                     }
                     System.out.println("@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@@");
+                } catch (RuntimeException e) {
+                    System.out.println("Unable to print the deliverySet: " + e);
                 }
             }
         }));
     }
 
-    // TODO remove
-    private MessageRecord checkDeliverySet(MessageId id) {
-        if (id == null)
-            return null;
-
-        for (MessageRecord r : deliverySet)
-            if (r.id.equals(id))
-                return r;
-        return null;
-    }
-
     // Aramis
     public RMCastHeader addLocalMessage(SenderManager senderManager, Message message, Address localAddress, NMCData data,
                                                                      short rmsysId, Collection<Address> destinations) {
@@ -91,8 +83,9 @@ public class DeliveryManager {
         addMessageToQueue(message);
     }
 
-    public void processEmptyAckMessage(Message message) {
-        addMessageToQueue(message);
+    // Aramis, adds all of the messages received in a MessageBatch to the queue in one operation
+    public void addMessages(Collection<Message> messages) {
+        messageQueue.addAll(messages);
     }
 
     public boolean hasMessageExpired(RMCastHeader header) {
@@ -158,46 +151,41 @@ public class DeliveryManager {
             log.debug("Message added | " + record + (deliverySet.isEmpty() ? "" : " | deliverySet 1st := " + deliverySet.first()));
     }
 
+    // Must only be called by the delivery thread
     public List<Message> getDeliverableMessages() throws InterruptedException {
         final List<Message> deliverable = new ArrayList<Message>();
-        synchronized (deliverySet) {
-            // Prevents the thread from constantly running
-            if (messageQueue.isEmpty() && deliverySet.isEmpty()) {
-                Util.sleep(1);
-                return deliverable;
-            }
-
-            Message message;
-            while ((message = messageQueue.poll()) != null) {
-                if (message.src().equals(aramis.getLocalAddress()))
-                    addLocalMessage(message);
-                else
-                    addRemoteMessage(message);
-            }
-
-            processDeliverySet(deliverable); // Deliver normal and timedout messages
+        // Prevents the thread from constantly running
+        if (messageQueue.isEmpty() && deliverySet.isEmpty()) {
+            Util.sleep(1);
             return deliverable;
         }
+
+        Message message;
+        while ((message = messageQueue.poll()) != null) {
+            if (message.src().equals(aramis.getLocalAddress()))
+                addLocalMessage(message);
+            else
+                addRemoteMessage(message);
+        }
+
+        processDeliverySet(deliverable); // Deliver normal and timedout messages
+        return deliverable;
     }
 
     private void processDeliverySet(List<Message> deliverable) {
-        MessageRecord record;
-        Iterator<MessageRecord> i = deliverySet.iterator();
-        while (i.hasNext()) {
-            record = i.next();
-            if (record.isDeliverable()) {
-                i.remove();
-                processMessageRecord(record, deliverable);
-                continue;
-            }
-            break;
+        // Sequence placeholders are always first in the delivery order and can never be delivered
+        while (!deliverySet.isEmpty() && !deliverySet.hasSequencePlaceholders()) {
+            MessageRecord record = deliverySet.first();
+            if (!record.isDeliverable())
+                break;
+
+            deliverySet.remove(record);
+            processMessageRecord(record, deliverable);
         }
     }
 
     private void processMessageRecord(MessageRecord record, Collection<Message> deliverable) {
         MessageId id = record.id;
-        messageRecords.remove(id);
-        removeReceivedSeq(id);
 
         if (lastDelivered != null && id.getTimestamp() < lastDelivered.id.getTimestamp()) {
             if (log.isWarnEnabled())
@@ -227,17 +215,12 @@ public class DeliveryManager {
     }
 
     private void handleNewMessageRecord(MessageRecord record) {
-        MessageRecord existingRecord = messageRecords.get(record.id);
+        MessageRecord existingRecord = deliverySet.get(record.id);
         if (existingRecord == null) {
             if (log.isTraceEnabled())
                 log.trace("New MessageRecord created | " + record);
 
-            MessageId placeholderId = new MessageId(-1, record.id.getOriginator(), record.id.getSequence());
-            MessageRecord placeholderRecord = messageRecords.get(placeholderId);
-            if (placeholderRecord != null) {
-                messageRecords.remove(placeholderId);
-                deliverySet.remove(placeholderRecord);
-            }
+            removeSequencePlaceholder(record.id.getOriginator(), record.id.getSequence());
             addRecordToDeliverySet(record);
         } else {
             if (log.isTraceEnabled())
@@ -251,8 +234,12 @@ public class DeliveryManager {
         record.insertionTime = aramis.getClock().getTime();
         if (!deliverySet.add(record))
             log.fatal("Record := " + record.id + " | not added to delivery set | addRecordToDeliverySet");
-        messageRecords.put(record.id, record);
-        getReceivedSeqRecord(record.id.getOriginator()).add(record.id.getSequence());
+    }
+
+    private void removeSequencePlaceholder(Address origin, long sequence) {
+        MessageRecord placeholderRecord = deliverySet.get(origin, sequence);
+        if (placeholderRecord != null && DeliverySet.isSequencePlaceholder(placeholderRecord))
+            deliverySet.remove(placeholderRecord);
     }
 
     private void processVectorClock(MessageRecord record) {
@@ -282,7 +269,7 @@ public class DeliveryManager {
 
     private void processAcks(Address source, Collection<MessageId> acks) {
         for (MessageId ackId : acks) {
-            MessageRecord existingRecord = messageRecords.get(ackId);
+            MessageRecord existingRecord = deliverySet.get(ackId);
             if (existingRecord == null)
                 createPlaceholder(source, ackId, true);
             else
@@ -294,7 +281,7 @@ public class DeliveryManager {
         if (id.getOriginator().equals(aramis.getLocalAddress()))
             return;
 
-        if (!messageRecords.containsKey(id))
+        if (deliverySet.get(id) == null)
             createPlaceholder(null, id, false);
     }
 
@@ -306,11 +293,7 @@ public class DeliveryManager {
         if (ackSourceLastDelivered != null && (id.compareTo(ackSourceLastDelivered) <= 0) || id.compareLocalOrder(ackSourceLastDelivered) <= 0)
             return;
 
-        if (getReceivedSeqRecord(id.getOriginator()).contains(id.getSequence())) {
-            MessageRecord record = new MessageRecord(id.getOriginator(), id.getSequence());
-            deliverySet.remove(record);
-            messageRecords.remove(record.id);
-        }
+        removeSequencePlaceholder(id.getOriginator(), id.getSequence());
 
         MessageRecord placeholderRecord = new MessageRecord(id, ackSource);
         addRecordToDeliverySet(placeholderRecord);
@@ -336,10 +319,9 @@ public class DeliveryManager {
         if (sequence <= lastDeliveredSeq)
             return;
 
-        Set<Long> receivedSet = getReceivedSeqRecord(origin);
         for (long missingSeq = sequence - 1; missingSeq > lastDeliveredSeq; missingSeq--) {
 
-            if (!receivedSet.contains(missingSeq)) {
+            if (!deliverySet.contains(origin, missingSeq)) {
                 MessageRecord seqPlaceholder = new MessageRecord(origin, missingSeq);
                 addRecordToDeliverySet(seqPlaceholder);
 
@@ -351,21 +333,6 @@ public class DeliveryManager {
         }
     }
 
-    private Set<Long> getReceivedSeqRecord(Address origin) {
-        Set<Long> receivedSet = receivedSeqRecord.get(origin);
-        if (receivedSet == null) {
-            receivedSet = new HashSet<Long>();
-            receivedSeqRecord.put(origin, receivedSet);
-        }
-        return receivedSet;
-    }
-
-    private void removeReceivedSeq(MessageId id) {
-        Set<Long> seqSet = receivedSeqRecord.get(id.getOriginator());
-        if (seqSet != null)
-            seqSet.remove(id.getSequence());
-    }
-
     // TODO Calculate the delivery time at the sending node - Allows for less data to be sent in the header
     private void calculateDeliveryTime(MessageRecord record) {
         RMCastHeader header = record.getHeader();
@@ -502,8 +469,6 @@ public class DeliveryManager {
                 profiler.messageTimedOut();
 
                 if (log.isInfoEnabled()) {
-                    MessageRecord nextRecord = deliverySet.higher(this);
-                    MessageId nextId = nextRecord == null ? null : nextRecord.id;
                     log.info("Msg timedOut, mark ready to deliver | record := " + this.toStringDeliverable() +
                             " | \n" + getHeader().getNmcData() + " | delay := " + DeliveryManager.this.getCalculatedDeliveryDelay(this));
 //                            + " | next := " + nextId + " | ^^^^^^^^^^^^^ \n" + vectorCheckOutput(this.getHeader()));
@@ -0,0 +1,319 @@
+package org.jgroups.protocols.aramis;
+
+import org.jgroups.Address;
+import org.jgroups.protocols.aramis.DeliveryManager.MessageRecord;
+
+import java.util.*;
+
+/**
+ * The records held by the {@link DeliveryManager} until they are ready to be delivered, indexed per originator.
+ * <p/>
+ * The records of each originator are stored in a {@link SeqnoRing} indexed by sequence number, so that messages and
+ * placeholders can be found in O(1).  The rings are merged through a heap ordered by the timestamp of each ring's
+ * first record (ties are broken by originator), which gives the same total order as {@link MessageId#compareTo}
+ * (as the timestamps of an originator's messages increase with their sequences) and allows the next record to be
+ * removed in O(log n), where n is the number of originators.
+ * <p/>
+ * Sequence placeholders (timestamp == -1) are ordered before all other records by {@link MessageId#compareTo},
+ * therefore no record can be delivered whilst one exists; see {@link #hasSequencePlaceholders()}.
+ * <p/>
+ * This class is not thread safe and must only be accessed by the delivery thread.  Receiving threads pass messages
+ * to the delivery thread via the DeliveryManager's message queue.
+ *
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+final class DeliverySet {
+    private final Map<Address, SeqnoRing> rings = new HashMap<Address, SeqnoRing>();
+    private SeqnoRing[] heap = new SeqnoRing[8];
+    private int heapSize;
+    private int size;
+    private int sequencePlaceholders;
+
+    boolean add(MessageRecord record) {
+        SeqnoRing ring = getRing(record.id.getOriginator());
+        if (!ring.add(record))
+            return false;
+
+        size++;
+        if (isSequencePlaceholder(record))
+            sequencePlaceholders++;
+        update(ring);
+        return true;
+    }
+
+    // Only removes the record if the stored record has the same id, i.e. a sequence placeholder is not removed by a message
+    boolean remove(MessageRecord record) {
+        SeqnoRing ring = rings.get(record.id.getOriginator());
+        if (ring == null)
+            return false;
+
+        MessageRecord stored = ring.get(record.id.getSequence());
+        if (stored == null || !stored.id.equals(record.id))
+            return false;
+
+        ring.remove(record.id.getSequence());
+        size--;
+        if (isSequencePlaceholder(stored))
+            sequencePlaceholders--;
+        update(ring);
+        return true;
+    }
+
+    MessageRecord get(MessageId id) {
+        MessageRecord record = get(id.getOriginator(), id.getSequence());
+        return record != null && record.id.equals(id) ? record : null;
+    }
+
+    MessageRecord get(Address origin, long sequence) {
+        SeqnoRing ring = rings.get(origin);
+        return ring == null ? null : ring.get(sequence);
+    }
+
+    boolean contains(Address origin, long sequence) {
+        return get(origin, sequence) != null;
+    }
+
+    MessageRecord first() {
+        return heapSize == 0 ? null : heap[0].first();
+    }
+
+    MessageRecord pollFirst() {
+        MessageRecord first = first();
+        if (first != null)
+            remove(first);
+        return first;
+    }
+
+    boolean hasSequencePlaceholders() {
+        return sequencePlaceholders > 0;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Unordered copy of all records, only intended for debugging
+    List<MessageRecord> toList() {
+        List<MessageRecord> list = new ArrayList<MessageRecord>(size);
+        for (SeqnoRing ring : rings.values())
+            ring.addTo(list);
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return "DeliverySet{" +
+                "size=" + size +
+                ", originators=" + heapSize +
+                ", sequencePlaceholders=" + sequencePlaceholders +
+                ", first=" + (heapSize == 0 ? null : first().id) +
+                '}';
+    }
+
+    static boolean isSequencePlaceholder(MessageRecord record) {
+        return record.id.getTimestamp() == -1;
+    }
+
+    private SeqnoRing getRing(Address origin) {
+        SeqnoRing ring = rings.get(origin);
+        if (ring == null) {
+            ring = new SeqnoRing(origin);
+            rings.put(origin, ring);
+        }
+        return ring;
+    }
+
+    // Must be called whenever a ring is modified, as its first record may have changed
+    private void update(SeqnoRing ring) {
+        if (ring.isEmpty()) {
+            if (ring.heapIndex >= 0)
+                removeFromHeap(ring);
+            return;
+        }
+
+        long oldKey = ring.key;
+        ring.key = ring.first().id.getTimestamp();
+        if (ring.heapIndex < 0) {
+            if (heapSize == heap.length)
+                heap = Arrays.copyOf(heap, heapSize * 2);
+            ring.heapIndex = heapSize;
+            heap[heapSize++] = ring;
+            siftUp(ring.heapIndex);
+        } else if (ring.key < oldKey) {
+            siftUp(ring.heapIndex);
+        } else if (ring.key > oldKey) {
+            siftDown(ring.heapIndex);
+        }
+    }
+
+    private void removeFromHeap(SeqnoRing ring) {
+        int index = ring.heapIndex;
+        SeqnoRing last = heap[--heapSize];
+        heap[heapSize] = null;
+        ring.heapIndex = -1;
+        if (last != ring) {
+            heap[index] = last;
+            last.heapIndex = index;
+            siftDown(index);
+            siftUp(last.heapIndex);
+        }
+    }
+
+    private void siftUp(int index) {
+        SeqnoRing ring = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (compare(ring, heap[parent]) >= 0)
+                break;
+            setHeap(index, heap[parent]);
+            index = parent;
+        }
+        setHeap(index, ring);
+    }
+
+    private void siftDown(int index) {
+        SeqnoRing ring = heap[index];
+        int half = heapSize >>> 1;
+        while (index < half) {
+            int child = (index << 1) + 1;
+            int right = child + 1;
+            if (right < heapSize && compare(heap[right], heap[child]) < 0)
+                child = right;
+            if (compare(ring, heap[child]) <= 0)
+                break;
+            setHeap(index, heap[child]);
+            index = child;
+        }
+        setHeap(index, ring);
+    }
+
+    private void setHeap(int index, SeqnoRing ring) {
+        heap[index] = ring;
+        ring.heapIndex = index;
+    }
+
+    private static int compare(SeqnoRing ring1, SeqnoRing ring2) {
+        if (ring1.key != ring2.key)
+            return ring1.key < ring2.key ? -1 : 1;
+        return ring1.origin.compareTo(ring2.origin);
+    }
+
+    /**
+     * The records of a single originator, stored in a power of two array indexed by sequence number.  The array is
+     * grown whenever the range [low, high] of stored sequences exceeds its capacity.
+     */
+    static final class SeqnoRing {
+        private static final int INITIAL_CAPACITY = 16;
+
+        final Address origin;
+        private MessageRecord[] records = new MessageRecord[INITIAL_CAPACITY];
+        private long low;  // The lowest sequence stored, only valid if size > 0
+        private long high; // The highest sequence stored, only valid if size > 0
+        private int size;
+
+        // Maintained by the enclosing DeliverySet
+        int heapIndex = -1;
+        long key;
+
+        SeqnoRing(Address origin) {
+            this.origin = origin;
+        }
+
+        MessageRecord get(long sequence) {
+            if (size == 0 || sequence < low || sequence > high)
+                return null;
+            return records[index(sequence)];
+        }
+
+        MessageRecord first() {
+            return size == 0 ? null : records[index(low)];
+        }
+
+        boolean add(MessageRecord record) {
+            long sequence = record.id.getSequence();
+            if (size == 0) {
+                low = high = sequence;
+            } else {
+                if (get(sequence) != null)
+                    return false;
+
+                long newLow = Math.min(low, sequence);
+                long newHigh = Math.max(high, sequence);
+                if (newHigh - newLow >= records.length)
+                    resize(newHigh - newLow + 1);
+                low = newLow;
+                high = newHigh;
+            }
+            records[index(sequence)] = record;
+            size++;
+            return true;
+        }
+
+        MessageRecord remove(long sequence) {
+            MessageRecord record = get(sequence);
+            if (record == null)
+                return null;
+
+            records[index(sequence)] = null;
+            if (--size == 0)
+                return record;
+
+            if (sequence == low)
+                while (records[index(low)] == null)
+                    low++;
+            if (sequence == high)
+                while (records[index(high)] == null)
+                    high--;
+            return record;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void addTo(Collection<MessageRecord> collection) {
+            if (size == 0)
+                return;
+
+            for (long sequence = low; sequence <= high; sequence++) {
+                MessageRecord record = records[index(sequence)];
+                if (record != null)
+                    collection.add(record);
+            }
+        }
+
+        private int index(long sequence) {
+            return (int) (sequence & (records.length - 1));
+        }
+
+        private void resize(long capacityRequired) {
+            if (capacityRequired > Integer.MAX_VALUE >> 1)
+                throw new IllegalStateException("Sequence range of " + capacityRequired + " exceeds the maximum capacity" +
+                        " | origin := " + origin + " | low := " + low + " | high := " + high);
+
+            int capacity = records.length;
+            while (capacity < capacityRequired)
+                capacity <<= 1;
+
+            MessageRecord[] newRecords = new MessageRecord[capacity];
+            for (long sequence = low; sequence <= high; sequence++)
+                newRecords[(int) (sequence & (capacity - 1))] = records[index(sequence)];
+            records = newRecords;
+        }
+
+        @Override
+        public String toString() {
+            return "SeqnoRing{" +
+                    "origin=" + origin +
+                    ", low=" + low +
+                    ", high=" + high +
+                    ", size=" + size +
+                    '}';
+        }
+    }
+}
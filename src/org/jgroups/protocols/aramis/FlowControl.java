@@ -6,20 +6,33 @@ import org.jgroups.logging.LogFactory;
 import org.jgroups.util.Util;
 
 import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class provides a bespoke FlowControl mechanism for Aramis and Base that utilises the values collected by Aramis's
  * NMC to provide a means of flow control.
+ * <p/>
+ * By default the sending thread forms each bucket and waits for its broadcast time whilst holding the lock.  If pacing
+ * is enabled, sending threads add their messages to a queue without blocking and a single pacer thread forms the buckets.
+ * The size of each bucket is adapted so that the delay between buckets remains between DELTA_LOWER_LIMIT and
+ * DELTA_UPPER_LIMIT, allowing the broadcast rate to exceed one bucket per DELTA_LOWER_LIMIT.  The queue is bounded by
+ * maxQueueSize: once it is full, sending threads block until the pacer has broadcast some of the queued messages.
  *
  * @author Ryan Emerson
  * @since 4.0
  */
 public class FlowControl {
 
-    private final int BUCKET_SIZE = 1;
+    private static final int BUCKET_SIZE_DEFAULT = 1;
+    private static final int MAX_QUEUE_SIZE_DEFAULT = 10000;
+    private final int BUCKET_SIZE = BUCKET_SIZE_DEFAULT;
     private final double DELTA_UPPER_LIMIT = 0.01; // The max value of delta in seconds e.g. 0.01 = 10ms
     private final double DELTA_LOWER_LIMIT = 0.001; // The min value of delta in seconds
     private final ReentrantLock lock = new ReentrantLock(false);
@@ -28,6 +41,20 @@ public class FlowControl {
     private final Log log = LogFactory.getLog(Aramis.class);
     private final NMC nmc;
     private final Aramis aramis;
+    private final boolean pacing;
+    private final int maxBucketSize;
+    private final int maxQueueSize;
+
+    // Only used when pacing is enabled
+    private final Queue<Message> queue = new ConcurrentLinkedQueue<Message>();
+    private final AtomicInteger queueSize = new AtomicInteger(); // ConcurrentLinkedQueue.size() is O(n)
+    private final Condition notFull = lock.newCondition(); // Signalled by the pacer when senders are blocked
+    private final AtomicInteger blockedSenders = new AtomicInteger();
+    private final AtomicInteger numBlockings = new AtomicInteger();
+    private volatile boolean stopped;
+    private volatile Thread pacerThread;
+    private volatile int currentBucketSize = 1;
+    private ExecutorService executor;
 
     private BucketWrapper buckets = new BucketWrapper();
     private FCDataWrapper flowData = new FCDataWrapper();
@@ -37,8 +64,24 @@ public class FlowControl {
     private final boolean PROFILE_ENABLED = false;
 
     public FlowControl(Aramis aramis, NMC nmc) {
+        this(aramis, nmc, false, BUCKET_SIZE_DEFAULT);
+    }
+
+    public FlowControl(Aramis aramis, NMC nmc, boolean pacing, int maxBucketSize) {
+        this(aramis, nmc, pacing, maxBucketSize, MAX_QUEUE_SIZE_DEFAULT);
+    }
+
+    public FlowControl(Aramis aramis, NMC nmc, boolean pacing, int maxBucketSize, int maxQueueSize) {
+        if (maxBucketSize < 1)
+            throw new IllegalArgumentException("maxBucketSize must be greater than 0 | maxBucketSize := " + maxBucketSize);
+        if (maxQueueSize < 1)
+            throw new IllegalArgumentException("maxQueueSize must be greater than 0 | maxQueueSize := " + maxQueueSize);
+
         this.aramis = aramis;
         this.nmc = nmc;
+        this.pacing = pacing;
+        this.maxBucketSize = maxBucketSize;
+        this.maxQueueSize = maxQueueSize;
 
         if (PROFILE_ENABLED) {
             // TODO remove
@@ -51,7 +94,34 @@ public class FlowControl {
         }
     }
 
+    public void start() {
+        if (pacing) {
+            executor = Executors.newSingleThreadExecutor();
+            executor.execute(new Pacer());
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+        if (executor != null)
+            executor.shutdownNow();
+        signalBlockedSenders();
+    }
+
     public void addMessage(Message message) {
+        if (pacing) {
+            if (queueSize.get() >= maxQueueSize)
+                awaitSpace();
+            queue.add(message);
+            // The pacer only parks when the queue is empty, so it only needs to be woken by the first message
+            if (queueSize.getAndIncrement() == 0) {
+                Thread pacer = pacerThread;
+                if (pacer != null)
+                    LockSupport.unpark(pacer);
+            }
+            return;
+        }
+
         lock.lock();
         try {
             MessageBucket bucket = buckets.current;
@@ -71,6 +141,101 @@ public class FlowControl {
         }
     }
 
+    // Blocks the sending thread until the pacer has broadcast some of the queued messages, or flow control is stopped
+    private void awaitSpace() {
+        numBlockings.incrementAndGet();
+        blockedSenders.incrementAndGet();
+        lock.lock();
+        try {
+            while (queueSize.get() >= maxQueueSize && !stopped)
+                notFull.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // The message is queued anyway, so that it isn't lost
+        } finally {
+            lock.unlock();
+            blockedSenders.decrementAndGet();
+        }
+    }
+
+    private void signalBlockedSenders() {
+        if (blockedSenders.get() == 0)
+            return;
+        lock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getBroadcastRate() {
+        return flowData.broadcastRate;
+    }
+
+    public int getBucketSize() {
+        return pacing ? currentBucketSize : BUCKET_SIZE;
+    }
+
+    // The number of messages waiting to be broadcast, or the number of threads waiting for the lock if pacing is disabled
+    public int getQueueSize() {
+        return pacing ? queueSize.get() : lock.getQueueLength();
+    }
+
+    // The number of times a sending thread blocked because the queue was full (pacing only)
+    public int getNumberOfBlockings() {
+        return numBlockings.get();
+    }
+
+    // Overridden by the tests, so that flow control can be tested without an Aramis stack
+    protected void broadcast(Message message) {
+        aramis.sendRMCast(message);
+    }
+
+    protected long getClockTime() {
+        return aramis.getClock().getTime();
+    }
+
+    // returns true if a new delta value is calculated, false if the old value is still relevant
+    private boolean calculateDelta() throws IOException {
+        NMCData newNMCData = nmc.getData();
+        if (newNMCData == null)
+            throw new IOException("NMCData returned by nmc.getData() is null.  Initial probe period not complete");
+
+        if (newNMCData.equals(nmcData)) {
+            try {
+                // If the exponential result is different to the previous then it means that the number of latencies
+                // that have exceeded xMax has increased (can't decrease because xMax would have changed)
+                double exponentialResult = getExponentialResult();
+                if (exponentialResult != flowData.exponentialResult) {
+
+                    // Necessary for the first bucket, prevents delta == infinity
+                    if (flowData.broadcastRate == 0)
+                        flowData.delta = 0;
+                    else
+                        flowData.delta = (1 / flowData.broadcastRate) * ((1 - exponentialResult) / exponentialResult);
+
+                    flowData.exponentialResult = exponentialResult;
+                    return true;
+                }
+            } catch (Exception e) {
+                // If an exception is thrown by getExponentialResult then it means no latencies have exceeded Xrc
+            }
+            return false; // The old delta value will be used
+        } else {
+            flowData.delta = DELTA_LOWER_LIMIT;
+            nmcData = newNMCData;
+        }
+        return true;
+    }
+
+    private double getExponentialResult() throws Exception {
+        double r = nmc.calculateR();
+        int c = 1; // TODO make configurable
+
+        // return the new broadcast rate (omega2)
+        return Math.pow(Math.E, ((1 - r) / c));
+    }
+
     private class MessageBucket {
         final int id;
         final Message[] messages;
@@ -139,61 +304,20 @@ public class FlowControl {
                 broadcastTime = buckets.previous.broadcastTime + delayInNanos;
                 previous = buckets.previous;
             } else
-                broadcastTime = aramis.getClock().getTime() + delayInNanos;
+                broadcastTime = getClockTime() + delayInNanos;
 
             flowData.bucketDelay = bucketDelay;
         }
 
-        // returns true if a new delta value is calculated, false if the old value is still relevant
-        boolean calculateDelta() throws IOException {
-            NMCData newNMCData = nmc.getData();
-            if (newNMCData == null)
-                throw new IOException("NMCData returned by nmc.getData() is null.  Initial probe period not complete");
-
-            if (newNMCData.equals(nmcData)) {
-                try {
-                    // If the exponential result is different to the previous then it means that the number of latencies
-                    // that have exceeded xMax has increased (can't decrease because xMax would have changed)
-                    double exponentialResult = getExponentialResult();
-                    if (exponentialResult != flowData.exponentialResult) {
-
-                        // Necessary for the first bucket, prevents delta == infinity
-                        if (flowData.broadcastRate == 0)
-                            flowData.delta = 0;
-                        else
-                            flowData.delta = (1 / flowData.broadcastRate) * ((1 - exponentialResult) / exponentialResult);
-
-                        flowData.exponentialResult = exponentialResult;
-                        return true;
-                    }
-                } catch (Exception e) {
-                    // If an exception is thrown by getExponentialResult then it means no latencies have exceeded Xrc
-                }
-                return false; // The old delta value will be used
-            } else {
-                flowData.delta = DELTA_LOWER_LIMIT;
-                nmcData = newNMCData;
-            }
-            return true;
-        }
-
-        double getExponentialResult() throws Exception {
-            double r = nmc.calculateR();
-            int c = 1; // TODO make configurable
-
-            // return the new broadcast rate (omega2)
-            return Math.pow(Math.E, ((1 - r) / c));
-        }
-
         void send() {
-            actualSendTime = aramis.getClock().getTime();
+            actualSendTime = getClockTime();
             profiler.msgCount++;
 
             if (previous != null)
                 profiler.delayTotal += actualSendTime - previous.actualSendTime;
 
             for (Message message : messages)
-                aramis.sendRMCast(message);
+                broadcast(message);
 
             sent = true;
             condition.signalAll();
@@ -209,7 +333,7 @@ public class FlowControl {
         }
 
         public long getDelay() {
-            long delay = broadcastTime - aramis.getClock().getTime();
+            long delay = broadcastTime - getClockTime();
             return delay < 0 ? 0 : delay;
         }
 
@@ -228,9 +352,117 @@ public class FlowControl {
         }
     }
 
+    /**
+     * Forms and broadcasts the buckets of queued messages when pacing is enabled.  Each bucket contains the number of
+     * messages that can be sent every DELTA_LOWER_LIMIT at the current delta, bounded by maxBucketSize and the number
+     * of queued messages.  The delay between buckets is calculated in the same way as the default mode.
+     */
+    private class Pacer implements Runnable {
+        private long previousBroadcastTime = -1;
+        private long oldestBroadcastTime = -1;
+        private int previousBucketSize = 0;
+
+        @Override
+        public void run() {
+            pacerThread = Thread.currentThread();
+            while (!Thread.currentThread().isInterrupted()) {
+                if (queueSize.get() == 0) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                try {
+                    calculateBroadcastRate();
+                    calculateDelta();
+                } catch (IOException e) {
+                    if (log.isInfoEnabled())
+                        log.info("Exception thrown: " + e + "\n retry message in 1 ms");
+                    Util.sleep(1);
+                    continue;
+                } catch (Throwable t) {
+                    log.error("Failed calculating delta, retry in 1 ms", t);
+                    Util.sleep(1);
+                    continue;
+                }
+
+                int bucketSize = calculateBucketSize();
+                long broadcastTime = calculateBroadcastTime(bucketSize);
+                if (!awaitBroadcastTime(broadcastTime))
+                    break;
+
+                oldestBroadcastTime = previousBroadcastTime;
+                previousBroadcastTime = broadcastTime;
+                previousBucketSize = send(bucketSize);
+            }
+            pacerThread = null;
+        }
+
+        void calculateBroadcastRate() {
+            if (oldestBroadcastTime > 0 && previousBroadcastTime > oldestBroadcastTime)
+                flowData.broadcastRate = 1e+9 / ((double) (previousBroadcastTime - oldestBroadcastTime) / previousBucketSize);
+            else
+                flowData.broadcastRate = 0.0;
+        }
+
+        int calculateBucketSize() {
+            int bucketSize = flowData.delta <= 0 ? maxBucketSize : (int) Math.ceil(DELTA_LOWER_LIMIT / flowData.delta);
+            bucketSize = Math.max(1, Math.min(bucketSize, maxBucketSize));
+            currentBucketSize = bucketSize;
+            return Math.min(bucketSize, Math.max(1, queueSize.get()));
+        }
+
+        long calculateBroadcastTime(int bucketSize) {
+            double bucketDelay = flowData.delta * bucketSize;
+            if (bucketDelay > DELTA_UPPER_LIMIT) {
+                if (PROFILE_ENABLED)
+                    profiler.deltaLimitExceeded(bucketDelay);
+                bucketDelay = DELTA_UPPER_LIMIT;
+            }
+
+            if (bucketDelay < DELTA_LOWER_LIMIT)
+                bucketDelay = DELTA_LOWER_LIMIT;
+
+            flowData.bucketDelay = bucketDelay;
+            long delayInNanos = (long) Math.ceil(bucketDelay * 1e+9);
+            if (previousBroadcastTime > 0)
+                return previousBroadcastTime + delayInNanos;
+            return getClockTime() + delayInNanos;
+        }
+
+        // Returns false if the pacer was interrupted whilst waiting
+        boolean awaitBroadcastTime(long broadcastTime) {
+            long delay;
+            while ((delay = broadcastTime - getClockTime()) > 0) {
+                LockSupport.parkNanos(this, delay);
+                if (Thread.currentThread().isInterrupted())
+                    return false;
+            }
+            return true;
+        }
+
+        // Returns the number of messages sent
+        int send(int bucketSize) {
+            int sent = 0;
+            Message message;
+            while (sent < bucketSize && (message = queue.poll()) != null) {
+                queueSize.decrementAndGet();
+                try {
+                    broadcast(message);
+                } catch (Throwable t) {
+                    // The pacer must keep running, otherwise all subsequent messages would be stuck in the queue
+                    log.error("Failed broadcasting message " + message, t);
+                }
+                sent++;
+            }
+            profiler.msgCount += sent;
+            signalBlockedSenders();
+            return sent;
+        }
+    }
+
     private class FCDataWrapper {
         double delta = 0.0;
-        double broadcastRate = 0.0;
+        volatile double broadcastRate = 0.0; // Read by the managed attributes
         double exponentialResult = 0.0;
         double bucketDelay = 0.0;
 
@@ -30,10 +30,11 @@ public class IntegerNMC implements NMC {
 
     private final PCSynch clock;
     private final Profiler profiler;
-    private final List<Integer> currentLatencies = new ArrayList<Integer>(EPOCH_SIZE);
-    private final List<Integer> recentPastLatencies = Collections.synchronizedList(new ArrayList<Integer>());
+    private final int[] currentLatencies = new int[EPOCH_SIZE]; // The latencies received during the current epoch
+    private final LatencyWindow recentPastLatencies = new LatencyWindow(RECENT_PAST_SIZE);
     private final ReentrantLock lock = new ReentrantLock(false);
-    private NMCData nmcData;
+    private int numberOfCurrentLatencies = 0;
+    private volatile NMCData nmcData;
     private volatile int activeNodes = 0;
     private volatile int xMax = 0;
 
@@ -73,8 +74,8 @@ public class IntegerNMC implements NMC {
     }
 
     public boolean initialProbesReceived() {
-        int rplSize = recentPastLatencies.size();
-        return rplSize > 0 && rplSize % EPOCH_SIZE == 0;
+        // NMC values are first calculated once EPOCH_SIZE probes have been received
+        return nmcData != null;
     }
 
     public void receiveProbe(RMCastHeader header) {
@@ -115,22 +116,18 @@ public class IntegerNMC implements NMC {
 
     private ExceedsXrcResult getLatenciesThatExceedXrc() {
         ExceedsXrcResult result;
-        List<Integer> cl;
         lock.lock();
         try {
             result = new ExceedsXrcResult(nmcData);
-            cl = new ArrayList<Integer>(currentLatencies);
+//            double threshold = result.nmcData.getXMax() + (result.nmcData.getEta() / 2); // Original Xrc
+            double threshold = result.nmcData.getXMax();
+            List<Integer> latencies = result.latencies;
+            for (int i = 0; i < numberOfCurrentLatencies; i++)
+                if (currentLatencies[i] > threshold)
+                    latencies.add(currentLatencies[i]);
         } finally {
             lock.unlock();
         }
-
-        List<Integer> latencies = result.latencies;
-//        double threshold = result.nmcData.getXMax() + (result.nmcData.getEta() / 2); // Original Xrc
-        double threshold = result.nmcData.getXMax();
-        for (Integer latency : cl)
-            if (latency > threshold)
-                latencies.add(latency);
-
         return result;
     }
 
@@ -141,47 +138,23 @@ public class IntegerNMC implements NMC {
     }
 
     private void addLatency(int latency) {
-        if (currentLatencies.size() < EPOCH_SIZE)
-            currentLatencies.add(latency);
+        currentLatencies[numberOfCurrentLatencies++] = latency;
+        recentPastLatencies.add(latency); // Evicts the oldest latency once RECENT_PAST_SIZE latencies are stored
 
-        if (currentLatencies.size() % EPOCH_SIZE == 0) {
-            addCurrentLatenciesToRecentPast();
+        if (numberOfCurrentLatencies == EPOCH_SIZE) {
+            numberOfCurrentLatencies = 0;
             calculateNMCValues();
         }
         profiler.addProbeLatency(latency);
     }
 
-    private void addCurrentLatenciesToRecentPast() {
-        int rplSize = recentPastLatencies.size();
-        if (rplSize == RECENT_PAST_SIZE) {
-            int startIndex = rplSize - EPOCH_SIZE;
-            recentPastLatencies.subList(startIndex, rplSize).clear(); // Remove outdated latencies
-        }
-        recentPastLatencies.addAll(0, currentLatencies);
-        currentLatencies.clear();
-    }
-
     private void calculateNMCValues() {
         long st = clock.getTime();
 
-        List<Integer> latencies = new ArrayList<Integer>(recentPastLatencies);
-        Collections.sort(latencies);
-
-        int numberOfLatencies = latencies.size();
-        int maxLatency = latencies.get(numberOfLatencies - 1); // Ordered ascending, so last index is the largest latency
-        int d = -1;
-        int exceedQThreshold = 0;
-        int count = 1;
-
-        for (int i : latencies) {
-            if (count >= numberOfLatencies * 0.693 && d < 0)
-                d = i;
-
-            if (i * Q_MULTIPLIER > maxLatency)
-                exceedQThreshold++;
-
-            count++;
-        }
+        int numberOfLatencies = recentPastLatencies.size();
+        int maxLatency = (int) recentPastLatencies.max();
+        int d = (int) recentPastLatencies.percentile(0.693);
+        int exceedQThreshold = recentPastLatencies.countExceeding(Q_MULTIPLIER, maxLatency);
         addXMax(maxLatency);
 
         double q = calculateQ(exceedQThreshold, numberOfLatencies);
@@ -196,7 +169,7 @@ public class IntegerNMC implements NMC {
         long ft = clock.getTime() - st;
 
         log.info("!!!! OLD NMCData recorded | count := " + atomicCount.intValue() + " | " + nmcData +
-                "\n TimeTaken := " + TimeUnit.NANOSECONDS.toMillis(ft) + " | xMax := " + xMax + "| latencies size := " + latencies.size());
+                "\n TimeTaken := " + TimeUnit.NANOSECONDS.toMillis(ft) + " | xMax := " + xMax + "| latencies size := " + numberOfLatencies);
 
         if (log.isDebugEnabled())
             log.debug("NMCData recorded | " + nmcData);
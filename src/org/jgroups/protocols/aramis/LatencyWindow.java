@@ -0,0 +1,123 @@
+package org.jgroups.protocols.aramis;
+
+import java.util.Arrays;
+
+/**
+ * A sliding window of the most recent latencies, used by the NMC to calculate its values without copying and sorting
+ * the recent past at the end of every epoch.
+ * <p/>
+ * Latencies are stored twice in primitive arrays of a fixed capacity: once in a ring (insertion order), so that the
+ * oldest latency can be evicted when the window is full, and once in ascending order.  Adding a latency requires a
+ * binary search and a shift of the sorted array, whilst the max, percentile and threshold counts are read in
+ * O(1) / O(log n).  No objects are created once the window has been constructed.
+ * <p/>
+ * This class is not thread safe, the NMC must only access it whilst holding its lock.
+ *
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+final class LatencyWindow {
+    private final long[] ring; // Latencies in the order they were added
+    private final long[] sorted; // The same latencies in ascending order
+    private int head; // Index of the oldest latency in the ring
+    private int size;
+
+    LatencyWindow(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be greater than 0 | capacity := " + capacity);
+
+        ring = new long[capacity];
+        sorted = new long[capacity];
+    }
+
+    // Adds the latency, evicting the oldest latency if the window is full
+    void add(long latency) {
+        if (size == ring.length) {
+            removeSorted(ring[head]);
+            ring[head] = latency;
+            head = (head + 1) % ring.length;
+        } else {
+            ring[(head + size) % ring.length] = latency;
+            size++;
+        }
+        insertSorted(latency);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long max() {
+        checkNotEmpty();
+        return sorted[size - 1];
+    }
+
+    // Returns the first latency whose position in the ascending order is >= size * fraction, positions start at 1
+    long percentile(double fraction) {
+        checkNotEmpty();
+        int position = (int) Math.ceil(size * fraction);
+        return sorted[Math.min(Math.max(position, 1), size) - 1];
+    }
+
+    // Returns the number of latencies where latency * multiplier > value, multiplier must be positive
+    int countExceeding(double multiplier, long value) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] * multiplier > value)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        return size - low;
+    }
+
+    private void insertSorted(long latency) {
+        // Called once size includes the new latency (or the oldest latency has been removed), so size - 1 are sorted
+        int length = size - 1;
+        int index = upperBound(latency, length);
+        System.arraycopy(sorted, index, sorted, index + 1, length - index);
+        sorted[index] = latency;
+    }
+
+    private void removeSorted(long latency) {
+        int index = Arrays.binarySearch(sorted, 0, size, latency);
+        if (index < 0)
+            throw new IllegalStateException("Latency " + latency + " is not stored in the window");
+
+        System.arraycopy(sorted, index + 1, sorted, index, size - index - 1);
+    }
+
+    // Returns the index of the first value in sorted[0, length) that is greater than latency
+    private int upperBound(long latency, int length) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] > latency)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        return low;
+    }
+
+    private void checkNotEmpty() {
+        if (size == 0)
+            throw new IllegalStateException("The latency window is empty");
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyWindow{" +
+                "capacity=" + ring.length +
+                ", size=" + size +
+                (size > 0 ? ", min=" + sorted[0] + ", max=" + sorted[size - 1] : "") +
+                '}';
+    }
+}
@@ -34,10 +34,11 @@ public class LongNMC implements NMC {
 
     private final PCSynch clock;
     private final Profiler profiler;
-    private final List<Long> currentLatencies = new ArrayList<Long>(EPOCH_SIZE);
-    private final List<Long> recentPastLatencies = Collections.synchronizedList(new ArrayList<Long>());
+    private final long[] currentLatencies = new long[EPOCH_SIZE]; // The latencies received during the current epoch
+    private final LatencyWindow recentPastLatencies = new LatencyWindow(RECENT_PAST_SIZE);
     private final ReentrantLock lock = new ReentrantLock(false);
-    private NMCData nmcData;
+    private int numberOfCurrentLatencies = 0;
+    private volatile NMCData nmcData;
     private volatile int activeNodes = 0;
     private volatile long xMax = 0;
 
@@ -77,8 +78,8 @@ public class LongNMC implements NMC {
     }
 
     public boolean initialProbesReceived() {
-        int rplSize = recentPastLatencies.size();
-        return rplSize > 0 && rplSize % EPOCH_SIZE == 0;
+        // NMC values are first calculated once EPOCH_SIZE probes have been received
+        return nmcData != null;
     }
 
     public void receiveProbe(RMCastHeader header) {
@@ -118,21 +119,17 @@ public class LongNMC implements NMC {
 
     private ExceedsXrcResult getLatenciesThatExceedXrc() {
         ExceedsXrcResult result;
-        List<Long> cl;
         lock.lock();
         try {
             result = new ExceedsXrcResult(xMax);
-            cl = new ArrayList<Long>(currentLatencies);
+            long threshold = result.xMax;
+            List<Long> latencies = result.latencies;
+            for (int i = 0; i < numberOfCurrentLatencies; i++)
+                if (currentLatencies[i] > threshold)
+                    latencies.add(currentLatencies[i]);
         } finally {
             lock.unlock();
         }
-
-        List<Long> latencies = result.latencies;
-        long threshold = result.xMax;
-        for (Long latency : cl)
-            if (latency > threshold)
-                latencies.add(latency);
-
         return result;
     }
 
@@ -143,45 +140,21 @@ public class LongNMC implements NMC {
     }
 
     private void addLatency(long latency) {
-        if (currentLatencies.size() < EPOCH_SIZE)
-            currentLatencies.add(latency);
+        currentLatencies[numberOfCurrentLatencies++] = latency;
+        recentPastLatencies.add(latency); // Evicts the oldest latency once RECENT_PAST_SIZE latencies are stored
 
-        if (currentLatencies.size() % EPOCH_SIZE == 0) {
-            addCurrentLatenciesToRecentPast();
+        if (numberOfCurrentLatencies == EPOCH_SIZE) {
+            numberOfCurrentLatencies = 0;
             calculateNMCValues();
         }
         profiler.addProbeLatency(latency);
     }
 
-    private void addCurrentLatenciesToRecentPast() {
-        int rplSize = recentPastLatencies.size();
-        if (rplSize == RECENT_PAST_SIZE) {
-            int startIndex = rplSize - EPOCH_SIZE;
-            recentPastLatencies.subList(startIndex, rplSize).clear(); // Remove outdated latencies
-        }
-        recentPastLatencies.addAll(0, currentLatencies);
-        currentLatencies.clear();
-    }
-
     private void calculateNMCValues() {
-        List<Long> latencies = new ArrayList<Long>(recentPastLatencies);
-        Collections.sort(latencies);
-
-        int numberOfLatencies = latencies.size();
-        long maxLatency = latencies.get(numberOfLatencies - 1); // Ordered ascending, so last index is the largest latency
-        long d = -1;
-        int exceedQThreshold = 0;
-        int count = 1;
-
-        for (long i : latencies) {
-            if (count >= numberOfLatencies * 0.693 && d < 0)
-                d = i;
-
-            if (i * Q_MULTIPLIER > maxLatency)
-                exceedQThreshold++;
-
-            count++;
-        }
+        int numberOfLatencies = recentPastLatencies.size();
+        long maxLatency = recentPastLatencies.max();
+        long d = recentPastLatencies.percentile(0.693);
+        int exceedQThreshold = recentPastLatencies.countExceeding(Q_MULTIPLIER, maxLatency);
         addXMax(maxLatency);
 
         double q = calculateQ(exceedQThreshold, numberOfLatencies);
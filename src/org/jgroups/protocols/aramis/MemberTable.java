@@ -0,0 +1,118 @@
+package org.jgroups.protocols.aramis;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.util.Bits;
+import org.jgroups.util.Util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Used by {@link RMCastHeader} to write the addresses and {@link MessageId}s of its vector clock and acks compactly.
+ * <p/>
+ * Addresses are written as their ordinal in the header's destinations, which are already written in full, instead of
+ * the address itself.  An address that is not a destination is written in full after the ordinal 0.  The timestamp of
+ * a MessageId is written as the difference to a base timestamp (the timestamp of the header's id), so that only a
+ * few bytes are required for each id instead of the full timestamp.
+ * <p/>
+ * Each header is encoded independently of all other headers, as copies of a message are disseminated by other nodes
+ * and can be received in any order.  A header creates its table once, and the ordinal of an address is looked up in a
+ * hash map, so the cost of writing an address doesn't grow with the number of destinations.
+ *
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+final class MemberTable {
+    private static final int MAX_BYTE_ORDINAL = 0xff;
+
+    private final List<Address> members;
+    private final Map<Address, Integer> ordinals; // The ordinal of each member, i.e. its index in members + 1
+    private final boolean byteOrdinals; // Ordinals are written as a byte if possible, otherwise as a short
+
+    MemberTable(Collection<Address> members) {
+        if (members == null)
+            this.members = Collections.emptyList();
+        else if (members instanceof List)
+            this.members = (List<Address>) members;
+        else
+            this.members = new ArrayList<Address>(members);
+
+        if (this.members.size() >= Short.MAX_VALUE)
+            throw new IllegalArgumentException("The number of members cannot exceed " + (Short.MAX_VALUE - 1));
+
+        byteOrdinals = this.members.size() < MAX_BYTE_ORDINAL;
+        ordinals = new HashMap<Address, Integer>(this.members.size() * 2);
+        int ordinal = 1;
+        for (Address member : this.members) {
+            if (!ordinals.containsKey(member)) // The first occurrence of a duplicate member is used, as with indexOf
+                ordinals.put(member, ordinal);
+            ordinal++;
+        }
+    }
+
+    void writeAddress(Address address, DataOutput out) throws Exception {
+        int ordinal = getOrdinal(address);
+        writeOrdinal(ordinal, out);
+        if (ordinal == 0)
+            Util.writeAddress(address, out);
+    }
+
+    Address readAddress(DataInput in) throws Exception {
+        int ordinal = byteOrdinals ? in.readUnsignedByte() : in.readShort();
+        return ordinal == 0 ? Util.readAddress(in) : members.get(ordinal - 1);
+    }
+
+    int size(Address address) {
+        int ordinalSize = byteOrdinals ? Global.BYTE_SIZE : Global.SHORT_SIZE;
+        return getOrdinal(address) > 0 ? ordinalSize : ordinalSize + Util.size(address);
+    }
+
+    // Returns 0 if address is not a member
+    private int getOrdinal(Address address) {
+        Integer ordinal = address == null ? null : ordinals.get(address);
+        return ordinal == null ? 0 : ordinal;
+    }
+
+    void writeMessageId(MessageId id, long baseTimestamp, DataOutput out) throws Exception {
+        writeAddress(id.getOriginator(), out);
+        Bits.writeLong(encodeDelta(baseTimestamp, id.getTimestamp()), out);
+        Bits.writeLong(id.getSequence() + 1, out); // Empty ack messages have a sequence of -1
+    }
+
+    MessageId readMessageId(long baseTimestamp, DataInput in) throws Exception {
+        Address originator = readAddress(in);
+        long timestamp = decodeDelta(baseTimestamp, Bits.readLong(in));
+        long sequence = Bits.readLong(in) - 1;
+        return new MessageId(timestamp, originator, sequence);
+    }
+
+    int size(MessageId id, long baseTimestamp) {
+        return size(id.getOriginator()) + Bits.size(encodeDelta(baseTimestamp, id.getTimestamp())) +
+                Bits.size(id.getSequence() + 1);
+    }
+
+    private void writeOrdinal(int ordinal, DataOutput out) throws Exception {
+        if (byteOrdinals)
+            out.writeByte(ordinal);
+        else
+            out.writeShort(ordinal);
+    }
+
+    // Zig-zag encoding, so that small negative deltas are also written with a small number of bytes
+    private static long encodeDelta(long baseTimestamp, long timestamp) {
+        long delta = baseTimestamp - timestamp;
+        return (delta << 1) ^ (delta >> 63);
+    }
+
+    private static long decodeDelta(long baseTimestamp, long encodedDelta) {
+        long delta = (encodedDelta >>> 1) ^ -(encodedDelta & 1);
+        return baseTimestamp - delta;
+    }
+}
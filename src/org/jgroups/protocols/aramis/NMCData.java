@@ -88,7 +88,7 @@ public class NMCData implements Streamable {
     }
 
     public int size() {
-        return Global.DOUBLE_SIZE + (Global.INT_SIZE * 5);
+        return Global.INT_SIZE * 6;
     }
 
     @Override
@@ -4,6 +4,8 @@ import org.jgroups.*;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.Bits;
+import org.jgroups.util.HybridClock;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.SizeStreamable;
 import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
@@ -11,6 +13,7 @@ import org.jgroups.util.Util;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -30,9 +33,18 @@ public class PCSynch extends Protocol {
             "Specified in milliseconds")
     private long attemptDuration = 100;
 
-    @Property(name = "clock_adjustment", description = "Time which takes the clock’s adjustment, in milliseconds")
+    @Property(name = "clock_adjustment", description = "Time which takes the clock’s adjustment, in milliseconds.  " +
+            "After the first synchronisation the clock is slewed over (at least) this period instead of being stepped")
     private long clockAdjustmentTime = 1; // In milliseconds // alpha
 
+    @Property(name = "max_drift", description = "The maximum drift rate, in parts per million, that is assumed " +
+            "between this node's clock and the master's clock")
+    private double maxDrift = 500;
+
+    @Property(name = "drift_window", description = "The period, in milliseconds, over which the minimum delay of the " +
+            "master's probes is measured in order to estimate the clock drift.  0 disables probe based drift estimation")
+    private long driftWindow = 10000;
+
     @Property(name = "max_latency", description = "2 ∗ U is the maximum round trip delay allowed, hence U − min" +
             "is the maximum error done by reading the clock of another slave. In nanoseconds")
     private int maxLatency = 1000000; // U
@@ -49,8 +61,8 @@ public class PCSynch extends Protocol {
     private List<String> synchedHostnames;
     private List<Address> synchMembers;
     private View view;
-    private VirtualClock clock;
-    private Address master;
+    private HybridClock clock;
+    private volatile Address master;
     private Address localAddress;
     private TimeScheduler timer;
     private volatile boolean synchronised = false;
@@ -83,7 +95,7 @@ public class PCSynch extends Protocol {
     public void startClockSynch() {
         log.setLevel("info");
 
-        clock = new VirtualClock();
+        clock = new HybridClock(maxDrift);
         timer = getTransport().getTimer();
         timer.scheduleAtFixedRate(new RequestSender(), 0, synchFrequency, TimeUnit.MINUTES);
     }
@@ -107,20 +119,7 @@ public class PCSynch extends Protocol {
                 if (header == null)
                     return up_prot.up(event);
 
-                PCSynchData data = header.data;
-                switch (header.type) {
-                    case PCSynchHeader.SYNCH_REQ:
-                        if (log.isTraceEnabled())
-                            log.trace("SYNCH_REQ received " + header);
-
-                        sendResponse(data);
-                        break;
-                    case PCSynchHeader.SYNCH_RSP:
-                        handleResponse(data);
-                        if (log.isTraceEnabled())
-                            log.trace("SYNCH_RSP received " + header);
-                        break;
-                }
+                handleHeader(header);
                 return null;
             case Event.VIEW_CHANGE:
                 View oldView = view;
@@ -142,6 +141,38 @@ public class PCSynch extends Protocol {
         return up_prot.up(event);
     }
 
+    @Override
+    public void up(MessageBatch batch) {
+        for (Iterator<Message> it = batch.iterator(); it.hasNext(); ) {
+            Message message = it.next();
+            PCSynchHeader header;
+            if (message != null && (header = (PCSynchHeader) message.getHeader(id)) != null) {
+                it.remove();
+                handleHeader(header);
+            }
+        }
+
+        if (!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+    private void handleHeader(PCSynchHeader header) {
+        PCSynchData data = header.data;
+        switch (header.type) {
+            case PCSynchHeader.SYNCH_REQ:
+                if (log.isTraceEnabled())
+                    log.trace("SYNCH_REQ received " + header);
+
+                sendResponse(data);
+                break;
+            case PCSynchHeader.SYNCH_RSP:
+                handleResponse(data);
+                if (log.isTraceEnabled())
+                    log.trace("SYNCH_RSP received " + header);
+                break;
+        }
+    }
+
     @Override
     public Object down(Event event) {
         switch (event.getType()) {
@@ -156,6 +187,16 @@ public class PCSynch extends Protocol {
         return clock.getTime();
     }
 
+    // Called by Aramis for every probe received directly from its originator, sendTime is the originator's clock time
+    public void receiveProbe(Address originator, long sendTime) {
+        if (driftWindow > 0 && synchronised && originator.equals(master))
+            clock.probeReceived(sendTime, TimeUnit.MILLISECONDS.toNanos(driftWindow));
+    }
+
+    public double getDrift() {
+        return clock.getDrift();
+    }
+
     public long getMaximumError() {
         return maxLatency;
     }
@@ -196,15 +237,13 @@ public class PCSynch extends Protocol {
             synchInProgress = true;
             final long M = data.responseTime + D;
 
-            clock.startSynchronisation(clockAdjustmentTime, M);
-            Util.sleep(clockAdjustmentTime); // TODO is this necessary, remove clockAdjustmentTime option? Set to 1
-            clock.finishSynchronisation(clockAdjustmentTime, M);
+            clock.synchronise(M, TimeUnit.MILLISECONDS.toNanos(clockAdjustmentTime));
 
             synchronised = true;
             synchInProgress = false;
 
             if (log.isInfoEnabled())
-                log.info("Synchronisation Succeeded | Clock difference := " + clock.getDifference());
+                log.info("Synchronisation Succeeded | Clock difference := " + clock.getDifference() + " | Drift := " + clock.getDrift());
         }
     }
 
@@ -382,40 +421,4 @@ public class PCSynch extends Protocol {
                     '}';
         }
     }
-
-    /**
-     * Class used as a virtual clock, modifies the hardclock and allows synchronisation with an other clock.
-     */
-    final private class VirtualClock {
-        private long n = 0;
-        private long N = 0;
-
-        public VirtualClock() {
-            n = 0;
-            N = 0;
-        }
-
-        public long getTime() {
-            long hardTime = System.nanoTime();
-            return ((n + 1) * hardTime + N);
-        }
-
-        // M is the estimate of the virtual time of the master clock at t
-        public void startSynchronisation(long alpha, long m) {
-            long H = System.nanoTime(); // H is the hardtime at t
-            long L = (n + 1) * H + N; // L is the virtual time at t
-            n = (m - L) / alpha;
-            N = L - (n + 1) * H;
-        }
-
-        public void finishSynchronisation(long alpha, long m) {
-            long H = System.nanoTime(); // H is the hardtime at t+alpha
-            n = 0;
-            N = m + alpha - H;
-        }
-
-        public long getDifference() {
-            return Math.abs(System.nanoTime() - getTime());
-        }
-    }
-}
\ No newline at end of file
+}
@@ -29,6 +29,7 @@ public class RMCastHeader extends Header {
     private Collection<Address> destinations = new ArrayList<Address>();
     private VectorClock vectorClock = null; // The vector clock of the sender
     private Collection<MessageId> acks = new ArrayList<MessageId>();
+    private MemberTable memberTable = null; // Created from the destinations when first needed, see getMemberTable()
 
     public RMCastHeader() {
     }
@@ -107,10 +108,11 @@ public class RMCastHeader extends Header {
 
     @Override
     public int size() {
-        // If vectorClock is null, then there won't be any acks so return 0
-        return Global.BYTE_SIZE + id.size() + Util.size(disseminator) + Global.INT_SIZE +
-                (nmcData == null ? 0 : nmcData.size() + (int) Util.size(destinations)) +
-                (vectorClock == null ? 0 : vectorClock.size() + getAckSize());
+        MemberTable members = getMemberTable();
+        long baseTimestamp = id.getTimestamp();
+        return Global.BYTE_SIZE + Global.BYTE_SIZE + id.size() + Util.size(disseminator) + Global.INT_SIZE +
+                Global.BYTE_SIZE + (nmcData == null ? 0 : nmcData.size()) + (int) Util.size(destinations) + Global.BYTE_SIZE +
+                (vectorClock == null ? 0 : vectorClock.size(members, baseTimestamp)) + getAckSize(members, baseTimestamp);
     }
 
     @Override
@@ -121,8 +123,14 @@ public class RMCastHeader extends Header {
         out.writeInt(copy);
         Util.writeStreamable(nmcData, out);
         Util.writeAddresses(destinations, out);
-        Util.writeStreamable(vectorClock, out);
-        writeAcks(out);
+
+        // The vector clock and acks refer to the destinations by their ordinal, see MemberTable
+        MemberTable members = getMemberTable();
+        long baseTimestamp = id.getTimestamp();
+        out.writeBoolean(vectorClock != null);
+        if (vectorClock != null)
+            vectorClock.writeTo(out, members, baseTimestamp);
+        writeAcks(out, members, baseTimestamp);
     }
 
     @Override
@@ -133,8 +141,16 @@ public class RMCastHeader extends Header {
         copy = in.readInt();
         nmcData = (NMCData) Util.readStreamable(NMCData.class, in);
         destinations = (Collection<Address>) Util.readAddresses(in, ArrayList.class);
-        vectorClock = (VectorClock) Util.readStreamable(VectorClock.class, in);
-        acks = readAcks(in);
+
+        MemberTable members = memberTable = new MemberTable(destinations);
+        long baseTimestamp = id.getTimestamp();
+        if (in.readBoolean()) {
+            vectorClock = new VectorClock();
+            vectorClock.readFrom(in, members, baseTimestamp);
+        } else {
+            vectorClock = null;
+        }
+        acks = readAcks(in, members, baseTimestamp);
     }
 
     @Override
@@ -196,7 +212,16 @@ public class RMCastHeader extends Header {
         }
     }
 
-    private void writeAcks(DataOutput out) throws Exception {
+    // The destinations are not changed once the header has been created or read, so the table is only created once.
+    // Concurrent callers may each create a table, which is harmless as the tables are equal
+    private MemberTable getMemberTable() {
+        MemberTable table = memberTable;
+        if (table == null)
+            memberTable = table = new MemberTable(destinations);
+        return table;
+    }
+
+    private void writeAcks(DataOutput out, MemberTable members, long baseTimestamp) throws Exception {
         if (acks == null) {
             out.writeShort(-1);
             return;
@@ -204,24 +229,27 @@ public class RMCastHeader extends Header {
 
         out.writeShort(acks.size());
         for (MessageId id : acks)
-            Util.writeStreamable(id, out);
+            members.writeMessageId(id, baseTimestamp, out);
     }
 
-    private Collection<MessageId> readAcks(DataInput in) throws Exception {
+    private Collection<MessageId> readAcks(DataInput in, MemberTable members, long baseTimestamp) throws Exception {
         short length = in.readShort();
         if (length < 0) return null;
 
-        Collection<MessageId> acks = new ArrayList<MessageId>();
+        Collection<MessageId> acks = new ArrayList<MessageId>(length);
         for (int i = 0; i < length; i++) {
-            acks.add((MessageId) Util.readStreamable(MessageId.class, in));
+            acks.add(members.readMessageId(baseTimestamp, in));
         }
         return acks;
     }
 
-    private int getAckSize() {
-        int total = 0;
+    private int getAckSize(MemberTable members, long baseTimestamp) {
+        if (acks == null)
+            return Global.SHORT_SIZE;
+
+        int total = Global.SHORT_SIZE;
         for (MessageId id : acks)
-            total += id.size();
+            total += members.size(id, baseTimestamp);
         return total;
     }
 }
\ No newline at end of file
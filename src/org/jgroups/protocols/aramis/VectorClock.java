@@ -1,6 +1,7 @@
 package org.jgroups.protocols.aramis;
 
 import org.jgroups.Address;
+import org.jgroups.Global;
 import org.jgroups.util.SizeStreamable;
 import org.jgroups.util.Util;
 
@@ -66,6 +67,49 @@ public class VectorClock implements SizeStreamable {
         messagesReceived = readAckRecord(in);
     }
 
+    // Compact form used by RMCastHeader, see MemberTable
+    void writeTo(DataOutput out, MemberTable members, long baseTimestamp) throws Exception {
+        out.writeBoolean(lastBroadcast != null);
+        if (lastBroadcast != null)
+            members.writeMessageId(lastBroadcast, baseTimestamp, out);
+
+        if (messagesReceived == null) {
+            out.writeShort(-1);
+            return;
+        }
+
+        out.writeShort(messagesReceived.size());
+        for (Map.Entry<Address, MessageId> entry : messagesReceived.entrySet()) {
+            members.writeAddress(entry.getKey(), out);
+            members.writeMessageId(entry.getValue(), baseTimestamp, out);
+        }
+    }
+
+    void readFrom(DataInput in, MemberTable members, long baseTimestamp) throws Exception {
+        lastBroadcast = in.readBoolean() ? members.readMessageId(baseTimestamp, in) : null;
+
+        short length = in.readShort();
+        if (length < 0) {
+            messagesReceived = null;
+            return;
+        }
+
+        messagesReceived = new HashMap<Address, MessageId>(length);
+        for (int i = 0; i < length; i++)
+            messagesReceived.put(members.readAddress(in), members.readMessageId(baseTimestamp, in));
+    }
+
+    int size(MemberTable members, long baseTimestamp) {
+        int size = Global.BYTE_SIZE + (lastBroadcast == null ? 0 : members.size(lastBroadcast, baseTimestamp));
+        if (messagesReceived == null)
+            return size + Global.SHORT_SIZE;
+
+        size += Global.SHORT_SIZE;
+        for (Map.Entry<Address, MessageId> entry : messagesReceived.entrySet())
+            size += members.size(entry.getKey()) + members.size(entry.getValue(), baseTimestamp);
+        return size;
+    }
+
     @Override
     public String toString() {
         return "VectorClock{" +
@@ -580,7 +580,7 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
 
             if(!is_server) { // discard messages while not yet server (i.e., until JOIN has returned)
                 if(become_server_queue != null) {
-                    become_server_queue.add(msg);
+                    become_server_queue.add(msg.copyPooledBuffer());
                     if(log.isTraceEnabled())
                         log.trace(local_addr + ": message " + msg.getSrc() + "::" + hdr.seqno + " was added to queue (not yet server)");
                 }
@@ -724,7 +724,7 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand,
 
         num_messages_received++;
         boolean loopback=local_addr.equals(sender);
-        boolean added=loopback || win.add(hdr.seqno, msg);
+        boolean added=loopback || win.add(hdr.seqno, msg.copyPooledBuffer());
 
         if(added && log.isTraceEnabled())
             log.trace(new StringBuilder().append(local_addr).append(": received ").append(sender).append('#').append(hdr.seqno));
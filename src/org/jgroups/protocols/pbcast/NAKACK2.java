@@ -2,6 +2,7 @@ package org.jgroups.protocols.pbcast;
 
 import org.jgroups.Address;
 import org.jgroups.Event;
+import org.jgroups.Global;
 import org.jgroups.Message;
 import org.jgroups.View;
 import org.jgroups.annotations.*;
@@ -10,6 +11,7 @@ import org.jgroups.stack.DiagnosticsHandler;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.*;
 
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -97,6 +99,20 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
       "are retransmitted")
     protected long xmit_interval=1000;
 
+    @Property(description="If true, missing messages are requested when their gap is older than twice the measured " +
+      "round trip time to the sender, and requests for the same gap are repeated with exponential backoff, up to " +
+      "xmit_interval. The retransmit task runs every min_xmit_interval ms",writable=false)
+    protected boolean adaptive_xmit=false;
+
+    @Property(description="If true, retransmit requests for multiple senders to the same member are sent in one " +
+      "message, and missing seqnos are sent as bitmap when smaller. Only members running 4.0 or later can read these " +
+      "requests, so this must be false as long as older members are in the cluster",writable=false)
+    protected boolean compact_xmit_reqs=false;
+
+    @Property(description="Min time (in ms) before missing messages are requested, and between requests for the same " +
+      "missing messages. Interval of the retransmit task if adaptive_xmit is true",writable=false)
+    protected long min_xmit_interval=20;
+
     @Property(description="Number of rows of the matrix in the retransmission table (only for experts)",writable=false)
     protected int xmit_table_num_rows=50;
 
@@ -111,6 +127,26 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
       "is compacted (only for experts)",writable=false)
     protected long xmit_table_max_compaction_time=10000;
 
+    @Property(description="If true, the retransmission tables are ConcurrentTables, which don't use a lock: threads " +
+      "adding messages don't contend with the thread delivering them",writable=false)
+    protected boolean concurrent_xmit_table=false;
+
+    @Property(description="Max number of bytes (payload) of delivered messages retained for retransmission in a " +
+      "single retransmission table. When exceeded, the oldest messages are spilled to a file in spill_dir, from " +
+      "which they are retransmitted. 0 disables this",writable=false)
+    protected long max_retained_bytes_per_table=0;
+
+    @Property(description="Max number of bytes (payload) of delivered messages retained for retransmission in all " +
+      "retransmission tables. When exceeded, the oldest messages of the biggest tables are spilled to disk. " +
+      "0 disables this",writable=false)
+    protected long max_retained_bytes=0;
+
+    @Property(description="Directory in which the spill files are created",writable=false)
+    protected String spill_dir=System.getProperty("java.io.tmpdir");
+
+    @Property(description="Size (in bytes) of the memory-mapped segments of a spill file",writable=false)
+    protected int spill_segment_size=16 * 1024 * 1024;
+
     @Property(description="Size of the queue to hold messages received after creating the channel, but before being " +
       "connected (is_server=false). After becoming the server, the messages in the queue are fed into up() and the " +
       "queue is cleared. The motivation is to avoid retransmissions (see https://issues.jboss.org/browse/JGRP-1509 " +
@@ -191,6 +227,12 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     /** Used by the retransmit task to keep the last retransmitted seqno per sender (https://issues.jboss.org/browse/JGRP-1539) */
     protected final Map<Address,Long>   xmit_task_map=new ConcurrentHashMap<Address,Long>();
 
+    /** Round trip times and gaps per sender, used by the retransmit task if adaptive_xmit is true */
+    protected final ConcurrentMap<Address,XmitState> xmit_states=new ConcurrentHashMap<Address,XmitState>();
+
+    /** Accounts for delivered messages retained for retransmission and spills them to disk; null if disabled */
+    protected MessageBudget             budget;
+
     protected volatile boolean          leaving=false;
     protected volatile boolean          running=false;
     protected TimeScheduler             timer=null;
@@ -297,6 +339,28 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         return retval;
     }
 
+    @ManagedAttribute(description="Number of bytes (payload) of delivered messages retained for retransmission, " +
+      "excluding spilled messages")
+    public long getRetainedBytes() {return budget != null? budget.getRetainedBytes() : 0;}
+
+    @ManagedAttribute(description="Number of bytes of the messages currently spilled to disk")
+    public long getSpilledBytes() {return budget != null? budget.getSpilledBytes() : 0;}
+
+    @ManagedAttribute(description="Number of messages currently spilled to disk")
+    public int getNumSpilledMessages() {return budget != null? budget.getNumSpilledMessages() : 0;}
+
+    @ManagedAttribute(description="Total number of messages spilled to disk")
+    public long getNumMessagesSpilled() {return budget != null? budget.getNumMessagesSpilled() : 0;}
+
+    @ManagedAttribute(description="Number of messages read from spill files for retransmission")
+    public long getNumSpillReads() {return budget != null? budget.getNumSpillReads() : 0;}
+
+    @ManagedAttribute(description="Size of all spill files")
+    public long getSpillFileSize() {return budget != null? budget.getSpillFileSize() : 0;}
+
+    @ManagedOperation(description="Prints the bytes retained and spilled by the retransmission tables")
+    public String printBudget() {return budget != null? budget.toString() : "n/a";}
+
     @ManagedAttribute(description="Number of retransmit table compactions")
     public int getXmitTableNumCompactions() {
         Table<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
@@ -378,6 +442,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         Table<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
         if(table != null)
             table.resetStats();
+        if(budget != null)
+            budget.resetStats();
     }
 
     public void init() throws Exception {
@@ -408,6 +474,10 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
         if(suppress_time_non_member_warnings > 0)
             suppress_log_non_member=new SuppressLog<Address>(log, "MsgDroppedNak", "SuppressMsg");
+
+        if(max_retained_bytes > 0 || max_retained_bytes_per_table > 0)
+            budget=new MessageBudget(new File(spill_dir), getName().toLowerCase(), max_retained_bytes,
+                                     max_retained_bytes_per_table, spill_segment_size, false, log);
     }
 
 
@@ -459,6 +529,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             become_server_queue.clear();
         stopRetransmitTask();
         xmit_task_map.clear();
+        xmit_states.clear();
         reset();
     }
 
@@ -513,6 +584,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                 if(suppress_log_non_member != null)
                     suppress_log_non_member.removeExpired(suppress_time_non_member_warnings);
                 xmit_task_map.keySet().retainAll(mbrs);
+                xmit_states.keySet().retainAll(mbrs);
                 break;
 
             case Event.BECOME_SERVER:
@@ -587,6 +659,10 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                         handleXmitReq(msg.getSrc(), missing, hdr.sender);
                         return null;
 
+                    case NakAckHeader2.XMIT_REQ_LIST:
+                        handleXmitReqList(msg);
+                        return null;
+
                     case NakAckHeader2.XMIT_RSP:
                         handleXmitRsp(msg, hdr);
                         return null;
@@ -639,7 +715,14 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                     if(missing != null)
                         handleXmitReq(msg.getSrc(), missing, hdr.sender);
                     break;
+                case NakAckHeader2.XMIT_REQ_LIST:
+                    handleXmitReqList(msg);
+                    break;
                 case NakAckHeader2.XMIT_RSP:
+                    if(!batch.sender().equals(originalSender(msg, hdr))) { // retransmitted by a member other than its sender
+                        handleXmitRsp(msg, hdr);
+                        break;
+                    }
                     Message xmitted_msg=msgFromXmitRsp(msg, hdr);
                     if(xmitted_msg != null) {
                         if(msgs == null)
@@ -690,7 +773,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
     protected void queueMessage(Message msg, long seqno) {
         if(become_server_queue != null) {
-            become_server_queue.add(msg);
+            become_server_queue.add(msg.copyPooledBuffer());
             log.trace("%s: message %s::%d was added to queue (not yet server)", local_addr, msg.getSrc(), seqno);
         }
         else
@@ -750,6 +833,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             }
         }
         while(running);
+        if(budget != null && !dont_loopback_set)
+            budget.added(buf, msg);
 
         // moved down_prot.down() out of synchronized clause (bela Sept 7 2006) http://jira.jboss.com/jira/browse/JGRP-300
         if(log.isTraceEnabled())
@@ -778,7 +863,10 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         // If the message was sent by myself, then it is already in the table and we don't need to add it. If not,
         // and the message is OOB, insert a dummy message (same msg, saving space), deliver it and drop it later on
         // removal. Else insert the real message
-        boolean added=loopback || buf.add(hdr.seqno, msg.isFlagSet(Message.Flag.OOB)? DUMMY_OOB_MSG : msg);
+        boolean oob=msg.isFlagSet(Message.Flag.OOB);
+        if(!loopback && !oob && !buf.contains(hdr.seqno))
+            msg.copyPooledBuffer(); // copied before it is added, as another thread may deliver it right after adding it
+        boolean added=loopback || buf.add(hdr.seqno, oob? DUMMY_OOB_MSG : msg);
 
         if(added && log.isTraceEnabled())
             log.trace("%s: received %s#%d", local_addr, sender, hdr.seqno);
@@ -808,6 +896,10 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         int size=msgs.size();
         num_messages_received+=size;
         boolean loopback=local_addr.equals(sender);
+        if(!loopback && !oob)
+            for(Tuple<Long,Message> tuple: msgs)
+                if(!buf.contains(tuple.getVal1())) // copied before it is added, as it may be delivered right after
+                    tuple.getVal2().copyPooledBuffer();
         boolean added=loopback || buf.add(msgs, oob, oob? DUMMY_OOB_MSG : null);
 
         if(added && log.isTraceEnabled())
@@ -860,6 +952,9 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                     return;
                 }
 
+                if(budget != null && !remove_msgs && !loopback) // own messages were accounted for when sent
+                    for(Message msg: msgs)
+                        budget.added(buf, msg);
                 MessageBatch batch=new MessageBatch(null, sender, cluster_name, true, msgs);
                 deliverBatch(batch);
             }
@@ -894,7 +989,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         }
 
         for(long i: missing_msgs) {
-            Message msg=buf.get(i);
+            Message msg=budget != null? budget.get(buf, i) : buf.get(i);
             if(msg == null) {
                 if(log.isWarnEnabled() && log_not_found_msgs && !local_addr.equals(xmit_requester) && i > buf.getLow())
                     log.warn(Util.getMessage("MessageNotFound"), local_addr, original_sender, i);
@@ -1018,6 +1113,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         try {
             if(stats)
                 xmit_rsps_received.incrementAndGet();
+            xmitResponseReceived(originalSender(msg, hdr));
 
             msg.setDest(null);
             NakAckHeader2 newhdr=hdr.copy();
@@ -1038,6 +1134,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
         if(stats)
             xmit_rsps_received.incrementAndGet();
+        xmitResponseReceived(originalSender(msg, hdr));
 
         msg.setDest(null);
         NakAckHeader2 newhdr=hdr.copy();
@@ -1164,8 +1261,11 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                 if(local_addr != null && local_addr.equals(member))
                     continue;
                 Table<Message> buf=xmit_table.remove(member);
-                if(buf != null)
+                if(buf != null) {
                     log.debug("%s: removed %s from xmit_table (not member anymore)", local_addr, member);
+                    if(budget != null)
+                        budget.remove(buf);
+                }
             }
         }
 
@@ -1246,6 +1346,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                     continue; // don't destroy my own window
                 }
                 xmit_table.remove(member);
+                if(budget != null)
+                    budget.remove(buf);
             }
             buf=createTable(highest_delivered_seqno);
             xmit_table.put(member, buf);
@@ -1290,6 +1392,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                     continue;
 
                 xmit_table.remove(member);
+                if(budget != null)
+                    budget.remove(buf);
                 // to get here, merge must be false !
                 if(member.equals(local_addr)) { // Adjust the seqno: https://jira.jboss.org/browse/JGRP-1251
                     seqno.set(highest_delivered_seqno);
@@ -1311,6 +1415,9 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
 
     protected Table<Message> createTable(long initial_seqno) {
+        if(concurrent_xmit_table)
+            return new ConcurrentTable<Message>(xmit_table_num_rows, xmit_table_msgs_per_row,
+                                                initial_seqno, xmit_table_resize_factor, xmit_table_max_compaction_time);
         return new Table<Message>(xmit_table_num_rows, xmit_table_msgs_per_row,
                                   initial_seqno, xmit_table_resize_factor, xmit_table_max_compaction_time);
     }
@@ -1352,7 +1459,10 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             // delete *delivered* msgs that are stable (all messages with seqnos <= seqno)
             if(hd >= 0 && buf != null) {
                 log.trace("%s: deleting msgs <= %s from %s", local_addr, hd, member);
-                buf.purge(hd);
+                if(budget != null)
+                    budget.purge(buf, hd, false);
+                else
+                    buf.purge(hd);
             }
         }
     }
@@ -1370,6 +1480,19 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     }
 
     protected void retransmit(SeqnoList missing_msgs, final Address sender, boolean multicast_xmit_request) {
+        Address dest=xmitRequestTarget(sender, multicast_xmit_request);
+        Message retransmit_msg=new Message(dest, missing_msgs.useBitmap(compact_xmit_reqs)).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
+          .putHeader(this.id, NakAckHeader2.createXmitRequestHeader(sender));
+
+        log.trace("%s: sending XMIT_REQ (%s) to %s", local_addr, missing_msgs, dest);
+        down_prot.down(new Event(Event.MSG, retransmit_msg));
+        if(stats)
+            xmit_reqs_sent.addAndGet(missing_msgs.size());
+    }
+
+
+    /** Returns the member to send a retransmit request for messages from sender to, or null to multicast it */
+    protected Address xmitRequestTarget(Address sender, boolean multicast_xmit_request) {
         Address dest=(multicast_xmit_request || this.use_mcast_xmit_req)? null : sender; // to whom do we send the XMIT request ?
 
         if(xmit_from_random_member && !local_addr.equals(sender)) {
@@ -1377,20 +1500,105 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             if(random_member != null && !local_addr.equals(random_member))
                 dest=random_member;
         }
+        return dest;
+    }
 
-        Message retransmit_msg=new Message(dest, missing_msgs).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
-          .putHeader(this.id, NakAckHeader2.createXmitRequestHeader(sender));
+    /**
+     * Sends the retransmit requests, keyed by original sender, to their targets. If compact_xmit_reqs is true, requests
+     * with the same target are sent in a single XMIT_REQ_LIST message
+     */
+    protected void sendXmitRequests(Map<Address,SeqnoList> requests) {
+        Map<Address,Map<Address,SeqnoList>> targets=new HashMap<Address,Map<Address,SeqnoList>>(); // null: multicast
+        for(Map.Entry<Address,SeqnoList> entry: requests.entrySet()) {
+            Address dest=xmitRequestTarget(entry.getKey(), false);
+            Map<Address,SeqnoList> reqs=targets.get(dest);
+            if(reqs == null)
+                targets.put(dest, reqs=new HashMap<Address,SeqnoList>());
+            reqs.put(entry.getKey(), entry.getValue());
+        }
 
-        log.trace("%s: sending XMIT_REQ (%s) to %s", local_addr, missing_msgs, dest);
-        down_prot.down(new Event(Event.MSG, retransmit_msg));
-        if(stats)
-            xmit_reqs_sent.addAndGet(missing_msgs.size());
+        for(Map.Entry<Address,Map<Address,SeqnoList>> entry: targets.entrySet()) {
+            Address dest=entry.getKey();
+            Map<Address,SeqnoList> reqs=entry.getValue();
+            if(reqs.size() == 1 || !compact_xmit_reqs) {
+                for(Map.Entry<Address,SeqnoList> req: reqs.entrySet()) {
+                    Message retransmit_msg=new Message(dest, req.getValue().useBitmap(compact_xmit_reqs))
+                      .setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
+                      .putHeader(this.id, NakAckHeader2.createXmitRequestHeader(req.getKey()));
+                    log.trace("%s: sending XMIT_REQ (%s) to %s", local_addr, req.getValue(), dest);
+                    down_prot.down(new Event(Event.MSG, retransmit_msg));
+                    if(stats)
+                        xmit_reqs_sent.addAndGet(req.getValue().size());
+                }
+                continue;
+            }
+
+            try {
+                int size=Global.INT_SIZE;
+                for(Map.Entry<Address,SeqnoList> req: reqs.entrySet())
+                    size+=Util.size(req.getKey()) + req.getValue().useBitmap(true).serializedSize();
+                ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(size);
+                out.writeInt(reqs.size());
+                for(Map.Entry<Address,SeqnoList> req: reqs.entrySet()) {
+                    Util.writeAddress(req.getKey(), out);
+                    req.getValue().writeTo(out);
+                    if(stats)
+                        xmit_reqs_sent.addAndGet(req.getValue().size());
+                }
+                Message retransmit_msg=new Message(dest, out.buffer(), 0, out.position())
+                  .setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
+                  .putHeader(this.id, NakAckHeader2.createXmitRequestListHeader());
+                log.trace("%s: sending XMIT_REQ_LIST (%s) to %s", local_addr, reqs, dest);
+                down_prot.down(new Event(Event.MSG, retransmit_msg));
+            }
+            catch(Exception ex) {
+                log.error("%s: failed sending XMIT_REQ_LIST to %s: %s", local_addr, dest, ex);
+            }
+        }
+    }
+
+    /** Handles the retransmit requests for messages from multiple senders in a XMIT_REQ_LIST message */
+    protected void handleXmitReqList(Message msg) {
+        try {
+            ByteArrayDataInputStream in=new ByteArrayDataInputStream(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+            int num=in.readInt();
+            for(int i=0; i < num; i++) {
+                Address original_sender=Util.readAddress(in);
+                SeqnoList missing=new SeqnoList();
+                missing.readFrom(in);
+                handleXmitReq(msg.getSrc(), missing, original_sender);
+            }
+        }
+        catch(Exception ex) {
+            log.error("%s: failed reading XMIT_REQ_LIST from %s: %s", local_addr, msg.getSrc(), ex);
+        }
+    }
+
+    /**
+     * Returns the original sender of a retransmitted message, which is not necessarily the member which retransmitted
+     * it (e.g. with xmit_from_random_member). The header carries it if set, else the source of the message is the
+     * original sender, as {@link #sendXmitRsp(Address,Message)} retransmits a copy of the original message
+     */
+    protected static Address originalSender(Message msg, NakAckHeader2 hdr) {
+        return hdr.sender != null? hdr.sender : msg.getSrc();
     }
 
+    /**
+     * Called when a retransmitted message of original_sender has been received: updates the round trip time of the
+     * retransmission requests for original_sender's messages. The state is keyed by the original sender, as are the
+     * requests in {@link #triggerXmit()}, not by the member which retransmitted the message
+     */
+    protected void xmitResponseReceived(Address original_sender) {
+        XmitState state=original_sender != null? xmit_states.get(original_sender) : null;
+        if(state != null)
+            state.responseReceived(System.nanoTime());
+    }
 
     protected void reset() {
         seqno.set(0);
         xmit_table.clear();
+        if(budget != null)
+            budget.clear();
     }
 
 
@@ -1403,7 +1611,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
     protected void startRetransmitTask() {
         if(xmit_task == null || xmit_task.isDone())
-            xmit_task=timer.scheduleWithFixedDelay(new RetransmitTask(), 0, xmit_interval, TimeUnit.MILLISECONDS);
+            xmit_task=timer.scheduleWithFixedDelay(new RetransmitTask(), 0, adaptive_xmit? min_xmit_interval : xmit_interval,
+                                                   TimeUnit.MILLISECONDS);
     }
 
     protected void stopRetransmitTask() {
@@ -1425,19 +1634,38 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         }
 
         public String toString() {
-            return NAKACK2.class.getSimpleName() + ": RetransmitTask (interval=" + xmit_interval + " ms)";
+            return NAKACK2.class.getSimpleName() + ": RetransmitTask (interval=" +
+              (adaptive_xmit? min_xmit_interval : xmit_interval) + " ms)";
         }
     }
 
     @ManagedOperation(description="Triggers the retransmission task, asking all senders for missing messages")
     public void triggerXmit() {
         SeqnoList missing;
+        Map<Address,SeqnoList> requests=null;
+        long now=System.nanoTime();
 
         for(Map.Entry<Address,Table<Message>> entry: xmit_table.entrySet()) {
             Address target=entry.getKey(); // target to send retransmit requests to
             Table<Message> buf=entry.getValue();
 
             if(buf != null && buf.getNumMissing() > 0 && (missing=buf.getMissing()) != null) { // getNumMissing() is fast
+                if(adaptive_xmit) {
+                    XmitState state=xmit_states.get(target);
+                    if(state == null) {
+                        XmitState tmp=xmit_states.putIfAbsent(target, state=new XmitState());
+                        if(tmp != null)
+                            state=tmp;
+                    }
+                    missing=state.update(missing, now, TimeUnit.NANOSECONDS.convert(min_xmit_interval, TimeUnit.MILLISECONDS),
+                                         TimeUnit.NANOSECONDS.convert(xmit_interval, TimeUnit.MILLISECONDS));
+                    if(missing != null) {
+                        if(requests == null)
+                            requests=new HashMap<Address,SeqnoList>();
+                        requests.put(target, missing);
+                    }
+                    continue;
+                }
                 long highest=missing.getLast();
                 Long prev_seqno=xmit_task_map.get(target);
                 if(prev_seqno == null) {
@@ -1447,17 +1675,113 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                     missing.removeHigherThan(prev_seqno); // we only retransmit the 'previous batch'
                     if(highest > prev_seqno)
                         xmit_task_map.put(target, highest);
-                    if(missing.size() > 0)
-                        retransmit(missing, target, false);
+                    if(missing.size() > 0) {
+                        if(requests == null)
+                            requests=new HashMap<Address,SeqnoList>();
+                        requests.put(target, missing);
+                    }
+                }
+            }
+            else {
+                if(!xmit_task_map.isEmpty())
+                    xmit_task_map.remove(target); // no current gaps for target
+                XmitState state=adaptive_xmit? xmit_states.get(target) : null;
+                if(state != null)
+                    state.clearGaps();
+            }
+        }
+        if(requests != null)
+            sendXmitRequests(requests);
+        if(budget != null)
+            budget.check(); // spills messages which couldn't be spilled when added as they hadn't been delivered yet
+    }
+
+    @ManagedOperation(description="Prints the round trip times of retransmissions and the gaps per sender " +
+      "(only if adaptive_xmit is true)")
+    public String printXmitStates() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Address,XmitState> entry: xmit_states.entrySet())
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        return sb.toString();
+    }
+
+
+    /**
+     * The smoothed round trip time of retransmissions from a sender, and the gaps in its table. A gap is requested
+     * when it is older than the retransmission delay (twice the round trip time, but at least min_xmit_interval),
+     * and requested again after 2, 4, 8... times the delay (but at most after xmit_interval). A gap created by
+     * splitting an older gap (when some of its messages have been received) keeps the schedule of the older gap
+     */
+    protected static class XmitState {
+        protected long                 rtt=-1;        // smoothed round trip time (ns), -1 until the first sample
+        protected long                 last_request;  // time (ns) the last request was sent, 0 if answered
+        protected TreeMap<Long,Gap>    gaps=new TreeMap<Long,Gap>(); // keyed by the first seqno of a gap
+
+        /** Records the gaps in missing, and returns the seqnos which should be requested now, or null */
+        protected synchronized SeqnoList update(SeqnoList missing, long now, long min_delay, long max_delay) {
+            long delay=Math.max(min_delay, rtt * 2);
+            SeqnoList retval=null;
+            TreeMap<Long,Gap> new_gaps=new TreeMap<Long,Gap>();
+            for(int i=0; i < missing.numRanges(); i++) {
+                long from=missing.getFrom(i), to=missing.getTo(i);
+                Map.Entry<Long,Gap> prev=gaps.floorEntry(from);
+                Gap gap=prev != null && prev.getValue().to >= from? new Gap(to, prev.getValue())
+                  : new Gap(to, now + delay);
+                if(now - gap.next_request >= 0) {
+                    if(retval == null)
+                        retval=new SeqnoList();
+                    if(to > from)
+                        retval.add(from, to);
+                    else
+                        retval.add(from);
+                    gap.next_request=now + Math.min(delay << Math.min(gap.num_requests, 20), max_delay);
+                    gap.num_requests++;
                 }
+                new_gaps.put(from, gap);
             }
-            else if(!xmit_task_map.isEmpty())
-                xmit_task_map.remove(target); // no current gaps for target
+            gaps=new_gaps;
+            if(retval != null)
+                last_request=now;
+            return retval;
+        }
+
+        protected synchronized void responseReceived(long now) {
+            if(last_request == 0)
+                return;
+            long sample=now - last_request;
+            rtt=rtt < 0? sample : (rtt * 7 + sample) / 8;
+            last_request=0;
+        }
+
+        protected synchronized void clearGaps() {
+            if(!gaps.isEmpty())
+                gaps=new TreeMap<Long,Gap>();
+        }
+
+        public synchronized String toString() {
+            return String.format("rtt=%s, gaps=%s", rtt < 0? "n/a" : Util.printTime(rtt, TimeUnit.NANOSECONDS), gaps);
         }
     }
 
+    protected static class Gap {
+        protected final long to;
+        protected long       next_request; // time (ns) at which the gap is requested (again)
+        protected int        num_requests;
 
+        protected Gap(long to, long next_request) {
+            this.to=to;
+            this.next_request=next_request;
+        }
+
+        protected Gap(long to, Gap gap) {
+            this(to, gap.next_request);
+            this.num_requests=gap.num_requests;
+        }
 
+        public String toString() {
+            return "-" + to + " (" + num_requests + " requests)";
+        }
+    }
 
     protected static class Counter implements Table.Visitor<Message> {
         protected final boolean count_size; // use size() or length()
@@ -18,6 +18,7 @@ public class NakAckHeader2 extends Header {
     public static final byte MSG=1;       // regular msg
     public static final byte XMIT_REQ=2;  // retransmit request
     public static final byte XMIT_RSP=3;  // retransmit response (contains one or more messages)
+    public static final byte XMIT_REQ_LIST=4; // retransmit requests for messages from multiple senders
 
     byte      type=0;
     long      seqno=-1;        // seqno of regular message (MSG)
@@ -36,6 +37,10 @@ public class NakAckHeader2 extends Header {
         return new NakAckHeader2(XMIT_REQ, orginal_sender);
     }
 
+    public static NakAckHeader2 createXmitRequestListHeader() {
+        return new NakAckHeader2(XMIT_REQ_LIST, null);
+    }
+
     public static NakAckHeader2 createXmitResponseHeader() {
         return new NakAckHeader2(XMIT_RSP, -1);
     }
@@ -122,6 +127,8 @@ public class NakAckHeader2 extends Header {
                 return "XMIT_REQ";
             case XMIT_RSP:
                 return "XMIT_RSP";
+            case XMIT_REQ_LIST:
+                return "XMIT_REQ_LIST";
             default:
                 return "<undefined>";
         }
@@ -29,6 +29,20 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p>
  * When send_stable_msgs_to_coord_only is true, far fewer messages are exchanged, as members don't multicast
  * STABLE messages, but instead send them only to the coordinator.
+ * <p>
+ * When delta_digests is true (requires send_stable_msgs_to_coord_only), members don't send their full digests, but
+ * only the entries which changed since the last STABILITY message (the base), keyed by the members' ranks in the
+ * current view. The coordinator folds the entries into the min/max seqnos of the current round as they're received,
+ * and mcasts a STABILITY message which also contains only the entries which changed since the base. The size of
+ * STABLE and STABILITY messages therefore depends on the number of members which sent messages, not on the cluster
+ * size. A member whose base is stale (e.g. because it didn't receive a STABILITY message) gets the coordinator's
+ * base in a unicast STABILITY message, and then resends its STABLE message.
+ * <p>
+ * When tree_fanout is > 0 (requires send_stable_msgs_to_coord_only), STABLE messages are aggregated in a tree
+ * derived from the view: the parent of the member at rank i is the member at rank (i-1)/tree_fanout, so the
+ * coordinator is the root. A member with children sends its STABLE message to itself, merges it with the STABLE
+ * messages of its children, and sends the merged digest to its parent once all of them have been received. The
+ * coordinator therefore handles tree_fanout+1 STABLE messages per round instead of one per member.
  * @author Bela Ban
  */
 @MBean(description="Computes the broadcast messages that are stable")
@@ -71,6 +85,16 @@ public class STABLE extends Protocol {
       "on the coordinator")
     protected boolean send_stable_msgs_to_coord_only=true;
 
+    @Property(description="Sends only the seqnos which changed since the last STABILITY message instead of the " +
+      "full digest, and computes the stability digest incrementally. Requires send_stable_msgs_to_coord_only",
+      writable=false)
+    protected boolean delta_digests;
+
+    @Property(description="Number of children per member in a tree of members which aggregates STABLE messages " +
+      "before forwarding them to the coordinator. 0 disables aggregation. Requires send_stable_msgs_to_coord_only",
+      writable=false)
+    protected int     tree_fanout;
+
     
     /* --------------------------------------------- JMX  ---------------------------------------------- */
 
@@ -78,6 +102,9 @@ public class STABLE extends Protocol {
     protected int    num_stable_msgs_received;
     protected int    num_stability_msgs_sent;
     protected int    num_stability_msgs_received;
+    protected long   num_stable_bytes_sent;
+    protected long   num_stability_bytes_sent;
+    protected int    num_resyncs_sent;
 
     
     /* --------------------------------------------- Fields ------------------------------------------------------ */
@@ -128,6 +155,47 @@ public class STABLE extends Protocol {
 
     protected volatile Address    coordinator;
 
+    /* -------------------------------------- Fields used by tree_fanout -------------------------------------- */
+
+    /** The member to which STABLE messages are sent; null if we're the coordinator */
+    protected volatile Address    parent;
+
+    /** Our rank in the current view */
+    @GuardedBy("lock")
+    protected int                 rank=-1;
+
+    /** The number of STABLE messages (from ourself and our children) to be received before forwarding the digest */
+    @GuardedBy("lock")
+    protected int                 num_expected_votes;
+
+    /* ------------------------------------- Fields used by delta_digests ------------------------------------- */
+
+    /** The ranks of the members of the current view */
+    @GuardedBy("lock")
+    protected Map<Address,Integer> ranks;
+
+    /** The seqnos (hd/hr pairs in view order) of the last STABILITY message; entries are sent as deltas to these */
+    @GuardedBy("lock")
+    protected long[]              base;
+
+    /** The number of STABILITY messages in the current view; identifies base */
+    @GuardedBy("lock")
+    protected long                base_round;
+
+    /** The coordinator still accepts STABLE messages sent against the previous base */
+    @GuardedBy("lock")
+    protected long[]              prev_base;
+    @GuardedBy("lock")
+    protected long                prev_round=-1;
+
+    /** Coordinator only: the min hd and max hr reported in the current round (-1: not yet reported) */
+    @GuardedBy("lock")
+    protected long[]              round;
+
+    /** Coordinator only: the number of members which reported an entry in the current round, per member */
+    @GuardedBy("lock")
+    protected int[]               num_reports;
+
     
     
     public STABLE() {             
@@ -159,6 +227,16 @@ public class STABLE extends Protocol {
     public int getStabilitySent() {return num_stability_msgs_sent;}
     @ManagedAttribute
     public int getStabilityReceived() {return num_stability_msgs_received;}
+    @ManagedAttribute(description="Number of bytes sent in STABLE messages")
+    public long getStableBytesSent() {return num_stable_bytes_sent;}
+    @ManagedAttribute(description="Number of bytes sent in STABILITY messages")
+    public long getStabilityBytesSent() {return num_stability_bytes_sent;}
+    @ManagedAttribute(description="Number of STABILITY messages sent to members with a stale base (delta_digests only)")
+    public int getResyncsSent() {return num_resyncs_sent;}
+    @ManagedAttribute(description="Number of STABILITY messages in the current view (delta_digests only)")
+    public long getStabilityRound() {return base_round;}
+    @ManagedAttribute(description="The member to which STABLE messages are sent (tree_fanout > 0 only)")
+    public String getParent() {return parent != null? parent.toString() : "n/a";}
 
     @ManagedAttribute
     public boolean getStableTaskRunning() {
@@ -174,6 +252,8 @@ public class STABLE extends Protocol {
     public void resetStats() {
         super.resetStats();
         num_stability_msgs_received=num_stability_msgs_sent=num_stable_msgs_sent=num_stable_msgs_received=0;
+        num_stable_bytes_sent=num_stability_bytes_sent=0;
+        num_resyncs_sent=0;
     }
 
 
@@ -205,6 +285,18 @@ public class STABLE extends Protocol {
     
     public void init() throws Exception {
         super.init();
+        if(delta_digests && !send_stable_msgs_to_coord_only) {
+            log.warn("delta_digests requires send_stable_msgs_to_coord_only; disabling delta_digests");
+            delta_digests=false;
+        }
+        if(tree_fanout > 0 && !send_stable_msgs_to_coord_only) {
+            log.warn("tree_fanout requires send_stable_msgs_to_coord_only; disabling tree_fanout");
+            tree_fanout=0;
+        }
+        if(tree_fanout > 0 && delta_digests) {
+            log.warn("delta_digests cannot be used with tree_fanout; disabling delta_digests");
+            delta_digests=false;
+        }
     }
 
     public void start() throws Exception {
@@ -234,7 +326,7 @@ public class STABLE extends Protocol {
                     return up_prot.up(evt);
                 }
 
-                handleUpEvent(hdr, msg.getSrc(), readDigest(msg.getRawBuffer(), msg.getOffset(), msg.getLength()));
+                handleUpEvent(hdr, msg.getSrc(), msg);
                 return null;  // don't pass STABLE or STABILITY messages up the stack
 
             case Event.VIEW_CHANGE:
@@ -245,13 +337,19 @@ public class STABLE extends Protocol {
         return up_prot.up(evt);
     }
 
-    protected void handleUpEvent(StableHeader hdr, Address sender, Digest digest) {
+    protected void handleUpEvent(StableHeader hdr, Address sender, Message msg) {
         switch(hdr.type) {
             case StableHeader.STABLE_GOSSIP:
-                handleStableMessage(digest, sender, hdr.view_id);
+                handleStableMessage(readDigest(msg.getRawBuffer(), msg.getOffset(), msg.getLength()), sender, hdr.view_id);
                 break;
             case StableHeader.STABILITY:
-                handleStabilityMessage(digest, sender, hdr.view_id);
+                handleStabilityMessage(readDigest(msg.getRawBuffer(), msg.getOffset(), msg.getLength()), sender, hdr.view_id);
+                break;
+            case StableHeader.STABLE_GOSSIP_DELTA:
+                handleStableDelta(msg.getRawBuffer(), msg.getOffset(), msg.getLength(), sender, hdr.view_id);
+                break;
+            case StableHeader.STABILITY_DELTA:
+                handleStabilityDelta(msg.getRawBuffer(), msg.getOffset(), msg.getLength(), sender, hdr.view_id);
                 break;
             default:
                 log.error("%s: StableHeader type %s not known", local_addr, hdr.type);
@@ -265,7 +363,7 @@ public class STABLE extends Protocol {
         for(Message msg: batch) { // remove and handle messages with flow control headers (STABLE_GOSSIP, STABILITY)
             if((hdr=(StableHeader)msg.getHeader(id)) != null) {
                 batch.remove(msg);
-                handleUpEvent(hdr, batch.sender(), readDigest(msg.getRawBuffer(), msg.getOffset(), msg.getLength()));
+                handleUpEvent(hdr, batch.sender(), msg);
             }
         }
 
@@ -363,6 +461,10 @@ public class STABLE extends Protocol {
         try {
             this.view=v;
             coordinator=v.getMembers().get(0);
+            if(tree_fanout > 0)
+                computeTree();
+            if(delta_digests)
+                resetBase();
             resetDigest();
             if(!initialized)
                 initialized=true;
@@ -414,6 +516,62 @@ public class STABLE extends Protocol {
         digest=new MutableDigest(view.getMembersRaw()); // .set(getDigest());
         log.trace("%s: reset digest to %s", local_addr, printDigest(digest));
         votes=new FixedSizeBitSet(view.size()); // all 0's initially
+        if(delta_digests) {
+            boolean is_coord=local_addr != null && local_addr.equals(coordinator);
+            round=is_coord? new long[view.size() * 2] : null;
+            num_reports=is_coord? new int[view.size()] : null;
+            if(round != null)
+                Arrays.fill(round, -1);
+        }
+    }
+
+    /** Computes our parent and the number of votes (ours and our children's) needed to forward a digest */
+    @GuardedBy("lock")
+    protected void computeTree() {
+        int size=view.size();
+        rank=getRank(local_addr, view);
+        if(rank < 0) {
+            parent=null;
+            num_expected_votes=0;
+            return;
+        }
+        parent=rank > 0? view.getMembersRaw()[(rank-1) / tree_fanout] : null;
+        long first_child=(long)rank * tree_fanout + 1, last_child=Math.min(size - 1, first_child + tree_fanout - 1);
+        num_expected_votes=1 + (int)Math.max(0, last_child - first_child + 1);
+    }
+
+    protected boolean isChild(int rank, int parent_rank) {
+        return rank > 0 && (rank-1) / tree_fanout == parent_rank;
+    }
+
+    /** Starts the current view with a base of all 0's */
+    @GuardedBy("lock")
+    protected void resetBase() {
+        Address[] members=view.getMembersRaw();
+        ranks=new HashMap<Address,Integer>(members.length);
+        for(int i=0; i < members.length; i++)
+            ranks.put(members[i], i);
+        base=new long[members.length * 2];
+        base_round=0;
+        prev_base=null;
+        prev_round=-1;
+    }
+
+    /**
+     * Computes the stability digest from the entries reported in the current round. Members which didn't report an
+     * entry have the same hd as in base, and an hr <= base's hr
+     */
+    @GuardedBy("lock")
+    protected long[] completeRound() {
+        int size=num_reports.length;
+        long[] seqnos=new long[size * 2];
+        for(int i=0; i < size; i++) {
+            int index=i * 2;
+            long hd=round[index], base_hd=base[index];
+            seqnos[index]=num_reports[i] == size? hd : hd == -1? base_hd : Math.min(hd, base_hd);
+            seqnos[index+1]=Math.max(round[index+1], base[index+1]);
+        }
+        return seqnos;
     }
 
     /**
@@ -423,6 +581,8 @@ public class STABLE extends Protocol {
     @GuardedBy("lock")
     protected boolean addVote(int rank) {
         try {
+            if(tree_fanout > 0)
+                return votes.set(rank) && votes.cardinality() == num_expected_votes;
             return votes.set(rank) && allVotesReceived(votes);
         }
         catch(Throwable t) {
@@ -555,17 +715,25 @@ public class STABLE extends Protocol {
             return;
         }
 
-        Digest stable_digest=null;
+        Digest stable_digest=null, subtree_digest=null;
         ViewId stable_view_id=null;
+        Address dest=null;
         lock.lock();
         try {
             int rank=getRank(sender, view);
             if(rank < 0 || votes.get(rank))  // already received gossip from sender; discard it
                 return;
+            if(tree_fanout > 0 && !sender.equals(local_addr) && !isChild(rank, this.rank)) {
+                log.trace("%s: discarded STABLE message from %s as it is not a child of mine", local_addr, sender);
+                return;
+            }
             num_stable_msgs_received++;
             updateLocalDigest(d, sender);
-            if(addVote(rank)) {       // votes from all members have been received
-                stable_digest=digest; // no need to copy, as digest (although mutable) is reassigned below
+            if(addVote(rank)) {       // votes from all members (or our subtree) have been received
+                if(tree_fanout > 0 && (dest=parent) != null)
+                    subtree_digest=digest;
+                else
+                    stable_digest=digest; // no need to copy, as digest (although mutable) is reassigned below
                 stable_view_id=view.getViewId();
                 resetDigest();        // sets digest
             }
@@ -577,6 +745,12 @@ public class STABLE extends Protocol {
             lock.unlock();
         }
 
+        if(subtree_digest != null) {
+            log.trace("%s: forwarding digest of subtree to %s: %s", local_addr, dest, printDigest(subtree_digest));
+            sendStableMessage(dest, stable_view_id, subtree_digest);
+            return;
+        }
+
         // we don't yet reset digest: new STABLE messages will be discarded anyway as we have already
         // received votes from their senders
         if(stable_digest != null) {
@@ -598,6 +772,150 @@ public class STABLE extends Protocol {
     }
 
 
+    /**
+     * Handles a STABLE message sent with delta_digests: folds the entries into the current round, or sends the
+     * base to the sender if its base is stale. When all members have reported, the stability digest is computed and
+     * mcast as the delta to the previous base.
+     */
+    protected void handleStableDelta(byte[] buf, int offset, int length, Address sender, ViewId view_id) {
+        if(buf == null || sender == null) {
+            log.error("%s: delta digest or sender is null", local_addr);
+            return;
+        }
+
+        if(!initialized || suspended) {
+            log.trace("%s: STABLE message is ignored: initialized=%b, suspended=%b", local_addr, initialized, suspended);
+            return;
+        }
+
+        if(!view_id.equals(view.getViewId())) {
+            log.trace("%s: discarded STABLE message with different view-id %s (my view-id=%s)",
+                      local_addr, view_id, view.getViewId());
+            return;
+        }
+
+        Digest stable_digest=null;
+        ViewId stable_view_id=null;
+        Buffer stability=null, resync=null;
+        lock.lock();
+        try {
+            Integer rank=ranks.get(sender);
+            if(rank == null || round == null || votes.get(rank))
+                return;
+            DataInput in=new ByteArrayDataInputStream(buf, offset, length);
+            long from=Bits.readLong(in);
+            long[] from_base=from == base_round? base : from == prev_round? prev_base : null;
+            if(from_base == null) {
+                log.trace("%s: base of %s (round %d) is stale (my round=%d): sending base", local_addr, sender, from, base_round);
+                resync=marshalDelta(-1, base_round, null, base);
+            }
+            else {
+                num_stable_msgs_received++;
+                int count=(int)Bits.readLong(in);
+                for(int i=0, index=-1; i < count; i++) {
+                    index+=Bits.readLong(in) + 1;
+                    int pos=index * 2;
+                    long hd=from_base[pos] + Bits.readLong(in), hr=hd + Bits.readLong(in);
+                    round[pos]=round[pos] == -1? hd : Math.min(round[pos], hd);
+                    round[pos+1]=Math.max(round[pos+1], hr);
+                    num_reports[index]++;
+                }
+                if(addVote(rank)) { // votes from all members have been received
+                    long[] seqnos=completeRound();
+                    stability=marshalDelta(base_round, base_round+1, base, seqnos);
+                    prev_base=base;
+                    prev_round=base_round;
+                    base=seqnos; // never modified, so it can be shared with stable_digest
+                    base_round++;
+                    stable_digest=new Digest(view.getMembersRaw(), seqnos);
+                    stable_view_id=view.getViewId();
+                    resetDigest();
+                }
+            }
+        }
+        catch(Throwable t) {
+            log.error("%s: failed handling delta digest from %s: %s", local_addr, sender, t);
+            return;
+        }
+        finally {
+            lock.unlock();
+        }
+
+        if(resync != null) {
+            num_resyncs_sent++;
+            sendStabilityDelta(sender, view_id, resync);
+        }
+        if(stable_digest != null) {
+            resetNumBytes();
+            // sent directly rather than by the stability task, which drops a STABILITY message when one is pending
+            sendStabilityDelta(null, stable_view_id, stability);
+            down_prot.down(new Event(Event.STABLE, stable_digest));
+        }
+    }
+
+    /**
+     * Handles a STABILITY message sent with delta_digests: applies the entries to base, and handles the resulting
+     * stability digest. A message which is not based on our base is discarded; our next STABLE message will then
+     * fetch the coordinator's base
+     */
+    protected void handleStabilityDelta(byte[] buf, int offset, int length, Address sender, ViewId view_id) {
+        if(buf == null) {
+            log.error("%s: stability delta is null", local_addr);
+            return;
+        }
+
+        if(!initialized || suspended) {
+            log.trace("%s: STABLE message is ignored: initialized=%b, suspended=%b", local_addr, initialized, suspended);
+            return;
+        }
+
+        if(local_addr != null && local_addr.equals(sender)) {
+            num_stability_msgs_received++;
+            return;
+        }
+
+        Digest stable_digest;
+        boolean resync;
+        lock.lock();
+        try {
+            if(!view_id.equals(this.view.getViewId())) {
+                log.trace("%s: discarded STABILITY message with different view-id %s (my view-id=%s)",
+                          local_addr, view_id, view);
+                return;
+            }
+            DataInput in=new ByteArrayDataInputStream(buf, offset, length);
+            long from=Bits.readLong(in), to=Bits.readLong(in);
+            resync=from == -1;
+            if(!resync && from != base_round) {
+                log.trace("%s: discarded STABILITY message from %s for round %d (my round=%d)", local_addr, sender, from, base_round);
+                return;
+            }
+            long[] seqnos=resync? new long[base.length] : Arrays.copyOf(base, base.length);
+            int count=(int)Bits.readLong(in);
+            for(int i=0, index=-1; i < count; i++) {
+                index+=Bits.readLong(in) + 1;
+                int pos=index * 2;
+                seqnos[pos]+=Bits.readLong(in);
+                seqnos[pos+1]=seqnos[pos] + Bits.readLong(in);
+            }
+            base=seqnos;
+            base_round=to;
+            stable_digest=new Digest(view.getMembersRaw(), seqnos);
+        }
+        catch(Throwable t) {
+            log.error("%s: failed handling stability delta from %s: %s", local_addr, sender, t);
+            return;
+        }
+        finally {
+            lock.unlock();
+        }
+
+        handleStabilityMessage(stable_digest, sender, view_id);
+        if(resync)
+            sendStableMessage(true);
+    }
+
+
     protected void handleStabilityMessage(final Digest stable_digest, final Address sender, final ViewId view_id) {
         if(stable_digest == null) {
             if(log.isErrorEnabled()) log.error("stability digest is null");
@@ -630,7 +948,8 @@ public class STABLE extends Protocol {
             log.trace("%s: received stability msg from %s: %s", local_addr, sender, printDigest(stable_digest));
 
             num_stability_msgs_received++;
-            resetDigest();
+            if(tree_fanout == 0) // members of a tree keep the digests of their subtree which were already received
+                resetDigest();
         }
         finally {
             lock.unlock();
@@ -649,30 +968,53 @@ public class STABLE extends Protocol {
             return;
 
         final View          current_view=view;
-        final MutableDigest d=new MutableDigest(current_view.getMembersRaw()).set(getDigest());
         Address dest=send_stable_msgs_to_coord_only? coordinator : null;
+        if(tree_fanout > 0) {
+            // members with children (and the coordinator) merge their own digest with the ones of their children
+            Address tmp=parent;
+            dest=tmp == null || num_expected_votes > 1? local_addr : tmp;
+        }
+        Buffer buf;
+        byte type;
 
-        if(d.allSet() || d.set(getDigest()).allSet()) // try once more if the first digest didn't match
-            log.trace("%s: sending stable msg to %s: %s",
-                      local_addr, (send_stable_msgs_to_coord_only? coordinator : "cluster"), printDigest(d));
+        if(delta_digests) {
+            // try once more if the first digest didn't match
+            if((buf=marshalDelta(current_view, getDigest())) == null && (buf=marshalDelta(current_view, getDigest())) == null) {
+                log.trace("%s: could not find matching digest for view %s", local_addr, current_view);
+                return;
+            }
+            log.trace("%s: sending delta stable msg (%d bytes) to %s", local_addr, buf.getLength(), coordinator);
+            type=StableHeader.STABLE_GOSSIP_DELTA;
+        }
         else {
-            log.trace("%s: could not find matching digest for view %s, missing members: %s", local_addr, current_view, d.getNonSetMembers());
-            return;
+            final MutableDigest d=new MutableDigest(current_view.getMembersRaw()).set(getDigest());
+            if(d.allSet() || d.set(getDigest()).allSet()) // try once more if the first digest didn't match
+                log.trace("%s: sending stable msg to %s: %s",
+                          local_addr, (send_stable_msgs_to_coord_only? coordinator : "cluster"), printDigest(d));
+            else {
+                log.trace("%s: could not find matching digest for view %s, missing members: %s", local_addr, current_view, d.getNonSetMembers());
+                return;
+            }
+            buf=marshal(d);
+            type=StableHeader.STABLE_GOSSIP;
         }
 
         final Message msg=new Message(dest)
           .setFlag(Message.Flag.OOB,Message.Flag.INTERNAL,Message.Flag.NO_RELIABILITY)
-          .putHeader(this.id, new StableHeader(StableHeader.STABLE_GOSSIP, current_view.getViewId()))
-          .setBuffer(marshal(d));
+          .putHeader(this.id, new StableHeader(type, current_view.getViewId()))
+          .setBuffer(buf);
         try {
             if(!send_in_background) {
                 down_prot.down(new Event(Event.MSG, msg));
+                num_stable_msgs_sent++;
+                num_stable_bytes_sent+=msg.getLength();
                 return;
             }
             Runnable r=new Runnable() {
                 public void run() {
                     down_prot.down(new Event(Event.MSG, msg));
                     num_stable_msgs_sent++;
+                    num_stable_bytes_sent+=msg.getLength();
                 }
                 public String toString() {return STABLE.class.getSimpleName() + ": STABLE-GOSSIP";}
             };
@@ -686,10 +1028,115 @@ public class STABLE extends Protocol {
     }
 
 
+    /** Sends the digest of our subtree to our parent */
+    protected void sendStableMessage(Address dest, ViewId view_id, Digest d) {
+        try {
+            Message msg=new Message(dest)
+              .setFlag(Message.Flag.OOB,Message.Flag.INTERNAL,Message.Flag.NO_RELIABILITY)
+              .putHeader(this.id, new StableHeader(StableHeader.STABLE_GOSSIP, view_id))
+              .setBuffer(marshal(d));
+            num_stable_msgs_sent++;
+            num_stable_bytes_sent+=msg.getLength();
+            down_prot.down(new Event(Event.MSG, msg));
+        }
+        catch(Throwable t) {
+            log.warn("failed sending STABLE message", t);
+        }
+    }
+
+
     public static Buffer marshal(Digest digest) {
         return Util.streamableToBuffer(digest);
     }
 
+    /**
+     * Marshals the entries of digest which changed since base, preceded by the round of base. Returns null if
+     * digest doesn't contain all members of v, or if v is not the current view
+     */
+    protected Buffer marshalDelta(View v, Digest digest) {
+        if(digest == null)
+            return null;
+        lock.lock();
+        try {
+            if(v != view || base == null)
+                return null;
+            long[] seqnos=new long[base.length];
+            int found=0;
+            for(Digest.Entry entry: digest) {
+                Integer rank=ranks.get(entry.getMember());
+                if(rank == null)
+                    continue;
+                seqnos[rank * 2]=entry.getHighestDeliveredSeqno();
+                seqnos[rank * 2 +1]=entry.getHighestReceivedSeqno();
+                found++;
+            }
+            if(found != ranks.size())
+                return null;
+            ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(32);
+            Bits.writeLong(base_round, out);
+            writeDelta(base, seqnos, out);
+            return out.getBuffer();
+        }
+        catch(Exception ex) {
+            log.error("%s: failed marshalling delta digest: %s", local_addr, ex);
+            return null;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Marshals a STABILITY message with the entries of to_seqnos which changed since from_seqnos (null: all 0's) */
+    protected static Buffer marshalDelta(long from, long to, long[] from_seqnos, long[] to_seqnos) throws Exception {
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(32);
+        Bits.writeLong(from, out);
+        Bits.writeLong(to, out);
+        writeDelta(from_seqnos, to_seqnos, out);
+        return out.getBuffer();
+    }
+
+    /**
+     * Writes the number of entries of seqnos which differ from base (null: all 0's), followed by each entry as
+     * the distance to the rank of the previous entry, hd - base's hd, and hr - hd. An entry with the same hd as
+     * base and an hr <= base's hr is skipped
+     */
+    protected static void writeDelta(long[] base, long[] seqnos, DataOutput out) throws Exception {
+        int count=0;
+        for(int i=0; i < seqnos.length; i+=2)
+            if(changed(base, seqnos, i))
+                count++;
+        Bits.writeLong(count, out);
+        for(int i=0, prev=-1; i < seqnos.length; i+=2) {
+            if(!changed(base, seqnos, i))
+                continue;
+            int rank=i / 2;
+            Bits.writeLong(rank - prev - 1, out);
+            Bits.writeLong(seqnos[i] - (base != null? base[i] : 0), out);
+            Bits.writeLong(seqnos[i+1] - seqnos[i], out);
+            prev=rank;
+        }
+    }
+
+    protected static boolean changed(long[] base, long[] seqnos, int index) {
+        long hd=base != null? base[index] : 0, hr=base != null? base[index+1] : 0;
+        return seqnos[index] != hd || seqnos[index+1] > hr;
+    }
+
+    protected void sendStabilityDelta(Address dest, ViewId view_id, Buffer buf) {
+        try {
+            Message msg=new Message(dest).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.NO_RELIABILITY)
+              .putHeader(id, new StableHeader(StableHeader.STABILITY_DELTA, view_id))
+              .setBuffer(buf);
+            log.trace("%s: sending delta stability msg (%d bytes) to %s", local_addr, buf.getLength(), dest != null? dest : "cluster");
+            num_stability_msgs_sent++;
+            num_stability_bytes_sent+=buf.getLength();
+            down_prot.down(new Event(Event.MSG, msg));
+        }
+        catch(Exception e) {
+            log.warn("failed sending STABILITY message", e);
+        }
+    }
+
     protected Digest readDigest(byte[] buffer, int offset, int length) {
         try {
             return buffer != null? Util.streamableFromBuffer(Digest.class, buffer, offset, length) : null;
@@ -739,6 +1186,8 @@ public class STABLE extends Protocol {
     public static class StableHeader extends Header {
         public static final byte STABLE_GOSSIP=1;
         public static final byte STABILITY=2;
+        public static final byte STABLE_GOSSIP_DELTA=3;
+        public static final byte STABILITY_DELTA=4;
 
         protected byte   type;
         protected ViewId view_id;
@@ -755,6 +1204,8 @@ public class STABLE extends Protocol {
             switch(t) {
                 case STABLE_GOSSIP: return "STABLE_GOSSIP";
                 case STABILITY:     return "STABILITY";
+                case STABLE_GOSSIP_DELTA: return "STABLE_GOSSIP_DELTA";
+                case STABILITY_DELTA:     return "STABILITY_DELTA";
                 default:            return "<unknown>";
             }
         }
@@ -840,6 +1291,7 @@ public class STABLE extends Protocol {
                   .setBuffer(marshal(stability_digest));
                 log.trace("%s: sending stability msg %s", local_addr, printDigest(stability_digest));
                 num_stability_msgs_sent++;
+                num_stability_bytes_sent+=msg.getLength();
                 down_prot.down(new Event(Event.MSG, msg));
             }
             catch(Exception e) {
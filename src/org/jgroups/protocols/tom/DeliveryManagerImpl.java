@@ -2,6 +2,7 @@ package org.jgroups.protocols.tom;
 
 import org.jgroups.Address;
 import org.jgroups.Message;
+import org.jgroups.util.Tuple;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -43,6 +44,29 @@ public class DeliveryManagerImpl implements DeliveryManager {
         return sequenceNumber;
     }
 
+    /**
+     * adds all the remote messages to the deliver set while acquiring the lock only once
+     *
+     * @param messages the data messages and its headers, received in the same batch
+     * @return the proposed sequence numbers, in the same order of the messages
+     */
+    public long[] addRemoteMessagesToDeliver(List<Tuple<ToaHeader, Message>> messages) {
+        MessageInfo[] messageInfos = new MessageInfo[messages.size()];
+        long[] sequenceNumbers = new long[messages.size()];
+        synchronized (deliverySet) {
+            for (int i = 0; i < messageInfos.length; ++i) {
+                Tuple<ToaHeader, Message> tuple = messages.get(i);
+                sequenceNumbers[i] = sequenceNumberManager.updateAndGet(tuple.getVal1().getSequencerNumber());
+                messageInfos[i] = new MessageInfo(tuple.getVal1().getMessageID(), tuple.getVal2(), sequenceNumbers[i]);
+                deliverySet.add(messageInfos[i]);
+            }
+        }
+        for (MessageInfo messageInfo : messageInfos) {
+            messageCache.put(messageInfo.messageID, messageInfo);
+        }
+        return sequenceNumbers;
+    }
+
     public void updateSequenceNumber(long sequenceNumber) {
         synchronized (deliverySet) {
             sequenceNumberManager.update(sequenceNumber);
@@ -1,7 +1,10 @@
 package org.jgroups.protocols.tom;
 
+import org.jgroups.Address;
 import org.jgroups.Message;
 
+import java.util.Collection;
+
 /**
  * The interface that the Total Order Anycast protocol must implement. This is invoked by the delivery thread
  *
@@ -15,4 +18,14 @@ public interface DeliveryProtocol {
      * @param message   message to deliver
      */
     void deliver(Message message);
+
+    /**
+     * returns the members, other than the local member, that deliver the message, plus the member that sent it (even
+     * if it is the local member). Messages whose conflict sets are disjoint are not ordered with respect to each other
+     * and they can be delivered concurrently
+     *
+     * @param message   message to deliver
+     * @return the conflict set of the message
+     */
+    Collection<Address> getConflictSet(Message message);
 }
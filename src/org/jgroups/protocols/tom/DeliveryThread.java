@@ -15,12 +15,16 @@ import java.util.List;
 public class DeliveryThread extends Thread {
     private DeliveryManager  deliveryManager;
     private volatile boolean running = false;
-    private DeliveryProtocol deliveryProtocol;
+    protected final DeliveryProtocol deliveryProtocol;
 
-    private final Log log = LogFactory.getLog(this.getClass());
+    protected final Log log = LogFactory.getLog(this.getClass());
 
     public DeliveryThread(DeliveryProtocol protocol) {
-        super("TOA-Delivery-Thread");
+        this("TOA-Delivery-Thread", protocol);
+    }
+
+    protected DeliveryThread(String name, DeliveryProtocol protocol) {
+        super(name);
         if (protocol == null) {
             throw new NullPointerException("TOA Protocol can't be null");
         }
@@ -49,21 +53,33 @@ public class DeliveryThread extends Thread {
     public void run() {
         while (running) {
             try {
-                List<Message> messages = deliveryManager.getNextMessagesToDeliver();
-
-                for (Message msg : messages) {
-                    try {
-                        deliveryProtocol.deliver(msg);
-                    } catch(Throwable t) {
-                        log.warn("Exception caught while delivering message " + msg + ":" + t.getMessage());
-                    }
-                }
+                deliver(deliveryManager.getNextMessagesToDeliver());
             } catch (InterruptedException e) {
                 //interrupted
             }
         }
     }
 
+    /**
+     * delivers the messages, in the order they were returned by the delivery manager
+     *
+     * @param messages the messages to deliver
+     * @throws InterruptedException if it is interrupted
+     */
+    protected void deliver(List<Message> messages) throws InterruptedException {
+        for (Message msg : messages) {
+            deliverMessage(msg);
+        }
+    }
+
+    protected final void deliverMessage(Message msg) {
+        try {
+            deliveryProtocol.deliver(msg);
+        } catch(Throwable t) {
+            log.warn("Exception caught while delivering message " + msg + ":" + t.getMessage());
+        }
+    }
+
     @Override
     public void interrupt() {
         running = false;
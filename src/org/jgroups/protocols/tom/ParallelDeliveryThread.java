@@ -0,0 +1,118 @@
+package org.jgroups.protocols.tom;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.util.DefaultThreadFactory;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A delivery thread that delivers the Total Order Anycast messages concurrently, using a pool of threads, when they do
+ * not conflict with each other.
+ * <p/>
+ * Two messages conflict if their conflict sets (see {@link DeliveryProtocol#getConflictSet(Message)}) intersect, i.e.
+ * if another member delivers both messages, if a member sent one and delivers the other or if both have the same
+ * sender (including the local member). The messages are
+ * dispatched in the total order and a message is only dispatched once all the previous messages that conflict with it
+ * have been delivered, so the order among conflicting messages is the same as with the {@link DeliveryThread}.
+ *
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+public class ParallelDeliveryThread extends DeliveryThread {
+    private final ExecutorService executor;
+    private final StatsCollector statsCollector;
+    private final Set<Address> inDelivery = new HashSet<Address>(); //the conflict sets of the messages being delivered
+
+    public ParallelDeliveryThread(DeliveryProtocol protocol, int numberOfThreads, StatsCollector statsCollector) {
+        super("TOA-Parallel-Delivery-Thread", protocol);
+        if (numberOfThreads < 1) {
+            throw new IllegalArgumentException("The number of delivery threads must be greater than 0");
+        }
+        this.executor = Executors.newFixedThreadPool(numberOfThreads,
+                                                     new DefaultThreadFactory("TOA-Delivery-Worker", true));
+        this.statsCollector = statsCollector;
+    }
+
+    @Override
+    protected void deliver(List<Message> messages) throws InterruptedException {
+        for (Message message : messages) {
+            Collection<Address> conflictSet = deliveryProtocol.getConflictSet(message);
+            waitForConflicts(conflictSet);
+            try {
+                executor.execute(new Delivery(message, conflictSet));
+            } catch (RejectedExecutionException e) {
+                //the executor was shutdown
+                deliveryFinished(conflictSet);
+                throw new InterruptedException("The delivery executor is shutdown");
+            }
+        }
+    }
+
+    @Override
+    public void interrupt() {
+        super.interrupt();
+        executor.shutdown();
+    }
+
+    //blocks until no message whose conflict set intersects with conflictSet is being delivered
+    private void waitForConflicts(Collection<Address> conflictSet) throws InterruptedException {
+        synchronized (inDelivery) {
+            boolean conflict = false;
+            while (intersects(conflictSet)) {
+                conflict = true;
+                inDelivery.wait();
+            }
+            inDelivery.addAll(conflictSet);
+            if (conflict) {
+                statsCollector.incrementDeliveryConflicts();
+            }
+        }
+    }
+
+    private boolean intersects(Collection<Address> conflictSet) {
+        if (inDelivery.isEmpty()) {
+            return false;
+        }
+        for (Address address : conflictSet) {
+            if (inDelivery.contains(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void deliveryFinished(Collection<Address> conflictSet) {
+        synchronized (inDelivery) {
+            inDelivery.removeAll(conflictSet);
+            inDelivery.notifyAll();
+        }
+    }
+
+    private class Delivery implements Runnable {
+        private final Message message;
+        private final Collection<Address> conflictSet;
+
+        private Delivery(Message message, Collection<Address> conflictSet) {
+            this.message = message;
+            this.conflictSet = conflictSet;
+        }
+
+        @Override
+        public void run() {
+            statsCollector.deliveryStarted();
+            try {
+                deliverMessage(message);
+            } finally {
+                statsCollector.deliveryFinished();
+                deliveryFinished(conflictSet);
+            }
+        }
+    }
+}
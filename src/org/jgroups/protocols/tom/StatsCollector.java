@@ -19,7 +19,9 @@ public class StatsCollector {
         DATA_MESSAGE_RECEIVED,
         ANYCAST_MESSAGE_SENT,
         ANYCAST_MESSAGE_DELIVERED,
-        UNICAST_MESSAGE_SENT
+        UNICAST_MESSAGE_SENT,
+        PARALLEL_DELIVERY,
+        DELIVERY_CONFLICT
     }
 
     private static enum Duration {
@@ -35,6 +37,12 @@ public class StatsCollector {
     private EnumMap<Counter, AtomicInteger> counters;
     private EnumMap<Duration, AtomicLong> durations;
 
+    //parallel delivery: the number of messages being delivered is always tracked, so that it is correct when the stats
+    //are enabled. The sum is the number of messages being delivered when each delivery started (including itself)
+    private final AtomicInteger deliveriesInProgress = new AtomicInteger(0);
+    private final AtomicInteger maxDeliveriesInProgress = new AtomicInteger(0);
+    private final AtomicLong deliveriesInProgressSum = new AtomicLong(0);
+
     public StatsCollector() {
         counters = new EnumMap<Counter, AtomicInteger>(Counter.class);
         durations = new EnumMap<Duration, AtomicLong>(Duration.class);
@@ -78,6 +86,9 @@ public class StatsCollector {
         for (AtomicLong duration : durations.values()) {
             duration.set(0);
         }
+
+        maxDeliveriesInProgress.set(0);
+        deliveriesInProgressSum.set(0);
     }
 
     public long now() {
@@ -132,6 +143,49 @@ public class StatsCollector {
         counters.get(Counter.ANYCAST_MESSAGE_DELIVERED).incrementAndGet();
     }
 
+    public void deliveryStarted() {
+        int inProgress = deliveriesInProgress.incrementAndGet();
+        if (!shouldCollectStats()) {
+            return;
+        }
+        counters.get(Counter.PARALLEL_DELIVERY).incrementAndGet();
+        deliveriesInProgressSum.addAndGet(inProgress);
+
+        int max;
+        while (inProgress > (max = maxDeliveriesInProgress.get())) {
+            if (maxDeliveriesInProgress.compareAndSet(max, inProgress)) {
+                break;
+            }
+        }
+    }
+
+    public void deliveryFinished() {
+        deliveriesInProgress.decrementAndGet();
+    }
+
+    public void incrementDeliveryConflicts() {
+        if (!shouldCollectStats()) {
+            return;
+        }
+        counters.get(Counter.DELIVERY_CONFLICT).incrementAndGet();
+    }
+
+    public double getAvgDeliveryParallelism() {
+        int count = counters.get(Counter.PARALLEL_DELIVERY).get();
+        if (count > 0) {
+            return deliveriesInProgressSum.get() * 1.0 / count;
+        }
+        return 0D;
+    }
+
+    public int getMaxDeliveryParallelism() {
+        return maxDeliveriesInProgress.get();
+    }
+
+    public int getNumberOfDeliveryConflicts() {
+        return counters.get(Counter.DELIVERY_CONFLICT).get();
+    }
+
     public double getAvgDataMessageReceivedDuration() {
         int count = counters.get(Counter.DATA_MESSAGE_RECEIVED).get();
         if (count > 0) {
@@ -4,10 +4,15 @@ import org.jgroups.*;
 import org.jgroups.annotations.MBean;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Tuple;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
@@ -29,7 +34,7 @@ public class TOA extends Protocol implements DeliveryProtocol {
     private SenderManager senderManager;
 
     // threads
-    private final DeliveryThread deliverThread = new DeliveryThread(this);
+    private DeliveryThread deliverThread;
 
     //local address
     private Address localAddress;
@@ -41,6 +46,13 @@ public class TOA extends Protocol implements DeliveryProtocol {
     private final StatsCollector statsCollector = new StatsCollector();
     private volatile View currentView;
 
+    @Property(description = "If true, messages whose destination sets only overlap at this member are delivered " +
+            "concurrently. Messages with overlapping destination sets are still delivered in the total order")
+    private boolean parallel_delivery = false;
+
+    @Property(description = "The number of threads used to deliver messages when parallel_delivery is enabled")
+    private int delivery_threads = 4;
+
     public TOA() {
     }
 
@@ -48,6 +60,12 @@ public class TOA extends Protocol implements DeliveryProtocol {
     public void start() throws Exception {
         deliverManager = new DeliveryManagerImpl();
         senderManager = new SenderManager();
+        //created here, as TOA can be inserted in the stack after the protocols were initialized (e.g. by AbaaS)
+        deliverThread = parallel_delivery ? new ParallelDeliveryThread(this, delivery_threads, statsCollector) :
+                new DeliveryThread(this);
+        if (localAddress != null) {
+            deliverThread.setLocalAddress(localAddress.toString());
+        }
         deliverThread.start(deliverManager);
         statsCollector.setStatsEnabled(statsEnabled());
     }
@@ -65,7 +83,9 @@ public class TOA extends Protocol implements DeliveryProtocol {
                 return null;
             case Event.SET_LOCAL_ADDRESS:
                 this.localAddress = (Address) evt.getArg();
-                this.deliverThread.setLocalAddress(localAddress.toString());
+                if (deliverThread != null) {
+                    this.deliverThread.setLocalAddress(localAddress.toString());
+                }
                 break;
             case Event.VIEW_CHANGE:
                 handleViewChange((View) evt.getArg());
@@ -88,24 +108,11 @@ public class TOA extends Protocol implements DeliveryProtocol {
                     break;
                 }
 
-                switch (header.getType()) {
-                    case ToaHeader.DATA_MESSAGE:
-                        handleDataMessage(message, header);
-                        break;
-                    case ToaHeader.PROPOSE_MESSAGE:
-                        handleSequenceNumberPropose(message.getSrc(), header);
-                        break;
-                    case ToaHeader.FINAL_MESSAGE:
-                        handleFinalSequenceNumber(header);
-                        break;
-                    case ToaHeader.SINGLE_DESTINATION_MESSAGE:
-                        if (log.isTraceEnabled()) {
-                            log.trace("Received message " + message + " with SINGLE_DESTINATION header. delivering...");
-                        }
-                        deliverManager.deliverSingleDestinationMessage(message, header.getMessageID());
-                        break;
-                    default:
-                        throw new IllegalStateException("Unknown header type received " + header);
+                if (header.getType() == ToaHeader.DATA_MESSAGE) {
+                    message.copyPooledBuffer(); // kept until the final sequence number is known
+                    handleDataMessage(message, header);
+                } else {
+                    handleMessage(message, header);
                 }
                 return null;
             case Event.VIEW_CHANGE:
@@ -113,7 +120,9 @@ public class TOA extends Protocol implements DeliveryProtocol {
                 break;
             case Event.SET_LOCAL_ADDRESS:
                 this.localAddress = (Address) evt.getArg();
-                this.deliverThread.setLocalAddress(localAddress.toString());
+                if (deliverThread != null) {
+                    this.deliverThread.setLocalAddress(localAddress.toString());
+                }
                 break;
             default:
                 break;
@@ -121,6 +130,57 @@ public class TOA extends Protocol implements DeliveryProtocol {
         return up_prot.up(evt);
     }
 
+    @Override
+    public void up(MessageBatch batch) {
+        List<Tuple<ToaHeader, Message>> dataMessages = null;
+        for (Iterator<Message> iterator = batch.iterator(); iterator.hasNext(); ) {
+            Message message = iterator.next();
+            ToaHeader header;
+            if (message == null || (header = (ToaHeader) message.getHeader(this.id)) == null) {
+                continue;
+            }
+            iterator.remove();
+
+            if (header.getType() == ToaHeader.DATA_MESSAGE) {
+                if (dataMessages == null) {
+                    dataMessages = new ArrayList<Tuple<ToaHeader, Message>>(batch.size() + 1);
+                }
+                message.copyPooledBuffer(); // kept until the final sequence number is known
+                dataMessages.add(new Tuple<ToaHeader, Message>(header, message));
+            } else {
+                handleMessage(message, header);
+            }
+        }
+
+        if (dataMessages != null) {
+            handleDataMessages(dataMessages);
+        }
+
+        if (!batch.isEmpty()) {
+            up_prot.up(batch);
+        }
+    }
+
+    //handles all the header types, except the DATA_MESSAGE
+    private void handleMessage(Message message, ToaHeader header) {
+        switch (header.getType()) {
+            case ToaHeader.PROPOSE_MESSAGE:
+                handleSequenceNumberPropose(message.getSrc(), header);
+                break;
+            case ToaHeader.FINAL_MESSAGE:
+                handleFinalSequenceNumber(header);
+                break;
+            case ToaHeader.SINGLE_DESTINATION_MESSAGE:
+                if (log.isTraceEnabled()) {
+                    log.trace("Received message " + message + " with SINGLE_DESTINATION header. delivering...");
+                }
+                deliverManager.deliverSingleDestinationMessage(message, header.getMessageID());
+                break;
+            default:
+                throw new IllegalStateException("Unknown header type received " + header);
+        }
+    }
+
     @Override
     public void deliver(Message message) {
         message.setDest(localAddress);
@@ -133,6 +193,23 @@ public class TOA extends Protocol implements DeliveryProtocol {
         statsCollector.incrementMessageDeliver();
     }
 
+    @Override
+    public Collection<Address> getConflictSet(Message message) {
+        ToaHeader header = (ToaHeader) message.getHeader(this.id);
+        Collection<Address> destinations = header == null ? null : header.getDestinations();
+        Set<Address> conflictSet = new HashSet<Address>();
+        if (destinations != null) {
+            conflictSet.addAll(destinations);
+        }
+        conflictSet.remove(localAddress);
+        //messages from the same sender are delivered in order, as with a single delivery thread. This includes the
+        //local member, else its messages to disjoint destinations (or only to itself) could be reordered
+        if (message.getSrc() != null) {
+            conflictSet.add(message.getSrc());
+        }
+        return conflictSet;
+    }
+
     private void handleViewChange(View view) {
         if (log.isTraceEnabled()) {
             log.trace("Handle view " + view);
@@ -276,14 +353,7 @@ public class TOA extends Protocol implements DeliveryProtocol {
                         myProposeSequenceNumber);
             }
 
-            //create a new message and send it back
-            ToaHeader newHeader = ToaHeader.newProposeMessageHeader(messageID, myProposeSequenceNumber);
-
-            Message proposeMessage = new Message().src(localAddress).dest(messageID.getAddress())
-                    .putHeader(this.id, newHeader).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.DONT_BUNDLE);
-
-            //multicastSenderThread.addUnicastMessage(proposeMessage);
-            down_prot.down(new Event(Event.MSG, proposeMessage));
+            sendProposeMessage(messageID, myProposeSequenceNumber);
             duration = statsCollector.now() - startTime;
         } catch (Exception e) {
             logException("Exception caught while processing the data message " + header.getMessageID(), e);
@@ -292,6 +362,51 @@ public class TOA extends Protocol implements DeliveryProtocol {
         }
     }
 
+    //the data messages of a batch are added to the deliver manager while acquiring its lock only once
+    private void handleDataMessages(List<Tuple<ToaHeader, Message>> dataMessages) {
+        long startTime = statsCollector.now();
+        long[] proposedSequenceNumbers;
+
+        try {
+            proposedSequenceNumbers = deliverManager.addRemoteMessagesToDeliver(dataMessages);
+        } catch (Exception e) {
+            logException("Exception caught while processing a batch of " + dataMessages.size() + " data messages", e);
+            for (int i = 0; i < dataMessages.size(); ++i) {
+                statsCollector.addDataMessageDuration(-1);
+            }
+            return;
+        }
+
+        boolean trace = log.isTraceEnabled();
+        for (int i = 0; i < proposedSequenceNumbers.length; ++i) {
+            ToaHeader header = dataMessages.get(i).getVal1();
+            long duration = -1;
+            try {
+                if (trace) {
+                    log.trace("Received the message with " + header + ". The proposed sequence number is " +
+                            proposedSequenceNumbers[i]);
+                }
+                sendProposeMessage(header.getMessageID(), proposedSequenceNumbers[i]);
+                duration = statsCollector.now() - startTime;
+            } catch (Exception e) {
+                logException("Exception caught while processing the data message " + header.getMessageID(), e);
+            } finally {
+                statsCollector.addDataMessageDuration(duration);
+            }
+        }
+    }
+
+    private void sendProposeMessage(MessageID messageID, long proposeSequenceNumber) {
+        //create a new message and send it back
+        ToaHeader newHeader = ToaHeader.newProposeMessageHeader(messageID, proposeSequenceNumber);
+
+        Message proposeMessage = new Message().src(localAddress).dest(messageID.getAddress())
+                .putHeader(this.id, newHeader).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.DONT_BUNDLE);
+
+        //multicastSenderThread.addUnicastMessage(proposeMessage);
+        down_prot.down(new Event(Event.MSG, proposeMessage));
+    }
+
     private void handleSequenceNumberPropose(Address from, ToaHeader header) {
         long startTime = statsCollector.now();
         long duration = -1;
@@ -465,4 +580,22 @@ public class TOA extends Protocol implements DeliveryProtocol {
     public double getAvgNumberOfUnicastSentPerAnycast() {
         return statsCollector.getAvgNumberOfUnicastSentPerAnycast();
     }
+
+    @ManagedAttribute(description = "The average number of messages being delivered concurrently when a message " +
+            "delivery starts (only with parallel_delivery)", writable = false)
+    public double getAvgDeliveryParallelism() {
+        return statsCollector.getAvgDeliveryParallelism();
+    }
+
+    @ManagedAttribute(description = "The maximum number of messages delivered concurrently (only with " +
+            "parallel_delivery)", writable = false)
+    public int getMaxDeliveryParallelism() {
+        return statsCollector.getMaxDeliveryParallelism();
+    }
+
+    @ManagedAttribute(description = "The number of messages whose delivery was delayed because it conflicts with a " +
+            "message being delivered (only with parallel_delivery)", writable = false)
+    public int getNumberOfDeliveryConflicts() {
+        return statsCollector.getNumberOfDeliveryConflicts();
+    }
 }
@@ -106,27 +106,53 @@ public class GossipData implements SizeStreamable {
 
 
     public void writeTo(DataOutput out) throws Exception {
+        writeHeaderTo(out);
+        if(buffer != null)
+            out.write(buffer, offset, length);
+    }
+
+    /**
+     * Writes all fields except the contents of the buffer (but including its length). Used by the GossipRouter to
+     * forward a message without copying its payload
+     */
+    void writeHeaderTo(DataOutput out) throws Exception {
         out.writeByte(type);
         Bits.writeString(group,out);
         Util.writeAddress(addr, out);
         Bits.writeString(logical_name,out);
         Util.writeAddresses(mbrs, out);
         Util.writeAddresses(physical_addrs, out);
-        Util.writeByteBuffer(buffer, offset, length, out);
+        if(buffer != null) {
+            out.writeByte(1);
+            out.writeInt(length);
+        }
+        else
+            out.writeByte(0);
     }
 
     public void readFrom(DataInput in) throws Exception {
+        int len=readHeaderFrom(in);
+        if(len >= 0) {
+            buffer=new byte[len];
+            in.readFully(buffer, 0, len);
+            offset=0;
+            length=len;
+        }
+    }
+
+    /**
+     * Reads all fields except the buffer. Used by the non-blocking GossipRouter, which needs to know the size of a
+     * request before its buffer has been received completely
+     * @return the length of the buffer which follows, or -1 if there is no buffer
+     */
+    int readHeaderFrom(DataInput in) throws Exception {
         type=in.readByte();
         group=Bits.readString(in);
         addr=Util.readAddress(in);
         logical_name=Bits.readString(in);
         mbrs=(List<Address>)Util.readAddresses(in, LinkedList.class);
         physical_addrs=(Collection<PhysicalAddress>)Util.readAddresses(in, ArrayList.class);
-        buffer=Util.readByteBuffer(in);
-        if(buffer != null) {
-            offset=0;
-            length=buffer.length;
-        }
+        return in.readByte() == 1? in.readInt() : -1;
     }
 
 
@@ -1,6 +1,7 @@
 package org.jgroups.stack;
 
 import org.jgroups.Address;
+import org.jgroups.Global;
 import org.jgroups.PhysicalAddress;
 import org.jgroups.protocols.PingData;
 import org.jgroups.annotations.ManagedAttribute;
@@ -18,15 +19,23 @@ import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Router for TCP based group comunication (using layer TCP instead of UDP). Instead of the TCP
@@ -46,6 +55,14 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * <p/>
  * Note that a GossipRouter is also a good way of running JGroups in Amazon's EC2 environment which (as of summer 09)
  * doesn't support IP multicasting.
+ * <p/>
+ * By default, every client is served by its own thread, which forwards messages by writing to the sockets of the
+ * destinations. If nio is true, clients are served by a fixed number of selector threads instead. Messages to a client
+ * are then queued (bounded by client_queue_size) and written by the selector thread of the client, so a slow client
+ * doesn't stall the others.
+ * <p/>
+ * A client can also send a MESSAGE_LIST request, which carries a bundle of messages for different destinations. The
+ * router forwards each message in the list as a separate MESSAGE, without copying or re-serializing its payload.
  * @author Bela Ban
  * @author Vladimir Blagojevic
  * @author Ovidiu Feodorov <ovidiuf@users.sourceforge.net>
@@ -62,6 +79,7 @@ public class GossipRouter {
     public static final byte CONNECT_OK=14;
     public static final byte OP_FAIL=15;  
     public static final byte DISCONNECT_OK=16;
+    public static final byte MESSAGE_LIST=17; // MESSAGE_LIST(group, buf): list of (dest, length, payload) entries
     
     
 
@@ -101,6 +119,35 @@ public class GossipRouter {
     @ManagedAttribute(description="whether to discard message sent to self", writable=true)
     private boolean discard_loopbacks=false;
 
+    @Property(description="If true, clients are served by a fixed number of selector threads with non-blocking " +
+      "channels, instead of by a thread per client")
+    protected boolean nio=false;
+
+    @Property(description="Number of selector threads if nio is true. 0 uses one thread per core")
+    protected int num_selectors=0;
+
+    @Property(description="Max number of messages queued for a client if nio is true")
+    protected int client_queue_size=2000;
+
+    @Property(description="What to do with a message to a client whose queue is full (only if nio is true). " +
+      "\"drop\" discards the message. \"backpressure\" queues it, but stops reading from the sender until the " +
+      "client's queue has been drained to half its size. Note that backpressure is applied per sender, not per " +
+      "destination: all requests of a sender arrive on the same connection, so a single slow client stops the " +
+      "forwarding of all messages of its senders, including those to other clients, and also stalls their " +
+      "registrations and pings")
+    protected String full_queue_policy="drop";
+
+    protected ServerSocketChannel srv_channel; // used instead of srvSock if nio is true
+    protected Reactor[]           reactors;
+    protected int                 next_reactor;
+    protected boolean             backpressure;
+
+    protected final AtomicLong    num_forwarded_msgs=new AtomicLong(), num_forwarded_bytes=new AtomicLong(),
+                                  num_dropped_msgs=new AtomicLong();
+    protected volatile long       stats_start=System.currentTimeMillis();
+
+    protected static final int    MAX_GATHER=64; // max number of buffers written by a single gathering write
+
     protected List<ConnectionTearListener> connectionTearListeners=new CopyOnWriteArrayList<ConnectionTearListener>();
 
     protected ThreadFactory default_thread_factory=new DefaultThreadFactory("gossip-handlers", true, true);
@@ -199,6 +246,76 @@ public class GossipRouter {
         this.sock_read_timeout=sock_read_timeout;
     }
 
+    public boolean isNio() {
+        return nio;
+    }
+
+    public void setNio(boolean nio) {
+        this.nio=nio;
+    }
+
+    public int getNumSelectors() {
+        return num_selectors;
+    }
+
+    public void setNumSelectors(int num_selectors) {
+        this.num_selectors=num_selectors;
+    }
+
+    public int getClientQueueSize() {
+        return client_queue_size;
+    }
+
+    public void setClientQueueSize(int client_queue_size) {
+        this.client_queue_size=client_queue_size;
+    }
+
+    public String getFullQueuePolicy() {
+        return full_queue_policy;
+    }
+
+    public void setFullQueuePolicy(String full_queue_policy) {
+        this.full_queue_policy=full_queue_policy;
+    }
+
+    @ManagedAttribute(description="Number of messages forwarded to clients (a multicast counts once per member)")
+    public long getNumForwardedMessages() {
+        return num_forwarded_msgs.get();
+    }
+
+    @ManagedAttribute(description="Number of bytes forwarded to clients")
+    public long getNumForwardedBytes() {
+        return num_forwarded_bytes.get();
+    }
+
+    @ManagedAttribute(description="Number of messages dropped because the queue of the destination was full")
+    public long getNumDroppedMessages() {
+        return num_dropped_msgs.get();
+    }
+
+    @ManagedAttribute(description="Messages forwarded per second since the router was started (or the stats were reset)")
+    public double getForwardedMessagesPerSecond() {
+        long time=System.currentTimeMillis() - stats_start;
+        return time > 0? num_forwarded_msgs.get() * 1000.0 / time : 0;
+    }
+
+    @ManagedAttribute(description="Bytes forwarded per second since the router was started (or the stats were reset)")
+    public double getForwardedBytesPerSecond() {
+        long time=System.currentTimeMillis() - stats_start;
+        return time > 0? num_forwarded_bytes.get() * 1000.0 / time : 0;
+    }
+
+    @ManagedOperation(description="Resets all statistics")
+    public void resetStats() {
+        num_forwarded_msgs.set(0);
+        num_forwarded_bytes.set(0);
+        num_dropped_msgs.set(0);
+        stats_start=System.currentTimeMillis();
+        for(ConcurrentMap<Address,ConnectionHandler> map: routingTable.values())
+            for(ConnectionHandler handler: map.values())
+                handler.resetStats();
+    }
+
     public ThreadFactory getDefaultThreadPoolThreadFactory() {
         return default_thread_factory;
     }
@@ -225,6 +342,8 @@ public class GossipRouter {
                 return "DISCONNECT_OK";
             case OP_FAIL:
                 return "OP_FAIL";
+            case MESSAGE_LIST:
+                return "MESSAGE_LIST";
             default:
                 return "unknown (" + type + ")";
         }
@@ -246,8 +365,11 @@ public class GossipRouter {
                 registered=true;
             }
     
-            if(bindAddressString != null) {
+            if(bindAddressString != null)
                 bindAddress=InetAddress.getByName(bindAddressString);
+            if(nio)
+                startNio();
+            else if(bindAddress != null) {
                 srvSock=new ServerSocket(port, backlog, bindAddress);
             }
             else {
@@ -261,11 +383,13 @@ public class GossipRouter {
             });
     
             // start the main server thread
-            new Thread(new Runnable() {
-                public void run() {
-                    mainLoop();
-                }
-            }, "GossipRouter").start();
+            if(!nio)
+                new Thread(new Runnable() {
+                    public void run() {
+                        mainLoop();
+                    }
+                }, "GossipRouter").start();
+            stats_start=System.currentTimeMillis();
             
             long expiryTime = getExpiryTime();
             if (expiryTime > 0) {
@@ -289,6 +413,7 @@ public class GossipRouter {
         clear();
         if(running.compareAndSet(true, false)){
             Util.close(srvSock);            
+            stopNio();
             if(log.isDebugEnabled())
                 log.debug("router stopped");
         }
@@ -367,7 +492,7 @@ public class GossipRouter {
                     for(Map.Entry<Address,ConnectionHandler> en: map.entrySet()) {
                         sb.append(en.getKey() + ": ");
                         ConnectionHandler handler=en.getValue();
-                        sb.append("sock=" +handler.sock).append("\n");
+                        sb.append("sock=" +handler.sock).append(", ").append(handler.printStats()).append("\n");
                     }
                 }
                 sb.append("\n");
@@ -376,6 +501,17 @@ public class GossipRouter {
         return sb.toString();
     }
 
+    @ManagedOperation(description="Dumps the number of messages and bytes queued for, and forwarded to, each client")
+    public String dumpClientStats() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<String, ConcurrentMap<Address, ConnectionHandler>> entry : routingTable.entrySet()) {
+            for(Map.Entry<Address,ConnectionHandler> en: entry.getValue().entrySet())
+                sb.append(entry.getKey()).append(':').append(en.getKey()).append(": ")
+                  .append(en.getValue().printStats()).append("\n");
+        }
+        return sb.toString();
+    }
+
     @ManagedOperation(description="dumps the mappings between logical and physical addresses")
     public String dumpAddresssMappings() {
         StringBuilder sb=new StringBuilder();
@@ -418,6 +554,69 @@ public class GossipRouter {
         }
     }
     
+    protected void startNio() throws Exception {
+        if(!full_queue_policy.equalsIgnoreCase("drop") && !full_queue_policy.equalsIgnoreCase("backpressure"))
+            throw new IllegalArgumentException("full_queue_policy \"" + full_queue_policy +
+                                                 "\" is invalid: has to be \"drop\" or \"backpressure\"");
+        if(client_queue_size <= 0)
+            throw new IllegalArgumentException("client_queue_size (" + client_queue_size + ") has to be > 0");
+        backpressure=full_queue_policy.equalsIgnoreCase("backpressure");
+        srv_channel=ServerSocketChannel.open();
+        try {
+            srv_channel.socket().bind(bindAddress != null? new InetSocketAddress(bindAddress, port)
+                                        : new InetSocketAddress(port), backlog);
+            srv_channel.configureBlocking(false);
+            int num=num_selectors > 0? num_selectors : Runtime.getRuntime().availableProcessors();
+            reactors=new Reactor[num];
+            for(int i=0; i < reactors.length; i++)
+                reactors[i]=new Reactor("GossipRouter.Selector-" + (i+1));
+            srv_channel.register(reactors[0].selector, SelectionKey.OP_ACCEPT); // the reactor isn't selecting yet
+        }
+        catch(Exception ex) {
+            stopNio();
+            throw ex;
+        }
+        if(bindAddress == null)
+            bindAddress=srv_channel.socket().getInetAddress();
+        printStartupInfo();
+        for(Reactor reactor: reactors)
+            reactor.start();
+    }
+
+    protected void stopNio() {
+        Util.close(srv_channel);
+        if(reactors != null)
+            for(Reactor reactor: reactors)
+                if(reactor != null)
+                    reactor.stop();
+        reactors=null;
+    }
+
+    /** Accepts all pending connections. Called by the reactor with which srv_channel is registered */
+    protected void handleAccept() {
+        SocketChannel ch=null;
+        try {
+            while((ch=srv_channel.accept()) != null) {
+                Socket sock=ch.socket();
+                if(linger_timeout > 0) {
+                    int linger=Math.max(1, (int)(linger_timeout / 1000));
+                    sock.setSoLinger(true, linger);
+                }
+                ch.configureBlocking(false);
+                if(log.isDebugEnabled())
+                    log.debug("Accepted connection, socket is " + sock);
+                Reactor reactor=reactors[next_reactor++ % reactors.length]; // only called by reactors[0]
+                next_reactor&=Integer.MAX_VALUE;
+                reactor.register(new NioConnectionHandler(ch, reactor));
+            }
+        }
+        catch(Exception ex) {
+            Util.close(ch);
+            if(isRunning())
+                log.error("failure handling connection from " + ch, ex);
+        }
+    }
+    
     /**
      * Removes expired gossip entries (entries older than EXPIRY_TIME msec).
      * @since 2.2.1
@@ -445,14 +644,14 @@ public class GossipRouter {
         }        
     }
     
-    private void route(Address dest, String group, byte[] msg) {
+    private void route(Address dest, String group, byte[] msg, int offset, int length, ConnectionHandler sender) {
         if(dest == null) { // send to all members in group
             if(group == null) {
                 if(log.isErrorEnabled())
                     log.error("group is null");
             }
             else {
-                sendToAllMembersInGroup(group, msg);
+                sendToAllMembersInGroup(group, msg, offset, length, sender);
             }
         }
         else { // send unicast
@@ -463,13 +662,8 @@ public class GossipRouter {
                     log.trace("cannot find " + dest + " in the routing table, \nrouting table=\n" + dumpRoutingTable());
                 return;
             }
-            if(handler.output == null) {
-                if(log.isErrorEnabled())
-                    log.error(dest + " is associated with a null output stream");
-                return;
-            }
             try {
-                sendToMember(dest, handler.output, msg);
+                handler.sendMessage(dest, msg, offset, length, sender);
             }
             catch(Exception e) {
                 if(log.isErrorEnabled())
@@ -539,7 +733,7 @@ public class GossipRouter {
         return map.get(addr);
     }
 
-    private void sendToAllMembersInGroup(String group, byte[] msg) {
+    private void sendToAllMembersInGroup(String group, byte[] msg, int offset, int length, ConnectionHandler sender) {
         final ConcurrentMap<Address,ConnectionHandler> map=routingTable.get(group);
         if(map == null || map.isEmpty()) {
             if(log.isWarnEnabled())
@@ -547,34 +741,52 @@ public class GossipRouter {
             return;
         }
 
+        ByteBuffer hdr=null, payload=null; // created once and shared by all NIO clients
         synchronized(map) {
             for(Map.Entry<Address,ConnectionHandler> entry: map.entrySet()) {
                 ConnectionHandler handler=entry.getValue();
-                DataOutputStream dos=handler.output;
-
-                if(dos != null) {
-                    try {
-                        sendToMember(null, dos, msg);
-                    }
-                    catch(Exception e) {
-                        if(log.isWarnEnabled())
-                            log.warn("cannot send to " + entry.getKey() + ": " + e.getMessage());
+                try {
+                    if(handler instanceof NioConnectionHandler) {
+                        if(hdr == null) {
+                            hdr=serializeHeader(new GossipData(GossipRouter.MESSAGE, null, null, msg, offset, length));
+                            payload=ByteBuffer.wrap(msg, offset, length);
+                        }
+                        ((NioConnectionHandler)handler).send(hdr, payload, length, sender);
                     }
+                    else
+                        handler.sendMessage(null, msg, offset, length, sender);
+                }
+                catch(Exception e) {
+                    if(log.isWarnEnabled())
+                        log.warn("cannot send to " + entry.getKey() + ": " + e.getMessage());
                 }
             }
         }
     }
 
-    private static void sendToMember(Address dest, final DataOutputStream out, byte[] msg) throws Exception {
+    private static void sendToMember(Address dest, final DataOutputStream out, byte[] msg, int offset, int length) throws Exception {
         if(out == null)
             return;
         synchronized(out) {
-            GossipData request=new GossipData(GossipRouter.MESSAGE, null, dest, msg);
+            GossipData request=new GossipData(GossipRouter.MESSAGE, null, dest, msg, offset, length);
             request.writeTo(out);
             out.flush();
         }
     }
 
+    protected static ByteBuffer serialize(GossipData data) throws Exception {
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(data.size());
+        data.writeTo(out);
+        return ByteBuffer.wrap(out.buffer(), 0, out.position());
+    }
+
+    /** Serializes everything but the payload, which is sent from the buffer it was received in */
+    protected static ByteBuffer serializeHeader(GossipData data) throws Exception {
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(data.size() - data.length);
+        data.writeHeaderTo(out);
+        return ByteBuffer.wrap(out.buffer(), 0, out.position());
+    }
+
     private void notifyAbnormalConnectionTear(final ConnectionHandler ch, final Exception e) {
         for (ConnectionTearListener l : connectionTearListeners) {
             l.connectionTorn(ch, e);
@@ -599,14 +811,9 @@ public class GossipRouter {
                 if (map != null && !map.isEmpty()) {
                     for (Iterator<Entry<Address, ConnectionHandler>> i = map.entrySet().iterator(); i.hasNext();) {
                         ConnectionHandler entry = i.next().getValue();
-                        DataOutputStream stream = entry.output;
                         try {
-                            for (Address a : ch.logical_addrs) {
-                                GossipData suspect = new GossipData(GossipRouter.SUSPECT);
-                                suspect.writeTo(stream);
-                                Util.writeAddress(a, stream);
-                                stream.flush();
-                            }
+                            for (Address a : ch.logical_addrs)
+                                entry.sendSuspect(a);
                         } catch (Exception ioe) {
                             // intentionally ignored
                         }
@@ -635,18 +842,24 @@ public class GossipRouter {
      * Handles the requests from a client (RouterStub)
      */
     class ConnectionHandler implements Runnable {
-        private final AtomicBoolean active = new AtomicBoolean(false);
-        private final Socket sock;
-        private final DataOutputStream output;
-        private final DataInputStream input;
+        protected final AtomicBoolean active = new AtomicBoolean(false);
+        protected final Socket sock;
+        protected final DataOutputStream output; // null if nio is true
+        protected final DataInputStream input;   // null if nio is true
         private final List<Address> logical_addrs=new ArrayList<Address>();
         Set<String> known_groups = new HashSet<String>();
         private long timestamp;
+        protected final AtomicLong msgs_received=new AtomicLong(), msgs_sent=new AtomicLong(), bytes_sent=new AtomicLong(),
+          msgs_dropped=new AtomicLong();
 
         public ConnectionHandler(Socket sock) throws IOException {
+            this(sock, new DataInputStream(sock.getInputStream()), new DataOutputStream(sock.getOutputStream()));
+        }
+
+        protected ConnectionHandler(Socket sock, DataInputStream input, DataOutputStream output) {
             this.sock=sock;
-            this.input=new DataInputStream(sock.getInputStream());
-            this.output=new DataOutputStream(sock.getOutputStream());
+            this.input=input;
+            this.output=output;
         }
 
         void close() {
@@ -680,91 +893,25 @@ public class GossipRouter {
             return active.get();
         }
 
+        protected void resetStats() {
+            msgs_received.set(0);
+            msgs_sent.set(0);
+            bytes_sent.set(0);
+            msgs_dropped.set(0);
+        }
+
+        protected String printStats() {
+            return String.format("received %d msgs, forwarded %d msgs (%d bytes), dropped %d msgs",
+                                 msgs_received.get(), msgs_sent.get(), bytes_sent.get(), msgs_dropped.get());
+        }
+
         private void readLoop() {
             while(isRunning()) {
                 GossipData request;
-                Address addr;
-                String group;
                 try {                   
                     request=new GossipData();
                     request.readFrom(input);
-                    byte command=request.getType();
-                    addr=request.getAddress();
-                    group=request.getGroup();
-                    known_groups.add(group);
-
-                    timestamp = System.currentTimeMillis();
-                    if(log.isTraceEnabled())
-                        log.trace(this + " received " + request);
-                    
-                    switch(command) {
-
-                        case GossipRouter.CONNECT:
-                            handleConnect(request, addr, group);
-                            break;
-
-                        case GossipRouter.PING:
-                            // do nothing here - client doesn't expect response data
-                            break;
-
-                        case GossipRouter.MESSAGE:
-                            if(request.buffer == null || request.buffer.length == 0) {
-                                if(log.isWarnEnabled())
-                                    log.warn(this +" received null message");
-                                break;
-                            }
-
-                            try {
-                                route(addr, request.getGroup(), request.getBuffer());
-                            }
-                            catch(Exception e) {
-                                if(log.isErrorEnabled())
-                                    log.error(this +" failed in routing request to " + addr, e);
-                            }
-                            break;
-
-                        case GossipRouter.GOSSIP_GET:
-                            Set<PhysicalAddress> physical_addrs;
-                            List<PingData> mbrs=new ArrayList<PingData>();
-                            ConcurrentMap<Address,ConnectionHandler> map=routingTable.get(group);
-                            if(map != null) {
-                                for(Address logical_addr: map.keySet()) {
-                                    physical_addrs=address_mappings.get(logical_addr);
-                                    PingData rsp=new PingData(logical_addr, null, true, UUID.get(logical_addr),
-                                                              physical_addrs != null? new ArrayList<PhysicalAddress>(physical_addrs) : null);
-                                    mbrs.add(rsp);
-                                }
-                            }
-                            output.writeShort(mbrs.size());
-                            for(PingData data: mbrs)
-                                data.writeTo(output);
-                            output.flush();
-                            if(log.isDebugEnabled())
-                                log.debug(this + " responded to GOSSIP_GET with " + mbrs);
-                            break;
-
-                        case GossipRouter.DISCONNECT:
-                            try {
-                                removeEntry(group, addr);
-                                sendData(new GossipData(DISCONNECT_OK));
-                                if(log.isDebugEnabled())
-                                    log.debug(this + " disconnect completed");
-                            }
-                            catch(Exception e) {
-                                sendData(new GossipData(OP_FAIL));
-                            }
-                            break;
-                            
-                        case GossipRouter.CLOSE:
-                            close();
-                            break;
-                            
-                        case -1: // EOF
-                            notifyAbnormalConnectionTear(this, new EOFException("Connection broken"));
-                            break;
-                    }
-                    if(log.isTraceEnabled())
-                        log.trace(this + " processed  " + request);
+                    handleRequest(request);
                 }
                 catch(SocketTimeoutException ste) {
                 }                
@@ -782,6 +929,119 @@ public class GossipRouter {
             }
         }
 
+        protected void handleRequest(GossipData request) throws Exception {
+            byte command=request.getType();
+            Address addr=request.getAddress();
+            String group=request.getGroup();
+            known_groups.add(group);
+
+            timestamp = System.currentTimeMillis();
+            if(log.isTraceEnabled())
+                log.trace(this + " received " + request);
+
+            switch(command) {
+
+                case GossipRouter.CONNECT:
+                    handleConnect(request, addr, group);
+                    break;
+
+                case GossipRouter.PING:
+                    // do nothing here - client doesn't expect response data
+                    break;
+
+                case GossipRouter.MESSAGE:
+                    if(request.buffer == null || request.buffer.length == 0) {
+                        if(log.isWarnEnabled())
+                            log.warn(this +" received null message");
+                        break;
+                    }
+
+                    msgs_received.incrementAndGet();
+                    try {
+                        route(addr, request.getGroup(), request.buffer, request.offset, request.length, this);
+                    }
+                    catch(Exception e) {
+                        if(log.isErrorEnabled())
+                            log.error(this +" failed in routing request to " + addr, e);
+                    }
+                    break;
+
+                case GossipRouter.MESSAGE_LIST:
+                    if(request.buffer == null || request.length == 0) {
+                        if(log.isWarnEnabled())
+                            log.warn(this +" received empty message list");
+                        break;
+                    }
+                    try {
+                        routeMessageList(group, request.buffer, request.offset, request.length);
+                    }
+                    catch(Exception e) {
+                        if(log.isErrorEnabled())
+                            log.error(this +" failed in routing message list", e);
+                    }
+                    break;
+
+                case GossipRouter.GOSSIP_GET:
+                    Set<PhysicalAddress> physical_addrs;
+                    List<PingData> mbrs=new ArrayList<PingData>();
+                    ConcurrentMap<Address,ConnectionHandler> map=routingTable.get(group);
+                    if(map != null) {
+                        for(Address logical_addr: map.keySet()) {
+                            physical_addrs=address_mappings.get(logical_addr);
+                            PingData rsp=new PingData(logical_addr, null, true, UUID.get(logical_addr),
+                                                      physical_addrs != null? new ArrayList<PhysicalAddress>(physical_addrs) : null);
+                            mbrs.add(rsp);
+                        }
+                    }
+                    sendMembers(mbrs);
+                    if(log.isDebugEnabled())
+                        log.debug(this + " responded to GOSSIP_GET with " + mbrs);
+                    break;
+
+                case GossipRouter.DISCONNECT:
+                    try {
+                        removeEntry(group, addr);
+                        sendData(new GossipData(DISCONNECT_OK));
+                        if(log.isDebugEnabled())
+                            log.debug(this + " disconnect completed");
+                    }
+                    catch(Exception e) {
+                        sendData(new GossipData(OP_FAIL));
+                    }
+                    break;
+
+                case GossipRouter.CLOSE:
+                    close();
+                    break;
+
+                case -1: // EOF
+                    notifyAbnormalConnectionTear(this, new EOFException("Connection broken"));
+                    break;
+            }
+            if(log.isTraceEnabled())
+                log.trace(this + " processed  " + request);
+        }
+
+        /**
+         * Forwards all messages of a MESSAGE_LIST request. The buffer contains the number of messages, followed by
+         * the destination (null for a multicast), length and payload of each message. The payloads are forwarded
+         * straight from the buffer
+         */
+        protected void routeMessageList(String group, byte[] buf, int offset, int length) throws Exception {
+            ByteArrayDataInputStream in=new ByteArrayDataInputStream(buf, offset, length);
+            int num=in.readInt();
+            for(int i=0; i < num; i++) {
+                Address dest=Util.readAddress(in);
+                int len=in.readInt(), pos=in.position();
+                if(len < 0 || pos + len > offset + length)
+                    throw new EOFException("message list is truncated: message " + (i+1) + " of " + num +
+                                             " needs " + len + " bytes at offset " + pos);
+                in.skipBytes(len);
+                msgs_received.incrementAndGet();
+                route(dest, group, buf, pos, len, this);
+            }
+        }
+
         private void handleConnect(GossipData request, Address addr, String group) throws Exception {
             try {
                 checkExistingConnection(addr,group);
@@ -863,8 +1123,32 @@ public class GossipRouter {
             } 
             return isOldExists;
         }
+
+        /** Forwards a message to this client. Dest is null if the message is a multicast */
+        protected void sendMessage(Address dest, byte[] msg, int offset, int length, ConnectionHandler sender) throws Exception {
+            sendToMember(dest, output, msg, offset, length);
+            msgs_sent.incrementAndGet();
+            bytes_sent.addAndGet(length);
+            num_forwarded_msgs.incrementAndGet();
+            num_forwarded_bytes.addAndGet(length);
+        }
+
+        protected void sendSuspect(Address suspect) throws Exception {
+            synchronized(output) {
+                new GossipData(GossipRouter.SUSPECT).writeTo(output);
+                Util.writeAddress(suspect, output);
+                output.flush();
+            }
+        }
+
+        protected void sendMembers(List<PingData> mbrs) throws Exception {
+            output.writeShort(mbrs.size());
+            for(PingData data: mbrs)
+                data.writeTo(output);
+            output.flush();
+        }
              
-        private void sendStatus(byte status) {
+        protected void sendStatus(byte status) {
             try {                
                 output.writeByte(status);
                 output.flush();                
@@ -873,7 +1157,7 @@ public class GossipRouter {
             }
         }
         
-        private void sendData(GossipData data) {
+        protected void sendData(GossipData data) {
             try {                
                 data.writeTo(output);
                 output.flush();                
@@ -892,12 +1176,462 @@ public class GossipRouter {
         }
     }
 
+
+    /**
+     * Serves a client over a non-blocking channel, used if nio is true. Requests are read and handled by the reactor
+     * the channel is registered with. Data sent to the client is written directly by the sending thread if nothing is
+     * queued, otherwise it is queued, and the reactor writes all queued data with a gathering write when the channel
+     * becomes writable. A message is queued as a header plus its payload, which is never copied: the payload is a
+ * (read-only) view of the buffer the message was received in, shared by all clients a multicast is sent to.
+     */
+    class NioConnectionHandler extends ConnectionHandler {
+        protected final SocketChannel      channel;
+        protected final Reactor            reactor;
+        protected volatile SelectionKey    key; // null until registered with the reactor
+
+        // receive side, only accessed by the reactor
+        protected ByteBuffer               read_buf=ByteBuffer.allocate(1024);
+        protected int                      expected; // size of the incomplete request in read_buf, 0 if not yet known
+
+        // send side, guarded by send_lock
+        protected final Lock               send_lock=new ReentrantLock();
+        protected final Deque<ByteBuffer>  pending=new ArrayDeque<ByteBuffer>();
+        protected final Deque<ByteBuffer>  msg_ends=new ArrayDeque<ByteBuffer>(); // last buffer of each queued msg
+        protected final ByteBuffer[]       gather=new ByteBuffer[MAX_GATHER];
+        protected final Set<NioConnectionHandler> suspended=new HashSet<NioConnectionHandler>(); // backpressure
+        protected final AtomicInteger      suspensions=new AtomicInteger(); // number of clients suspending our reads
+
+        protected NioConnectionHandler(SocketChannel channel, Reactor reactor) {
+            super(channel.socket(), null, null);
+            this.channel=channel;
+            this.reactor=reactor;
+            active.set(true);
+        }
+
+        void close() {
+            if(!isRunning())
+                return;
+            super.close(); // closes the socket, and therefore the channel
+            List<NioConnectionHandler> senders;
+            send_lock.lock();
+            try {
+                pending.clear();
+                msg_ends.clear();
+                senders=new ArrayList<NioConnectionHandler>(suspended);
+                suspended.clear();
+            }
+            finally {
+                send_lock.unlock();
+            }
+            for(NioConnectionHandler sender: senders)
+                sender.resumeReads();
+        }
+
+        protected int queuedMessages() {
+            send_lock.lock();
+            try {
+                return msg_ends.size();
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        protected String printStats() {
+            return String.format("%d msgs queued (%d buffers), %s%s", queuedMessages(), pending.size(),
+                                 super.printStats(),
+                                 suspensions.get() > 0? ", reads suspended by " + suspensions.get() + " clients" : "");
+        }
+
+        protected void sendMessage(Address dest, byte[] msg, int offset, int length, ConnectionHandler sender) throws Exception {
+            send(serializeHeader(new GossipData(GossipRouter.MESSAGE, null, dest, msg, offset, length)),
+                 ByteBuffer.wrap(msg, offset, length), length, sender);
+        }
+
+        protected void sendSuspect(Address suspect) throws Exception {
+            ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(64);
+            new GossipData(GossipRouter.SUSPECT).writeTo(out);
+            Util.writeAddress(suspect, out);
+            send(ByteBuffer.wrap(out.buffer(), 0, out.position()), -1, null);
+        }
+
+        protected void sendMembers(List<PingData> mbrs) throws Exception {
+            ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(128);
+            out.writeShort(mbrs.size());
+            for(PingData data: mbrs)
+                data.writeTo(out);
+            send(ByteBuffer.wrap(out.buffer(), 0, out.position()), -1, null);
+        }
+
+        protected void sendStatus(byte status) {
+            try {
+                send(ByteBuffer.wrap(new byte[]{status}), -1, null);
+            }
+            catch(Exception e) {
+                //ignored
+            }
+        }
+
+        protected void sendData(GossipData data) {
+            try {
+                send(serialize(data), -1, null);
+            }
+            catch(Exception e) {
+                //ignored
+            }
+        }
+
+        protected void send(ByteBuffer buf, int msg_length, ConnectionHandler sender) throws Exception {
+            send(buf, null, msg_length, sender);
+        }
+
+        /**
+         * Sends (or queues) a serialized request. The buffers are not modified, so they can be shared between clients
+         * @param hdr the serialized request, or its header if payload is not null
+         * @param payload the payload of the request, following the header. May be null
+         * @param msg_length the length of the message's payload, or -1 if the request is a response to this client,
+         *                   which is never dropped
+         * @param sender the client which sent the message, suspended when our queue is full and backpressure is used
+         */
+        protected void send(ByteBuffer hdr, ByteBuffer payload, int msg_length, ConnectionHandler sender) throws Exception {
+            boolean is_msg=msg_length >= 0;
+            send_lock.lock();
+            try {
+                if(!isRunning())
+                    return;
+                if(is_msg && msg_ends.size() >= client_queue_size) {
+                    if(!backpressure || !(sender instanceof NioConnectionHandler)) {
+                        msgs_dropped.incrementAndGet();
+                        num_dropped_msgs.incrementAndGet();
+                        return;
+                    }
+                    NioConnectionHandler tmp=(NioConnectionHandler)sender;
+                    if(suspended.add(tmp))
+                        tmp.suspendReads();
+                }
+                // duplicates have a separate position and limit
+                ByteBuffer first=hdr.duplicate(), last=payload != null? payload.duplicate() : null;
+                boolean was_empty=pending.isEmpty();
+                if(was_empty) {
+                    if(last == null)
+                        channel.write(first);
+                    else {
+                        gather[0]=first; gather[1]=last;
+                        try {
+                            channel.write(gather, 0, 2);
+                        }
+                        finally {
+                            gather[0]=gather[1]=null;
+                        }
+                    }
+                }
+                if(first.hasRemaining())
+                    pending.add(first);
+                if(last != null && last.hasRemaining())
+                    pending.add(last);
+                if(!pending.isEmpty()) {
+                    ByteBuffer tail=pending.peekLast();
+                    if(is_msg && (tail == first || tail == last))
+                        msg_ends.add(tail);
+                    if(was_empty)
+                        enableWrites();
+                }
+                if(is_msg) {
+                    msgs_sent.incrementAndGet();
+                    bytes_sent.addAndGet(msg_length);
+                    num_forwarded_msgs.incrementAndGet();
+                    num_forwarded_bytes.addAndGet(msg_length);
+                }
+            }
+            catch(Exception ex) {
+                reactor.closeLater(this);
+                throw ex;
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        protected void enableWrites() {
+            SelectionKey tmp=key;
+            if(tmp == null) // not yet registered, registered() enables writes
+                return;
+            synchronized(tmp) { // setReadInterest() is called by other threads
+                try {
+                    tmp.interestOps(tmp.interestOps() | SelectionKey.OP_WRITE);
+                    tmp.selector().wakeup();
+                }
+                catch(CancelledKeyException ex) {
+                }
+            }
+        }
+
+        /** Called by the reactor when the channel has been registered */
+        protected void registered(SelectionKey k) {
+            send_lock.lock();
+            try {
+                synchronized(k) {
+                    this.key=k;
+                    int ops=suspensions.get() > 0? 0 : SelectionKey.OP_READ;
+                    if(!pending.isEmpty())
+                        ops|=SelectionKey.OP_WRITE;
+                    k.interestOps(ops);
+                }
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        /**
+         * Stops reading requests from this client, until every client whose full queue called this method has called
+         * {@link #resumeReads()}
+         */
+        protected void suspendReads() {
+            if(suspensions.incrementAndGet() == 1)
+                setReadInterest();
+        }
+
+        protected void resumeReads() {
+            if(suspensions.decrementAndGet() == 0)
+                setReadInterest();
+        }
+
+        /** Reads are enabled if no client suspends them; the count is read under the key's lock, so the last call wins */
+        protected void setReadInterest() {
+            SelectionKey tmp=key;
+            if(tmp == null)
+                return;
+            synchronized(tmp) {
+                try {
+                    boolean read=suspensions.get() == 0;
+                    int ops=tmp.interestOps();
+                    tmp.interestOps(read? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+                    if(read)
+                        tmp.selector().wakeup();
+                }
+                catch(CancelledKeyException ex) {
+                }
+            }
+        }
+
+        /** Called by the reactor when the channel is writable: writes as much queued data as possible */
+        protected void flushPending() throws IOException {
+            List<NioConnectionHandler> senders=null;
+            send_lock.lock();
+            try {
+                while(!pending.isEmpty()) {
+                    int num=0;
+                    for(Iterator<ByteBuffer> it=pending.iterator(); it.hasNext() && num < gather.length;)
+                        gather[num++]=it.next();
+                    try {
+                        channel.write(gather, 0, num);
+                    }
+                    finally {
+                        Arrays.fill(gather, 0, num, null);
+                    }
+                    int written=0;
+                    while(!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                        if(pending.poll() == msg_ends.peek())
+                            msg_ends.poll();
+                        written++;
+                    }
+                    if(written < num) // the send buffer is full
+                        break;
+                }
+                if(pending.isEmpty()) {
+                    msg_ends.clear();
+                    synchronized(key) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    }
+                }
+                if(!suspended.isEmpty() && msg_ends.size() <= client_queue_size / 2) {
+                    senders=new ArrayList<NioConnectionHandler>(suspended);
+                    suspended.clear();
+                }
+            }
+            finally {
+                send_lock.unlock();
+            }
+            if(senders != null)
+                for(NioConnectionHandler sender: senders)
+                    sender.resumeReads();
+        }
+
+        /** Called by the reactor when the channel is readable: reads data and handles all complete requests */
+        protected void read() throws Exception {
+            int num=channel.read(read_buf);
+            if(num < 0)
+                throw new EOFException("Connection broken");
+            read_buf.flip();
+            try {
+                readRequests();
+            }
+            finally {
+                read_buf.compact();
+                int needed=Math.max(expected, read_buf.position() == read_buf.capacity()? read_buf.capacity() * 2 : 0);
+                if(needed > read_buf.capacity()) {
+                    ByteBuffer tmp=ByteBuffer.allocate(needed);
+                    read_buf.flip();
+                    tmp.put(read_buf);
+                    read_buf=tmp;
+                }
+            }
+        }
+
+        protected void readRequests() throws Exception {
+            while(isRunning() && read_buf.hasRemaining() && read_buf.remaining() >= expected) {
+                int start=read_buf.position(), remaining=read_buf.remaining();
+                ByteArrayDataInputStream in=new ByteArrayDataInputStream(read_buf.array(), start, remaining);
+                GossipData request=new GossipData();
+                int len;
+                try {
+                    len=request.readHeaderFrom(in);
+                }
+                catch(EOFException incomplete) {
+                    expected=0;
+                    return;
+                }
+                int size=in.position() - start + Math.max(len, 0);
+                if(remaining < size) {
+                    expected=size;
+                    return;
+                }
+                expected=0;
+                if(len >= 0) {
+                    request.buffer=new byte[len];
+                    in.readFully(request.buffer, 0, len);
+                    request.offset=0;
+                    request.length=len;
+                }
+                read_buf.position(start + size);
+                handleRequest(request);
+            }
+        }
+    }
+
+
+    /**
+     * A selector thread: accepts connections (reactors[0] only), and reads from (and, when the send buffer was full,
+     * writes to) the channels registered with it
+     */
+    protected class Reactor implements Runnable {
+        protected final Selector                                    selector;
+        protected final String                                      name;
+        protected final ConcurrentLinkedQueue<NioConnectionHandler> registrations=new ConcurrentLinkedQueue<NioConnectionHandler>();
+        protected final ConcurrentLinkedQueue<NioConnectionHandler> closings=new ConcurrentLinkedQueue<NioConnectionHandler>();
+        protected Thread                                            thread;
+
+        protected Reactor(String name) throws IOException {
+            this.name=name;
+            this.selector=Selector.open();
+        }
+
+        protected void start() {
+            thread=getDefaultThreadPoolThreadFactory().newThread(this, name);
+            thread.start();
+        }
+
+        protected void stop() {
+            try {
+                selector.close(); // the thread gets a ClosedSelectorException and terminates
+            }
+            catch(IOException e) {
+            }
+            if(thread != null) {
+                try {
+                    thread.join(Global.THREAD_SHUTDOWN_WAIT_TIME);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /** Handlers are registered by the reactor thread, as register() blocks while the selector is selecting */
+        protected void register(NioConnectionHandler handler) {
+            registrations.add(handler);
+            selector.wakeup();
+        }
+
+        /** Closes a handler on the reactor thread; used by threads which fail writing to a handler's channel */
+        protected void closeLater(NioConnectionHandler handler) {
+            closings.add(handler);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while(isRunning()) {
+                try {
+                    selector.select();
+                    processRegistrations();
+                    Set<SelectionKey> selected=selector.selectedKeys();
+                    for(Iterator<SelectionKey> it=selected.iterator(); it.hasNext();) {
+                        SelectionKey key=it.next();
+                        it.remove();
+                        if(key.channel() == srv_channel)
+                            handleAccept();
+                        else
+                            process(key, (NioConnectionHandler)key.attachment());
+                    }
+                    NioConnectionHandler handler;
+                    while((handler=closings.poll()) != null)
+                        closeHandler(handler, null);
+                }
+                catch(ClosedSelectorException closed) {
+                    break;
+                }
+                catch(Throwable t) {
+                    if(isRunning())
+                        log.error(name + ": failure in selector thread", t);
+                }
+            }
+        }
+
+        protected void processRegistrations() {
+            NioConnectionHandler handler;
+            while((handler=registrations.poll()) != null) {
+                try {
+                    handler.registered(handler.channel.register(selector, 0, handler));
+                }
+                catch(ClosedChannelException e) {
+                }
+            }
+        }
+
+        protected void process(SelectionKey key, NioConnectionHandler handler) {
+            try {
+                if(key.isValid() && key.isReadable())
+                    handler.read();
+                if(key.isValid() && key.isWritable())
+                    handler.flushPending();
+            }
+            catch(CancelledKeyException ex) { // closed by a different thread
+            }
+            catch(Throwable t) {
+                closeHandler(handler, t);
+            }
+        }
+
+        protected void closeHandler(NioConnectionHandler handler, Throwable t) {
+            if(!handler.isRunning())
+                return;
+            if(t instanceof IOException)
+                notifyAbnormalConnectionTear(handler, (IOException)t);
+            else if(t != null && log.isWarnEnabled())
+                log.warn("Exception in " + name, t);
+            handler.close();
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         int port=12001;
         int backlog=0;
         long soLinger=-1;
         long soTimeout=-1;
         long expiry_time=60000;
+        boolean nio=false;
+        int num_selectors=0;
 
         GossipRouter router=null;
         String bind_addr=null;
@@ -921,6 +1655,14 @@ public class GossipRouter {
                 expiry_time=Long.parseLong(args[++i]);
                 continue;
             }
+            if("-nio".equals(arg)) {
+                nio=Boolean.valueOf(args[++i]);
+                continue;
+            }
+            if("-selectors".equals(arg)) {
+                num_selectors=Integer.parseInt(args[++i]);
+                continue;
+            }
             if("-jmx".equals(arg)) {
                 jmx=Boolean.valueOf(args[++i]);
                 continue;
@@ -965,6 +1707,9 @@ public class GossipRouter {
             if(expiry_time > 0)
                 router.setExpiryTime(expiry_time);
 
+            router.setNio(nio);
+            router.setNumSelectors(num_selectors);
+
             router.start();
         }
         catch(Exception e) {
@@ -985,6 +1730,12 @@ public class GossipRouter {
         System.out.println();
         System.out.println("    -jmx <true|false>     - Expose attributes and operations via JMX.");
         System.out.println();
+        System.out.println("    -nio <true|false>     - Serve clients with a fixed number of selector threads");
+        System.out.println("                            instead of a thread per client.");
+        System.out.println();
+        System.out.println("    -selectors <num>      - Number of selector threads if -nio is true. 0 means");
+        System.out.println("                            one thread per core.");
+        System.out.println();
         System.out.println("    -solinger <msecs>     - Time for setting SO_LINGER on connections. 0");
         System.out.println("                            means do not set SO_LINGER. Must be greater than");
         System.out.println("                            or equal to zero or the default of 2000 will be");
@@ -346,6 +346,28 @@ public class RouterStub implements Comparable<RouterStub> {
         }
     }
 
+    /**
+     * Sends a list of messages for different destinations in a single MESSAGE_LIST request. The buffer starts with the
+     * number of messages, followed by the destination (null for a multicast), length and payload of each message
+     */
+    public void sendMessageList(String group, byte[] data, int offset, int length) throws Exception {
+        lock.lock();
+        try {
+            GossipData request = new GossipData(GossipRouter.MESSAGE_LIST, group, null, data, offset, length);
+            request.writeTo(output);
+            output.flush();
+        }
+        catch (Exception e) {
+            connectionStateChanged(ConnectionStatus.CONNECTION_BROKEN);
+            throw new Exception("Connection to " + getGossipRouterAddress()
+                            + " broken. Could not send message list", e);
+        }
+        finally {
+            if(lock.isHeldByCurrentThread())
+                lock.unlock();
+        }
+    }
+
     public DataInputStream getInputStream() {
         return input;
     }
@@ -0,0 +1,72 @@
+package org.jgroups.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of equally sized {@link ByteBuffer}s (direct or heap). {@link #acquire()} returns a pooled buffer, or
+ * allocates a new one if the pool is empty; {@link #release(ByteBuffer)} returns a buffer to the pool, or drops it
+ * (leaving it to the GC) if the pool is full.<p/>
+ * Direct buffers are expensive to allocate and are freed late by the GC, so they should be reused rather than
+ * allocated per read. This class is thread-safe.
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+public class BufferPool {
+    protected final BlockingQueue<ByteBuffer> pool;
+    protected final int                       buffer_size;
+    protected final boolean                   direct;
+    protected final AtomicInteger             num_allocated=new AtomicInteger(); // buffers allocated in acquire()
+
+
+    /**
+     * Creates a pool
+     * @param capacity the max number of buffers kept in the pool
+     * @param buffer_size the size of each buffer in bytes
+     * @param direct whether to allocate direct or heap buffers
+     */
+    public BufferPool(int capacity, int buffer_size, boolean direct) {
+        if(capacity <= 0 || buffer_size <= 0)
+            throw new IllegalArgumentException("capacity (" + capacity + ") and buffer_size (" + buffer_size +
+                                                 ") have to be greater than 0");
+        this.pool=new ArrayBlockingQueue<ByteBuffer>(capacity);
+        this.buffer_size=buffer_size;
+        this.direct=direct;
+    }
+
+
+    public int     capacity()     {return pool.remainingCapacity() + pool.size();}
+    public int     size()         {return pool.size();}
+    public int     bufferSize()   {return buffer_size;}
+    public boolean isDirect()     {return direct;}
+    public int     numAllocated() {return num_allocated.get();}
+
+
+    /** Returns a cleared buffer from the pool, or a newly allocated one if the pool is empty */
+    public ByteBuffer acquire() {
+        ByteBuffer buf=pool.poll();
+        if(buf != null)
+            return buf;
+        num_allocated.incrementAndGet();
+        return direct? ByteBuffer.allocateDirect(buffer_size) : ByteBuffer.allocate(buffer_size);
+    }
+
+    /** Clears buf and returns it to the pool. Buffers of a different size or type are dropped */
+    public void release(ByteBuffer buf) {
+        if(buf == null || buf.capacity() != buffer_size || buf.isDirect() != direct)
+            return;
+        buf.clear();
+        pool.offer(buf);
+    }
+
+    public void clear() {
+        pool.clear();
+    }
+
+    public String toString() {
+        return String.format("%d/%d buffers of %d bytes (%s), %d allocated", size(), capacity(), buffer_size,
+                             direct? "direct" : "heap", numAllocated());
+    }
+}
@@ -28,9 +28,10 @@ public class ByteArrayDataInputStream implements DataInput {
         this.pos=checkBounds(pos); return this;
     }
 
-    public int position() {return pos;}
-    public int limit()    {return limit;}
-    public int capacity() {return buf.length;}
+    public int    position() {return pos;}
+    public int    limit()    {return limit;}
+    public int    capacity() {return buf.length;}
+    public byte[] buffer()   {return buf;}
 
 
 
@@ -0,0 +1,381 @@
+package org.jgroups.util;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link Table} which doesn't use a lock. Adding threads don't contend with the thread removing elements, e.g. the
+ * receiver threads of a sender's messages don't block the thread delivering them.
+ * <p/>
+ * The matrix is replaced by rows (of elements_per_row elements each) in a concurrent map, keyed by row number. Rows
+ * are created on demand and removed when all of their elements have been removed or purged, so the table never
+ * needs to be resized, moved or compacted. The elements of a row are published with a compare-and-set, and hr, hd
+ * and low are advanced atomically.
+ * <p/>
+ * An element is removed by advancing hd from seqno-1 to seqno with a compare-and-set, so every element is removed
+ * exactly once, even if elements are removed concurrently by {@link #removeMany(java.util.concurrent.atomic.AtomicBoolean,boolean,int,Filter)}
+ * and by {@link #add(long,Object,Filter)}. Removed (nulled) and purged elements are replaced by a marker, so that
+ * a late duplicate cannot be added in their place.
+ * <p/>
+ * Methods documented as requiring the lock in {@link Table} (e.g. {@link #forEach(long,long,org.jgroups.util.Table.Visitor)})
+ * can be called without any synchronization, but may not see concurrent modifications. {@link #size()} may
+ * temporarily be off by the number of concurrent adds.
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+public class ConcurrentTable<T> extends Table<T> {
+    /** Marks removed and purged elements */
+    protected static final Object REMOVED=new Object();
+
+    protected final ConcurrentSkipListMap<Long,Row<T>> rows=new ConcurrentSkipListMap<Long,Row<T>>();
+    protected final int                                shift; // log2(elements_per_row)
+    protected final AtomicLong                         low_seqno, hd_seqno, hr_seqno;
+    protected final AtomicInteger                      num_elements=new AtomicInteger();
+
+    /** The row accessed last; saves the map lookup as most adds and removes access the same row as the previous one */
+    protected volatile Row<T>                          last_row;
+
+
+    public ConcurrentTable() {
+        this(5, 8192, 0, DEFAULT_RESIZE_FACTOR);
+    }
+
+    public ConcurrentTable(long offset) {
+        this(5, 8192, offset, DEFAULT_RESIZE_FACTOR);
+    }
+
+    public ConcurrentTable(int num_rows, int elements_per_row, long offset) {
+        this(num_rows, elements_per_row, offset, DEFAULT_RESIZE_FACTOR);
+    }
+
+    public ConcurrentTable(int num_rows, int elements_per_row, long offset, double resize_factor) {
+        this(num_rows, elements_per_row, offset, resize_factor, DEFAULT_MAX_COMPACTION_TIME);
+    }
+
+    /**
+     * Creates a new table. The arguments are the same as for {@link Table}; num_rows, resize_factor and
+     * max_compaction_time are ignored, as rows are created and removed on demand
+     */
+    public ConcurrentTable(int num_rows, int elements_per_row, long offset, double resize_factor, long max_compaction_time) {
+        super(0, elements_per_row, offset, resize_factor, max_compaction_time);
+        this.shift=Integer.numberOfTrailingZeros(this.elements_per_row);
+        this.low_seqno=new AtomicLong(offset);
+        this.hd_seqno=new AtomicLong(offset);
+        this.hr_seqno=new AtomicLong(offset);
+    }
+
+
+    public int     capacity()              {return rows.size() * elements_per_row;}
+    public int     getNumRows()            {return rows.size();}
+    public int     size()                  {return Math.max(num_elements.get(), 0);}
+    public boolean isEmpty()               {return size() <= 0;}
+    public long    getLow()                {return low_seqno.get();}
+    public long    getHighestDelivered()   {return hd_seqno.get();}
+    public long    getHighestReceived()    {return hr_seqno.get();}
+    public int     getNumMissing()         {return (int)(hr_seqno.get() - hd_seqno.get() - size());}
+    public long[]  getDigest()             {return new long[]{hd_seqno.get(), hr_seqno.get()};}
+
+    public long getHighestDeliverable() {
+        HighestDeliverable visitor=new HighestDeliverable();
+        long hd=hd_seqno.get();
+        forEach(hd+1, hr_seqno.get(), visitor);
+        long retval=visitor.getResult();
+        return retval == -1? hd : retval;
+    }
+
+    public void setHighestDelivered(long seqno) {
+        hd_seqno.set(seqno);
+    }
+
+    public boolean add(long seqno, T element) {
+        return _add(seqno, element, false, null);
+    }
+
+    public boolean add(long seqno, T element, Filter<T> remove_filter) {
+        return _add(seqno, element, false, remove_filter);
+    }
+
+    public boolean add(final List<Tuple<Long,T>> list, boolean remove_added_elements, T const_value) {
+        if(list == null || list.isEmpty())
+            return false;
+        boolean added=false;
+        for(Iterator<Tuple<Long,T>> it=list.iterator(); it.hasNext();) {
+            Tuple<Long,T> tuple=it.next();
+            T element=const_value != null? const_value : tuple.getVal2();
+            if(_add(tuple.getVal1(), element, false, null))
+                added=true;
+            else if(remove_added_elements)
+                it.remove();
+        }
+        return added;
+    }
+
+    public T get(long seqno) {
+        if(seqno <= low_seqno.get() || seqno > hr_seqno.get())
+            return null;
+        return _get(seqno);
+    }
+
+    public T _get(long seqno) {
+        Row<T> row=getRow(rowIndex(seqno));
+        return row != null? element(row, columnIndex(seqno)) : null;
+    }
+
+    /** Returns true if seqno was delivered (seqno <= hd), or was received and not yet removed */
+    public boolean contains(long seqno) {
+        if(seqno <= hd_seqno.get())
+            return true;
+        if(seqno > hr_seqno.get())
+            return false;
+        Row<T> row=getRow(rowIndex(seqno));
+        if(row != null && row.elements.get(columnIndex(seqno)) != null) // includes removed elements (REMOVED)
+            return true;
+        return seqno <= hd_seqno.get(); // the element might have been removed (and its row with it) in the meantime
+    }
+
+    public boolean replace(long seqno, T old_element, T new_element) {
+        if(seqno <= low_seqno.get() || seqno > hr_seqno.get() || old_element == null)
+            return false;
+        Row<T> row=getRow(rowIndex(seqno));
+        return row != null && row.elements.compareAndSet(columnIndex(seqno), old_element, new_element);
+    }
+
+    public List<T> get(long from, long to) {
+        long low=low_seqno.get(), hr=hr_seqno.get();
+        if(from <= low) from=low+1;
+        if(to > hr) to=hr;
+        Getter getter=new Getter();
+        forEach(from, to, getter);
+        return getter.getList();
+    }
+
+    public T remove(boolean nullify) {
+        for(;;) {
+            long hd=hd_seqno.get(), seqno=hd+1;
+            Row<T> row=getRow(rowIndex(seqno));
+            int column=columnIndex(seqno);
+            T element=row != null? element(row, column) : null;
+            if(element == null)
+                return null;
+            if(claim(hd, row, column, nullify))
+                return element;
+        }
+    }
+
+    /**
+     * Removes between 0 and max_results elements. Only one thread should call this method at any time (e.g. the
+     * thread which set processing), although concurrent calls don't return an element more than once
+     */
+    public List<T> removeMany(final AtomicBoolean processing, boolean nullify, int max_results, Filter<T> filter) {
+        List<T> list=null;
+        int num_results=0;
+        for(;;) {
+            long hd=hd_seqno.get(), seqno=hd+1;
+            Row<T> row=getRow(rowIndex(seqno));
+            int column=columnIndex(seqno);
+            T element=row != null? element(row, column) : null;
+            if(element == null) {
+                if(processing == null || num_results > 0)
+                    break;
+                processing.set(false);
+                // an adder which failed to set processing before we released it won't remove its element: if the
+                // next element was added in the meantime, we have to remove it ourselves
+                if(_get(seqno) == null || !processing.compareAndSet(false, true))
+                    break;
+                continue;
+            }
+            if(!claim(hd, row, column, nullify))
+                continue;
+            if(filter == null || filter.accept(element)) {
+                if(list == null)
+                    list=new LinkedList<T>();
+                list.add(element);
+                num_results++;
+            }
+            if(max_results > 0 && num_results >= max_results)
+                break;
+        }
+        return list;
+    }
+
+    public void purge(long seqno, boolean force) {
+        if(force)
+            seqno=Math.min(seqno, hr_seqno.get());
+        else
+            seqno=Math.min(seqno, hd_seqno.get());
+
+        long end_row=rowIndex(seqno);
+        if(end_row < 0)
+            return;
+        rows.headMap(end_row).clear(); // removes all rows which can be fully removed
+        Row<T> row=rows.get(end_row);
+        if(row != null) {
+            int index=columnIndex(seqno);
+            for(int i=0; i <= index; i++) // null all elements up to and including seqno in the given row
+                row.elements.set(i, REMOVED);
+            if(index == elements_per_row-1)
+                rows.remove(end_row, row);
+        }
+        advance(low_seqno, seqno);
+        if(force) {
+            advance(hd_seqno, seqno);
+            num_elements.set(computeSize());
+        }
+        num_purges++;
+    }
+
+    /** Rows are removed when they're purged, so there is nothing to compact */
+    public void compact() {}
+
+    public void forEach(long from, long to, Visitor<T> visitor) {
+        long current_row_index=-1;
+        Row<T> row=null;
+        for(long seqno=from; seqno <= to; seqno++) {
+            long row_index=rowIndex(seqno);
+            int column=columnIndex(seqno);
+            if(row_index != current_row_index) {
+                current_row_index=row_index;
+                row=row_index >= 0? rows.get(row_index) : null;
+            }
+            T element=row != null? element(row, column) : null;
+            if(!visitor.visit(seqno, element, (int)row_index, column))
+                break;
+        }
+    }
+
+    public int computeSize() {
+        Counter non_null_counter=new Counter();
+        forEach(hd_seqno.get()+1, hr_seqno.get(), non_null_counter);
+        return non_null_counter.getResult();
+    }
+
+    public SeqnoList getMissing() {
+        Missing missing=new Missing();
+        forEach(hd_seqno.get()+1, hr_seqno.get(), missing);
+        return missing.getMissingElements();
+    }
+
+    public String dump() {
+        Dump dump=new Dump();
+        forEach(low_seqno.get(), hr_seqno.get(), dump);
+        return dump.getResult();
+    }
+
+    public String toString() {
+        return "[" + getLow() + " | " + getHighestDelivered() + " | " + getHighestReceived() + "] (" + size() +
+          " elements, " + getNumMissing() + " missing)";
+    }
+
+
+    protected boolean _add(long seqno, T element, boolean check_if_resize_needed, Filter<T> remove_filter) {
+        if(seqno <= hd_seqno.get())
+            return false;
+        long row_index=rowIndex(seqno);
+        Row<T> row=getRow(row_index);
+        if(row == null) {
+            Row<T> tmp=new Row<T>(row_index, elements_per_row), existing=rows.putIfAbsent(row_index, tmp);
+            if(existing == null && seqno <= hd_seqno.get()) {
+                // the row had been removed as all of its elements were removed: seqno is a late duplicate
+                rows.remove(row_index, tmp);
+                return false;
+            }
+            row=existing != null? existing : tmp;
+            last_row=row;
+        }
+
+        // incremented before the element is visible, so that hr >= hd and size >= 0 when it is removed
+        advance(hr_seqno, seqno);
+        num_elements.incrementAndGet();
+        if(!row.elements.compareAndSet(columnIndex(seqno), null, element)) {
+            num_elements.decrementAndGet();
+            return false;
+        }
+        if(remove_filter != null && hd_seqno.get() + 1 == seqno)
+            removeOnAdd(remove_filter);
+        return true;
+    }
+
+    /** Removes all consecutive elements following hd which are accepted by filter, but doesn't null them */
+    protected void removeOnAdd(Filter<T> filter) {
+        for(;;) {
+            long hd=hd_seqno.get(), seqno=hd+1;
+            Row<T> row=getRow(rowIndex(seqno));
+            int column=columnIndex(seqno);
+            T element=row != null? element(row, column) : null;
+            if(element == null || !filter.accept(element))
+                return;
+            claim(hd, row, column, false);
+        }
+    }
+
+    /**
+     * Removes the element at hd+1 by advancing hd. If nullify is true, the element is nulled, and the row is removed
+     * if it was the last element of the row
+     * @return true if the element was removed by this thread, false if another thread removed it first
+     */
+    protected boolean claim(long hd, Row<T> row, int column, boolean nullify) {
+        long seqno=hd+1;
+        if(!hd_seqno.compareAndSet(hd, seqno))
+            return false;
+        num_elements.decrementAndGet();
+        if(nullify) {
+            row.elements.set(column, REMOVED);
+            if(column == elements_per_row-1)
+                rows.remove(row.index, row);
+            advance(low_seqno, seqno);
+        }
+        return true;
+    }
+
+    /** Returns the row with the given index, or null if it doesn't exist (yet) */
+    protected Row<T> getRow(long row_index) {
+        Row<T> row=last_row;
+        if(row != null && row.index == row_index)
+            return row;
+        if(row_index < 0 || (row=rows.get(row_index)) == null)
+            return null;
+        last_row=row;
+        return row;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected T element(Row<T> row, int column) {
+        Object element=row.elements.get(column);
+        return element == REMOVED? null : (T)element;
+    }
+
+    protected long rowIndex(long seqno) {
+        long diff=seqno - offset;
+        return diff < 0? -1 : diff >>> shift;
+    }
+
+    protected int columnIndex(long seqno) {
+        return (int)((seqno - offset) & (elements_per_row - 1));
+    }
+
+    /** Sets val to seqno if seqno is greater */
+    protected static void advance(AtomicLong val, long seqno) {
+        for(;;) {
+            long current=val.get();
+            if(seqno <= current || val.compareAndSet(current, seqno))
+                return;
+        }
+    }
+
+
+    protected static class Row<T> {
+        protected final long                         index;
+        protected final AtomicReferenceArray<Object> elements;
+
+        protected Row(long index, int size) {
+            this.index=index;
+            this.elements=new AtomicReferenceArray<Object>(size);
+        }
+    }
+}
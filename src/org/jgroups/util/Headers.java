@@ -4,8 +4,10 @@ import org.jgroups.Global;
 import org.jgroups.Header;
 import org.jgroups.conf.ClassConfigurator;
 
+import java.io.DataOutput;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Open addressing based implementation of a hashmap (not supporting the Map interface though) for message
@@ -22,13 +24,26 @@ import java.util.Map;
  * putting a new key/header are operations with O(n) cost, so this implementation is <em>not</em> recommended for
  * a large number of elements.
  * <br/>
- * This class is not synchronized
+ * Headers can also be added in serialized form ({@link #putRawHeader(short,byte[],int,int)}), e.g. when a message
+ * is read whose sender wrote the length of every header. A serialized header is only decoded when it is accessed,
+ * so headers which no protocol looks at are never instantiated.
+ * <br/>
+ * This class is not synchronized. The only exception is the decoding of serialized headers: messages are read by
+ * multiple threads once they have been added to a retransmission table (e.g. retransmitted while being delivered), so
+ * getHeader() and the copy constructor can be called concurrently on headers which are still serialized.
  * @author Bela Ban
  */
 public class Headers {
     private short[]  ids;
     private Header[] hdrs;
 
+    // serialized headers, null if never used: the header at index i is decoded from raw_hdrs[i] on first access and
+    // published in decoded[i], which only ever changes from null to the decoded header. The serialized form is kept,
+    // so that a copy made concurrently with the decoding is never missing the header. raw_hdrs is only modified by
+    // the thread which owns the message (e.g. the receiver thread before passing the message up)
+    private RawHeader[]                  raw_hdrs;
+    private AtomicReferenceArray<Header> decoded;
+
     /** Add space for 3 new elements when resizing */
     private static final int RESIZE_INCR=3;
 
@@ -41,13 +56,21 @@ public class Headers {
         this(other.ids.length);
         System.arraycopy(other.ids, 0, this.ids, 0, other.ids.length);
         System.arraycopy(other.hdrs, 0, this.hdrs, 0, other.hdrs.length);
+        if(other.raw_hdrs != null) { // the serialized headers are immutable, so they can be shared
+            raw_hdrs=other.raw_hdrs.clone();
+            decoded=new AtomicReferenceArray<Header>(raw_hdrs.length);
+            for(int i=0; i < raw_hdrs.length; i++)
+                decoded.lazySet(i, other.decoded.get(i));
+        }
     }
 
     public short[] getRawIDs() {
         return ids;
     }
 
+    /** Returns the headers array. Decodes all serialized headers first */
     public Header[] getRawHeaders() {
+        decodeAll();
         return hdrs;
     }
 
@@ -62,12 +85,13 @@ public class Headers {
             if(current_id == 0)
                 return null;
             if(current_id == id)
-                return hdrs[i];
+                return decode(i);
         }
         return null;
     }
 
     public Map<Short,Header> getHeaders() {
+        decodeAll();
         Map<Short,Header> retval=new HashMap<Short,Header>(ids.length);
         for(int i=0; i < ids.length; i++) {
             if(ids[i] > 0)
@@ -79,6 +103,7 @@ public class Headers {
     }
 
     public String printHeaders() {
+        decodeAll();
         StringBuilder sb=new StringBuilder();
         boolean first=true;
         for(int i=0; i < ids.length; i++) {
@@ -120,6 +145,91 @@ public class Headers {
         return _putHeader(id, hdr, 0, false);
     }
 
+    /**
+     * Puts a serialized header (magic number followed by the header) into the map, overwriting a potential existing
+     * entry. The header is decoded when it is first accessed, so buf must not be modified until then
+     */
+    public void putRawHeader(short id, byte[] buf, int offset, int length) {
+        int i=0;
+        while(i < ids.length && ids[i] != 0 && ids[i] != id)
+            i++;
+        if(i >= ids.length)
+            resize();
+        if(raw_hdrs == null) {
+            raw_hdrs=new RawHeader[ids.length];
+            decoded=new AtomicReferenceArray<Header>(ids.length);
+        }
+        ids[i]=id;
+        hdrs[i]=null;
+        raw_hdrs[i]=new RawHeader(buf, offset, length);
+        decoded.lazySet(i, null);
+    }
+
+    /** Returns the number of headers which are still serialized */
+    public int numRawHeaders() {
+        int retval=0;
+        for(int i=0; raw_hdrs != null && i < raw_hdrs.length; i++)
+            if(raw_hdrs[i] != null && decoded.get(i) == null)
+                retval++;
+        return retval;
+    }
+
+    /**
+     * Copies the serialized headers into buffers of their own, so that the buffers they were read from can be reused
+     * (e.g. pooled receive buffers)
+     */
+    public void copyRawHeaders() {
+        for(int i=0; raw_hdrs != null && i < raw_hdrs.length; i++) {
+            RawHeader raw=raw_hdrs[i];
+            if(raw == null)
+                continue;
+            Header hdr=decoded.get(i);
+            if(hdr != null) { // the serialized form isn't needed anymore
+                hdrs[i]=hdr;
+                clearRaw(i);
+            }
+            else
+                raw_hdrs[i]=raw.copy();
+        }
+    }
+
+    /**
+     * Writes the header at the given index: its magic number followed by the header, preceded by the length of both
+     * if with_length is true. A header which is still serialized is written as is, without being decoded
+     */
+    public void writeHeader(int index, DataOutput out, boolean with_length) throws Exception {
+        RawHeader raw=raw_hdrs != null? raw_hdrs[index] : null;
+        Header hdr=raw != null? decoded.get(index) : hdrs[index];
+        if(hdr == null) { // a decoded header is written from the header, as it may have been modified
+            if(with_length)
+                out.writeInt(raw.length);
+            out.write(raw.buf, raw.offset, raw.length);
+            return;
+        }
+        short magic_number=ClassConfigurator.getMagicNumber(hdr.getClass());
+        if(!with_length) {
+            out.writeShort(magic_number);
+            hdr.writeTo(out);
+        }
+        else if(out instanceof ByteArrayDataOutputStream) { // write the header, then go back and set the length
+            ByteArrayDataOutputStream tmp=(ByteArrayDataOutputStream)out;
+            int pos=tmp.position();
+            tmp.writeInt(0);
+            tmp.writeShort(magic_number);
+            hdr.writeTo(tmp);
+            int end=tmp.position();
+            tmp.position(pos).writeInt(end - pos - Global.INT_SIZE);
+            tmp.position(end);
+        }
+        else {
+            ByteArrayDataOutputStream tmp=new ByteArrayDataOutputStream(hdr.size() + Global.SHORT_SIZE);
+            tmp.writeShort(magic_number);
+            hdr.writeTo(tmp);
+            out.writeInt(tmp.position());
+            out.write(tmp.buffer(), 0, tmp.position());
+        }
+    }
+
 
     public Headers copy() {
         return new Headers(this);
@@ -129,8 +239,14 @@ public class Headers {
         int retval=0;
         for(int i=0; i < ids.length; i++) {
             if(ids[i] > 0) {
+                RawHeader raw=raw_hdrs != null? raw_hdrs[i] : null;
+                Header hdr=raw != null? decoded.get(i) : hdrs[i];
+                if(hdr == null) {
+                    retval+=Global.SHORT_SIZE + raw.length; // protocol ID, magic number and header
+                    continue;
+                }
                 retval+=Global.SHORT_SIZE *2;    // for protocol ID and magic number
-                retval+=hdrs[i].size();
+                retval+=hdr.size();
             }
             else
                 break;
@@ -167,6 +283,7 @@ public class Headers {
     }
 
     public String printObjectHeaders() {
+        decodeAll();
         StringBuilder sb=new StringBuilder();
         for(int i=0; i < ids.length; i++) {
             if(ids[i] > 0)
@@ -196,6 +313,50 @@ public class Headers {
 
         ids=new_ids;
         hdrs=new_hdrs;
+
+        if(raw_hdrs != null) {
+            RawHeader[] new_raw_hdrs=new RawHeader[new_capacity];
+            AtomicReferenceArray<Header> new_decoded=new AtomicReferenceArray<Header>(new_capacity);
+            System.arraycopy(raw_hdrs, 0, new_raw_hdrs, 0, raw_hdrs.length);
+            for(int i=0; i < raw_hdrs.length; i++)
+                new_decoded.lazySet(i, decoded.get(i));
+            raw_hdrs=new_raw_hdrs;
+            decoded=new_decoded;
+        }
+    }
+
+    /**
+     * Returns the header at index, decoding it first if it is still serialized. Threads decoding the same header
+     * concurrently all return the header published first
+     */
+    private Header decode(int index) {
+        RawHeader raw=raw_hdrs != null? raw_hdrs[index] : null;
+        if(raw == null)
+            return hdrs[index];
+        Header hdr=decoded.get(index);
+        if(hdr != null)
+            return hdr;
+        hdr=raw.decode(ids[index]);
+        return decoded.compareAndSet(index, null, hdr)? hdr : decoded.get(index);
+    }
+
+    /** Returns the header at index without decoding it, or null if it is still serialized */
+    private Header peek(int index) {
+        return raw_hdrs != null && raw_hdrs[index] != null? decoded.get(index) : hdrs[index];
+    }
+
+    /** Decodes all serialized headers into hdrs, so that it can be accessed directly */
+    private void decodeAll() {
+        for(int i=0; raw_hdrs != null && i < raw_hdrs.length; i++)
+            if(raw_hdrs[i] != null)
+                hdrs[i]=decode(i);
+    }
+
+    private void clearRaw(int index) {
+        if(raw_hdrs == null || raw_hdrs[index] == null)
+            return;
+        raw_hdrs[index]=null;
+        decoded.lazySet(index, null);
     }
 
 
@@ -208,8 +369,9 @@ public class Headers {
                 return null;
             }
             if(ids[i] == id) {
-                Header retval=hdrs[i];
+                Header retval=replace_if_present? peek(i) : decode(i); // no need to decode a replaced header
                 if(replace_if_present || retval == null) {
+                    clearRaw(i);
                     hdrs[i]=hdr;
                 }
                 return retval;
@@ -223,4 +385,43 @@ public class Headers {
     }
 
 
+    /** A serialized header: its magic number followed by the header. The buffer must not be modified */
+    private static final class RawHeader {
+        private final byte[] buf;
+        private final int    offset;
+        private final int    length;
+
+        private RawHeader(byte[] buf, int offset, int length) {
+            this.buf=buf;
+            this.offset=offset;
+            this.length=length;
+        }
+
+        private Header decode(short id) {
+            ByteArrayDataInputStream in=new ByteArrayDataInputStream(buf, offset, length);
+            try {
+                short magic_number=in.readShort();
+                Class clazz=ClassConfigurator.get(magic_number);
+                if(clazz == null)
+                    throw new IllegalArgumentException("magic number " + magic_number + " is not available in magic map");
+                Header hdr=(Header)clazz.newInstance();
+                hdr.readFrom(in);
+                return hdr;
+            }
+            catch(IllegalArgumentException ex) {
+                throw ex;
+            }
+            catch(Exception ex) {
+                throw new IllegalStateException("failed decoding header with ID " + id, ex);
+            }
+        }
+
+        private RawHeader copy() {
+            byte[] tmp=new byte[length];
+            System.arraycopy(buf, offset, tmp, 0, length);
+            return new RawHeader(tmp, 0, length);
+        }
+    }
+
+
 }
\ No newline at end of file
@@ -0,0 +1,156 @@
+package org.jgroups.util;
+
+/**
+ * A clock that combines the monotonic hardware clock (System.nanoTime()) with an offset, a drift rate and a pending
+ * correction that are published atomically as an immutable {@link ClockState}. Reading the clock only requires one
+ * volatile read, whilst all updates are synchronized.
+ * <p/>
+ * The first synchronisation steps the clock to the master's time. Subsequent synchronisations slew the clock over at
+ * least slew_duration, so that the clock never moves backwards. The drift rate relative to the master is estimated
+ * from the hardware time between successive synchronisations and, if the master's probes are passed to
+ * {@link #probeReceived(long,long)}, continuously from the delays of the probes, so that the clock stays accurate
+ * between rounds. Used by the PCSynch protocols of Aramis and HiTab.
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+public class HybridClock {
+    protected static final double DRIFT_WEIGHT=0.5; // the weight of a new drift sample
+
+    protected volatile ClockState state;
+    protected volatile double     max_drift;                    // in parts per million
+    protected long                last_synch_hard_time=-1;      // hardware time of the last synchronisation, -1: never
+    protected long                last_synch_offset;            // master's time - hardware time at the last synchronisation
+    protected double              drift;                        // rate of the master's clock relative to the hardware clock - 1
+    protected long                probe_window_start=-1;
+    protected long                probe_window_min=Long.MAX_VALUE;
+    protected long                last_probe_window_end=-1;
+    protected long                last_probe_window_min;
+
+
+    /** @param max_drift the max drift rate (in parts per million) assumed between the hardware and the master's clock */
+    public HybridClock(double max_drift) {
+        this.max_drift=max_drift;
+        long hard_time=System.nanoTime();
+        state=new ClockState(hard_time, hard_time, 0, 0, 0);
+    }
+
+    public double getMaxDrift()                {return max_drift;}
+    public void   setMaxDrift(double max_drift) {this.max_drift=max_drift;}
+
+    public long getTime() {
+        ClockState current=state;
+        return current.getTime(System.nanoTime());
+    }
+
+    public synchronized double getDrift() {
+        return drift;
+    }
+
+    /** The absolute difference between the clock and the hardware clock */
+    public long getDifference() {
+        return Math.abs(System.nanoTime() - getTime());
+    }
+
+    /**
+     * Synchronises the clock with the master's
+     * @param master_time the estimate of the master's clock now
+     * @param slew_duration the min time (in ns) over which a correction is applied, except for the first one
+     */
+    public synchronized void synchronise(long master_time, long slew_duration) {
+        long hard_time=System.nanoTime();
+        long offset=master_time - hard_time;
+        if(last_synch_hard_time < 0)
+            state=new ClockState(hard_time, master_time, drift, 0, 0);
+        else {
+            if(hard_time > last_synch_hard_time)
+                updateDrift((double)(offset - last_synch_offset) / (hard_time - last_synch_hard_time));
+            long local_time=state.getTime(hard_time);
+            state=new ClockState(hard_time, local_time, drift, master_time - local_time, slew_duration);
+        }
+        last_synch_hard_time=hard_time;
+        last_synch_offset=offset;
+    }
+
+    /** Adds sample to the drift estimate and republishes the clock state; the current reading is unchanged */
+    public synchronized void correctDrift(double sample) {
+        updateDrift(sample);
+        long hard_time=System.nanoTime();
+        ClockState current=state;
+        state=new ClockState(hard_time, current.getTime(hard_time), drift, current.remainingCorrection(hard_time),
+                             current.remainingSlew(hard_time));
+    }
+
+    /**
+     * Called for every probe received from the master. The min delay of the master's probes, measured with the hardware
+     * clock, changes at the rate that the hardware clock drifts from the master's clock. The min of each window
+     * filters out queuing delays. Probes are ignored before the first synchronisation
+     * @param send_time the master's time when it sent the probe
+     * @param window the length (in ns) of a window
+     */
+    public synchronized void probeReceived(long send_time, long window) {
+        long hard_time=System.nanoTime();
+        long delay=hard_time - send_time;
+        if(probe_window_start < 0)
+            probe_window_start=hard_time;
+        probe_window_min=Math.min(probe_window_min, delay);
+
+        if(hard_time - probe_window_start < window)
+            return;
+
+        if(last_probe_window_end >= 0 && last_synch_hard_time >= 0)
+            correctDrift(-(double)(probe_window_min - last_probe_window_min) / (hard_time - last_probe_window_end));
+
+        last_probe_window_min=probe_window_min;
+        last_probe_window_end=hard_time;
+        probe_window_start=hard_time;
+        probe_window_min=Long.MAX_VALUE;
+    }
+
+    public String toString() {
+        return String.format("time=%d, drift=%.2f ppm", getTime(), getDrift() * 1000000);
+    }
+
+    protected void updateDrift(double sample) {
+        double estimate=drift == 0? sample : (1 - DRIFT_WEIGHT) * drift + DRIFT_WEIGHT * sample;
+        double max=max_drift / 1000000.0;
+        drift=Math.max(-max, Math.min(max, estimate));
+    }
+
+
+    /**
+     * The immutable state of a {@link HybridClock}. The time is the hardware time elapsed since hard_base, adjusted by
+     * the drift, added to time_base. A correction is applied linearly over slew_duration.
+     */
+    public static class ClockState {
+        protected final long   hard_base;
+        protected final long   time_base;
+        protected final double drift;
+        protected final long   correction;
+        protected final long   slew_duration;
+
+        public ClockState(long hard_base, long time_base, double drift, long correction, long slew_duration) {
+            this.hard_base=hard_base;
+            this.time_base=time_base;
+            this.drift=drift;
+            this.correction=correction;
+            // the clock must never run backwards, so a negative correction slows the clock down by at most a half
+            this.slew_duration=correction < 0? Math.max(slew_duration, -2 * correction) : slew_duration;
+        }
+
+        public long getTime(long hard_time) {
+            long elapsed=hard_time - hard_base;
+            return time_base + elapsed + (long)(elapsed * drift) + (correction - remainingCorrection(hard_time));
+        }
+
+        public long remainingCorrection(long hard_time) {
+            long elapsed=hard_time - hard_base;
+            if(correction == 0 || elapsed >= slew_duration)
+                return 0;
+            return correction - (long)((double)correction * elapsed / slew_duration);
+        }
+
+        public long remainingSlew(long hard_time) {
+            return Math.max(0, slew_duration - (hard_time - hard_base));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.jgroups.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map with primitive long keys, which uses open addressing (linear probing) so that no entry objects are created
+ * by put() and no key objects need to be created by the caller. Removal uses backward shift deletion, so there are no
+ * tombstones and lookups don't degrade after many removals.<p/>
+ * Null values are not allowed. This class is not synchronized; if it is accessed by multiple threads, access needs to
+ * be synchronized externally, e.g. on the map itself.
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+public class LongMap<V> {
+    protected static final int   DEFAULT_CAPACITY=16;
+    protected static final int   MAX_CAPACITY=1 << 30;
+    protected static final long  GOLDEN_RATIO=0x9E3779B97F4A7C15L;
+
+    protected long[]   keys;
+    protected Object[] values; // a slot is empty if its value is null
+    protected int      size;
+    protected int      mask;
+
+
+    public LongMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a map which can hold initial_capacity entries before it needs to be resized
+     * @param initial_capacity the expected number of entries
+     */
+    public LongMap(int initial_capacity) {
+        if(initial_capacity < 0)
+            throw new IllegalArgumentException("initial_capacity (" + initial_capacity + ") must not be negative");
+        int capacity=Math.max(DEFAULT_CAPACITY, Integer.highestOneBit(Math.max(1, initial_capacity) * 2 - 1) * 2);
+        allocate(Math.min(capacity, MAX_CAPACITY));
+    }
+
+
+    public int     size()    {return size;}
+    public boolean isEmpty() {return size == 0;}
+
+    public boolean containsKey(long key) {
+        return values[indexOf(key)] != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        return (V)values[indexOf(key)];
+    }
+
+    /**
+     * Associates value with key
+     * @return the previous value associated with key, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if(value == null)
+            throw new IllegalArgumentException("null values are not allowed");
+        int index=indexOf(key);
+        V old=(V)values[index];
+        if(old == null)
+            index=insert(index, key);
+        values[index]=value;
+        return old;
+    }
+
+    /**
+     * Associates value with key if key is not yet present
+     * @return the value associated with key, or null if value was added
+     */
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(long key, V value) {
+        if(value == null)
+            throw new IllegalArgumentException("null values are not allowed");
+        int index=indexOf(key);
+        V old=(V)values[index];
+        if(old != null)
+            return old;
+        index=insert(index, key);
+        values[index]=value;
+        return null;
+    }
+
+    /**
+     * Removes key
+     * @return the value associated with key, or null if key was not present
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int gap=indexOf(key);
+        V old=(V)values[gap];
+        if(old == null)
+            return null;
+
+        // Move all subsequent entries of the same cluster that could have been placed in the gap back into the gap
+        for(int i=(gap + 1) & mask; values[i] != null; i=(i + 1) & mask) {
+            int home=hash(keys[i]);
+            boolean movable=i > gap? home <= gap || home > i : home <= gap && home > i;
+            if(movable) {
+                keys[gap]=keys[i];
+                values[gap]=values[i];
+                gap=i;
+            }
+        }
+        values[gap]=null;
+        size--;
+        return old;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size=0;
+    }
+
+    public String toString() {
+        StringBuilder sb=new StringBuilder("{");
+        boolean first=true;
+        for(int i=0; i < values.length; i++) {
+            if(values[i] == null)
+                continue;
+            if(first)
+                first=false;
+            else
+                sb.append(", ");
+            sb.append(keys[i]).append("=").append(values[i]);
+        }
+        return sb.append("}").toString();
+    }
+
+
+    protected int hash(long key) {
+        long hash=key * GOLDEN_RATIO;
+        return (int)(hash ^ (hash >>> 32)) & mask;
+    }
+
+    /** Returns the slot of key, or the empty slot at which key would be inserted */
+    protected int indexOf(long key) {
+        int index=hash(key);
+        while(values[index] != null && keys[index] != key)
+            index=(index + 1) & mask;
+        return index;
+    }
+
+    /** Sets key at the empty slot index and returns the slot at which the value is to be set (changes on a resize) */
+    protected int insert(int index, long key) {
+        if(size + 1 > (values.length >> 1)) { // load factor of 0.5
+            resize(values.length << 1);
+            index=indexOf(key);
+        }
+        keys[index]=key;
+        size++;
+        return index;
+    }
+
+    protected void resize(int capacity) {
+        if(capacity > MAX_CAPACITY)
+            throw new IllegalStateException("the capacity of the map cannot exceed " + MAX_CAPACITY);
+        long[] old_keys=keys;
+        Object[] old_values=values;
+        allocate(capacity);
+        for(int i=0; i < old_values.length; i++) {
+            if(old_values[i] == null)
+                continue;
+            int index=indexOf(old_keys[i]);
+            keys[index]=old_keys[i];
+            values[index]=old_values[i];
+        }
+    }
+
+    protected void allocate(int capacity) {
+        keys=new long[capacity];
+        values=new Object[capacity];
+        mask=capacity - 1;
+    }
+}
@@ -0,0 +1,356 @@
+package org.jgroups.util;
+
+import org.jgroups.Message;
+import org.jgroups.logging.Log;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps track of the bytes (payload) of messages retained for retransmission in {@link Table}s, e.g. the messages
+ * sent by a member until they're stable (NAKACK2) or acked (UNICAST3). When a table exceeds max_bytes_per_table, or
+ * all tables together exceed max_bytes, the oldest messages of a table (of the biggest table if max_bytes was
+ * exceeded) are written to a {@link SpillFile} and replaced in the table with {@link #SPILLED}, until the table (or
+ * all tables) is down to 3/4 of the budget. Spilled messages are read from the spill file by {@link #get(Table,long)}.
+ * <p/>
+ * Messages are added to the budget with {@link #added(Table,Message)}, and removed when the table is purged with
+ * {@link #purge(Table,long,boolean)}, which also purges the table. Only messages up to the highest delivered seqno
+ * are spilled, unless spill_undelivered is true (for tables which are never delivered from, e.g. UNICAST3's send
+ * tables), in which case messages up to the highest received seqno are spilled.
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+public class MessageBudget {
+    /** Placeholder for a message which was spilled to disk */
+    public static final Message SPILLED=new Message(false);
+
+    protected static final double LOW_WATER=0.75; // spilling stops when the bytes are down to 3/4 of the budget
+
+    protected final File                                    dir;
+    protected final String                                  prefix;
+    protected final long                                    max_bytes, max_bytes_per_table;
+    protected final int                                     segment_size;
+    protected final boolean                                 spill_undelivered;
+    protected final Log                                     log;
+    protected final ConcurrentMap<Table<Message>,Account>   accounts=new ConcurrentHashMap<Table<Message>,Account>();
+    protected final AtomicLong                              retained=new AtomicLong(); // bytes of all unspilled msgs
+    protected final AtomicBoolean                           spilling=new AtomicBoolean(false); // global spilling
+    protected final AtomicLong                              num_msgs_spilled=new AtomicLong();
+    protected final AtomicLong                              num_spill_reads=new AtomicLong();
+
+
+    /**
+     * Creates a budget
+     * @param dir The directory in which spill files are created
+     * @param prefix The prefix of the names of spill files
+     * @param max_bytes The max number of bytes of all tables, 0 means no limit
+     * @param max_bytes_per_table The max number of bytes of a single table, 0 means no limit
+     * @param segment_size The size of the segments of the spill files
+     * @param spill_undelivered Whether to spill messages which have not yet been delivered (removed)
+     * @param log The log to which spilling failures are logged
+     */
+    public MessageBudget(File dir, String prefix, long max_bytes, long max_bytes_per_table, int segment_size,
+                         boolean spill_undelivered, Log log) {
+        this.dir=dir;
+        this.prefix=prefix;
+        this.max_bytes=max_bytes;
+        this.max_bytes_per_table=max_bytes_per_table;
+        this.segment_size=segment_size;
+        this.spill_undelivered=spill_undelivered;
+        this.log=log;
+    }
+
+    public long getRetainedBytes()      {return retained.get();}
+    public long getNumMessagesSpilled() {return num_msgs_spilled.get();}
+    public long getNumSpillReads()      {return num_spill_reads.get();}
+    public int  getNumTables()          {return accounts.size();}
+
+    /** Returns the number of bytes of the messages which are currently spilled */
+    public long getSpilledBytes() {
+        long retval=0;
+        for(Account account: accounts.values())
+            retval+=account.spilledBytes();
+        return retval;
+    }
+
+    /** Returns the number of messages which are currently spilled */
+    public int getNumSpilledMessages() {
+        int retval=0;
+        for(Account account: accounts.values())
+            retval+=account.numSpilled();
+        return retval;
+    }
+
+    /** Returns the size of all spill files */
+    public long getSpillFileSize() {
+        long retval=0;
+        for(Account account: accounts.values())
+            retval+=account.fileSize();
+        return retval;
+    }
+
+    /** Returns the bytes retained by table, excluding spilled messages */
+    public long getRetainedBytes(Table<Message> table) {
+        Account account=accounts.get(table);
+        return account != null? account.bytes.get() : 0;
+    }
+
+    public void resetStats() {
+        num_msgs_spilled.set(0);
+        num_spill_reads.set(0);
+    }
+
+
+    /**
+     * Accounts for a message added to table. Spills messages to disk if table or all tables exceed their budget.
+     * Spilling is skipped if another thread is already spilling messages of the same table
+     */
+    public void added(Table<Message> table, Message msg) {
+        int length=msg.getLength();
+        if(length == 0)
+            return;
+        Account account=accounts.get(table);
+        if(account == null) {
+            Account tmp=new Account(table);
+            account=accounts.putIfAbsent(table, tmp);
+            if(account == null)
+                account=tmp;
+        }
+        long table_bytes=account.bytes.addAndGet(length), total=retained.addAndGet(length);
+        if(max_bytes_per_table > 0 && table_bytes > max_bytes_per_table && account.lock.tryLock()) {
+            try {
+                account.spill((long)(max_bytes_per_table * LOW_WATER));
+            }
+            finally {
+                account.lock.unlock();
+            }
+            total=retained.get();
+        }
+        if(max_bytes > 0 && total > max_bytes)
+            spillBiggestTables();
+    }
+
+    /**
+     * Spills messages of tables which exceed their budget. Messages which could not be spilled when they were added
+     * (e.g. because they had not yet been delivered) are spilled by calling this method periodically
+     */
+    public void check() {
+        if(max_bytes_per_table > 0) {
+            for(Account account: accounts.values()) {
+                if(account.bytes.get() > max_bytes_per_table && account.lock.tryLock()) {
+                    try {
+                        account.spill((long)(max_bytes_per_table * LOW_WATER));
+                    }
+                    finally {
+                        account.lock.unlock();
+                    }
+                }
+            }
+        }
+        if(max_bytes > 0 && retained.get() > max_bytes)
+            spillBiggestTables();
+    }
+
+    /** Returns the message at seqno from table, reading it from the spill file if it was spilled */
+    public Message get(Table<Message> table, long seqno) {
+        Message msg=table.get(seqno);
+        if(msg != SPILLED)
+            return msg;
+        Account account=accounts.get(table);
+        return account != null? account.read(seqno) : null;
+    }
+
+    /**
+     * Purges table (see {@link Table#purge(long,boolean)}), and removes the purged messages from the budget and the
+     * spill file
+     */
+    public void purge(Table<Message> table, long seqno, boolean force) {
+        Account account=accounts.get(table);
+        if(account == null) {
+            table.purge(seqno, force);
+            return;
+        }
+        account.lock.lock();
+        try {
+            account.purge(seqno, force);
+        }
+        finally {
+            account.lock.unlock();
+        }
+    }
+
+    /** Removes table from the budget and deletes its spill file. To be called when table is discarded */
+    public void remove(Table<Message> table) {
+        Account account=table != null? accounts.remove(table) : null;
+        if(account != null)
+            account.close();
+    }
+
+    /** Removes all tables and deletes their spill files */
+    public void clear() {
+        for(Table<Message> table: accounts.keySet())
+            remove(table);
+    }
+
+    public String toString() {
+        StringBuilder sb=new StringBuilder();
+        sb.append(String.format("retained=%s (max_bytes=%s, max_bytes_per_table=%s), spilled=%s in %d msgs",
+                                Util.printBytes(retained.get()), Util.printBytes(max_bytes),
+                                Util.printBytes(max_bytes_per_table), Util.printBytes(getSpilledBytes()),
+                                getNumSpilledMessages()));
+        for(Account account: accounts.values())
+            sb.append("\n").append(account);
+        return sb.toString();
+    }
+
+
+    /** Spills messages from the biggest tables until all tables are down to max_bytes * LOW_WATER */
+    protected void spillBiggestTables() {
+        if(!spilling.compareAndSet(false, true))
+            return;
+        try {
+            long target=(long)(max_bytes * LOW_WATER);
+            Set<Account> exhausted=new HashSet<Account>(); // accounts which have nothing left to spill
+            long excess;
+            while((excess=retained.get() - target) > 0) {
+                Account biggest=null;
+                for(Account account: accounts.values())
+                    if(!exhausted.contains(account) && (biggest == null || account.bytes.get() > biggest.bytes.get()))
+                        biggest=account;
+                if(biggest == null)
+                    return;
+                biggest.lock.lock();
+                try {
+                    if(biggest.spill(biggest.bytes.get() - excess) == 0)
+                        exhausted.add(biggest);
+                }
+                finally {
+                    biggest.lock.unlock();
+                }
+            }
+        }
+        finally {
+            spilling.set(false);
+        }
+    }
+
+
+
+    /** The bytes retained by a table, and the file its messages are spilled to */
+    protected class Account {
+        protected final Table<Message> table;
+        protected final AtomicLong     bytes=new AtomicLong();
+        protected final Lock           lock=new ReentrantLock(); // held when spilling or purging
+        protected volatile SpillFile   file;                     // created on the first spill
+        protected long                 next_spill;               // the seqno from which spilling resumes
+        protected boolean              failed;                   // stops spilling after an I/O error
+
+        protected Account(Table<Message> table) {
+            this.table=table;
+        }
+
+        /**
+         * Spills the oldest messages until the bytes retained by the table are <= target. Needs to hold lock
+         * @return the number of bytes spilled
+         */
+        protected long spill(long target) {
+            if(failed)
+                return 0;
+            long from=Math.max(next_spill, table.getLow() + 1),
+              to=spill_undelivered? table.getHighestReceived() : table.getHighestDelivered(), spilled=0;
+            for(long seqno=from; seqno <= to && bytes.get() > target; seqno++) {
+                next_spill=seqno + 1;
+                Message msg=table.get(seqno);
+                if(msg == null || msg == SPILLED || msg.getLength() == 0)
+                    continue;
+                try {
+                    if(file == null)
+                        file=new SpillFile(createFile(), segment_size);
+                    file.write(seqno, msg);
+                }
+                catch(Throwable t) {
+                    log.error("failed spilling message %d to %s: spilling is disabled for this table", seqno, file, t);
+                    failed=true;
+                    break;
+                }
+                // fails if the message was removed in the meantime; the record is then removed by the next purge
+                if(table.replace(seqno, msg, SPILLED)) {
+                    int length=msg.getLength();
+                    bytes.addAndGet(-length);
+                    retained.addAndGet(-length);
+                    spilled+=length;
+                    num_msgs_spilled.incrementAndGet();
+                }
+            }
+            return spilled;
+        }
+
+        protected Message read(long seqno) {
+            SpillFile tmp=file;
+            if(tmp == null)
+                return null;
+            try {
+                Message msg=tmp.read(seqno);
+                if(msg != null)
+                    num_spill_reads.incrementAndGet();
+                return msg;
+            }
+            catch(Throwable t) {
+                log.error("failed reading message %d from %s", seqno, tmp, t);
+                return null;
+            }
+        }
+
+        /** Purges the table and removes the purged messages from the budget and the spill file. Needs to hold lock */
+        protected void purge(long seqno, boolean force) {
+            long low=table.getLow(), to=Math.min(seqno, force? table.getHighestReceived() : table.getHighestDelivered());
+            long purged=0;
+            List<Message> msgs=to > low? table.get(low + 1, to) : null;
+            if(msgs != null)
+                for(Message msg: msgs)
+                    if(msg != SPILLED)
+                        purged+=msg.getLength();
+            table.purge(seqno, force);
+            bytes.addAndGet(-purged);
+            retained.addAndGet(-purged);
+            if(file != null)
+                file.removeUpTo(force? seqno : to);
+        }
+
+        protected void close() {
+            lock.lock();
+            try {
+                retained.addAndGet(-bytes.getAndSet(0));
+                if(file != null) {
+                    file.close();
+                    file=null;
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        protected long spilledBytes() {SpillFile tmp=file; return tmp != null? tmp.bytes() : 0;}
+        protected int  numSpilled()   {SpillFile tmp=file; return tmp != null? tmp.size() : 0;}
+        protected long fileSize()     {SpillFile tmp=file; return tmp != null? tmp.fileSize() : 0;}
+
+        protected File createFile() throws Exception {
+            File tmp=File.createTempFile(prefix + "-", ".spill", dir);
+            tmp.deleteOnExit();
+            return tmp;
+        }
+
+        public String toString() {
+            return String.format("%s: retained=%s, spilled=%s", table, Util.printBytes(bytes.get()), file);
+        }
+    }
+}
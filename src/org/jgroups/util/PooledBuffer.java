@@ -0,0 +1,57 @@
+package org.jgroups.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A heap buffer acquired from a {@link BufferPool}, with a reference count. The count is 1 after creation; every
+ * {@link #retain()} has to be matched by a {@link #release()}, and the buffer is returned to the pool when the count
+ * drops to 0. A buffer which is never released is not leaked, but simply garbage collected.<p/>
+ * This class is thread-safe.
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+public class PooledBuffer {
+    protected final BufferPool    pool;
+    protected final ByteBuffer    buf;
+    protected final AtomicInteger refs=new AtomicInteger(1);
+
+
+    public PooledBuffer(BufferPool pool) {
+        if(pool.isDirect())
+            throw new IllegalArgumentException("pool has to contain heap buffers");
+        this.pool=pool;
+        this.buf=pool.acquire();
+    }
+
+
+    /** The underlying buffer, e.g. to read a datagram into. Its position and limit are reset on release */
+    public ByteBuffer buffer()   {return buf;}
+    public byte[]     array()    {return buf.array();}
+    public int        capacity() {return buf.capacity();}
+    public int        refs()     {return refs.get();}
+
+    /** Increments the reference count */
+    public PooledBuffer retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Decrements the reference count and returns the buffer to the pool if the count is 0
+     * @return true if the buffer was returned to the pool, false otherwise
+     */
+    public boolean release() {
+        int count=refs.decrementAndGet();
+        if(count > 0)
+            return false;
+        if(count < 0)
+            throw new IllegalStateException("buffer has already been released");
+        pool.release(buf);
+        return true;
+    }
+
+    public String toString() {
+        return String.format("%d bytes, refs=%d", buf.capacity(), refs.get());
+    }
+}
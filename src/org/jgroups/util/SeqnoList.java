@@ -13,11 +13,19 @@ import java.util.NoSuchElementException;
  * A list of sequence numbers (seqnos). Seqnos have to be added in ascending order, and can be single seqnos
  * or seqno ranges (e.g. [5-10]). This class is unsynchronized. Note that for serialization, we assume that the
  * lowest and highest seqno in the list are not more than 2 ^ 31 apart.
+ * <p/>
+ * A list is serialized as list of seqnos and ranges. If {@link #useBitmap(boolean)} was set, it is serialized as
+ * bitmap relative to the lowest seqno instead (a set bit at index i means that lowest+i is in the list) if this is
+ * smaller, e.g. with many small gaps after a burst of lost messages. A bitmap is marked by a negative number of
+ * elements; readFrom() reads both formats, but members older than 4.0 can only read lists.
  * @author Bela Ban
  * @since 3.1
  */
 public class SeqnoList implements Streamable, Iterable<Long> {
     protected final List<Seqno> seqnos=new ArrayList<Seqno>();
+    protected boolean           bitmap; // serialize as bitmap if smaller
+
+    protected static final int  BITMAP=-1; // written instead of the number of elements
 
     public SeqnoList() {
     }
@@ -105,7 +113,36 @@ public class SeqnoList implements Streamable, Iterable<Long> {
         return seqno instanceof SeqnoRange? ((SeqnoRange)seqno).to : seqno.from;
     }
 
+    /** Returns the number of elements, each of which is a single seqno or a range */
+    public int numRanges() {
+        return seqnos.size();
+    }
+
+    /** Returns the first seqno of the element at index */
+    public long getFrom(int index) {
+        return seqnos.get(index).from;
+    }
+
+    /** Returns the last seqno of the element at index (the same as {@link #getFrom(int)} for a single seqno) */
+    public long getTo(int index) {
+        Seqno seqno=seqnos.get(index);
+        return seqno instanceof SeqnoRange? ((SeqnoRange)seqno).to : seqno.from;
+    }
+
+    /** If true, the list may be serialized as bitmap, which can only be read by members running 4.0 or later */
+    public SeqnoList useBitmap(boolean flag) {
+        this.bitmap=flag;
+        return this;
+    }
+
+    public boolean useBitmap() {return bitmap;}
+
     public void writeTo(DataOutput out) throws Exception {
+        if(writeBitmap()) {
+            out.writeInt(BITMAP);
+            writeBitmap(out);
+            return;
+        }
         out.writeInt(seqnos.size());
         for(Seqno seqno: seqnos) {
             if(seqno instanceof SeqnoRange) {
@@ -122,6 +159,10 @@ public class SeqnoList implements Streamable, Iterable<Long> {
 
     public void readFrom(DataInput in) throws Exception {
         int len=in.readInt();
+        if(len == BITMAP) {
+            readBitmap(in);
+            return;
+        }
         for(int i=0; i < len; i++) {
             if(in.readBoolean()) {
                 long[] tmp=Bits.readLongSequence(in);
@@ -134,6 +175,15 @@ public class SeqnoList implements Streamable, Iterable<Long> {
     }
 
     public int serializedSize() {
+        return writeBitmap()? Global.INT_SIZE + (int)bitmapSize() : listSize();
+    }
+
+    protected boolean writeBitmap() {
+        return bitmap && bitmapSize() < listSize() - Global.INT_SIZE; // both formats start with an int
+    }
+
+    /** The number of bytes needed to write the seqnos and ranges */
+    protected int listSize() {
         int retval=Global.INT_SIZE // number of elements in seqnos
           + seqnos.size() * Global.BYTE_SIZE; // plus 1 boolean (Seqno or SeqnoRange) per element
         for(Seqno seqno: seqnos) {
@@ -148,6 +198,50 @@ public class SeqnoList implements Streamable, Iterable<Long> {
         return retval;
     }
 
+    /** The number of bytes needed to write the list as bitmap, Long.MAX_VALUE if the list is empty */
+    protected long bitmapSize() {
+        if(seqnos.isEmpty())
+            return Long.MAX_VALUE;
+        long first=seqnos.get(0).from, last=getLast();
+        return Bits.size(first, last) + (last - first + 8) / 8;
+    }
+
+    /** Writes the lowest and highest seqno, followed by a bit for every seqno in between */
+    protected void writeBitmap(DataOutput out) throws Exception {
+        long first=seqnos.get(0).from, last=getLast();
+        Bits.writeLongSequence(first, last, out);
+        byte[] bitmap=new byte[(int)((last - first + 8) / 8)];
+        for(Seqno seqno: seqnos) {
+            long to=seqno instanceof SeqnoRange? ((SeqnoRange)seqno).to : seqno.from;
+            for(long i=seqno.from - first; i <= to - first; i++)
+                bitmap[(int)(i >>> 3)]|=1 << (i & 7);
+        }
+        out.write(bitmap);
+    }
+
+    /** Reads a bitmap and converts consecutive seqnos into ranges */
+    protected void readBitmap(DataInput in) throws Exception {
+        long[] tmp=Bits.readLongSequence(in);
+        long first=tmp[0];
+        int num_bits=(int)(tmp[1] - first + 1);
+        byte[] bitmap=new byte[(num_bits + 7) / 8];
+        in.readFully(bitmap);
+        long from=-1;
+        for(int i=0; i <= num_bits; i++) {
+            boolean set=i < num_bits && (bitmap[i >>> 3] & (1 << (i & 7))) != 0;
+            if(set && from < 0)
+                from=first + i;
+            else if(!set && from >= 0) {
+                long to=first + i - 1;
+                if(to > from)
+                    add(from, to);
+                else
+                    add(from);
+                from=-1;
+            }
+        }
+    }
+
     public int size() {
         int retval=0;
         for(Seqno seqno: seqnos) {
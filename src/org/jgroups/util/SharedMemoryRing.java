@@ -0,0 +1,265 @@
+package org.jgroups.util;
+
+import org.jgroups.Global;
+import sun.misc.Unsafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Single-producer / single-consumer ring of variable-length records in a memory-mapped file, used to exchange data
+ * between processes on the same host. The file should be on a memory based file system (e.g. /dev/shm), so no data
+ * is ever written to disk.
+ * <p/>
+ * Layout of the file: the header (magic number, capacity, and the write and read positions, each on a cache line of
+ * its own), followed by the data area. The positions are never wrapped; the index into the data area is the position
+ * modulo the capacity (a power of 2). A record is the length (an int), followed by the data, aligned to 8 bytes. A
+ * record which doesn't fit into the space left before the end of the data area is preceded by a wrap marker, and
+ * written at the start of the data area.
+ * <p/>
+ * The producer only writes the write position, and the consumer only the read position. A record is published by
+ * writing the write position after the record, and consumed by writing the read position after the record has been
+ * read. As the positions are shared with another process, a volatile field can't be used to order these accesses;
+ * instead the positions are written with release semantics ({@link Unsafe#putOrderedLong(Object,long,long)}) and read
+ * with acquire semantics ({@link Unsafe#getLongVolatile(Object,long)}) at the address of the mapping. Rings can
+ * therefore only be used if {@link #isSupported()} returns true, i.e. if the JVM provides sun.misc.Unsafe and the
+ * address of direct buffers; {@link #create(java.io.File,int)} and {@link #open(java.io.File)} throw an exception
+ * otherwise.
+ * <p/>
+ * Only one thread may call {@link #offer(byte[],int,int)}, and only one thread may call {@link #poll()} at any time;
+ * callers have to synchronize if there are more.
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+public class SharedMemoryRing implements Closeable {
+    protected static final int MAGIC=0x4a475352; // "JGSR"
+    protected static final int CAPACITY=4;       // offset of the capacity
+    protected static final int WRITE_POS=64;     // offset of the write position (on a cache line of its own)
+    protected static final int READ_POS=128;     // offset of the read position (on a cache line of its own)
+    protected static final int DATA=192;         // offset of the data area
+    protected static final int WRAP=-1;          // marker: the next record is at the start of the data area
+
+    protected static final Unsafe unsafe;
+    protected static final long   address_offset; // the offset of the field Buffer.address
+
+    static {
+        Unsafe tmp=null;
+        long offset=-1;
+        try {
+            Field field=Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            tmp=(Unsafe)field.get(null);
+            offset=tmp.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        }
+        catch(Throwable t) {
+            tmp=null;
+        }
+        unsafe=tmp;
+        address_offset=offset;
+    }
+
+    protected final File             file;
+    protected final RandomAccessFile raf;
+    protected final MappedByteBuffer buf;
+    protected final ByteBuffer       data;         // view for bulk reads and writes of records
+    protected final int              capacity, mask;
+    protected final long             address;      // the address of the mapping, for the accesses to the positions
+
+    // producer side
+    protected long                   write_pos;
+    protected long                   cached_read_pos;  // the last read position seen, avoids reading it on every offer
+
+    // consumer side
+    protected long                   read_pos;
+    protected long                   cached_write_pos;
+    protected byte[]                 read_buf=new byte[1024]; // the last record returned by poll()
+
+
+    protected SharedMemoryRing(File file, RandomAccessFile raf, MappedByteBuffer buf, int capacity) {
+        this.file=file;
+        this.raf=raf;
+        this.buf=buf;
+        this.capacity=capacity;
+        this.mask=capacity - 1;
+        this.data=buf.duplicate();
+        this.address=address(buf);
+        this.write_pos=this.cached_write_pos=getLong(WRITE_POS);
+        this.read_pos=this.cached_read_pos=getLong(READ_POS);
+    }
+
+
+    /** Whether the positions can be accessed with memory ordering guarantees, which is required by all rings */
+    public static boolean isSupported() {
+        return unsafe != null;
+    }
+
+
+    /**
+     * Creates a new ring. The file is created under a temporary name and renamed when it has been initialized, so
+     * that a consumer never sees a partially initialized ring. An existing file is replaced
+     * @param file the file
+     * @param capacity the size of the data area, rounded up to the next power of 2
+     */
+    public static SharedMemoryRing create(File file, int capacity) throws IOException {
+        checkSupported();
+        capacity=Util.getNextHigherPowerOfTwo(Math.max(capacity, 64));
+        File tmp=new File(file.getParentFile(), "." + file.getName() + ".tmp");
+        RandomAccessFile raf=new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(DATA + capacity);
+            MappedByteBuffer buf=raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA + capacity);
+            long address=address(buf);
+            buf.putInt(CAPACITY, capacity);
+            unsafe.putLongVolatile(null, address + WRITE_POS, 0);
+            unsafe.putLongVolatile(null, address + READ_POS, 0);
+            unsafe.putOrderedInt(null, address, MAGIC); // published after the capacity and the positions
+            if(!tmp.renameTo(file))
+                throw new IOException("failed renaming " + tmp + " to " + file);
+            return new SharedMemoryRing(file, raf, buf, capacity);
+        }
+        catch(IOException ex) {
+            Util.close(raf);
+            tmp.delete();
+            throw ex;
+        }
+    }
+
+    /** Opens a ring created by {@link #create(java.io.File,int)} */
+    public static SharedMemoryRing open(File file) throws IOException {
+        checkSupported();
+        RandomAccessFile raf=new RandomAccessFile(file, "rw");
+        try {
+            long size=raf.length();
+            if(size <= DATA)
+                throw new IOException(file + " is not a ring (size: " + size + ")");
+            MappedByteBuffer buf=raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int magic=unsafe.getIntVolatile(null, address(buf)), capacity=buf.getInt(CAPACITY);
+            if(magic != MAGIC || capacity != size - DATA || Integer.bitCount(capacity) != 1)
+                throw new IOException(file + " is not a ring (magic: " + Integer.toHexString(magic) +
+                                        ", capacity: " + capacity + ")");
+            return new SharedMemoryRing(file, raf, buf, capacity);
+        }
+        catch(IOException ex) {
+            Util.close(raf);
+            throw ex;
+        }
+    }
+
+    public File   file()     {return file;}
+    public int    capacity() {return capacity;}
+
+    /** The number of bytes which are currently used (approximation if called by neither producer nor consumer) */
+    public int size() {
+        return (int)(getLong(WRITE_POS) - getLong(READ_POS));
+    }
+
+    /** The record returned by the last call to {@link #poll()}. Overwritten by the next call */
+    public byte[] buffer() {return read_buf;}
+
+    /**
+     * Adds a record. Must only be called by the producer
+     * @return true if the record was added, false if there is not enough space
+     */
+    public boolean offer(byte[] buffer, int offset, int length) {
+        int size=recordSize(length);
+        if(size > capacity)
+            return false;
+        long pos=write_pos;
+        int index=(int)(pos & mask), to_end=capacity - index;
+        long needed=size + (to_end < size? to_end : 0);
+        if(pos + needed - cached_read_pos > capacity) {
+            cached_read_pos=getLong(READ_POS); // the consumer is done reading the space it released
+            if(pos + needed - cached_read_pos > capacity)
+                return false;
+        }
+        if(to_end < size) {
+            buf.putInt(DATA + index, WRAP);
+            pos+=to_end;
+            index=0;
+        }
+        buf.putInt(DATA + index, length);
+        data.position(DATA + index + Global.INT_SIZE);
+        data.put(buffer, offset, length);
+        pos+=size;
+        putLong(WRITE_POS, pos); // the record is visible before the new write position
+        write_pos=pos;
+        return true;
+    }
+
+    /**
+     * Removes the next record and copies it into {@link #buffer()}. Must only be called by the consumer
+     * @return the length of the record, or -1 if the ring is empty
+     */
+    public int poll() {
+        long pos=read_pos;
+        if(pos == cached_write_pos) {
+            cached_write_pos=getLong(WRITE_POS); // read the new write position before the records it publishes
+            if(pos == cached_write_pos)
+                return -1;
+        }
+        int index=(int)(pos & mask);
+        int length=buf.getInt(DATA + index);
+        if(length == WRAP) {
+            pos+=capacity - index;
+            index=0;
+            length=buf.getInt(DATA);
+        }
+        if(length > read_buf.length)
+            read_buf=new byte[Util.getNextHigherPowerOfTwo(length)];
+        data.position(DATA + index + Global.INT_SIZE);
+        data.get(read_buf, 0, length);
+        pos+=recordSize(length);
+        putLong(READ_POS, pos); // the record has been read before its space is released
+        read_pos=pos;
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return read_pos == getLong(WRITE_POS);
+    }
+
+    /** Closes the file. The mapping itself is released when the ring is garbage collected */
+    public void close() {
+        Util.close(raf);
+    }
+
+    /** Closes the ring and deletes its file */
+    public void delete() {
+        close();
+        file.delete();
+    }
+
+    public String toString() {
+        return String.format("%s (%d/%d bytes used)", file.getName(), size(), capacity);
+    }
+
+    protected static int recordSize(int length) {
+        return (Global.INT_SIZE + length + 7) & ~7; // aligned to 8 bytes, so a length is never split by the end
+    }
+
+    /** Reads a position with acquire semantics: subsequent reads and writes can't be reordered before it */
+    protected long getLong(int offset) {
+        return unsafe.getLongVolatile(null, address + offset);
+    }
+
+    /** Writes a position with release semantics: preceding reads and writes can't be reordered after it */
+    protected void putLong(int offset, long value) {
+        unsafe.putOrderedLong(null, address + offset, value);
+    }
+
+    protected static long address(MappedByteBuffer buf) {
+        return unsafe.getLong(buf, address_offset);
+    }
+
+    protected static void checkSupported() throws IOException {
+        if(!isSupported())
+            throw new IOException("shared memory rings are not supported by this JVM: sun.misc.Unsafe is not available");
+    }
+}
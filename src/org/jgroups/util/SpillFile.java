@@ -0,0 +1,154 @@
+package org.jgroups.util;
+
+import org.jgroups.Global;
+import org.jgroups.Message;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Append-only store of serialized messages in a memory-mapped file, keyed by seqno. Used to move messages which have
+ * to be retained for retransmission off the heap, see {@link MessageBudget}.
+ * <p/>
+ * The file consists of segments of segment_size bytes (a segment is bigger if a single message doesn't fit), which
+ * are mapped when needed. A record is the length of the serialized message (an int) followed by the message. Records
+ * are appended to the current segment; when it is full, writing continues in a segment without any records left, or
+ * in a new segment at the end of the file. {@link #removeUpTo(long)} removes records from the index; as messages are
+ * usually spilled and removed in seqno order, segments are freed in the order in which they were written, and the
+ * size of the file is bounded by the size of the spilled messages plus a segment.
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+public class SpillFile implements Closeable {
+    protected final File                   file;
+    protected final RandomAccessFile       raf;
+    protected final int                    segment_size;
+    protected final List<MappedByteBuffer> segments=new ArrayList<MappedByteBuffer>();
+    protected final NavigableMap<Long,Long> index=new TreeMap<Long,Long>(); // seqno -> segment << 32 | offset
+    protected final List<Integer>          live=new ArrayList<Integer>();  // number of records in the index per segment
+    protected int                          segment;   // the segment currently written to
+    protected int                          write_pos; // the position in the current segment
+    protected long                         file_size;
+    protected long                         bytes;     // the size of all records in the index
+
+
+    public SpillFile(File file, int segment_size) throws IOException {
+        this.file=file;
+        this.segment_size=segment_size;
+        this.raf=new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+    }
+
+    public File file()                  {return file;}
+    public synchronized int  size()     {return index.size();}
+    public synchronized long bytes()    {return bytes;}
+    public synchronized long fileSize() {return file_size;}
+    public synchronized boolean isEmpty() {return index.isEmpty();}
+
+    public synchronized boolean contains(long seqno) {
+        return index.containsKey(seqno);
+    }
+
+    /** Appends msg. An existing record for seqno is replaced */
+    public synchronized void write(long seqno, Message msg) throws Exception {
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream((int)msg.size());
+        msg.writeTo(out);
+        int length=Global.INT_SIZE + out.position();
+
+        MappedByteBuffer buf=segmentFor(length);
+        ByteBuffer tmp=buf.duplicate();
+        tmp.position(write_pos);
+        tmp.putInt(out.position()).put(out.buffer(), 0, out.position());
+        Long prev=index.put(seqno, ((long)segment << 32) | write_pos);
+        if(prev != null)
+            removed(prev);
+        live.set(segment, live.get(segment) + 1);
+        write_pos+=length;
+        bytes+=length;
+    }
+
+    /** Reads the message with the given seqno, or returns null if not found */
+    public synchronized Message read(long seqno) throws Exception {
+        Long pos=index.get(seqno);
+        if(pos == null)
+            return null;
+        ByteBuffer buf=segments.get((int)(pos >>> 32)).duplicate();
+        int offset=(int)(long)pos, length=buf.getInt(offset);
+        byte[] tmp=new byte[length];
+        buf.position(offset + Global.INT_SIZE);
+        buf.get(tmp);
+        Message msg=new Message(false);
+        msg.readFrom(new ByteArrayDataInputStream(tmp));
+        return msg;
+    }
+
+    /** Removes all messages with seqnos <= seqno. The space is reused when all messages have been removed */
+    public synchronized void removeUpTo(long seqno) {
+        Map<Long,Long> head=index.headMap(seqno, true);
+        for(long pos: head.values())
+            removed(pos);
+        head.clear();
+        if(index.isEmpty()) {
+            segment=write_pos=0;
+            bytes=0;
+        }
+    }
+
+    /** Closes and deletes the file. The mapped segments are released when they're garbage collected */
+    public synchronized void close() {
+        index.clear();
+        segments.clear();
+        live.clear();
+        bytes=file_size=0;
+        Util.close(raf);
+        file.delete();
+    }
+
+    public String toString() {
+        return String.format("%s (%d msgs, %d bytes, file size: %d)", file.getName(), size(), bytes(), fileSize());
+    }
+
+    /**
+     * Returns the segment to write a record of length bytes to, at write_pos. Switches to the next free segment, or
+     * maps a new segment, if the current segment is full
+     */
+    protected MappedByteBuffer segmentFor(int length) throws IOException {
+        int num=segments.size();
+        if(segment < num && segments.get(segment).capacity() - write_pos >= length)
+            return segments.get(segment);
+        for(int i=1; i <= num; i++) { // the current segment is checked last
+            int index=(segment + i) % num;
+            if(live.get(index) == 0 && segments.get(index).capacity() >= length) {
+                segment=index;
+                write_pos=0;
+                return segments.get(index);
+            }
+        }
+
+        int size=Math.max(segment_size, length);
+        MappedByteBuffer buf=raf.getChannel().map(FileChannel.MapMode.READ_WRITE, file_size, size);
+        file_size+=size;
+        segments.add(buf);
+        live.add(0);
+        segment=segments.size()-1;
+        write_pos=0;
+        return buf;
+    }
+
+    /** Updates the stats for a record which was removed from the index */
+    protected void removed(long pos) {
+        int seg=(int)(pos >>> 32);
+        bytes-=segments.get(seg).getInt((int)pos) + Global.INT_SIZE;
+        live.set(seg, live.get(seg) - 1);
+    }
+}
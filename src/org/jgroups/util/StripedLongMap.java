@@ -0,0 +1,156 @@
+package org.jgroups.util;
+
+/**
+ * A concurrent hash map with primitive long keys. The keys are spread over a number of {@link LongMap}s (stripes), each
+ * of which is guarded by its own lock, so threads accessing different keys rarely contend, and no entry or key objects
+ * are created.<p/>
+ * Each stripe also keeps a bounded list of recycled values: a value which was removed can be handed to
+ * {@link #recycle(long,Object)} and later be reused for a key of the same stripe with {@link #pollRecycled(long)}. The
+ * caller is responsible for resetting recycled values, and for detecting stale references to them (e.g. with a
+ * generation stamp). Null values are not allowed.
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+public class StripedLongMap<V> {
+    protected static final long GOLDEN_RATIO=0x9E3779B97F4A7C15L;
+
+    protected final Stripe<V>[] stripes;
+    protected final int         shift; // 64 - log2(stripes.length): the stripe is selected by the highest bits of the hash
+
+
+    /**
+     * Creates a map
+     * @param num_stripes the number of stripes, rounded up to a power of 2
+     * @param initial_capacity the expected number of entries of each stripe
+     * @param max_recycled the max number of recycled values kept by each stripe
+     */
+    @SuppressWarnings("unchecked")
+    public StripedLongMap(int num_stripes, int initial_capacity, int max_recycled) {
+        if(num_stripes < 1)
+            throw new IllegalArgumentException("num_stripes (" + num_stripes + ") must be >= 1");
+        if(max_recycled < 0)
+            throw new IllegalArgumentException("max_recycled (" + max_recycled + ") must not be negative");
+        int num=Util.getNextHigherPowerOfTwo(num_stripes);
+        stripes=new Stripe[num];
+        for(int i=0; i < stripes.length; i++)
+            stripes[i]=new Stripe<V>(initial_capacity, max_recycled);
+        shift=64 - Integer.numberOfTrailingZeros(num);
+    }
+
+
+    public int getNumStripes() {return stripes.length;}
+
+    public int size() {
+        int retval=0;
+        for(Stripe<V> stripe: stripes) {
+            synchronized(stripe) {
+                retval+=stripe.map.size();
+            }
+        }
+        return retval;
+    }
+
+    public boolean isEmpty() {return size() == 0;}
+
+    /** The number of recycled values kept by all stripes */
+    public int getNumRecycled() {
+        int retval=0;
+        for(Stripe<V> stripe: stripes) {
+            synchronized(stripe) {
+                retval+=stripe.num_recycled;
+            }
+        }
+        return retval;
+    }
+
+    public V get(long key) {
+        Stripe<V> stripe=stripe(key);
+        synchronized(stripe) {
+            return stripe.map.get(key);
+        }
+    }
+
+    /** @return the previous value associated with key, or null if there was none */
+    public V put(long key, V value) {
+        Stripe<V> stripe=stripe(key);
+        synchronized(stripe) {
+            return stripe.map.put(key, value);
+        }
+    }
+
+    /** @return the value associated with key, or null if value was added */
+    public V putIfAbsent(long key, V value) {
+        Stripe<V> stripe=stripe(key);
+        synchronized(stripe) {
+            return stripe.map.putIfAbsent(key, value);
+        }
+    }
+
+    /** @return the value associated with key, or null if key was not present */
+    public V remove(long key) {
+        Stripe<V> stripe=stripe(key);
+        synchronized(stripe) {
+            return stripe.map.remove(key);
+        }
+    }
+
+    public void clear() {
+        for(Stripe<V> stripe: stripes) {
+            synchronized(stripe) {
+                stripe.map.clear();
+            }
+        }
+    }
+
+    /**
+     * Adds a value which is no longer associated with key to the recycled values of the stripe of key
+     * @return true if the value was added, false if the stripe already keeps max_recycled values
+     */
+    public boolean recycle(long key, V value) {
+        if(value == null)
+            throw new IllegalArgumentException("null values are not allowed");
+        Stripe<V> stripe=stripe(key);
+        synchronized(stripe) {
+            if(stripe.num_recycled == stripe.recycled.length)
+                return false;
+            stripe.recycled[stripe.num_recycled++]=value;
+            return true;
+        }
+    }
+
+    /** Removes and returns a recycled value of the stripe of key, or returns null if the stripe has none */
+    @SuppressWarnings("unchecked")
+    public V pollRecycled(long key) {
+        Stripe<V> stripe=stripe(key);
+        synchronized(stripe) {
+            if(stripe.num_recycled == 0)
+                return null;
+            int index=--stripe.num_recycled;
+            V value=(V)stripe.recycled[index];
+            stripe.recycled[index]=null;
+            return value;
+        }
+    }
+
+    public String toString() {
+        return size() + " entries in " + stripes.length + " stripes, " + getNumRecycled() + " recycled values";
+    }
+
+
+    protected Stripe<V> stripe(long key) {
+        return stripes[(int)((key * GOLDEN_RATIO) >>> shift) & (stripes.length - 1)];
+    }
+
+
+    /** A map and its recycled values, guarded by the stripe itself */
+    protected static class Stripe<V> {
+        protected final LongMap<V> map;
+        protected final Object[]   recycled;
+        protected int              num_recycled;
+
+        protected Stripe(int initial_capacity, int max_recycled) {
+            this.map=new LongMap<V>(initial_capacity);
+            this.recycled=new Object[max_recycled];
+        }
+    }
+}
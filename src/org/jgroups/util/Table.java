@@ -296,6 +296,29 @@ public class Table<T> {
     }
 
 
+    /**
+     * Returns true if an element with the given seqno is present or has already been delivered, ie. if
+     * {@link #add(long,Object)} would reject it as a duplicate
+     */
+    public boolean contains(long seqno) {
+        lock.lock();
+        try {
+            if(seqno <= hd)
+                return true;
+            if(seqno > hr)
+                return false;
+            int row_index=computeRow(seqno);
+            if(row_index < 0 || row_index >= matrix.length)
+                return false;
+            T[] row=matrix[row_index];
+            return row != null && row[computeIndex(seqno)] != null;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
     /**
      * To be used only for testing; doesn't do any index or sanity checks
      * @param seqno
@@ -320,6 +343,33 @@ public class Table<T> {
 
 
 
+    /**
+     * Replaces the element at seqno with new_element, but only if the current element is old_element (identity).
+     * Used to replace elements which are still needed (e.g. for retransmission) with a placeholder
+     * @return true if the element was replaced, false if the element at seqno was not old_element, e.g. because it
+     * was removed or purged in the meantime
+     */
+    public boolean replace(long seqno, T old_element, T new_element) {
+        lock.lock();
+        try {
+            if(seqno <= low || seqno > hr)
+                return false;
+            int row_index=computeRow(seqno);
+            if(row_index < 0 || row_index >= matrix.length)
+                return false;
+            T[] row=matrix[row_index];
+            int index=computeIndex(seqno);
+            if(row == null || index < 0 || row[index] != old_element)
+                return false;
+            row[index]=new_element;
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
     public List<T> get(long from, long to) {
         lock.lock();
         try {
@@ -0,0 +1,279 @@
+package org.jgroups.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Executor which runs every task in a new thread, instead of handing it to one of a fixed set of pooled threads. The
+ * number of tasks running concurrently is capped by max_threads. When the cap is reached, {@link #execute(Runnable)}
+ * never blocks the caller (usually a receiver thread, which must not wait for tasks that may themselves wait for
+ * messages the receiver has yet to read). Instead, the task is added to a bounded overflow queue, from which threads
+ * take the next task when they complete theirs. If the overflow queue is full, too, the task is rejected with a
+ * {@link RejectedExecutionException}; TP then drops the message, which is retransmitted later.<p/>
+ * A task which blocks for a long time (e.g. an RPC handler) only ever occupies its own thread.
+ * If the JVM supports virtual threads, they are used instead of platform threads (unless disabled), which makes the
+ * creation of a thread per task cheap. Tasks submitted after {@link #shutdown()} are discarded, same as with
+ * {@link ShutdownRejectedExecutionHandler}, but queued tasks are still run.
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+public class ThreadPerTaskExecutor extends AbstractExecutorService {
+    protected ThreadFactory                              thread_factory;
+    protected final String                               base_name;
+    protected final java.util.concurrent.ThreadFactory   virtual_factory; // null if virtual threads are not used
+    protected volatile int                               max_threads;
+    protected final AtomicInteger                        active=new AtomicInteger();
+    protected final BlockingQueue<Runnable>              queue; // tasks submitted while max_threads were running
+    protected final Set<Thread>                          threads=Collections.newSetFromMap(new ConcurrentHashMap<Thread,Boolean>());
+    protected final Lock                                 lock=new ReentrantLock();
+    protected final Condition                            terminated=lock.newCondition();
+    protected volatile boolean                           shutdown, interrupt; // interrupt: set by shutdownNow()
+    protected final AtomicLong                           num_tasks=new AtomicLong(), num_queued=new AtomicLong(),
+                                                         num_rejected=new AtomicLong();
+    protected volatile int                               largest;
+
+
+    /**
+     * Creates a new executor
+     * @param thread_factory Creates (or, for virtual threads, names) the threads
+     * @param base_name The base name of the threads, e.g. "OOB"
+     * @param max_threads The max number of tasks running concurrently
+     * @param max_queued The max number of tasks queued while max_threads tasks are running
+     * @param use_virtual_threads Use virtual threads if the JVM supports them
+     */
+    public ThreadPerTaskExecutor(ThreadFactory thread_factory, String base_name, int max_threads, int max_queued,
+                                 boolean use_virtual_threads) {
+        if(max_threads < 1)
+            throw new IllegalArgumentException("max_threads (" + max_threads + ") has to be > 0");
+        if(max_queued < 1)
+            throw new IllegalArgumentException("max_queued (" + max_queued + ") has to be > 0");
+        this.thread_factory=thread_factory;
+        this.base_name=base_name;
+        this.max_threads=max_threads;
+        this.queue=new LinkedBlockingQueue<Runnable>(max_queued);
+        this.virtual_factory=use_virtual_threads? virtualThreadFactory() : null;
+    }
+
+
+    public int                   getMaxThreads()                       {return max_threads;}
+    public ThreadPerTaskExecutor setMaxThreads(int max)                {
+        if(max < 1)
+            throw new IllegalArgumentException("max_threads (" + max + ") has to be > 0");
+        this.max_threads=max;
+        while(!queue.isEmpty() && tryAcquire()) // queued tasks may be able to run now
+            startThread(null);
+        return this;
+    }
+    public ThreadFactory         getThreadFactory()                    {return thread_factory;}
+    public ThreadPerTaskExecutor setThreadFactory(ThreadFactory f)     {this.thread_factory=f; return this;}
+    public boolean               isVirtual()                           {return virtual_factory != null;}
+    /** The overflow queue holding the tasks submitted while max_threads tasks were running */
+    public BlockingQueue<Runnable> getQueue()                          {return queue;}
+    /** The number of tasks currently running */
+    public int                   getActiveCount()                      {return active.get();}
+    /** The max number of tasks which ran concurrently */
+    public int                   getLargestActiveCount()               {return largest;}
+    /** The number of tasks executed so far */
+    public long                  getNumTasks()                         {return num_tasks.get();}
+    /** The number of tasks which were queued because the cap was reached */
+    public long                  getNumQueued()                        {return num_queued.get();}
+    /** The number of tasks which were rejected because the cap was reached and the queue was full */
+    public long                  getNumRejected()                      {return num_rejected.get();}
+    public void                  resetStats()                          {num_tasks.set(0); num_queued.set(0); num_rejected.set(0); largest=0;}
+
+
+    /** Returns a factory creating virtual threads, or null if the JVM doesn't support them */
+    public static java.util.concurrent.ThreadFactory virtualThreadFactory() {
+        try {
+            // Thread.ofVirtual().factory(), which doesn't compile against JDKs older than 21
+            Object builder=Thread.class.getMethod("ofVirtual").invoke(null);
+            return (java.util.concurrent.ThreadFactory)Class.forName("java.lang.Thread$Builder")
+              .getMethod("factory").invoke(builder);
+        }
+        catch(Throwable t) {
+            return null;
+        }
+    }
+
+
+    public void execute(Runnable command) {
+        if(command == null)
+            throw new NullPointerException("command must not be null");
+        if(shutdown)
+            return;
+        if(tryAcquire()) {
+            startThread(command);
+            return;
+        }
+        if(!queue.offer(command)) {
+            num_rejected.incrementAndGet();
+            throw new RejectedExecutionException("max_threads (" + max_threads + ") tasks are running and the queue is full");
+        }
+        num_queued.incrementAndGet();
+        // all tasks may have completed between tryAcquire() and offer(), and not seen the queued task
+        if(tryAcquire())
+            startThread(null);
+    }
+
+    public void shutdown() {
+        shutdown=true;
+        signalTerminated();
+    }
+
+    public List<Runnable> shutdownNow() {
+        interrupt=true;
+        shutdown();
+        List<Runnable> queued=new ArrayList<Runnable>(queue.size());
+        queue.drainTo(queued);
+        for(Thread thread: threads)
+            thread.interrupt();
+        return queued;
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public boolean isTerminated() {
+        return shutdown && active.get() == 0 && queue.isEmpty();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos=unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while(!isTerminated()) {
+                if(nanos <= 0)
+                    return false;
+                nanos=terminated.awaitNanos(nanos);
+            }
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public String toString() {
+        return String.format("%d/%d active %s threads (largest=%d), %d queued, %d tasks (queued: %d, rejected: %d)%s",
+                             active.get(), max_threads, isVirtual()? "virtual" : "platform", largest, queue.size(),
+                             num_tasks.get(), num_queued.get(), num_rejected.get(), shutdown? " (shut down)" : "");
+    }
+
+
+    /** Starts a thread running command (if not null) and then the queued tasks. The caller has acquired a slot */
+    protected void startThread(Runnable command) {
+        try {
+            newThread(new Task(command)).start();
+        }
+        catch(Throwable t) { // e.g. OutOfMemoryError: unable to create new native thread
+            release();
+            throw new RejectedExecutionException("failed creating a thread", t);
+        }
+    }
+
+    protected Thread newThread(Runnable task) {
+        if(virtual_factory == null)
+            return thread_factory.newThread(task, base_name);
+        Thread thread=virtual_factory.newThread(task);
+        thread_factory.renameThread(base_name, thread);
+        return thread;
+    }
+
+    /**
+     * Returns the next queued task, to be run by the calling thread in the slot of the task it just completed. If the
+     * queue is empty, releases the slot and returns null
+     */
+    protected Runnable nextQueuedTask() {
+        for(;;) {
+            Runnable task=queue.poll();
+            if(task != null)
+                return task;
+            release();
+            // a task queued after poll() but before release() saw no free slot, so we have to run it
+            if(queue.isEmpty() || !tryAcquire())
+                return null;
+        }
+    }
+
+    protected boolean tryAcquire() {
+        for(;;) {
+            int current=active.get();
+            if(current >= max_threads)
+                return false;
+            if(active.compareAndSet(current, current+1)) {
+                if(current+1 > largest)
+                    largest=current+1; // racy, but only used for stats
+                return true;
+            }
+        }
+    }
+
+    protected void release() {
+        int current=active.decrementAndGet();
+        if(current == 0 && shutdown)
+            signalTerminated();
+    }
+
+    protected void signalTerminated() {
+        lock.lock();
+        try {
+            terminated.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /** Runs its command and then the queued tasks, until the queue is empty */
+    protected class Task implements Runnable {
+        protected final Runnable command;
+
+        public Task(Runnable command) {
+            this.command=command;
+        }
+
+        public void run() {
+            Thread current=Thread.currentThread();
+            threads.add(current);
+            if(interrupt) // shutdownNow() may have been called before this thread was added to threads
+                current.interrupt();
+            try {
+                Runnable task=command != null? command : nextQueuedTask();
+                while(task != null) {
+                    num_tasks.incrementAndGet();
+                    try {
+                        task.run();
+                    }
+                    catch(Throwable t) { // the thread goes on with the queued tasks
+                        Thread.UncaughtExceptionHandler handler=current.getUncaughtExceptionHandler();
+                        if(handler != null)
+                            handler.uncaughtException(current, t);
+                    }
+                    task=nextQueuedTask();
+                }
+            }
+            finally {
+                threads.remove(current);
+            }
+        }
+
+        public String toString() {
+            return command != null? command.toString() : "queued tasks";
+        }
+    }
+}
@@ -28,6 +28,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.NumberFormat;
@@ -2988,6 +2989,34 @@ public class Util {
     }
 
 
+    /**
+     * Finds the first available port starting at start_port and returns a (blocking) server socket channel bound to it.
+     * Will not bind to a port greater than end_port
+     */
+    public static ServerSocketChannel createServerSocketChannel(InetAddress bind_addr, int start_port, int end_port) throws Exception {
+        int original_start_port=start_port;
+
+        while(true) {
+            ServerSocketChannel ch=ServerSocketChannel.open();
+            try {
+                ch.socket().bind(new InetSocketAddress(bind_addr, start_port), 50);
+                return ch;
+            }
+            catch(SocketException bind_ex) {
+                close(ch);
+                if(start_port == end_port)
+                    throw new BindException("No available port to bind to in range [" + original_start_port + " .. " + end_port + "]");
+                if(bind_addr != null && !bind_addr.isLoopbackAddress()) {
+                    NetworkInterface nic=NetworkInterface.getByInetAddress(bind_addr);
+                    if(nic == null)
+                        throw new BindException("bind_addr " + bind_addr + " is not a valid interface: " + bind_ex);
+                }
+                start_port++;
+            }
+        }
+    }
+
+
 
 
     /**
@@ -6,6 +6,9 @@ import org.jgroups.protocols.pbcast.NAKACK2;
 import org.jgroups.protocols.pbcast.NakAckHeader2;
 import org.jgroups.stack.Protocol;
 import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.Bits;
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
 import org.jgroups.util.Digest;
 import org.jgroups.util.MessageBatch;
 import org.jgroups.util.SeqnoList;
@@ -26,8 +29,9 @@ import java.util.List;
 @Test(groups=Global.FUNCTIONAL,singleThreaded=true)
 public class NAKACK2_RetransmitTest {
     protected static final short ID=ClassConfigurator.getProtocolId(NAKACK2.class);
-    protected static final Address A=Util.createRandomAddress("A"), B=Util.createRandomAddress("B");
-    protected static final View    view=View.create(A, 1, A, B);
+    protected static final Address A=Util.createRandomAddress("A"), B=Util.createRandomAddress("B"),
+      C=Util.createRandomAddress("C");
+    protected static final View    view=View.create(A, 1, A, B, C);
     protected NAKACK2       nak;
     protected MockTransport transport;
     protected MockProtocol  receiver;
@@ -43,7 +47,7 @@ public class NAKACK2_RetransmitTest {
 
         nak.down(new Event(Event.BECOME_SERVER));
         nak.down(new Event(Event.SET_LOCAL_ADDRESS, A));
-        Digest digest=new Digest(view.getMembersRaw(), new long[]{0, 0, 0, 0});
+        Digest digest=new Digest(view.getMembersRaw(), new long[]{0, 0, 0, 0, 0, 0});
         nak.down(new Event(Event.SET_DIGEST, digest));
     }
 
@@ -88,20 +92,124 @@ public class NAKACK2_RetransmitTest {
     }
 
 
+    /**
+     * Tests that gaps are requested when they're older than min_xmit_interval, and then again with exponential backoff
+     */
+    public void testAdaptiveRetransmission() throws Exception {
+        nak.setValue("adaptive_xmit", true).setValue("min_xmit_interval", 100);
+        injectMessages(1,2,3,4,   6,   8);
+        assertReceived(1,2,3,4);
+
+        nak.triggerXmit();
+        assertXmitRequests(); // the gaps are younger than min_xmit_interval
+
+        Util.sleep(120);
+        nak.triggerXmit();
+        assertXmitRequests(5,   7);
+        nak.triggerXmit();
+        assertXmitRequests(); // 5 and 7 are requested again 100ms after the first request
+
+        injectMessages(7,   10);
+        nak.triggerXmit();
+        assertXmitRequests(); // 9 is a new gap
+
+        Util.sleep(120);
+        nak.triggerXmit();
+        assertXmitRequests(5,   9);
+
+        Util.sleep(150);
+        nak.triggerXmit();
+        assertXmitRequests(9); // the interval between requests for the same gap doubles: 5 is due again after 200ms
+
+        Util.sleep(100);
+        nak.triggerXmit();
+        assertXmitRequests(5);
+
+        injectMessages(5,   9);
+        nak.triggerXmit();
+        assertXmitRequests();
+        assertReceived(5,6,7,8,9,10);
+    }
+
+    /** Tests that retransmit requests for messages from different senders to the same target are sent in one message */
+    public void testCoalescedXmitRequests() throws Exception {
+        nak.setValue("compact_xmit_reqs", true);
+        nak.setUseMcastXmitReq(true); // all requests are multicast
+        injectMessages(B, 1, 3);
+        injectMessages(C, 1, 3);
+        nak.triggerXmit();
+        assertXmitRequests();
+
+        nak.triggerXmit();
+        assertXmitRequests(2, 2);
+        assert transport.getNumXmitRequestMessages() == 1;
+    }
+
+    /** Without compact_xmit_reqs, an XMIT_REQ is sent per sender, as members older than 4.0 can't read XMIT_REQ_LIST */
+    public void testXmitRequestPerSender() {
+        nak.setUseMcastXmitReq(true);
+        injectMessages(B, 1, 3);
+        injectMessages(C, 1, 3);
+        nak.triggerXmit();
+        assertXmitRequests();
+
+        nak.triggerXmit();
+        assertXmitRequests(2, 2);
+        assert transport.getNumXmitRequestMessages() == 2;
+    }
+
+
+    /**
+     * Tests that the round trip time is sampled for the original sender of a retransmitted message, not for the member
+     * which retransmitted it (here C, e.g. with xmit_from_random_member)
+     */
+    public void testRttOfOriginalSender() throws Exception {
+        nak.setValue("adaptive_xmit", true).setValue("min_xmit_interval", 50);
+        injectMessages(1,   3);
+        nak.triggerXmit();
+        Util.sleep(70);
+        nak.triggerXmit();
+        assertXmitRequests(2);
+        assertReceived(1);
+
+        Message xmit_rsp=new Message(A, B, null).putHeader(ID, xmitResponseHeader(2));
+        MessageBatch batch=new MessageBatch(A, C, null, false, MessageBatch.Mode.REG, 1).add(xmit_rsp);
+        nak.up(batch);
+        assertReceived(2, 3);
+
+        String states=nak.printXmitStates();
+        assert states.contains(B + ": rtt=") && !states.contains("rtt=n/a") : states;
+        assert !states.contains(C + ":") : states;
+    }
+
+
     protected void injectMessages(long ... seqnos) {
+        injectMessages(B, seqnos);
+    }
+
+    protected void injectMessages(Address sender, long ... seqnos) {
         for(long seqno: seqnos)
-            injectMessage(seqno);
+            injectMessage(sender, seqno);
     }
 
 
-    /** Makes NAKACK2 receive a message with the given seqno */
-    protected void injectMessage(long seqno) {
-        Message msg=new Message(null, B, null);
+    /** Makes NAKACK2 receive a message from sender with the given seqno */
+    protected void injectMessage(Address sender, long seqno) {
+        Message msg=new Message(null, sender, null);
         NakAckHeader2 hdr=NakAckHeader2.createMessageHeader(seqno);
         msg.putHeader(ID, hdr);
         nak.up(new Event(Event.MSG, msg));
     }
 
+    protected static NakAckHeader2 xmitResponseHeader(long seqno) throws Exception {
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(10);
+        out.writeByte(NakAckHeader2.XMIT_RSP);
+        Bits.writeLong(seqno, out);
+        NakAckHeader2 hdr=NakAckHeader2.createXmitResponseHeader();
+        hdr.readFrom(new ByteArrayDataInputStream(out.buffer(), 0, out.position()));
+        return hdr;
+    }
+
     /** Asserts that the delivered messages are in the same order than the expected seqnos and then clears the list */
     protected void assertReceived(long ... seqnos) {
         List<Long> msgs=receiver.getMsgs();
@@ -127,8 +235,10 @@ public class NAKACK2_RetransmitTest {
     /** Used to catch retransmit requests sent by NAKACK to the transport */
     protected static class MockTransport extends TP {
         protected final List<Long> xmit_requests=new LinkedList<Long>();
+        protected int              num_xmit_req_msgs;
 
         public List<Long>         getXmitRequests() {return xmit_requests;}
+        public int                getNumXmitRequestMessages() {return num_xmit_req_msgs;}
         public void               clear() {xmit_requests.clear();}
         public void               init() throws Exception {}
         public boolean            supportsMulticasting() {return true;}
@@ -149,6 +259,25 @@ public class NAKACK2_RetransmitTest {
                         System.out.println("-- XMIT-REQ: request retransmission for " + seqnos);
                         for(Long seqno: seqnos)
                             xmit_requests.add(seqno);
+                        num_xmit_req_msgs++;
+                    }
+                    if(hdr.getType() == NakAckHeader2.XMIT_REQ_LIST) {
+                        try {
+                            ByteArrayDataInputStream in=new ByteArrayDataInputStream(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+                            int num=in.readInt();
+                            for(int i=0; i < num; i++) {
+                                Address sender=Util.readAddress(in);
+                                SeqnoList seqnos=new SeqnoList();
+                                seqnos.readFrom(in);
+                                System.out.println("-- XMIT-REQ-LIST: request retransmission for " + seqnos + " from " + sender);
+                                for(Long seqno: seqnos)
+                                    xmit_requests.add(seqno);
+                            }
+                        }
+                        catch(Exception ex) {
+                            throw new RuntimeException(ex);
+                        }
+                        num_xmit_req_msgs++;
                     }
                     break;
             }
@@ -0,0 +1,179 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.protocols.tom.*;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link ParallelDeliveryThread}: conflicting messages are delivered one after the other in the total order,
+ * messages with disjoint conflict sets concurrently, and messages of the local member are never reordered
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class ParallelDeliveryThreadTest {
+    protected final Address          a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B"),
+                                     c=Util.createRandomAddress("C"), d=Util.createRandomAddress("D");
+    protected TOA                    toa;
+    protected Deliverer              deliverer;
+    protected ParallelDeliveryThread thread;
+
+    @BeforeMethod
+    protected void setup() {
+        toa=new TOA();
+        toa.setUpProtocol(new Protocol() {
+            public Object up(Event evt) {return null;}
+        });
+        toa.up(new Event(Event.SET_LOCAL_ADDRESS, a));
+        deliverer=new Deliverer(toa);
+        thread=new ParallelDeliveryThread(deliverer, 4, new StatsCollector());
+        thread.start(deliverer);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        deliverer.release();
+        thread.interrupt();
+    }
+
+
+    /** The local member is removed from the destinations, but kept as sender */
+    public void testConflictSet() {
+        assert toa.getConflictSet(msg(b, 1, a, c)).equals(set(b, c));
+        assert toa.getConflictSet(msg(a, 1, a, b)).equals(set(a, b));
+        assert toa.getConflictSet(msg(a, 1, a)).equals(set(a));
+        assert toa.getConflictSet(msg(b, 1, a)).equals(set(b));
+    }
+
+    /** Messages whose conflict sets intersect are delivered in the total order, and never concurrently */
+    public void testConflictingMessagesAreDeliveredInOrder() throws Exception {
+        final int NUM=200;
+        for(int i=1; i <= NUM; i++)
+            deliverer.add(msg(i % 2 == 0? b : c, i, a, d)); // D delivers all messages
+        deliverer.waitFor(NUM);
+        assert deliverer.delivered.equals(range(1, NUM)) : "delivered: " + deliverer.delivered;
+        assert deliverer.max_concurrent.get() == 1 : deliverer.max_concurrent.get() + " messages were delivered concurrently";
+    }
+
+    /** The messages of the local member are delivered in order, even if their destinations are disjoint */
+    public void testLocalSenderKeepsOrder() throws Exception {
+        final int NUM=200;
+        Address[] others={b, c, d};
+        for(int i=1; i <= NUM; i++)
+            deliverer.add(msg(a, i, a, others[i % others.length]));
+        deliverer.add(msg(a, NUM+1, a)); // to the local member only
+        deliverer.waitFor(NUM+1);
+        assert deliverer.delivered.equals(range(1, NUM+1)) : "delivered: " + deliverer.delivered;
+        assert deliverer.max_concurrent.get() == 1;
+    }
+
+    /** Messages with disjoint conflict sets are delivered concurrently: the second is delivered while the first blocks */
+    public void testDisjointMessagesAreDeliveredConcurrently() throws Exception {
+        deliverer.block(1);
+        deliverer.add(msg(b, 1, a, b));
+        deliverer.add(msg(c, 2, a, c));
+        deliverer.add(msg(b, 3, a, b)); // conflicts with 1
+        deliverer.waitFor(1);
+        assert deliverer.delivered.equals(Collections.singletonList(2)) : "delivered: " + deliverer.delivered;
+        Util.sleep(200);
+        assert deliverer.delivered.size() == 1 : "3 must wait for 1: " + deliverer.delivered;
+
+        deliverer.release();
+        deliverer.waitFor(3);
+        assert deliverer.delivered.equals(Arrays.asList(2, 1, 3)) : "delivered: " + deliverer.delivered;
+        assert deliverer.max_concurrent.get() == 2;
+    }
+
+
+    protected Message msg(Address sender, int num, Address ... dests) {
+        Message msg=new Message(null, sender, null).setObject(num);
+        return msg.putHeader(toa.getId(), ToaHeader.newDataMessageHeader(new MessageID(sender, num), Arrays.asList(dests)));
+    }
+
+    protected static Set<Address> set(Address ... addrs) {
+        return new HashSet<Address>(Arrays.asList(addrs));
+    }
+
+    protected static List<Integer> range(int from, int to) {
+        List<Integer> list=new ArrayList<Integer>(to - from + 1);
+        for(int i=from; i <= to; i++)
+            list.add(i);
+        return list;
+    }
+
+
+    /** Passes the added messages to the delivery thread in order, and records the delivered messages */
+    protected static class Deliverer implements DeliveryManager, DeliveryProtocol {
+        protected final TOA                      toa;
+        protected final BlockingQueue<Message>   queue=new LinkedBlockingQueue<Message>();
+        protected final List<Integer>            delivered=Collections.synchronizedList(new ArrayList<Integer>());
+        protected final AtomicInteger            concurrent=new AtomicInteger(), max_concurrent=new AtomicInteger();
+        protected final Map<Integer,CountDownLatch> blocked=new ConcurrentHashMap<Integer,CountDownLatch>();
+
+        protected Deliverer(TOA toa) {this.toa=toa;}
+
+        protected void add(Message msg) {queue.add(msg);}
+
+        protected void block(int num) {blocked.put(num, new CountDownLatch(1));}
+
+        protected void release() {
+            for(CountDownLatch latch: blocked.values())
+                latch.countDown();
+        }
+
+        protected void waitFor(int num) {
+            for(int i=0; i < 200 && delivered.size() < num; i++)
+                Util.sleep(50);
+            assert delivered.size() == num : "delivered " + delivered.size() + " messages, expected " + num;
+        }
+
+        public List<Message> getNextMessagesToDeliver() throws InterruptedException {
+            List<Message> list=new ArrayList<Message>();
+            list.add(queue.take());
+            queue.drainTo(list);
+            return list;
+        }
+
+        public Collection<Address> getConflictSet(Message message) {
+            return toa.getConflictSet(message);
+        }
+
+        public void deliver(Message message) {
+            int num=(Integer)message.getObject();
+            int current=concurrent.incrementAndGet();
+            for(;;) {
+                int max=max_concurrent.get();
+                if(current <= max || max_concurrent.compareAndSet(max, current))
+                    break;
+            }
+            try {
+                CountDownLatch latch=blocked.get(num);
+                if(latch != null)
+                    latch.await(10, TimeUnit.SECONDS);
+                if(num % 10 == 0)
+                    Util.sleep(1); // gives conflicting messages a chance to overtake
+                delivered.add(num);
+            }
+            catch(InterruptedException e) {
+            }
+            finally {
+                concurrent.decrementAndGet();
+            }
+        }
+    }
+}
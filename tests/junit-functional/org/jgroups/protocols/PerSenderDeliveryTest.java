@@ -0,0 +1,222 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link TP.PerSenderDelivery}: the messages of a sender are passed up in order and by one thread at a time,
+ * idle queues of left members are removed without losing or reordering messages, and stop() releases the buffers of
+ * queued batches
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class PerSenderDeliveryTest {
+    protected static final AsciiString CLUSTER=new AsciiString("PerSenderDeliveryTest");
+    protected MockTransport            transport;
+    protected Recorder                 recorder;
+    protected TP.PerSenderDelivery     delivery;
+    protected final Address            a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B");
+
+    @BeforeMethod
+    protected void setup() {
+        transport=new MockTransport();
+        transport.cluster_name=CLUSTER;
+        transport.setDefaultThreadPoolThreadFactory(new DefaultThreadFactory("test", true, true));
+        transport.setUpProtocol(recorder=new Recorder());
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        if(delivery != null)
+            delivery.stop();
+    }
+
+
+    public void testOrdering() throws Exception {
+        final int NUM=10000;
+        delivery=transport.new PerSenderDelivery(NUM, 1000);
+        for(int i=1; i <= NUM; i++) {
+            delivery.add(batch(a, i), null);
+            delivery.add(batch(b, i), null);
+        }
+        recorder.waitFor(a, NUM);
+        recorder.waitFor(b, NUM);
+        recorder.check(a, NUM);
+        recorder.check(b, NUM);
+        assert delivery.size() == 2;
+    }
+
+    /** Queues are reaped when their sender left and their thread is idle; a sender's thread ends after keep_alive_time */
+    public void testIdleReaping() throws Exception {
+        delivery=transport.new PerSenderDelivery(100, 200);
+        delivery.add(batch(a, 1), null);
+        delivery.add(batch(b, 1), null);
+        recorder.waitFor(a, 1);
+        recorder.waitFor(b, 1);
+        waitUntilIdle(delivery);
+
+        delivery.retainAll(Collections.singletonList(a));
+        assert delivery.size() == 1 && delivery.queues.containsKey(a);
+
+        delivery.add(batch(b, 2), null); // creates a new queue
+        recorder.waitFor(b, 2);
+        recorder.check(b, 2);
+        assert delivery.size() == 2;
+    }
+
+    /** A queue which is busy is not removed */
+    public void testBusyQueueIsNotReaped() throws Exception {
+        delivery=transport.new PerSenderDelivery(100, 10000);
+        recorder.block=new CountDownLatch(1);
+        delivery.add(batch(b, 1), null);
+        delivery.add(batch(b, 2), null);
+        delivery.retainAll(Collections.singletonList(a));
+        assert delivery.size() == 1 : "the queue of B is busy and must not be removed";
+        recorder.block.countDown();
+        recorder.waitFor(b, 2);
+        recorder.check(b, 2);
+    }
+
+    /** Removing queues concurrently with adding messages neither loses nor reorders messages, nor delivers concurrently */
+    public void testConcurrentReaping() throws Exception {
+        final int NUM=20000;
+        delivery=transport.new PerSenderDelivery(NUM, 1);
+        final CountDownLatch done=new CountDownLatch(1);
+        Thread reaper=new Thread() {
+            public void run() {
+                List<Address> none=Collections.emptyList();
+                while(done.getCount() > 0)
+                    delivery.retainAll(none);
+            }
+        };
+        reaper.start();
+        for(int i=1; i <= NUM; i++) {
+            delivery.add(batch(b, i), null);
+            if(i % 100 == 0)
+                Util.sleep(1); // lets the queue become idle
+        }
+        recorder.waitFor(b, NUM);
+        done.countDown();
+        reaper.join(10000);
+        recorder.check(b, NUM);
+    }
+
+    /** stop() releases the buffers of the batches which are still queued */
+    public void testStopReleasesPooledBuffers() throws Exception {
+        BufferPool pool=new BufferPool(10, 100, false);
+        delivery=transport.new PerSenderDelivery(100, 10000);
+        recorder.block=new CountDownLatch(1);
+        List<PooledBuffer> bufs=new ArrayList<PooledBuffer>();
+        for(int i=1; i <= 5; i++) {
+            PooledBuffer buf=new PooledBuffer(pool);
+            bufs.add(buf);
+            delivery.add(batch(a, i), buf);
+            buf.release(); // the reference of the receiver
+        }
+        for(int i=0; i < 100 && recorder.blocked.get() == 0; i++)
+            Util.sleep(50);
+        assert recorder.blocked.get() == 1 : "the first batch should be blocked in up()";
+
+        delivery.stop();
+        recorder.block.countDown();
+        for(int i=0; i < 100 && pool.size() < bufs.size(); i++)
+            Util.sleep(50);
+        assert pool.size() == bufs.size() : "all buffers should have been returned to the pool: " + pool;
+        for(PooledBuffer buf: bufs)
+            assert buf.refs() == 0;
+        assert recorder.count(a) < 5 : "batches queued when stopped should not have been passed up";
+        delivery.add(batch(a, 6), null); // discarded
+        assert delivery.size() == 0;
+    }
+
+
+    protected static MessageBatch batch(Address sender, int num) {
+        Message msg=new Message(null, sender, ByteBuffer.allocate(4).putInt(num).array());
+        return new MessageBatch(null, sender, CLUSTER, true, MessageBatch.Mode.REG, 1).add(msg);
+    }
+
+    protected static void waitUntilIdle(TP.PerSenderDelivery delivery) {
+        for(int i=0; i < 100; i++) {
+            boolean idle=true;
+            for(TP.PerSenderDelivery.SenderQueue queue: delivery.queues.values())
+                if(!queue.isIdle() || queue.thread != null)
+                    idle=false;
+            if(idle)
+                return;
+            Util.sleep(50);
+        }
+        assert false : "queues are not idle: " + delivery;
+    }
+
+
+    protected static class MockTransport extends TP {
+        public void               init() throws Exception {}
+        public boolean            supportsMulticasting() {return true;}
+        public void               sendMulticast(byte[] data, int offset, int length) throws Exception {}
+        public void               sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {}
+        public String             getInfo() {return null;}
+        protected PhysicalAddress getPhysicalAddress() {return null;}
+    }
+
+    /** Records the numbers passed up per sender, and fails if two threads pass up messages of the same sender */
+    protected static class Recorder extends Protocol {
+        protected final ConcurrentMap<Address,List<Integer>>  received=new ConcurrentHashMap<Address,List<Integer>>();
+        protected final ConcurrentMap<Address,AtomicInteger>  in_up=new ConcurrentHashMap<Address,AtomicInteger>();
+        protected final AtomicInteger                         concurrent=new AtomicInteger(), blocked=new AtomicInteger();
+        protected volatile CountDownLatch                     block;
+
+        public void up(MessageBatch batch) {
+            Address sender=batch.sender();
+            in_up.putIfAbsent(sender, new AtomicInteger());
+            received.putIfAbsent(sender, Collections.synchronizedList(new ArrayList<Integer>()));
+            AtomicInteger threads=in_up.get(sender);
+            if(threads.incrementAndGet() > 1)
+                concurrent.incrementAndGet();
+            try {
+                CountDownLatch latch=block;
+                if(latch != null && latch.getCount() > 0) {
+                    blocked.incrementAndGet();
+                    latch.await();
+                }
+                for(Message msg: batch)
+                    received.get(sender).add(ByteBuffer.wrap(msg.getRawBuffer(), msg.getOffset(), 4).getInt());
+            }
+            catch(InterruptedException e) {
+            }
+            finally {
+                threads.decrementAndGet();
+            }
+        }
+
+        protected int count(Address sender) {
+            List<Integer> list=received.get(sender);
+            return list != null? list.size() : 0;
+        }
+
+        protected void waitFor(Address sender, int num) {
+            for(int i=0; i < 200 && count(sender) < num; i++)
+                Util.sleep(50);
+            assert count(sender) == num : "received " + count(sender) + " messages from " + sender + ", expected " + num;
+        }
+
+        /** Checks that the messages of sender were received in order, and never by more than 1 thread at a time */
+        protected void check(Address sender, int num) {
+            List<Integer> list=received.get(sender);
+            assert concurrent.get() == 0 : concurrent.get() + " batches were passed up concurrently with another batch";
+            for(int i=0; i < num; i++)
+                assert list.get(i) == i+1 : "expected " + (i+1) + " but got " + list.get(i);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.DataInput;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests {@link TP.RingBufferBundler}: all messages sent concurrently are drained and sent, in the order in which each
+ * sender sent them, grouped by destination
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class RingBufferBundlerTest {
+    protected MockTransport               transport;
+    protected TP.RingBufferBundler        bundler;
+
+    @BeforeMethod
+    protected void setup() {
+        transport=new MockTransport();
+        transport.cluster_name=new AsciiString("RingBufferBundlerTest");
+        transport.setThreadFactory(new DefaultThreadFactory("test", false));
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        if(bundler != null)
+            bundler.stop();
+    }
+
+
+    public void testSingleMessage() throws Exception {
+        start(16);
+        bundler.send(msg(null, 1, 1));
+        List<Message> msgs=transport.waitForMessages(1);
+        assert msgs.size() == 1 && seqno(msgs.get(0)) == 1;
+        assert transport.num_datagrams == 1;
+    }
+
+    /** The senders block when the buffer is full, and every message is sent once, in the order of its sender */
+    public void testConcurrentSendersWithSmallBuffer() throws Exception {
+        final int NUM_SENDERS=4, NUM=5000;
+        start(16);
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] senders=new Thread[NUM_SENDERS];
+        for(int i=0; i < senders.length; i++) {
+            final int sender=i;
+            senders[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=1; j <= NUM; j++)
+                            bundler.send(msg(null, sender, j));
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            senders[i].start();
+        }
+        latch.countDown();
+        for(Thread sender: senders)
+            sender.join(30000);
+
+        List<Message> msgs=transport.waitForMessages(NUM_SENDERS * NUM);
+        System.out.printf("%d msgs in %d datagrams\n", msgs.size(), transport.num_datagrams);
+        assert msgs.size() == NUM_SENDERS * NUM;
+        assert transport.num_datagrams < msgs.size() : "messages were not bundled";
+        int[] last=new int[NUM_SENDERS];
+        for(Message msg: msgs) {
+            int sender=sender(msg), seqno=seqno(msg);
+            assert seqno == last[sender] + 1 : "sender " + sender + ": expected " + (last[sender]+1) + " but got " + seqno;
+            last[sender]=seqno;
+        }
+        assert bundler.getBufferSize() == 0;
+    }
+
+    /** Messages to different destinations are sent in separate datagrams, preserving the order per destination */
+    public void testDestinations() throws Exception {
+        start(1024);
+        Address[] dests={null, new IpAddress(7800), new IpAddress(7801)};
+        final int NUM=1000;
+        for(int i=1; i <= NUM; i++)
+            bundler.send(msg(dests[i % dests.length], i % dests.length, i));
+        List<Message> msgs=transport.waitForMessages(NUM);
+        assert msgs.size() == NUM;
+        int[] last=new int[dests.length];
+        for(Message msg: msgs) {
+            int sender=sender(msg), seqno=seqno(msg);
+            Address dest=msg.getDest();
+            assert dest == null? dests[sender] == null : dest.equals(dests[sender]);
+            assert seqno > last[sender];
+            last[sender]=seqno;
+        }
+        assert transport.mixed_datagrams == 0 : transport.mixed_datagrams + " datagrams had multiple destinations";
+    }
+
+    public void testSendAfterStop() throws Exception {
+        start(16);
+        bundler.stop();
+        bundler.send(msg(null, 1, 1)); // discarded
+        Util.sleep(200);
+        assert transport.received.isEmpty() && bundler.getBufferSize() == 0;
+    }
+
+
+    protected void start(int capacity) {
+        bundler=transport.new RingBufferBundler(capacity);
+        bundler.start();
+    }
+
+    protected static Message msg(Address dest, int sender, int seqno) {
+        return new Message(dest, ByteBuffer.allocate(8).putInt(sender).putInt(seqno).array());
+    }
+
+    protected static int sender(Message msg) {return ByteBuffer.wrap(msg.getRawBuffer(), msg.getOffset(), 8).getInt();}
+    protected static int seqno(Message msg)  {return ByteBuffer.wrap(msg.getRawBuffer(), msg.getOffset() + 4, 4).getInt();}
+
+
+    /** Parses the datagrams sent by the bundler */
+    protected static class MockTransport extends TP {
+        protected final List<Message> received=new ArrayList<Message>();
+        protected int                 num_datagrams, mixed_datagrams;
+
+        public void               init() throws Exception {}
+        public boolean            supportsMulticasting() {return true;}
+        public String             getInfo() {return null;}
+        protected PhysicalAddress getPhysicalAddress() {return null;}
+
+        public void sendMulticast(byte[] data, int offset, int length) throws Exception {
+            parse(data, offset, length);
+        }
+
+        public void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {
+            parse(data, offset, length);
+        }
+
+        protected synchronized void parse(byte[] data, int offset, int length) throws Exception {
+            DataInput in=new ByteArrayDataInputStream(Arrays.copyOfRange(data, offset, offset + length));
+            in.readShort(); // version
+            byte flags=in.readByte();
+            List<Message> list=(flags & LIST) == LIST? readMessageList(in, id) : Collections.singletonList(readMessage(in));
+            Address dest=list.get(0).getDest();
+            for(Message msg: list)
+                if(dest == null? msg.getDest() != null : !dest.equals(msg.getDest()))
+                    mixed_datagrams++;
+            received.addAll(list);
+            num_datagrams++;
+            notifyAll();
+        }
+
+        protected synchronized List<Message> waitForMessages(int num) throws InterruptedException {
+            long target=System.currentTimeMillis() + 10000;
+            while(received.size() < num && System.currentTimeMillis() < target)
+                wait(500);
+            return new ArrayList<Message>(received);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.tom.MessageID;
+import org.jgroups.protocols.tom.TOA;
+import org.jgroups.protocols.tom.ToaHeader;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.AsciiString;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * Tests the handling of message batches by {@link TOA}: the data messages of a batch are removed from it and a
+ * sequence number is proposed for each of them, other messages are passed up in the batch, and the data messages are
+ * delivered in the order of their final sequence numbers
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class TOA_BatchTest {
+    protected final Address a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B");
+    protected TOA           toa;
+    protected Recorder      recorder;
+    protected List<Message> sent;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        toa=new TOA();
+        recorder=new Recorder();
+        sent=Collections.synchronizedList(new ArrayList<Message>());
+        toa.setUpProtocol(recorder);
+        toa.setDownProtocol(new Protocol() {
+            public Object down(Event evt) {
+                if(evt.getType() == Event.MSG)
+                    sent.add((Message)evt.getArg());
+                return null;
+            }
+        });
+        toa.up(new Event(Event.SET_LOCAL_ADDRESS, a));
+        toa.start();
+    }
+
+    @AfterMethod
+    protected void destroy() {toa.stop();}
+
+
+    public void testBatch() throws Exception {
+        MessageBatch batch=new MessageBatch(a, b, new AsciiString("TOA_BatchTest"), false, MessageBatch.Mode.REG, 4);
+        batch.add(data(1, 10)).add(new Message(a, b, "other")).add(data(2, 11)).add(data(3, 12));
+        toa.up(batch);
+
+        assert recorder.batches.size() == 1 && recorder.batches.get(0).size() == 1 : "batches: " + recorder.batches;
+        for(Message msg: recorder.batches.get(0))
+            assert msg == null || msg.getObject().equals("other"); // removed messages are nulled
+
+        assert sent.size() == 3 : "sent: " + sent;
+        long previous=0;
+        for(int i=0; i < sent.size(); i++) {
+            Message propose=sent.get(i);
+            ToaHeader hdr=(ToaHeader)propose.getHeader(toa.getId());
+            assert propose.getDest().equals(b) && hdr.getType() == ToaHeader.PROPOSE_MESSAGE;
+            assert hdr.getMessageID().equals(new MessageID(b, i+1));
+            assert hdr.getSequencerNumber() > previous && hdr.getSequencerNumber() >= 10 + i : "proposed: " + hdr;
+            previous=hdr.getSequencerNumber();
+        }
+
+        // the final sequence numbers deliver 3 first
+        toa.up(new Event(Event.MSG, finalMsg(3, previous + 1)));
+        toa.up(new Event(Event.MSG, finalMsg(1, previous + 2)));
+        toa.up(new Event(Event.MSG, finalMsg(2, previous + 3)));
+        List<Object> delivered=recorder.waitFor(3);
+        assert delivered.equals(Arrays.<Object>asList(3, 1, 2)) : "delivered: " + delivered;
+    }
+
+    /** A batch without TOA messages is passed up unchanged */
+    public void testBatchWithoutToaMessages() {
+        MessageBatch batch=new MessageBatch(a, b, new AsciiString("TOA_BatchTest"), false, MessageBatch.Mode.REG, 2);
+        batch.add(new Message(a, b, 1)).add(new Message(a, b, 2));
+        toa.up(batch);
+        assert recorder.batches.size() == 1 && recorder.batches.get(0).size() == 2;
+        assert sent.isEmpty();
+    }
+
+
+    protected Message data(long id, long seqno) {
+        ToaHeader hdr=ToaHeader.newDataMessageHeader(new MessageID(b, id), Arrays.asList(a, b)).setSequencerNumber(seqno);
+        return new Message(a, b, (int)id).putHeader(toa.getId(), hdr);
+    }
+
+    protected Message finalMsg(long id, long seqno) {
+        return new Message(a, b, null).putHeader(toa.getId(), ToaHeader.newFinalMessageHeader(new MessageID(b, id), seqno));
+    }
+
+
+    protected static class Recorder extends Protocol {
+        protected final List<MessageBatch> batches=new ArrayList<MessageBatch>();
+        protected final List<Object>       delivered=new ArrayList<Object>();
+
+        public synchronized Object up(Event evt) {
+            if(evt.getType() == Event.MSG) {
+                delivered.add(((Message)evt.getArg()).getObject());
+                notifyAll();
+            }
+            return null;
+        }
+
+        public void up(MessageBatch batch) {
+            batches.add(batch);
+        }
+
+        protected synchronized List<Object> waitFor(int num) throws InterruptedException {
+            long target=System.currentTimeMillis() + 10000;
+            while(delivered.size() < num && System.currentTimeMillis() < target)
+                wait(500);
+            return new ArrayList<Object>(delivered);
+        }
+    }
+}
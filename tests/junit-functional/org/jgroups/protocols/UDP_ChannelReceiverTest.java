@@ -0,0 +1,211 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests the datagrams read at once by {@link UDP.ChannelReceiver}: their messages are passed up as one batch per sender
+ * and type, and a burst of unicasts or multicasts sent to a channel with use_datagram_channel is drained completely
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class UDP_ChannelReceiverTest {
+    protected static final AsciiString CLUSTER=new AsciiString("UDP_ChannelReceiverTest");
+    protected MockTransport            transport;
+    protected Recorder                 recorder;
+    protected BufferPool               pool;
+    protected final Address            a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B");
+    protected final Address            phys_a=new IpAddress(7800), phys_b=new IpAddress(7801);
+    protected JChannel                 ch1, ch2;
+
+    @BeforeMethod
+    protected void setup() {
+        transport=new MockTransport();
+        transport.setId((short)100);
+        transport.cluster_name=CLUSTER;
+        transport.thread_pool=transport.oob_thread_pool=transport.internal_thread_pool=new DirectExecutor();
+        transport.setUpProtocol(recorder=new Recorder());
+        pool=new BufferPool(16, 2000, false);
+    }
+
+    @AfterMethod
+    protected void destroy() {Util.close(ch2, ch1);}
+
+
+    /** Regular and OOB messages of the same sender are passed up in one batch each, in the order in which they were read */
+    public void testBatchingPerSenderAndType() throws Exception {
+        receive(new Address[]{phys_a, phys_a, phys_b, phys_a, phys_a, phys_b},
+                list(a, false, 1, 2, 3),
+                single(a, false, false, 4),
+                single(b, false, false, 1),
+                single(a, true, false, 10),
+                list(a, true, 11, 12),
+                list(b, false, 2, 3));
+
+        assert recorder.batches.size() == 3 : "batches: " + recorder.batches;
+        assert recorder.batches.contains(a + ":REG:[1, 2, 3, 4]");
+        assert recorder.batches.contains(a + ":OOB:[10, 11, 12]");
+        assert recorder.batches.contains(b + ":REG:[1, 2, 3]");
+        assert recorder.single_msgs.isEmpty();
+        assert pool.size() == 6 : "all buffers should have been returned to the pool: " + pool;
+    }
+
+    /** OOB messages tagged as DONT_BUNDLE are not added to a batch */
+    public void testDontBundle() throws Exception {
+        receive(new Address[]{phys_a, phys_a, phys_a},
+                single(a, true, false, 1),
+                single(a, true, true, 2),
+                single(a, true, false, 3));
+        assert recorder.batches.equals(Collections.singletonList(a + ":OOB:[1, 3]")) : "batches: " + recorder.batches;
+        assert recorder.single_msgs.equals(Collections.singletonList(2));
+    }
+
+    /** With zero_copy_receive, the payloads point into the buffers read by the receiver, which are returned when done */
+    public void testZeroCopy() throws Exception {
+        transport.zero_copy_pool=new BufferPool(16, 2000, false);
+        receive(new Address[]{phys_a, phys_a}, list(a, false, 1, 2), single(a, false, false, 3));
+        assert recorder.batches.equals(Collections.singletonList(a + ":REG:[1, 2, 3]")) : "batches: " + recorder.batches;
+        assert recorder.pooled == 3 : "messages pointing into the pooled buffers: " + recorder.pooled;
+        assert pool.size() == 2 && transport.zero_copy_pool.numAllocated() == 0 : "no second copy should have been made";
+    }
+
+    /** A burst of unicasts is received completely and in order with multiple threads reading from the channel */
+    public void testDrain() throws Exception {
+        drain(false);
+    }
+
+    /** The multicast socket is a DatagramChannel as well, which joined the multicast group */
+    public void testDrainMulticasts() throws Exception {
+        drain(true);
+        UDP udp=(UDP)ch2.getProtocolStack().getTransport();
+        assert udp.mcast_channel != null && udp.mcast_sock == null;
+        assert udp.mcast_receiver instanceof UDP.ChannelReceiver;
+    }
+
+
+    protected void drain(boolean multicast) throws Exception {
+        final int NUM=5000;
+        ch1=createChannel("A");
+        ch2=createChannel("B");
+        final List<Integer> list=Collections.synchronizedList(new ArrayList<Integer>(NUM));
+        ch2.setReceiver(new ReceiverAdapter() {
+            public void receive(Message msg) {list.add((Integer)msg.getObject());}
+        });
+        ch1.connect("UDP_ChannelReceiverTest");
+        ch2.connect("UDP_ChannelReceiverTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, ch1, ch2);
+
+        for(int i=1; i <= NUM; i++)
+            ch1.send(multicast? null : ch2.getAddress(), i);
+        for(int i=0; i < 30 && list.size() < NUM; i++)
+            Util.sleep(500);
+        assert list.size() == NUM : "received " + list.size() + " messages, expected " + NUM;
+        for(int i=0; i < NUM; i++)
+            assert list.get(i) == i+1 : "expected " + (i+1) + " but got " + list.get(i);
+        UDP udp=(UDP)ch2.getProtocolStack().getTransport();
+        assert udp.getNumReceiveErrors() == 0;
+    }
+
+
+    protected void receive(Address[] senders, byte[] ... datagrams) {
+        PooledBuffer[] bufs=new PooledBuffer[datagrams.length];
+        int[] lengths=new int[datagrams.length];
+        for(int i=0; i < datagrams.length; i++) {
+            bufs[i]=new PooledBuffer(pool);
+            System.arraycopy(datagrams[i], 0, bufs[i].array(), 0, datagrams[i].length);
+            lengths[i]=datagrams[i].length;
+        }
+        transport.receive(senders, bufs, lengths, datagrams.length);
+    }
+
+    protected byte[] single(Address src, boolean oob, boolean dont_bundle, int num) throws Exception {
+        Message msg=msg(src, oob, num).putHeader(transport.getId(), new TpHeader(CLUSTER));
+        if(dont_bundle)
+            msg.setFlag(Message.Flag.DONT_BUNDLE);
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(100);
+        TP.writeMessage(msg, out, true);
+        return Arrays.copyOf(out.buffer(), out.position());
+    }
+
+    protected byte[] list(Address src, boolean oob, int ... nums) throws Exception {
+        List<Message> msgs=new ArrayList<Message>(nums.length);
+        for(int num: nums)
+            msgs.add(msg(src, oob, num));
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(200);
+        TP.writeMessageList(null, src, CLUSTER.chars(), msgs, out, true, transport.getId());
+        return Arrays.copyOf(out.buffer(), out.position());
+    }
+
+    protected static Message msg(Address src, boolean oob, int num) {
+        Message msg=new Message(null, src, ByteBuffer.allocate(4).putInt(num).array());
+        if(oob)
+            msg.setFlag(Message.Flag.OOB);
+        return msg;
+    }
+
+    protected static int num(Message msg) {
+        return ByteBuffer.wrap(msg.getRawBuffer(), msg.getOffset(), msg.getLength()).getInt();
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        Protocol[] protocols={
+          new UDP().setValue("bind_addr", InetAddress.getByName("127.0.0.1")).setValue("ip_ttl", 0)
+            .setValue("use_datagram_channel", true).setValue("receiver_threads", 2).setValue("receive_batch_size", 8),
+          new PING(),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS()
+        };
+        return new JChannel(protocols).name(name);
+    }
+
+
+    protected static class MockTransport extends TP {
+        public void               init() throws Exception {}
+        public boolean            supportsMulticasting() {return true;}
+        public void               sendMulticast(byte[] data, int offset, int length) throws Exception {}
+        public void               sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {}
+        public String             getInfo() {return null;}
+        protected PhysicalAddress getPhysicalAddress() {return null;}
+    }
+
+    /** Records the batches and single messages passed up by the transport */
+    protected static class Recorder extends Protocol {
+        protected final List<String>  batches=new ArrayList<String>();
+        protected final List<Integer> single_msgs=new ArrayList<Integer>();
+        protected int                 pooled;
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG)
+                single_msgs.add(num((Message)evt.getArg()));
+            return null;
+        }
+
+        public void up(MessageBatch batch) {
+            List<Integer> nums=new ArrayList<Integer>(batch.size());
+            for(Message msg: batch) {
+                nums.add(num(msg));
+                if(msg.isTransientFlagSet(Message.TransientFlag.POOLED_BUFFER))
+                    pooled++;
+            }
+            batches.add(batch.sender() + ":" + batch.mode() + ":" + nums);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.jgroups.protocols.abaas;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.util.Util;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests {@link OrderingCredits}: requests go to the box member with the most credits, a client without credits blocks
+ * until a response returns a credit or maxBlockTime elapses, and the credits of box members which left are removed
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class OrderingCreditsTest {
+    protected final Address a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B");
+    protected OrderingCredits credits;
+
+    @BeforeMethod
+    protected void setup() {
+        credits=new OrderingCredits(3);
+        credits.addMember(a);
+        credits.addMember(b);
+    }
+
+
+    public void testInvalidMaxCredits() {
+        try {
+            new OrderingCredits(0);
+            assert false : "maxCredits of 0 should be rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+    }
+
+    public void testNoBoxMembers() throws Exception {
+        assert new OrderingCredits(3).acquire(null, 10000) == null;
+        assert credits.acquire(Util.createRandomAddress("C"), 10000) == null;
+    }
+
+    public void testMostAvailable() throws Exception {
+        assert credits.acquire(a, 0) == a;
+        assert credits.acquire(a, 0) == a;
+        assert credits.acquire(null, 0) == b;
+        assert credits.acquire(null, 0) == b; // B has 1 credit left and A 1
+        assert credits.getAvailable(a) == 1 && credits.getAvailable(b) == 1;
+
+        credits.release(a, 1);
+        assert credits.acquire(null, 0) == a;
+        assert credits.getNumberOfBlockings() == 0 && credits.getNumberOfTimeouts() == 0;
+    }
+
+    /** Ties are broken randomly, so that clients don't all send to the same box member */
+    public void testTiesAreBrokenRandomly() throws Exception {
+        int to_a=0;
+        for(int i=0; i < 100; i++) {
+            Address member=credits.acquire(null, 0);
+            if(member == a)
+                to_a++;
+            credits.release(member, 1);
+        }
+        assert to_a > 0 && to_a < 100 : "requests to A: " + to_a;
+    }
+
+    public void testReleaseIsBoundedByMaxCredits() throws Exception {
+        credits.acquire(a, 0);
+        credits.release(a, 5);
+        assert credits.getAvailable(a) == 3;
+        credits.release(Util.createRandomAddress("C"), 1); // ignored
+    }
+
+    /** A client without credits blocks until a credit is released */
+    public void testBlockUntilRelease() throws Exception {
+        for(int i=0; i < 3; i++)
+            credits.acquire(a, 0);
+        final AtomicReference<Address> acquired=new AtomicReference<Address>();
+        final CountDownLatch done=new CountDownLatch(1);
+        Thread client=new Thread() {
+            public void run() {
+                try {
+                    acquired.set(credits.acquire(a, 10000));
+                }
+                catch(InterruptedException e) {
+                }
+                done.countDown();
+            }
+        };
+        client.start();
+        Util.sleep(200);
+        assert acquired.get() == null : "the client should be blocked";
+        assert credits.getNumberOfBlockings() == 1;
+
+        credits.release(a, 1);
+        client.join(10000);
+        assert acquired.get() == a && done.getCount() == 0;
+        assert credits.getAvailable(a) == 0;
+        assert credits.getNumberOfBlockings() == 1 && credits.getNumberOfTimeouts() == 0;
+    }
+
+    /** A request is sent after maxBlockTime even without credits, so that a crashed box member can't block a client */
+    public void testTimeout() throws Exception {
+        for(int i=0; i < 3; i++)
+            credits.acquire(a, 0);
+        long start=System.currentTimeMillis();
+        assert credits.acquire(a, 200) == a;
+        long time=System.currentTimeMillis() - start;
+        assert time >= 190 : "acquire() returned after " + time + " ms";
+        assert credits.getAvailable(a) == -1;
+        assert credits.getNumberOfBlockings() == 1 && credits.getNumberOfTimeouts() == 1;
+
+        credits.release(a, 1); // the response of the request sent without a credit
+        assert credits.getAvailable(a) == 0;
+    }
+
+    /** The credits of box members which left are removed; existing credits are kept when a member is added again */
+    public void testRetainAll() throws Exception {
+        credits.acquire(a, 0);
+        credits.addMember(a);
+        assert credits.getAvailable(a) == 2;
+
+        credits.retainAll(Collections.singletonList(a));
+        assert credits.getAvailable(b) == 0;
+        assert credits.acquire(b, 0) == null;
+        for(int i=0; i < 10; i++)
+            assert credits.acquire(null, 0) == a; // times out when the credits are used up
+
+        credits.retainAll(Arrays.<Address>asList());
+        assert credits.acquire(null, 0) == null;
+    }
+
+    /** A member added whilst a client is blocked wakes up the client */
+    public void testAddMemberWakesUpBlockedClient() throws Exception {
+        final OrderingCredits single=new OrderingCredits(1);
+        single.addMember(a);
+        single.acquire(a, 0);
+        final AtomicReference<Address> acquired=new AtomicReference<Address>();
+        Thread client=new Thread() {
+            public void run() {
+                try {
+                    acquired.set(single.acquire(null, 10000));
+                }
+                catch(InterruptedException e) {
+                }
+            }
+        };
+        client.start();
+        Util.sleep(200);
+        single.addMember(b);
+        client.join(10000);
+        assert acquired.get() == b : "acquired: " + acquired.get();
+        assert single.getNumberOfTimeouts() == 0;
+    }
+}
@@ -0,0 +1,154 @@
+package org.jgroups.protocols.aramis;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.protocols.aramis.DeliveryManager.MessageRecord;
+import org.jgroups.util.Util;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * Tests {@link DeliverySet}: records are removed in the order of {@link MessageId#compareTo}, sequence placeholders
+ * come first, and records are found by originator and sequence
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class DeliverySetTest {
+    protected final Address  a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B"),
+                             c=Util.createRandomAddress("C");
+    protected DeliveryManager manager;
+    protected DeliverySet     set;
+
+    @BeforeMethod
+    protected void setup() {
+        manager=new DeliveryManager(null, null);
+        set=new DeliverySet();
+    }
+
+
+    public void testOrder() {
+        add(a, 25, 2);
+        add(b, 10, 1);
+        add(a, 20, 1);
+        add(c, 15, 1);
+        assert set.size() == 4;
+        assertOrder(id(b, 10, 1), id(c, 15, 1), id(a, 20, 1), id(a, 25, 2));
+        assert set.isEmpty() && set.first() == null && set.pollFirst() == null;
+    }
+
+    /** Records with the same timestamp are ordered by originator */
+    public void testSameTimestamp() {
+        add(b, 10, 1);
+        add(c, 10, 1);
+        add(a, 10, 1);
+        List<Address> origins=Arrays.asList(a, b, c);
+        Collections.sort(origins);
+        assertOrder(id(origins.get(0), 10, 1), id(origins.get(1), 10, 1), id(origins.get(2), 10, 1));
+    }
+
+    /** Records are removed in the same order as from a TreeSet sorted by MessageId */
+    public void testOrderOfRandomRecords() {
+        Address[] members=new Address[10];
+        for(int i=0; i < members.length; i++)
+            members[i]=Util.createRandomAddress(String.valueOf(i));
+        Random random=new Random(42);
+        TreeSet<MessageId> expected=new TreeSet<MessageId>();
+        long[] timestamps=new long[members.length];
+        for(int i=0; i < 5000; i++) {
+            int member=random.nextInt(members.length);
+            timestamps[member]+=1 + random.nextInt(5);
+            MessageId id=new MessageId(timestamps[member], members[member], i);
+            expected.add(id);
+        }
+        List<MessageId> ids=new ArrayList<MessageId>(expected);
+        Collections.shuffle(ids, random);
+        for(MessageId id: ids)
+            assert set.add(manager.new MessageRecord(id, null));
+        assert set.size() == expected.size();
+
+        for(MessageId id: expected) {
+            MessageRecord record=set.pollFirst();
+            assert record != null && record.id.equals(id) : "expected " + id + " but got " + (record != null? record.id : null);
+        }
+        assert set.isEmpty();
+    }
+
+    public void testSequencePlaceholdersComeFirst() {
+        add(a, 5, 1);
+        MessageRecord placeholder=manager.new MessageRecord(b, 3);
+        assert set.add(placeholder);
+        assert set.hasSequencePlaceholders();
+        assert set.first() == placeholder;
+
+        // a message with the same originator and sequence doesn't remove the sequence placeholder
+        assert !set.remove(manager.new MessageRecord(id(b, 7, 3), null));
+        assert set.hasSequencePlaceholders();
+
+        assert set.remove(placeholder);
+        assert !set.hasSequencePlaceholders();
+        assert set.first().id.equals(id(a, 5, 1));
+    }
+
+    public void testDuplicatesAreRejected() {
+        assert set.add(manager.new MessageRecord(id(a, 5, 1), null));
+        assert !set.add(manager.new MessageRecord(id(a, 5, 1), null));
+        assert !set.add(manager.new MessageRecord(a, 1)); // same sequence
+        assert set.size() == 1;
+    }
+
+    public void testGet() {
+        add(a, 5, 1);
+        add(a, 8, 3);
+        assert set.contains(a, 1) && !set.contains(a, 2) && set.contains(a, 3) && !set.contains(b, 1);
+        assert set.get(id(a, 8, 3)).id.equals(id(a, 8, 3));
+        assert set.get(id(a, 9, 3)) == null : "different timestamp";
+        assert set.get(a, 3).id.getTimestamp() == 8;
+    }
+
+    /** A range of sequences bigger than the initial capacity of a ring, and sequences wrapping around the ring */
+    public void testRingGrowsAndWrapsAround() {
+        for(long seq=1; seq <= 1000; seq++)
+            add(a, seq, seq);
+        for(long seq=1; seq <= 990; seq++)
+            assert set.pollFirst().id.getSequence() == seq;
+        for(long seq=1001; seq <= 1020; seq++) // wraps around
+            add(a, seq, seq);
+        add(a, 5000, 5000);
+        assert set.size() == 31;
+        for(long seq=991; seq <= 1020; seq++) {
+            assert set.contains(a, seq);
+            assert set.pollFirst().id.getSequence() == seq;
+        }
+        assert set.pollFirst().id.getSequence() == 5000;
+        assert set.isEmpty();
+    }
+
+    public void testRemoveFromMiddle() {
+        add(a, 1, 1);
+        add(a, 2, 2);
+        add(a, 3, 3);
+        add(b, 2, 1);
+        assert set.remove(set.get(a, 1));
+        assert set.remove(set.get(a, 2));
+        assertOrder(id(b, 2, 1), id(a, 3, 3));
+    }
+
+
+    protected void add(Address origin, long timestamp, long sequence) {
+        assert set.add(manager.new MessageRecord(id(origin, timestamp, sequence), null));
+    }
+
+    protected static MessageId id(Address origin, long timestamp, long sequence) {
+        return new MessageId(timestamp, origin, sequence);
+    }
+
+    protected void assertOrder(MessageId ... ids) {
+        for(MessageId id: ids) {
+            MessageRecord record=set.pollFirst();
+            assert record != null && record.id.equals(id) : "expected " + id + " but got " + (record != null? record.id : null);
+        }
+    }
+}
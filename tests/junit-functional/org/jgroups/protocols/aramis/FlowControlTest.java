@@ -0,0 +1,284 @@
+package org.jgroups.protocols.aramis;
+
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests {@link FlowControl}: in the default mode the sending thread broadcasts its message before returning, in the
+ * pacing mode messages are queued without blocking and broadcast in order by the pacer, in buckets whose size adapts to
+ * delta and is bounded by maxBucketSize. The queue is bounded by maxQueueSize, and a failed broadcast doesn't stop the pacer
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class FlowControlTest {
+    protected MockNMC           nmc;
+    protected MockFlowControl   fc;
+
+    @AfterMethod
+    protected void destroy() {
+        if(fc != null)
+            fc.stop();
+    }
+
+
+    public void testInvalidMaxBucketSize() {
+        try {
+            new FlowControl(null, new MockNMC(), true, 0);
+            assert false : "a maxBucketSize of 0 should be rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+        try {
+            new FlowControl(null, new MockNMC(), true, 10, 0);
+            assert false : "a maxQueueSize of 0 should be rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+    }
+
+    /** The sending thread broadcasts its message itself, at least DELTA_LOWER_LIMIT after the previous one */
+    public void testDefaultMode() {
+        create(false, 10, -1);
+        long start=System.nanoTime();
+        for(int i=1; i <= 10; i++) {
+            fc.addMessage(msg(i));
+            assert fc.sent.size() == i : "addMessage() should only return once the message was broadcast";
+        }
+        assert System.nanoTime() - start >= 10 * 1000000L;
+        assert fc.getBucketSize() == 1 && fc.getQueueSize() == 0;
+        fc.check(10);
+    }
+
+    /** Without latencies exceeding xMax delta is DELTA_LOWER_LIMIT, so the pacer broadcasts 1 message per bucket */
+    public void testPacing() {
+        create(true, 20, -1);
+        final int NUM=200;
+        for(int i=1; i <= NUM; i++)
+            fc.addMessage(msg(i));
+        assert fc.sent.size() < NUM : "messages should be queued, not broadcast by the sending thread";
+
+        fc.waitFor(NUM);
+        fc.check(NUM);
+        assert fc.max_bucket == 1 && fc.getBucketSize() == 1;
+        assert fc.getQueueSize() == 0;
+        long elapsed=fc.send_times.get(NUM-1) - fc.send_times.get(0);
+        assert elapsed >= (NUM - 50) * 1000000L : "the buckets should be broadcast 1 ms apart, elapsed: " + elapsed;
+    }
+
+    /** A delta of 0 lets the pacer broadcast up to maxBucketSize messages per bucket */
+    public void testBucketSizeBoundedByMaxBucketSize() {
+        create(true, 20, 0.5);
+        final int NUM=200;
+        for(int i=1; i <= NUM; i++)
+            fc.addMessage(msg(i));
+        fc.waitFor(NUM);
+        fc.check(NUM);
+        assert fc.getBucketSize() == 20;
+        assert fc.max_bucket > 1 && fc.max_bucket <= 20 : "max bucket size: " + fc.max_bucket;
+    }
+
+    /** The messages of concurrent senders are all broadcast once, and in the order in which each sender added them */
+    public void testConcurrentSenders() throws Exception {
+        create(true, 10, 0.5);
+        final int SENDERS=4, NUM=1000;
+        final CountDownLatch start=new CountDownLatch(1);
+        Thread[] senders=new Thread[SENDERS];
+        for(int i=0; i < senders.length; i++) {
+            final int sender=i;
+            senders[i]=new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch(InterruptedException e) {
+                    }
+                    for(int j=1; j <= NUM; j++)
+                        fc.addMessage(msg(sender * NUM + j));
+                }
+            };
+            senders[i].start();
+        }
+        start.countDown();
+        for(Thread sender: senders)
+            sender.join(10000);
+        fc.waitFor(SENDERS * NUM);
+
+        int[] last=new int[SENDERS];
+        for(Message msg: fc.sent) {
+            int num=(Integer)msg.getObject(), sender=(num - 1) / NUM;
+            assert num > last[sender] : "message " + num + " was broadcast after " + last[sender];
+            last[sender]=num;
+        }
+        for(int i=0; i < SENDERS; i++)
+            assert last[i] == (i+1) * NUM;
+    }
+
+    /** Nothing is broadcast before the initial probe period of the NMC is complete */
+    public void testNoBroadcastWithoutNMCData() {
+        create(true, 10, -1);
+        nmc.data=null;
+        for(int i=1; i <= 5; i++)
+            fc.addMessage(msg(i));
+        Util.sleep(100);
+        assert fc.sent.isEmpty() && fc.getQueueSize() == 5;
+
+        nmc.data=data();
+        fc.waitFor(5);
+        fc.check(5);
+    }
+
+    /** A message which can't be broadcast is skipped, the pacer keeps broadcasting the subsequent ones */
+    public void testBroadcastFailure() {
+        create(true, 10, -1);
+        fc.fail=3;
+        for(int i=1; i <= 5; i++)
+            fc.addMessage(msg(i));
+        for(int i=0; i < 200 && fc.sent.size() < 4; i++)
+            Util.sleep(50);
+        assert fc.sent.size() == 4 : "sent: " + fc.sent.size();
+        int[] expected={1, 2, 4, 5};
+        for(int i=0; i < expected.length; i++)
+            assert (Integer)fc.sent.get(i).getObject() == expected[i];
+        assert fc.getQueueSize() == 0;
+    }
+
+    /** Once maxQueueSize messages are queued, the sending thread blocks until the pacer has broadcast some of them */
+    public void testBoundedQueue() throws Exception {
+        create(true, 10, -1, 5);
+        nmc.data=null; // nothing is broadcast
+        final CountDownLatch done=new CountDownLatch(1);
+        Thread sender=new Thread() {
+            public void run() {
+                for(int i=1; i <= 20; i++)
+                    fc.addMessage(msg(i));
+                done.countDown();
+            }
+        };
+        sender.start();
+        Util.sleep(200);
+        assert done.getCount() == 1 : "the sender should be blocked";
+        assert fc.getQueueSize() == 5 && fc.getNumberOfBlockings() == 1;
+
+        nmc.data=data();
+        fc.waitFor(20);
+        fc.check(20);
+        sender.join(10000);
+        assert done.getCount() == 0;
+    }
+
+    /** Senders blocked on a full queue are released when flow control is stopped */
+    public void testStopReleasesBlockedSenders() throws Exception {
+        create(true, 10, -1, 2);
+        nmc.data=null;
+        Thread sender=new Thread() {
+            public void run() {
+                for(int i=1; i <= 5; i++)
+                    fc.addMessage(msg(i));
+            }
+        };
+        sender.start();
+        Util.sleep(100);
+        assert sender.isAlive() : "the sender should be blocked";
+        fc.stop();
+        sender.join(10000);
+        assert !sender.isAlive();
+    }
+
+    public void testStop() {
+        create(true, 10, -1);
+        fc.addMessage(msg(1));
+        fc.waitFor(1);
+        fc.stop();
+        Util.sleep(100);
+        fc.addMessage(msg(2));
+        Util.sleep(100);
+        assert fc.sent.size() == 1 : "the pacer should have been stopped: " + fc.sent.size();
+    }
+
+
+    protected void create(boolean pacing, int max_bucket_size, double r) {
+        create(pacing, max_bucket_size, r, 10000);
+    }
+
+    protected void create(boolean pacing, int max_bucket_size, double r, int max_queue_size) {
+        nmc=new MockNMC();
+        nmc.data=data();
+        nmc.r=r;
+        fc=new MockFlowControl(nmc, pacing, max_bucket_size, max_queue_size);
+        fc.start();
+    }
+
+    protected static NMCData data() {
+        return new NMCData(1, 1, 1, 1, 1, 10, 0, true);
+    }
+
+    protected static Message msg(int num) {
+        return new Message(null, null, num);
+    }
+
+
+    /**
+     * Records the broadcast messages, and the maximum number of messages broadcast without reading the clock. Throws an
+     * exception when broadcasting the message whose number is fail
+     */
+    protected static class MockFlowControl extends FlowControl {
+        protected final List<Message> sent=Collections.synchronizedList(new ArrayList<Message>());
+        protected final List<Long>    send_times=Collections.synchronizedList(new ArrayList<Long>());
+        protected volatile int        bucket, max_bucket, fail;
+
+        public MockFlowControl(NMC nmc, boolean pacing, int max_bucket_size, int max_queue_size) {
+            super(null, nmc, pacing, max_bucket_size, max_queue_size);
+        }
+
+        protected void broadcast(Message message) {
+            if((Integer)message.getObject() == fail)
+                throw new IllegalStateException("failed broadcasting " + fail);
+            send_times.add(System.nanoTime());
+            sent.add(message);
+            max_bucket=Math.max(max_bucket, ++bucket);
+        }
+
+        // the pacer reads the clock before each bucket, but not whilst broadcasting one
+        protected long getClockTime() {
+            bucket=0;
+            return System.nanoTime();
+        }
+
+        protected void waitFor(int num) {
+            for(int i=0; i < 200 && sent.size() < num; i++)
+                Util.sleep(50);
+            assert sent.size() == num : "broadcast " + sent.size() + " messages, expected " + num;
+        }
+
+        protected void check(int num) {
+            for(int i=0; i < num; i++) {
+                int actual=(Integer)sent.get(i).getObject();
+                assert actual == i+1 : "expected " + (i+1) + " but got " + actual;
+            }
+        }
+    }
+
+    /** Returns the same data until changed; calculateR() throws an exception, as if no latency exceeded xMax, if r < 0 */
+    protected static class MockNMC implements NMC {
+        protected volatile NMCData data;
+        protected volatile double  r=-1;
+
+        public NMCData getData()                         {return data;}
+        public void    setActiveNodes(int numberOfNodes) {}
+        public boolean initialProbesReceived()           {return data != null;}
+        public void    receiveProbe(RMCastHeader header) {}
+
+        public double calculateR() throws Exception {
+            if(r < 0)
+                throw new Exception("no latency exceeded xMax");
+            return r;
+        }
+    }
+}
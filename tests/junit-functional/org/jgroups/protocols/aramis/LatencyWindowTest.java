@@ -0,0 +1,105 @@
+package org.jgroups.protocols.aramis;
+
+import org.jgroups.Global;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * Tests {@link LatencyWindow} against a list of the most recent latencies, from which the values are calculated by
+ * sorting a copy, as the NMC calculated them before the window was introduced
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class LatencyWindowTest {
+
+    public void testEmpty() {
+        LatencyWindow window=new LatencyWindow(10);
+        assert window.isEmpty() && window.size() == 0;
+        assert window.countExceeding(1.05, 0) == 0;
+        try {
+            window.max();
+            assert false : "max() of an empty window should throw an exception";
+        }
+        catch(IllegalStateException expected) {
+        }
+    }
+
+    public void testInvalidCapacity() {
+        try {
+            new LatencyWindow(0);
+            assert false : "a capacity of 0 should be rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+    }
+
+    public void testEvictsOldestLatency() {
+        LatencyWindow window=new LatencyWindow(3);
+        window.add(50);
+        window.add(10);
+        window.add(30);
+        assert window.size() == 3 && window.max() == 50;
+        window.add(20); // evicts 50
+        assert window.size() == 3 && window.max() == 30;
+        window.add(5); // evicts 10
+        window.add(5); // evicts 30
+        assert window.max() == 20 && window.percentile(0.5) == 5;
+    }
+
+    public void testPercentile() {
+        LatencyWindow window=new LatencyWindow(10);
+        for(int i=10; i >= 1; i--)
+            window.add(i);
+        assert window.percentile(0.693) == 7; // the 7th of 10 latencies
+        assert window.percentile(0.1) == 1 && window.percentile(0) == 1 && window.percentile(1) == 10;
+    }
+
+    public void testCountExceeding() {
+        LatencyWindow window=new LatencyWindow(10);
+        for(long latency: new long[]{100, 96, 95, 95, 50, 100})
+            window.add(latency);
+        assert window.countExceeding(1.05, 100) == 3; // 96 * 1.05 > 100, 95 * 1.05 == 99.75
+        assert window.countExceeding(1, 100) == 0;
+        assert window.countExceeding(2, 100) == 5;
+    }
+
+    /** Compares the window with the sorted recent past after every latency, including duplicates and evictions */
+    public void testRandomLatencies() {
+        final int CAPACITY=1000;
+        LatencyWindow window=new LatencyWindow(CAPACITY);
+        LinkedList<Long> recent_past=new LinkedList<Long>();
+        Random random=new Random(7);
+        for(int i=0; i < 5000; i++) {
+            long latency=1 + random.nextInt(i % 1000 < 500? 20 : 200);
+            window.add(latency);
+            recent_past.addLast(latency);
+            if(recent_past.size() > CAPACITY)
+                recent_past.removeFirst();
+            if(i % 100 == 99)
+                compare(window, recent_past);
+        }
+    }
+
+
+    protected static void compare(LatencyWindow window, List<Long> recent_past) {
+        List<Long> latencies=new ArrayList<Long>(recent_past);
+        Collections.sort(latencies);
+        int size=latencies.size();
+        long max=latencies.get(size - 1), d=-1;
+        int exceeding=0, count=1;
+        for(long latency: latencies) {
+            if(count >= size * 0.693 && d < 0)
+                d=latency;
+            if(latency * 1.05 > max)
+                exceeding++;
+            count++;
+        }
+        assert window.size() == size;
+        assert window.max() == max : "max: expected " + max + " but got " + window.max();
+        assert window.percentile(0.693) == d : "d: expected " + d + " but got " + window.percentile(0.693);
+        assert window.countExceeding(1.05, max) == exceeding
+          : "exceeding: expected " + exceeding + " but got " + window.countExceeding(1.05, max);
+    }
+}
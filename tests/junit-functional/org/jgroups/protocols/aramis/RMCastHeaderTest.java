@@ -0,0 +1,180 @@
+package org.jgroups.protocols.aramis;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * Tests the serialization of {@link RMCastHeader}: the vector clock and acks, which are written relative to the
+ * destinations and the timestamp of the header's id (see {@link MemberTable}), are read back unchanged, and size()
+ * returns the number of bytes written
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class RMCastHeaderTest {
+    protected static final long BASE=1000000000L; // the timestamp of the header's id
+
+    public void testEmptyProbeHeader() throws Exception {
+        List<Address> members=members(3);
+        RMCastHeader hdr=RMCastHeader.createEmptyProbeHeader(id(members.get(0), BASE, 1), members.get(1), data(), members);
+        RMCastHeader copy=roundTrip(hdr);
+        assert copy.getVectorClock() == null && copy.getAcks() == null;
+    }
+
+    /** An empty ack has a sequence of -1, and the ack of a timestamp after the header's is a negative delta */
+    public void testEmptyAckHeader() throws Exception {
+        List<Address> members=members(3);
+        Address a=members.get(0), b=members.get(1), c=members.get(2);
+        Map<Address,MessageId> received=new HashMap<Address,MessageId>();
+        received.put(b, id(b, BASE - 5000, 7));
+        received.put(c, id(c, BASE + 3, 2));
+        VectorClock clock=new VectorClock(id(a, BASE - 1, -1), received);
+        RMCastHeader hdr=RMCastHeader.createEmptyAckHeader(id(a, BASE, -1), members, clock,
+                                                           Arrays.asList(id(b, BASE - 5000, 7), id(c, BASE + 3, 2)));
+        RMCastHeader copy=roundTrip(hdr);
+        assert copy.getNmcData() == null && copy.getDisseminator().equals(a);
+    }
+
+    public void testBroadcastHeader() throws Exception {
+        List<Address> members=members(30);
+        RMCastHeader hdr=broadcastHeader(members, 10, Util.createRandomAddress("X"));
+        roundTrip(hdr);
+    }
+
+    /** Originators which are not destinations are written in full */
+    public void testOriginatorNotInDestinations() throws Exception {
+        List<Address> members=members(3);
+        Address left=Util.createRandomAddress("left");
+        Map<Address,MessageId> received=new HashMap<Address,MessageId>();
+        received.put(left, id(left, BASE - 10, 4));
+        received.put(members.get(1), id(members.get(1), BASE - 20, 5));
+        VectorClock clock=new VectorClock(id(members.get(0), BASE - 2, 3), received);
+        RMCastHeader hdr=RMCastHeader.createBroadcastHeader(id(members.get(0), BASE, 4), members.get(0), 0, data(),
+                                                            members, clock, Collections.singletonList(id(left, BASE - 10, 4)));
+        roundTrip(hdr);
+    }
+
+    /** With 255 members or more, ordinals are written as shorts */
+    public void testManyMembers() throws Exception {
+        for(int num: new int[]{254, 255, 256, 1000}) {
+            List<Address> members=members(num);
+            roundTrip(broadcastHeader(members, 10, members.get(num - 1)));
+        }
+    }
+
+    public void testNullAcksAndReceived() throws Exception {
+        List<Address> members=members(2);
+        VectorClock clock=new VectorClock(null, null);
+        RMCastHeader hdr=RMCastHeader.createBroadcastHeader(id(members.get(0), BASE, 1), members.get(1), 2, data(),
+                                                            members, clock, null);
+        RMCastHeader copy=roundTrip(hdr);
+        assert copy.getVectorClock().getLastBroadcast() == null && copy.getVectorClock().getMessagesReceived() == null;
+        assert copy.getAcks() == null;
+    }
+
+    /** The vector clock and acks take fewer bytes than when each MessageId and address is written in full */
+    public void testCompactEncoding() throws Exception {
+        List<Address> members=members(30);
+        RMCastHeader hdr=broadcastHeader(members, 10, null);
+        int full=hdr.getVectorClock().size();
+        for(MessageId ack: hdr.getAcks())
+            full+=ack.size();
+        int compact=hdr.size() - (int)Util.size(members) - hdr.getId().size() - hdr.getNmcData().size();
+        assert compact < full / 3 : "compact: " + compact + ", full: " + full;
+    }
+
+
+    /** Writes the header, reads it back and compares all fields, and checks that size() matches the bytes written */
+    protected static RMCastHeader roundTrip(RMCastHeader hdr) throws Exception {
+        byte[] buf=Util.streamableToByteBuffer(hdr);
+        assert buf.length == hdr.size() : "size() returned " + hdr.size() + ", but " + buf.length + " bytes were written";
+        RMCastHeader copy=(RMCastHeader)Util.streamableFromByteBuffer(RMCastHeader.class, buf);
+
+        assert copy.getType() == hdr.getType();
+        assert copy.getId().equals(hdr.getId()) && copy.getId().getTimestamp() == hdr.getId().getTimestamp();
+        assert copy.getDisseminator().equals(hdr.getDisseminator());
+        assert copy.getCopy() == hdr.getCopy();
+        assert copy.getDestinations().equals(new ArrayList<Address>(hdr.getDestinations()));
+        assertEquals(copy.getNmcData(), hdr.getNmcData());
+        assertEquals(copy.getAcks(), hdr.getAcks());
+
+        VectorClock clock=hdr.getVectorClock(), copy_clock=copy.getVectorClock();
+        assert (clock == null) == (copy_clock == null);
+        if(clock != null) {
+            assertEquals(copy_clock.getLastBroadcast(), clock.getLastBroadcast());
+            assert (clock.getMessagesReceived() == null) == (copy_clock.getMessagesReceived() == null);
+            if(clock.getMessagesReceived() != null) {
+                assert copy_clock.getMessagesReceived().size() == clock.getMessagesReceived().size();
+                for(Map.Entry<Address,MessageId> entry: clock.getMessagesReceived().entrySet())
+                    assertEquals(copy_clock.getMessagesReceived().get(entry.getKey()), entry.getValue());
+            }
+        }
+        return copy;
+    }
+
+    protected static void assertEquals(Collection<MessageId> actual, Collection<MessageId> expected) {
+        assert (actual == null) == (expected == null);
+        if(expected == null)
+            return;
+        assert actual.size() == expected.size();
+        Iterator<MessageId> it=actual.iterator();
+        for(MessageId id: expected)
+            assertEquals(it.next(), id);
+    }
+
+    /** The timestamp of NMCData is not serialized */
+    protected static void assertEquals(NMCData actual, NMCData expected) {
+        assert (actual == null) == (expected == null);
+        if(expected == null)
+            return;
+        assert actual.getEta() == expected.getEta() && actual.getMessageCopies() == expected.getMessageCopies()
+          && actual.getOmega() == expected.getOmega() && actual.getCapD() == expected.getCapD()
+          && actual.getCapS() == expected.getCapS() && actual.getXMax() == expected.getXMax()
+          : "expected " + expected + " but got " + actual;
+    }
+
+    protected static void assertEquals(MessageId actual, MessageId expected) {
+        assert (actual == null) == (expected == null);
+        if(expected == null)
+            return;
+        assert actual.equals(expected) && actual.getTimestamp() == expected.getTimestamp()
+          && actual.getSequence() == expected.getSequence() : "expected " + expected + " but got " + actual;
+    }
+
+    /** A broadcast header of the first member, with a vector clock entry for every member */
+    protected static RMCastHeader broadcastHeader(List<Address> members, int num_acks, Address disseminator) {
+        Random random=new Random(11);
+        Address sender=members.get(0);
+        Map<Address,MessageId> received=new HashMap<Address,MessageId>();
+        List<MessageId> acks=new ArrayList<MessageId>();
+        for(int i=1; i < members.size(); i++) {
+            Address member=members.get(i);
+            MessageId id=id(member, BASE - random.nextInt(100000000), 1 + random.nextInt(1000000));
+            received.put(member, id);
+            if(acks.size() < num_acks)
+                acks.add(id);
+        }
+        VectorClock clock=new VectorClock(id(sender, BASE - 1000, 41), received);
+        return RMCastHeader.createBroadcastHeader(id(sender, BASE, 42), disseminator != null? disseminator : sender, 1,
+                                                  data(), members, clock, acks);
+    }
+
+    protected static List<Address> members(int num) {
+        List<Address> members=new ArrayList<Address>(num);
+        for(int i=0; i < num; i++)
+            members.add(Util.createRandomAddress(String.valueOf(i)));
+        return members;
+    }
+
+    protected static MessageId id(Address originator, long timestamp, long sequence) {
+        return new MessageId(timestamp, originator, sequence);
+    }
+
+    protected static NMCData data() {
+        return new NMCData(5, 2, 10, 20, 30, 40, 0, true);
+    }
+}
@@ -7,6 +7,10 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -115,6 +119,26 @@ public class BARRIERTest {
     }
 
 
+    /** Messages queued while the barrier is closed must not point into a pooled receive buffer (zero_copy_receive) */
+    public void testQueuedMessagesAreCopied() {
+        final List<byte[]> received=Collections.synchronizedList(new ArrayList<byte[]>());
+        ch.setReceiver(new ReceiverAdapter() {
+            public void receive(Message msg) {received.add(msg.getBuffer());}
+        });
+        byte[] pooled="hello world".getBytes();
+        Message msg=new Message(null, Util.createRandomAddress("B"), pooled, 6, 5).putHeader(tp.getId(),new TpHeader("BARRIERTest"))
+          .setTransientFlag(Message.TransientFlag.POOLED_BUFFER);
+        ch.down(new Event(Event.CLOSE_BARRIER));
+        discovery_prot.up(new Event(Event.MSG, msg));
+        assert msg.getRawBuffer() != pooled && !msg.isTransientFlagSet(Message.TransientFlag.POOLED_BUFFER) : "not copied";
+        Arrays.fill(pooled, (byte)0); // the transport reuses the pooled buffer after up() returned
+        ch.down(new Event(Event.OPEN_BARRIER)); // the queued message is passed up by a thread from the thread pool
+        for(int i=0; i < 20 && received.isEmpty(); i++)
+            Util.sleep(100);
+        assert received.size() == 1 && "world".equals(new String(received.get(0))) : "received " + received.size();
+    }
+
+
     protected Event createMessage() {
         Message msg=new Message(null, ch.getAddress(), null).putHeader(tp.getId(),new TpHeader("BARRIERTest"));
         return new Event(Event.MSG, msg);
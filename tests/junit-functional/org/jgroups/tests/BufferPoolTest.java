@@ -0,0 +1,52 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.BufferPool;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests BufferPool
+ * @author Ryan Emerson
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class BufferPoolTest {
+
+    public void testAcquireAndRelease() {
+        BufferPool pool=new BufferPool(2, 100, true);
+        ByteBuffer a=pool.acquire(), b=pool.acquire(), c=pool.acquire();
+        assert a.isDirect() && a.capacity() == 100;
+        assert pool.numAllocated() == 3 && pool.size() == 0;
+
+        a.putInt(5);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c); // the pool is full, c is dropped
+        assert pool.size() == 2;
+
+        ByteBuffer d=pool.acquire();
+        assert d == a || d == b;
+        assert d.position() == 0 && d.limit() == d.capacity() : "released buffers must be cleared";
+        assert pool.numAllocated() == 3;
+    }
+
+    public void testReleaseForeignBuffers() {
+        BufferPool pool=new BufferPool(4, 100, false);
+        pool.release(null);
+        pool.release(ByteBuffer.allocate(50));
+        pool.release(ByteBuffer.allocateDirect(100));
+        assert pool.size() == 0;
+        pool.release(ByteBuffer.allocate(100));
+        assert pool.size() == 1;
+    }
+
+    public void testInvalidArguments() {
+        try {
+            new BufferPool(0, 100, true);
+            assert false : "capacity of 0 should have been rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+    }
+}
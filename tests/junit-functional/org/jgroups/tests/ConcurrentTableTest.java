@@ -0,0 +1,196 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.ConcurrentTable;
+import org.jgroups.util.Filter;
+import org.jgroups.util.SeqnoList;
+import org.jgroups.util.Table;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link ConcurrentTable}. The functionality shared with {@link Table} is tested in {@link TableTest}
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class ConcurrentTableTest {
+
+    protected static final Filter<Integer> even=new Filter<Integer>() {
+        public boolean accept(Integer element) {
+            return element % 2 == 0;
+        }
+    };
+
+    public void testAddAndGet() {
+        Table<Integer> table=new ConcurrentTable<Integer>(3, 10, 0);
+        for(int i: new int[]{1,2,3,5,30,31,33})
+            assert table.add(i, i);
+        assert !table.add(5, 5);
+        System.out.println("table = " + table);
+        assert table.size() == 7;
+        assert table.getHighestReceived() == 33;
+        assert table.get(5) == 5 && table.get(4) == null && table.get(33) == 33 && table.get(34) == null;
+        assert table.getNumMissing() == 26;
+        assert table.getNumRows() == 3; // elements_per_row is rounded up to 16: 1-15, 16-31, 32-47
+    }
+
+    public void testAddWithOffset() {
+        Table<Integer> table=new ConcurrentTable<Integer>(3, 10, 1000);
+        assert !table.add(1000, 1000);
+        assert table.add(1001, 1001) && table.add(1002, 1002);
+        assert table.getHighestDelivered() == 1000 && table.getHighestReceived() == 1002;
+        List<Integer> list=table.removeMany(false, 0);
+        assert list.size() == 2 && list.get(0) == 1001 && list.get(1) == 1002;
+    }
+
+    public void testContains() {
+        Table<Integer> table=new ConcurrentTable<Integer>(3, 10, 1000);
+        assert table.contains(1000) && !table.contains(1001); // 1000 (the offset) counts as delivered
+        for(int i: new int[]{1001,1002,1003,1005,1030})
+            table.add(i, i);
+        for(int i: new int[]{1001,1002,1003,1005,1030})
+            assert table.contains(i);
+        assert !table.contains(1004) && !table.contains(1029) && !table.contains(1031);
+
+        table.removeMany(false, 2); // removed, but not nulled
+        assert table.contains(1001) && table.contains(1002) && table.getHighestDelivered() == 1002;
+        table.removeMany(true, 0); // removes 1003 and nulls it
+        assert table.contains(1003) && !table.contains(1004);
+
+        for(int i=1004; i <= 1040; i++)
+            table.add(i, i);
+        table.removeMany(true, 0); // the first rows are removed
+        assert table.getNumRows() == 1;
+        for(int i=1001; i <= 1040; i++)
+            assert table.contains(i);
+        assert !table.contains(1041);
+    }
+
+    public void testGetMissing() {
+        Table<Integer> table=new ConcurrentTable<Integer>(3, 10, 0);
+        for(int i: new int[]{1,2,5,6,7,20})
+            table.add(i, i);
+        SeqnoList missing=table.getMissing();
+        System.out.println("missing = " + missing);
+        assert missing.size() == 2 + 12;
+        assert table.getHighestDeliverable() == 2;
+    }
+
+    public void testRemoveManyWithProcessing() {
+        Table<Integer> table=new ConcurrentTable<Integer>(3, 10, 0);
+        AtomicBoolean processing=table.getProcessing();
+        for(int i=1; i <= 10; i++)
+            table.add(i, i);
+        table.add(12, 12);
+        assert processing.compareAndSet(false, true);
+        List<Integer> list=table.removeMany(processing, true, 4);
+        assert list.size() == 4 && processing.get();
+        list=table.removeMany(processing, true, 0);
+        assert list.size() == 6 && processing.get();
+        list=table.removeMany(processing, true, 0);
+        assert list == null && !processing.get();
+        assert table.getHighestDelivered() == 10 && table.getLow() == 10 && table.size() == 1;
+    }
+
+    public void testRemoveManyWithFilter() {
+        Table<Integer> table=new ConcurrentTable<Integer>(3, 10, 0);
+        for(int i=1; i <= 10; i++)
+            table.add(i, i);
+        List<Integer> list=table.removeMany(null, false, 0, even);
+        System.out.println("list = " + list);
+        assert list.size() == 5;
+        for(int num: list)
+            assert num % 2 == 0;
+        assert table.getHighestDelivered() == 10 && table.isEmpty();
+    }
+
+    public void testRemovalOnAdd() {
+        Table<Integer> table=new ConcurrentTable<Integer>(3, 10, 0);
+        table.add(1, 2, even);
+        assert table.getHighestDelivered() == 1;
+        table.add(3, 4, even); // not removed, 2 is missing
+        assert table.getHighestDelivered() == 1;
+        table.add(2, 6, even); // removes 2 and 3
+        assert table.getHighestDelivered() == 3 : "table: " + table;
+        table.add(4, 5, even); // not accepted by the filter
+        assert table.getHighestDelivered() == 3 && table.size() == 1;
+    }
+
+    public void testNullifiedRowsAreRemoved() {
+        Table<Integer> table=new ConcurrentTable<Integer>(3, 10, 0);
+        for(int i=1; i <= 40; i++)
+            table.add(i, i);
+        assert table.getNumRows() == 3;
+        List<Integer> list=table.removeMany(true, 0);
+        assert list.size() == 40;
+        assert table.getNumRows() == 1 : "table has " + table.getNumRows() + " rows";
+        assert !table.add(15, 15) && !table.add(40, 40) && table.isEmpty(); // late duplicates
+    }
+
+    public void testPurge() {
+        Table<Integer> table=new ConcurrentTable<Integer>(3, 10, 0);
+        for(int i=1; i <= 40; i++)
+            table.add(i, i);
+        table.removeMany(false, 35);
+        table.purge(40); // purges up to hd
+        assert table.getLow() == 35 && table.getHighestDelivered() == 35;
+        assert table.getNumRows() == 1 && table.get(35) == null && table.get(36) == 36;
+        assert !table.add(20, 20);
+
+        table.purge(40, true);
+        assert table.getLow() == 40 && table.getHighestDelivered() == 40 && table.isEmpty();
+    }
+
+    /** Multiple adders and a single remover (the thread which set processing) must deliver every element once, in order */
+    public void testConcurrentAddAndRemove() throws Exception {
+        final int NUM_ADDERS=4, NUM=100000;
+        final Table<Integer> table=new ConcurrentTable<Integer>(3, 1000, 0);
+        final AtomicInteger next=new AtomicInteger(0);
+        final CountDownLatch latch=new CountDownLatch(1);
+        final List<Integer> delivered=new ArrayList<Integer>(NUM);
+        Thread[] adders=new Thread[NUM_ADDERS];
+        for(int i=0; i < adders.length; i++) {
+            adders[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    int seqno;
+                    while((seqno=next.incrementAndGet()) <= NUM) {
+                        table.add(seqno, seqno);
+                        table.add(Math.max(1, seqno - 5), Math.max(1, seqno - 5)); // duplicate
+                        removeAll(table, delivered);
+                    }
+                }
+            };
+            adders[i].start();
+        }
+        latch.countDown();
+        for(Thread adder: adders)
+            adder.join(30000);
+
+        System.out.println("table = " + table);
+        assert delivered.size() == NUM : "delivered " + delivered.size() + " elements";
+        for(int i=0; i < NUM; i++)
+            assert delivered.get(i) == i+1 : "element at index " + i + " is " + delivered.get(i);
+        assert table.isEmpty() && table.getHighestDelivered() == NUM && table.getNumRows() <= 1;
+    }
+
+    protected static void removeAll(Table<Integer> table, List<Integer> delivered) {
+        AtomicBoolean processing=table.getProcessing();
+        if(!processing.compareAndSet(false, true))
+            return;
+        List<Integer> list;
+        while((list=table.removeMany(processing, true, 100)) != null)
+            delivered.addAll(list); // only the thread holding processing adds to delivered
+    }
+}
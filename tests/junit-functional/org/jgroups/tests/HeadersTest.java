@@ -2,11 +2,16 @@ package org.jgroups.tests;
 
 import org.jgroups.Global;
 import org.jgroups.Header;
+import org.jgroups.protocols.TpHeader;
+import org.jgroups.util.ByteArrayDataOutputStream;
 import org.jgroups.util.Headers;
 import org.testng.annotations.Test;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests the functionality of the Headers class
@@ -168,6 +173,107 @@ public class HeadersTest {
     }
 
 
+    /** Serialized headers are decoded on first access, and written as they were received as long as they aren't */
+    public static void testRawHeaders() throws Exception {
+        Headers hdrs=createRawHeaders("A", "B");
+        assert hdrs.size() == 2 && hdrs.numRawHeaders() == 2;
+        assert hdrs.marshalledSize() == createHeaders("A", "B").marshalledSize();
+
+        Header hdr=hdrs.getHeader(UDP_ID);
+        assert hdr.toString().equals(new TpHeader("A").toString());
+        assert hdrs.getHeader(UDP_ID) == hdr;
+        assert hdrs.numRawHeaders() == 1;
+        assert hdrs.getHeaders().get(FRAG_ID).toString().equals(new TpHeader("B").toString());
+        assert hdrs.numRawHeaders() == 0;
+
+        hdrs.putHeader(UDP_ID, new TpHeader("C"));
+        assert hdrs.getHeader(UDP_ID).toString().equals(new TpHeader("C").toString());
+        assert Arrays.equals(write(hdrs, 0), write(createHeaders("C"), 0));
+    }
+
+    /** A copy of partly decoded headers has all headers, decoded or not */
+    public static void testCopyOfPartlyDecodedHeaders() throws Exception {
+        Headers hdrs=createRawHeaders("A", "B");
+        Header hdr=hdrs.getHeader(UDP_ID);
+        Headers copy=hdrs.copy();
+        assert copy.size() == 2 && copy.numRawHeaders() == 1;
+        assert copy.getHeader(UDP_ID) == hdr;
+        assert copy.getHeader(FRAG_ID).toString().equals(new TpHeader("B").toString());
+        assert hdrs.numRawHeaders() == 1 : "decoding a header of the copy must not change the original";
+
+        // copyRawHeaders() makes the headers independent of the buffers they were read from
+        copy.copyRawHeaders();
+        assert copy.numRawHeaders() == 0 && copy.getHeader(UDP_ID) == hdr;
+        hdrs.copyRawHeaders();
+        assert hdrs.numRawHeaders() == 1;
+    }
+
+    /** Threads decoding and copying shared headers all see the same header, and copies never lose a header */
+    public static void testConcurrentDecoding() throws Exception {
+        final int THREADS=4;
+        for(int round=0; round < 500; round++) {
+            final Headers hdrs=createRawHeaders("A", "B");
+            final Header[] seen=new Header[THREADS];
+            final AtomicInteger missing=new AtomicInteger();
+            final CountDownLatch start=new CountDownLatch(1);
+            Thread[] threads=new Thread[THREADS];
+            for(int i=0; i < threads.length; i++) {
+                final int index=i;
+                threads[i]=new Thread() {
+                    public void run() {
+                        try {
+                            start.await();
+                        }
+                        catch(InterruptedException e) {
+                        }
+                        if(index % 2 == 0)
+                            seen[index]=hdrs.getHeader(FRAG_ID);
+                        else {
+                            Headers copy=hdrs.copy();
+                            if(copy.getHeader(FRAG_ID) == null || copy.getHeader(UDP_ID) == null)
+                                missing.incrementAndGet();
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            start.countDown();
+            for(Thread thread: threads)
+                thread.join();
+            assert missing.get() == 0 : "a copy lost a header";
+            Header hdr=hdrs.getHeader(FRAG_ID);
+            for(int i=0; i < THREADS; i+=2)
+                assert seen[i] == hdr : "getHeader() returned different headers";
+        }
+    }
+
+
+    /** Creates headers with a TpHeader per cluster name, UDP_ID first, FRAG_ID second */
+    private static Headers createHeaders(String ... names) {
+        short[] ids={UDP_ID, FRAG_ID};
+        Headers hdrs=new Headers(names.length);
+        for(int i=0; i < names.length; i++)
+            hdrs.putHeader(ids[i], new TpHeader(names[i]));
+        return hdrs;
+    }
+
+    /** Same as {@link #createHeaders(String...)}, but the headers are serialized */
+    private static Headers createRawHeaders(String ... names) throws Exception {
+        Headers tmp=createHeaders(names), hdrs=new Headers(names.length);
+        for(int i=0; i < names.length; i++) {
+            byte[] buf=write(tmp, i);
+            hdrs.putRawHeader(tmp.getRawIDs()[i], buf, 0, buf.length);
+        }
+        return hdrs;
+    }
+
+    private static byte[] write(Headers hdrs, int index) throws Exception {
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(64);
+        hdrs.writeHeader(index, out, false);
+        return Arrays.copyOf(out.buffer(), out.position());
+    }
+
+
     public static class MyHeader extends Header {
 
         public MyHeader() {
@@ -0,0 +1,116 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.HybridClock;
+import org.jgroups.util.HybridClock.ClockState;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link HybridClock}: corrections are slewed without the clock ever running backwards, and the drift relative
+ * to the master is estimated from successive synchronisations and from the master's probes, bounded by max_drift
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class HybridClockTest {
+    protected static final long MS=TimeUnit.MILLISECONDS.toNanos(1);
+
+    public void testClockState() {
+        ClockState state=new ClockState(1000, 5000, 0, 0, 0);
+        assert state.getTime(1000) == 5000 && state.getTime(1000 + MS) == 5000 + MS;
+        assert state.remainingCorrection(1000 + MS) == 0 && state.remainingSlew(1000) == 0;
+
+        state=new ClockState(0, 0, 0.0001, 0, 0); // 100 ppm
+        assert state.getTime(1000 * MS) == 1000 * MS + 100000;
+    }
+
+    public void testPositiveCorrectionIsSlewed() {
+        ClockState state=new ClockState(0, 0, 0, 10 * MS, 20 * MS);
+        assert state.getTime(0) == 0;
+        assert state.getTime(10 * MS) == 15 * MS && state.remainingCorrection(10 * MS) == 5 * MS;
+        assert state.remainingSlew(10 * MS) == 10 * MS;
+        assert state.getTime(20 * MS) == 30 * MS && state.getTime(30 * MS) == 40 * MS;
+        assert state.remainingCorrection(20 * MS) == 0 && state.remainingSlew(30 * MS) == 0;
+    }
+
+    /** A negative correction slows the clock down to at most half speed, so the slew is extended if necessary */
+    public void testNegativeCorrectionNeverRunsBackwards() {
+        ClockState state=new ClockState(0, 0, 0, -10 * MS, MS);
+        assert state.remainingSlew(0) == 20 * MS;
+        long previous=state.getTime(0);
+        for(long hard=0; hard <= 30 * MS; hard+=MS / 10) {
+            long time=state.getTime(hard);
+            assert time >= previous : "the clock ran backwards from " + previous + " to " + time + " at " + hard;
+            previous=time;
+        }
+        assert state.getTime(10 * MS) == 5 * MS;
+        assert state.getTime(30 * MS) == 20 * MS;
+    }
+
+    /** The first synchronisation steps the clock, subsequent ones slew it */
+    public void testSynchronise() {
+        HybridClock clock=new HybridClock(500);
+        long offset=TimeUnit.SECONDS.toNanos(100);
+        clock.synchronise(System.nanoTime() + offset, MS);
+        assertClose(clock.getTime(), System.nanoTime() + offset, MS);
+
+        // the master is 50 ms behind: the clock is slewed at half speed over 100 ms
+        long before=clock.getTime();
+        clock.synchronise(clock.getTime() - 50 * MS, MS);
+        long previous=clock.getTime();
+        assert previous >= before;
+        long end=System.nanoTime() + 150 * MS;
+        while(System.nanoTime() < end) {
+            long time=clock.getTime();
+            assert time >= previous : "the clock ran backwards from " + previous + " to " + time;
+            previous=time;
+        }
+        assertClose(clock.getTime(), System.nanoTime() + offset - 50 * MS, MS);
+    }
+
+    /** The drift is estimated from the change of the master's offset between synchronisations */
+    public void testDriftFromSynchronisations() {
+        HybridClock clock=new HybridClock(500);
+        long start=System.nanoTime();
+        clock.synchronise(start, MS);
+        assert clock.getDrift() == 0;
+
+        Util.sleep(200);
+        clock.synchronise(masterTime(start, 0.0002), MS); // 200 ppm
+        assert Math.abs(clock.getDrift() - 0.0002) < 0.00005 : "drift: " + clock.getDrift();
+
+        Util.sleep(200);
+        clock.synchronise(masterTime(start, 0.01), MS); // bounded by max_drift
+        assert clock.getDrift() == 0.0005 : "drift: " + clock.getDrift();
+    }
+
+    /** The minimum delay of the master's probes decreases if the master's clock runs faster */
+    public void testDriftFromProbes() {
+        HybridClock clock=new HybridClock(500);
+        long start=System.nanoTime(), window=50 * MS;
+        clock.probeReceived(start - MS, window); // ignored before the first synchronisation
+        clock.synchronise(start, MS);
+
+        long end=start + 4 * window + 10 * MS;
+        while(System.nanoTime() < end) {
+            clock.probeReceived(masterTime(start, 0.0002) - MS, window); // sent 1 ms ago by a master 200 ppm fast
+            Util.sleep(1);
+        }
+        assert Math.abs(clock.getDrift() - 0.0002) < 0.00005 : "drift: " + clock.getDrift();
+    }
+
+
+    /** The time of a master which was synchronised at start, and whose clock runs drift faster */
+    protected static long masterTime(long start, double drift) {
+        long now=System.nanoTime();
+        return now + (long)((now - start) * drift);
+    }
+
+    protected static void assertClose(long actual, long expected, long tolerance) {
+        assert Math.abs(actual - expected) <= tolerance : "expected " + expected + " but got " + actual +
+          " (difference: " + (actual - expected) + ")";
+    }
+}
@@ -0,0 +1,104 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.LongMap;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests LongMap
+ * @author Ryan Emerson
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class LongMapTest {
+
+    public void testPutAndGet() {
+        LongMap<String> map=new LongMap<String>();
+        assert map.isEmpty();
+        assert map.put(1, "one") == null;
+        assert map.put(-1, "minus one") == null;
+        assert map.put(Long.MAX_VALUE, "max") == null;
+        assert map.size() == 3;
+        assert "one".equals(map.get(1));
+        assert "minus one".equals(map.get(-1));
+        assert "max".equals(map.get(Long.MAX_VALUE));
+        assert map.get(2) == null;
+        assert !map.containsKey(0);
+
+        assert "one".equals(map.put(1, "uno"));
+        assert "uno".equals(map.get(1));
+        assert map.size() == 3;
+    }
+
+    public void testPutIfAbsent() {
+        LongMap<String> map=new LongMap<String>();
+        assert map.putIfAbsent(5, "five") == null;
+        assert "five".equals(map.putIfAbsent(5, "cinco"));
+        assert "five".equals(map.get(5));
+        assert map.size() == 1;
+    }
+
+    public void testRemove() {
+        LongMap<String> map=new LongMap<String>();
+        for(int i=0; i < 10; i++)
+            map.put(i, String.valueOf(i));
+        assert "4".equals(map.remove(4));
+        assert map.remove(4) == null;
+        assert map.size() == 9;
+        for(int i=0; i < 10; i++)
+            assert i == 4? map.get(i) == null : String.valueOf(i).equals(map.get(i));
+        map.clear();
+        assert map.isEmpty() && map.get(0) == null;
+    }
+
+    /** Keys which are multiples of the capacity collide, so removals must shift the rest of the cluster back */
+    public void testRemoveWithCollisions() {
+        LongMap<Long> map=new LongMap<Long>(8);
+        for(long i=0; i < 8; i++)
+            map.put(i << 32, i);
+        for(long i=0; i < 8; i+=2)
+            assert map.remove(i << 32) == i;
+        for(long i=0; i < 8; i++)
+            assert i % 2 == 0? map.get(i << 32) == null : map.get(i << 32) == i;
+    }
+
+    public void testNullValue() {
+        LongMap<String> map=new LongMap<String>();
+        try {
+            map.put(1, null);
+            assert false : "null values must be rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+    }
+
+    /** Compares the map against a HashMap for a random sequence of operations, including many resizes */
+    public void testRandomOperations() {
+        LongMap<Long> map=new LongMap<Long>(4);
+        Map<Long,Long> expected=new HashMap<Long,Long>();
+        Random random=new Random(42);
+        for(int i=0; i < 100000; i++) {
+            long key=random.nextInt(2000);
+            switch(random.nextInt(3)) {
+                case 0:
+                    assert equal(expected.put(key, (long)i), map.put(key, (long)i));
+                    break;
+                case 1:
+                    assert equal(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assert equal(expected.get(key), map.get(key));
+            }
+            assert expected.size() == map.size();
+        }
+        for(Map.Entry<Long,Long> entry: expected.entrySet())
+            assert entry.getValue().equals(map.get(entry.getKey()));
+    }
+
+    protected static boolean equal(Long a, Long b) {
+        return a == null? b == null : a.equals(b);
+    }
+}
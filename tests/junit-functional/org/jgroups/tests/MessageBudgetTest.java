@@ -0,0 +1,175 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.util.MessageBudget;
+import org.jgroups.util.SpillFile;
+import org.jgroups.util.Table;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Tests {@link MessageBudget} and {@link SpillFile}
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class MessageBudgetTest {
+    protected static final int SIZE=100; // payload of a message
+    protected File             dir;
+    protected MessageBudget    budget;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        dir=File.createTempFile("budget", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        if(budget != null)
+            budget.clear();
+        File[] files=dir.listFiles();
+        assert files == null || files.length == 0 : "spill files were not deleted: " + Arrays.toString(files);
+        dir.delete();
+    }
+
+    public void testSpillPerTable() {
+        budget=create(0, 1000, false);
+        Table<Message> table=new Table<Message>(3, 10, 0);
+        addAndDeliver(table, 1, 20);
+        System.out.println("budget = " + budget);
+        assert budget.getRetainedBytes() <= 1000 && budget.getRetainedBytes() == budget.getRetainedBytes(table);
+        int spilled=budget.getNumSpilledMessages();
+        assert spilled > 0 && spilled == budget.getNumMessagesSpilled();
+        assert budget.getRetainedBytes() + spilled * SIZE == 20 * SIZE;
+        assert table.get(1) == MessageBudget.SPILLED;
+        for(int i=1; i <= 20; i++)
+            assertMessage(budget.get(table, i), i);
+        assert budget.getNumSpillReads() == spilled;
+    }
+
+    public void testPurge() {
+        budget=create(0, 1000, false);
+        Table<Message> table=new Table<Message>(3, 10, 0);
+        addAndDeliver(table, 1, 20);
+        budget.purge(table, 5, false);
+        assert budget.getRetainedBytes() + budget.getNumSpilledMessages() * SIZE == 15 * SIZE;
+        assert budget.get(table, 5) == null;
+        assertMessage(budget.get(table, 6), 6);
+
+        budget.purge(table, 20, false);
+        assert table.getLow() == 20;
+        assert budget.getRetainedBytes() == 0 && budget.getNumSpilledMessages() == 0 && budget.getSpilledBytes() == 0;
+    }
+
+    /** Only delivered messages are spilled, unless spill_undelivered is true */
+    public void testSpillUndelivered() {
+        budget=create(0, 1000, false);
+        Table<Message> table=new Table<Message>(3, 10, 0);
+        for(int i=1; i <= 20; i++)
+            add(table, i);
+        assert budget.getNumSpilledMessages() == 0 && budget.getRetainedBytes() == 20 * SIZE;
+        table.removeMany(false, 0); // deliver, but don't nullify
+        budget.check();
+        assert budget.getRetainedBytes() <= 1000 && budget.getNumSpilledMessages() > 0;
+        budget.clear();
+
+        budget=create(0, 1000, true);
+        table=new Table<Message>(3, 10, 0);
+        for(int i=1; i <= 20; i++)
+            add(table, i);
+        assert budget.getRetainedBytes() <= 1000 && budget.getNumSpilledMessages() > 0;
+        budget.purge(table, 20, true); // forced purge, as done by UNICAST3 when an ack is received
+        assert budget.getRetainedBytes() == 0 && budget.getNumSpilledMessages() == 0;
+    }
+
+    /** The biggest tables are spilled when the global budget is exceeded */
+    public void testGlobalBudget() {
+        budget=create(2000, 0, false);
+        Table<Message> big=new Table<Message>(3, 10, 0), small=new Table<Message>(3, 10, 0);
+        addAndDeliver(small, 1, 5);
+        addAndDeliver(big, 1, 16);
+        System.out.println("budget = " + budget);
+        assert budget.getRetainedBytes() <= 2000;
+        assert budget.getRetainedBytes(small) == 5 * SIZE : "small table was spilled: " + budget;
+        assert budget.getRetainedBytes(big) < 16 * SIZE;
+    }
+
+    public void testRemove() {
+        budget=create(0, 1000, false);
+        Table<Message> table=new Table<Message>(3, 10, 0);
+        addAndDeliver(table, 1, 20);
+        assert budget.getSpillFileSize() > 0 && budget.getNumTables() == 1;
+        budget.remove(table);
+        assert budget.getRetainedBytes() == 0 && budget.getSpillFileSize() == 0 && budget.getNumTables() == 0;
+        assert dir.listFiles().length == 0;
+    }
+
+    /** Segments which have no records left are reused */
+    public void testSpillFileSegments() throws Exception {
+        SpillFile file=new SpillFile(new File(dir, "test.spill"), 1024);
+        try {
+            for(int i=1; i <= 30; i++)
+                file.write(i, msg(i));
+            long size=file.fileSize();
+            assert file.size() == 30 && size > 1024;
+            file.write(31, new Message(null, new byte[5000])); // doesn't fit into a segment
+            assert file.fileSize() >= size + 5000;
+            size=file.fileSize();
+            for(int i=1; i <= 30; i++)
+                assertMessage(file.read(i), i);
+            assert file.read(32) == null;
+
+            for(int i=32; i <= 200; i++) {
+                file.removeUpTo(i - 20);
+                file.write(i, msg(i));
+            }
+            assert file.size() == 20 && file.fileSize() == size : "file size: " + file.fileSize();
+            for(int i=181; i <= 200; i++)
+                assertMessage(file.read(i), i);
+
+            file.removeUpTo(200);
+            assert file.isEmpty() && file.bytes() == 0;
+        }
+        finally {
+            file.close();
+        }
+    }
+
+
+    protected MessageBudget create(long max_bytes, long max_bytes_per_table, boolean spill_undelivered) {
+        return new MessageBudget(dir, "test", max_bytes, max_bytes_per_table, 4096, spill_undelivered,
+                                 LogFactory.getLog(MessageBudgetTest.class));
+    }
+
+    protected void addAndDeliver(Table<Message> table, int from, int to) {
+        for(int i=from; i <= to; i++) {
+            add(table, i);
+            table.removeMany(false, 0); // deliver, but don't nullify
+        }
+    }
+
+    protected void add(Table<Message> table, int seqno) {
+        Message msg=msg(seqno);
+        assert table.add(seqno, msg);
+        budget.added(table, msg);
+    }
+
+    protected static Message msg(int seqno) {
+        byte[] buf=new byte[SIZE];
+        buf[0]=(byte)seqno;
+        return new Message(null, buf);
+    }
+
+    protected static void assertMessage(Message msg, int seqno) {
+        assert msg != null && msg != MessageBudget.SPILLED : "message " + seqno + " not found";
+        assert msg.getLength() == SIZE && msg.getRawBuffer()[0] == (byte)seqno : "wrong message for " + seqno;
+    }
+}
@@ -9,6 +9,7 @@ import org.jgroups.protocols.PingHeader;
 import org.jgroups.protocols.TpHeader;
 import org.jgroups.protocols.pbcast.NakAckHeader;
 import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
 import org.jgroups.util.Range;
 import org.jgroups.util.UUID;
 import org.jgroups.util.Util;
@@ -17,6 +18,7 @@ import org.testng.annotations.Test;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -459,6 +461,44 @@ public class MessageTest {
         assert copy.size() == msg2.size();
     }
 
+    public static void testLazyHeaders() throws Exception {
+        Message msg=new Message(Util.createRandomAddress("A"), Util.createRandomAddress("B"), "bela".getBytes());
+        addHeaders(msg);
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream((int)msg.size());
+        msg.writeTo(out, true);
+        assert out.position() == msg.size() + msg.getNumHeaders() * Global.INT_SIZE;
+        byte[] buf=Arrays.copyOf(out.buffer(), out.position());
+
+        Message msg2=new Message(false);
+        int payload_position=msg2.readFromSkipPayload(new ByteArrayDataInputStream(buf));
+        msg2.setBuffer(buf, payload_position, msg.getLength());
+        assert msg2.size() == msg.size();
+
+        // the headers haven't been accessed, so they're written as they were received
+        ByteArrayDataOutputStream out2=new ByteArrayDataOutputStream((int)msg2.size());
+        msg2.writeTo(out2, true);
+        assert Arrays.equals(buf, Arrays.copyOf(out2.buffer(), out2.position()));
+
+        assert msg2.getHeader(NAKACK_ID).toString().equals(msg.getHeader(NAKACK_ID).toString());
+        assert msg2.size() == msg.size();
+
+        // the serialized headers point into buf, copyPooledBuffer() has to copy them, too
+        msg2.setTransientFlag(Message.TransientFlag.POOLED_BUFFER);
+        msg2.copyPooledBuffer();
+        Arrays.fill(buf, (byte)0);
+        assert msg2.getHeader(UDP_ID).toString().equals(msg.getHeader(UDP_ID).toString());
+        assert msg2.getHeader(PING_ID).toString().equals(msg.getHeader(PING_ID).toString());
+        assert msg2.getHeaders().size() == 3;
+
+        // readFrom() copies the serialized headers
+        Message msg3=new Message(false);
+        msg3.readFrom(new ByteArrayDataInputStream(out.buffer(), 0, out.position()));
+        Arrays.fill(out.buffer(), (byte)0);
+        assert Arrays.equals(msg3.getBuffer(), msg.getBuffer());
+        assert msg3.getHeader(PING_ID).toString().equals(msg.getHeader(PING_ID).toString());
+        _testSize(msg3);
+    }
+
     protected static void addHeaders(Message msg) {
         TpHeader tp_hdr=new TpHeader("DemoChannel2");
         msg.putHeader(UDP_ID, tp_hdr);
@@ -0,0 +1,197 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.blocks.NioConnectionMap;
+import org.jgroups.blocks.TCPConnectionMap;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests {@link NioConnectionMap}
+ * @author Ryan Emerson
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class NioConnectionMapTest {
+    protected NioConnectionMap ct1, ct2;
+    protected static final int PORT1=17777, PORT2=18888, READ_BUF_SIZE=1024;
+
+    @BeforeMethod
+    protected void setUp() throws Exception {
+        ct1=create("nio1", PORT1);
+        ct2=create("nio2", PORT2);
+    }
+
+    @AfterMethod
+    protected void tearDown() throws Exception {
+        ct2.stop();
+        ct1.stop();
+    }
+
+    public void testSendToSelf() throws Exception {
+        MyReceiver r=new MyReceiver();
+        ct1.setReceiver(r);
+        byte[] data=createData(100);
+        for(int i=0; i < 10; i++)
+            ct1.send(ct1.getLocalAddress(), data, 0, data.length);
+        r.waitForMessages(10);
+        r.check(ct1.getLocalAddress(), data, 10);
+    }
+
+    public void testSendToOther() throws Exception {
+        MyReceiver r=new MyReceiver();
+        ct2.setReceiver(r);
+        byte[] data=createData(100);
+        for(int i=0; i < 1000; i++)
+            ct1.send(ct2.getLocalAddress(), data, 10, 50);
+        r.waitForMessages(1000);
+        r.check(ct1.getLocalAddress(), Arrays.copyOfRange(data, 10, 60), 1000);
+        assert ct1.getNumConnections() == 1 && ct2.getNumConnections() == 1;
+    }
+
+    /** Messages larger than the read buffers are read into a separate byte[] */
+    public void testLargeMessages() throws Exception {
+        MyReceiver r=new MyReceiver();
+        ct2.setReceiver(r);
+        byte[] small=createData(READ_BUF_SIZE / 4), large=createData(READ_BUF_SIZE * 50);
+        for(int i=0; i < 20; i++) {
+            ct1.send(ct2.getLocalAddress(), small, 0, small.length);
+            ct1.send(ct2.getLocalAddress(), large, 0, large.length);
+        }
+        r.waitForMessages(40);
+        for(int i=0; i < 40; i++)
+            assert Arrays.equals(r.msgs.get(i), i % 2 == 0? small : large) : "message " + i + " is incorrect";
+    }
+
+    /** Many concurrent senders fill the socket's send buffer, so frames are queued and written by the reactor */
+    public void testConcurrentSenders() throws Exception {
+        final int NUM_SENDERS=8, NUM_MSGS=500;
+        MyReceiver r=new MyReceiver();
+        ct2.setReceiver(r);
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] senders=new Thread[NUM_SENDERS];
+        for(int i=0; i < senders.length; i++) {
+            final byte[] data=createData(1000 + i * 500);
+            senders[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=0; j < NUM_MSGS; j++)
+                            ct1.send(ct2.getLocalAddress(), data, 0, data.length);
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            senders[i].start();
+        }
+        latch.countDown();
+        for(Thread sender: senders)
+            sender.join();
+        r.waitForMessages(NUM_SENDERS * NUM_MSGS);
+        assert r.msgs.size() == NUM_SENDERS * NUM_MSGS;
+        for(byte[] msg: r.msgs) {
+            int index=(msg.length - 1000) / 500;
+            assert Arrays.equals(msg, createData(1000 + index * 500));
+        }
+    }
+
+    /** Both members connect to each other at the same time; messages sent afterwards need to be received */
+    public void testConcurrentConnect() throws Exception {
+        MyReceiver r1=new MyReceiver(), r2=new MyReceiver();
+        ct1.setReceiver(r1);
+        ct2.setReceiver(r2);
+        final byte[] data=createData(10);
+        Thread t=new Thread() {
+            public void run() {
+                try {
+                    ct2.send(ct1.getLocalAddress(), data, 0, data.length);
+                }
+                catch(Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        t.start();
+        ct1.send(ct2.getLocalAddress(), data, 0, data.length);
+        t.join();
+
+        for(int i=0; i < 20 && !(ct1.connectionEstablishedTo(ct2.getLocalAddress()) &&
+          ct2.connectionEstablishedTo(ct1.getLocalAddress())); i++)
+            Util.sleep(100);
+        for(int i=0; i < 10; i++) {
+            ct1.send(ct2.getLocalAddress(), data, 0, data.length);
+            ct2.send(ct1.getLocalAddress(), data, 0, data.length);
+        }
+        r1.waitForMessages(10); // the first message may or may not have been lost when a connection was closed
+        r2.waitForMessages(10);
+    }
+
+    public void testRetainAll() throws Exception {
+        MyReceiver r=new MyReceiver();
+        ct2.setReceiver(r);
+        byte[] data=createData(10);
+        ct1.send(ct2.getLocalAddress(), data, 0, data.length);
+        r.waitForMessages(1);
+        assert ct1.getNumConnections() == 1;
+        ct1.retainAll(new ArrayList<Address>());
+        assert ct1.getNumConnections() == 0;
+
+        ct1.send(ct2.getLocalAddress(), data, 0, data.length); // reconnects
+        r.waitForMessages(2);
+    }
+
+
+    protected static NioConnectionMap create(String name, int port) throws Exception {
+        NioConnectionMap ct=new NioConnectionMap(new DefaultThreadFactory(name, true), null, InetAddress.getByName("127.0.0.1"),
+                                                 null, 0, port, port + 100, 0, 0, 2, READ_BUF_SIZE);
+        ct.setSendQueueSize(10);
+        ct.setSocketConnectionTimeout(5000);
+        ct.start();
+        return ct;
+    }
+
+    protected static byte[] createData(int length) {
+        byte[] data=new byte[length];
+        for(int i=0; i < data.length; i++)
+            data[i]=(byte)(i * 31 + length);
+        return data;
+    }
+
+
+    protected static class MyReceiver implements TCPConnectionMap.Receiver {
+        protected final List<byte[]>  msgs=new ArrayList<byte[]>();
+        protected final List<Address> senders=new ArrayList<Address>();
+
+        public synchronized void receive(Address sender, byte[] data, int offset, int length) {
+            msgs.add(Arrays.copyOfRange(data, offset, offset + length)); // the array is reused
+            senders.add(sender);
+            notifyAll();
+        }
+
+        protected synchronized void waitForMessages(int num) throws InterruptedException {
+            long deadline=System.currentTimeMillis() + 10000;
+            while(msgs.size() < num && System.currentTimeMillis() < deadline)
+                wait(500);
+            assert msgs.size() >= num : "expected " + num + " messages, but received " + msgs.size();
+        }
+
+        protected synchronized void check(Address sender, byte[] expected, int num) {
+            assert msgs.size() == num;
+            for(int i=0; i < num; i++) {
+                assert sender.equals(senders.get(i));
+                assert Arrays.equals(expected, msgs.get(i));
+            }
+        }
+    }
+}
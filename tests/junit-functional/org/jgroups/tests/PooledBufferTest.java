@@ -0,0 +1,68 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.util.BufferPool;
+import org.jgroups.util.PooledBuffer;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests PooledBuffer and {@link Message#copyPooledBuffer()}
+ * @author Ryan Emerson
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class PooledBufferTest {
+
+    public void testRetainAndRelease() {
+        BufferPool pool=new BufferPool(4, 100, false);
+        PooledBuffer buf=new PooledBuffer(pool);
+        buf.retain().retain();
+        assert buf.refs() == 3;
+        assert !buf.release();
+        assert !buf.release();
+        assert pool.size() == 0;
+        assert buf.release();
+        assert pool.size() == 1;
+
+        PooledBuffer buf2=new PooledBuffer(pool);
+        assert buf2.array() == buf.array() : "the released buffer should have been reused";
+        try {
+            buf.release();
+            assert false : "releasing a buffer more than once should fail";
+        }
+        catch(IllegalStateException expected) {
+        }
+    }
+
+    public void testDirectPool() {
+        try {
+            new PooledBuffer(new BufferPool(4, 100, true));
+            assert false : "a pool of direct buffers should have been rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+    }
+
+    public void testCopyPooledBuffer() {
+        byte[] pooled=new byte[100];
+        for(int i=0; i < pooled.length; i++)
+            pooled[i]=(byte)i;
+        Message msg=new Message(null, null, pooled, 10, 20).setTransientFlag(Message.TransientFlag.POOLED_BUFFER);
+        Message copy=msg.copy();
+        assert copy.isTransientFlagSet(Message.TransientFlag.POOLED_BUFFER) : "a copy shares the pooled buffer";
+
+        msg.copyPooledBuffer();
+        assert !msg.isTransientFlagSet(Message.TransientFlag.POOLED_BUFFER);
+        assert msg.getRawBuffer() != pooled && msg.getOffset() == 0 && msg.getLength() == 20;
+        Arrays.fill(pooled, (byte)0); // the pooled buffer is reused
+        assert Arrays.equals(copy.getBuffer(), new byte[20]);
+        for(int i=0; i < 20; i++)
+            assert msg.getRawBuffer()[i] == (byte)(i + 10);
+
+        byte[] buf=msg.getRawBuffer();
+        msg.copyPooledBuffer(); // no-op
+        assert msg.getRawBuffer() == buf;
+    }
+}
@@ -0,0 +1,157 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.protocols.DISCARD;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Table;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link STABLE} with delta_digests enabled
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class STABLE_DeltaTest {
+    protected static final int NUM=10;
+    protected JChannel a, b, c, d;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=create("A"); b=create("B"); c=create("C"); d=create("D");
+        for(JChannel ch: new JChannel[]{a,b,c,d})
+            ch.connect("STABLE_DeltaTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c, d);
+    }
+
+    @AfterMethod
+    protected void destroy() {Util.close(d, c, b, a);}
+
+
+    /** Only the entry of the sender is sent in STABLE messages, and the stability digest purges all members */
+    public void testDeltaDigests() throws Exception {
+        send(a);
+        gc(a, b, c, d);
+        waitUntilPurged(a);
+        for(JChannel ch: new JChannel[]{a,b,c,d}) {
+            STABLE stable=stable(ch);
+            int full=STABLE.marshal(nakack(ch).getDigest()).getLength();
+            System.out.printf("%s: round=%d, stable bytes=%d (full digest: %d bytes)\n",
+                              ch.getName(), stable.getStabilityRound(), stable.getStableBytesSent(), full);
+            assert stable.getStabilityRound() == 1;
+            assert stable.getStableBytesSent() < full;
+        }
+        assert stable(a).getStabilitySent() == 1 && stable(a).getResyncsSent() == 0;
+
+        // nothing changed: the STABLE messages are empty, and nothing is purged
+        gc(a, b, c, d);
+        waitForRound(2, a, b, c, d);
+        waitUntilPurged(a);
+    }
+
+    /** Members which missed 2 STABILITY messages get the coordinator's base and resend their STABLE message */
+    public void testResync() throws Exception {
+        send(a);
+        send(b);
+        DISCARD discard=(DISCARD)a.getProtocolStack().findProtocol(DISCARD.class);
+        discard.setDropDownMulticasts(2); // drops the next 2 STABILITY messages
+        gc(a, b, c, d);
+        waitForRound(1, a);
+        gc(a, b, c, d); // members are at round 0, the previous round of the coordinator: no resync
+        waitForRound(2, a);
+        for(JChannel ch: new JChannel[]{b,c,d})
+            assert stable(ch).getStabilityRound() == 0;
+        assert stable(a).getResyncsSent() == 0;
+        assert purged(a) && !purged(b);
+
+        gc(a, b, c, d); // members are at round 0: resync
+        waitForRound(3, a, b, c, d);
+        assert stable(a).getResyncsSent() == 3 : "resyncs: " + stable(a).getResyncsSent();
+        waitUntilPurged(a, b);
+    }
+
+
+    /** Sends NUM messages and waits until all channels have delivered them */
+    protected void send(JChannel ch) throws Exception {
+        for(int i=1; i <= NUM; i++)
+            ch.send(new Message(null, i));
+        long seqno=nakack(ch).getWindow(ch.getAddress()).getHighestReceived();
+        for(int i=0; i < 20; i++) {
+            boolean done=true;
+            for(JChannel tmp: new JChannel[]{a,b,c,d})
+                if(nakack(tmp).getWindow(ch.getAddress()).getHighestDelivered() != seqno)
+                    done=false;
+            if(done)
+                return;
+            Util.sleep(500);
+        }
+        assert false : "messages from " + ch.getName() + " were not delivered";
+    }
+
+    protected static void gc(JChannel ... channels) {
+        for(JChannel ch: channels)
+            stable(ch).gc();
+    }
+
+    protected static void waitForRound(long round, JChannel ... channels) {
+        for(int i=0; i < 20; i++) {
+            boolean done=true;
+            for(JChannel ch: channels)
+                if(stable(ch).getStabilityRound() != round)
+                    done=false;
+            if(done)
+                return;
+            Util.sleep(500);
+        }
+        for(JChannel ch: channels)
+            assert stable(ch).getStabilityRound() == round :
+              ch.getName() + ": round is " + stable(ch).getStabilityRound() + ", expected " + round;
+    }
+
+    /** Waits until the channels have purged the messages they sent (including views sent by the coordinator) */
+    protected static void waitUntilPurged(JChannel ... channels) {
+        for(int i=0; i < 20; i++) {
+            boolean done=true;
+            for(JChannel ch: channels)
+                if(!purged(ch))
+                    done=false;
+            if(done)
+                return;
+            Util.sleep(500);
+        }
+        for(JChannel ch: channels)
+            assert purged(ch) : ch.getName() + ": window is " + nakack(ch).getWindow(ch.getAddress());
+    }
+
+    protected static boolean purged(JChannel ch) {
+        Table<Message> win=nakack(ch).getWindow(ch.getAddress());
+        return win.getLow() == win.getHighestDelivered();
+    }
+
+    protected static STABLE  stable(JChannel ch) {return (STABLE)ch.getProtocolStack().findProtocol(STABLE.class);}
+    protected static NAKACK2 nakack(JChannel ch) {return (NAKACK2)ch.getProtocolStack().findProtocol(NAKACK2.class);}
+
+    protected static JChannel create(String name) throws Exception {
+        Protocol[] protocols={
+          new SHARED_LOOPBACK(),
+          new SHARED_LOOPBACK_PING().timeout(1000),
+          new DISCARD(),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE().setValue("delta_digests", true).setValue("desired_avg_gossip", 0L).setValue("max_bytes", 0L),
+          new GMS()
+        };
+        return new JChannel(protocols).name(name);
+    }
+}
@@ -0,0 +1,119 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Table;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link STABLE} with tree_fanout enabled
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class STABLE_TreeTest {
+    protected static final int NUM=10;
+    protected JChannel[] channels;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        channels=new JChannel[7];
+        for(int i=0; i < channels.length; i++) {
+            channels[i]=create(String.valueOf((char)('A' + i)));
+            channels[i].connect("STABLE_TreeTest");
+        }
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        for(int i=channels.length-1; i >= 0; i--)
+            Util.close(channels[i]);
+    }
+
+
+    /** A (B (D E) C (F G)): only A, B and C receive STABLE messages, 3 each */
+    public void testAggregation() throws Exception {
+        assert stable(channels[0]).getParent().equals("n/a");
+        assert stable(channels[3]).getParent().equals(channels[1].getAddress().toString());
+        assert stable(channels[6]).getParent().equals(channels[2].getAddress().toString());
+
+        send(channels[0]);
+        send(channels[4]);
+        for(JChannel ch: channels)
+            stable(ch).gc();
+        waitUntilPurged();
+
+        for(int i=0; i < channels.length; i++) {
+            STABLE stable=stable(channels[i]);
+            System.out.printf("%s: stable msgs received=%d, sent=%d\n",
+                              channels[i].getName(), stable.getStableReceived(), stable.getStableSent());
+            assert stable.getStableReceived() == (i < 3? 3 : 0);
+        }
+        assert stable(channels[0]).getStabilitySent() == 1;
+    }
+
+
+    /** Sends NUM messages and waits until all channels have delivered them */
+    protected void send(JChannel ch) throws Exception {
+        for(int i=1; i <= NUM; i++)
+            ch.send(new Message(null, i));
+        long seqno=nakack(ch).getWindow(ch.getAddress()).getHighestReceived();
+        for(int i=0; i < 20; i++) {
+            boolean done=true;
+            for(JChannel tmp: channels)
+                if(nakack(tmp).getWindow(ch.getAddress()).getHighestDelivered() != seqno)
+                    done=false;
+            if(done)
+                return;
+            Util.sleep(500);
+        }
+        assert false : "messages from " + ch.getName() + " were not delivered";
+    }
+
+    /** Waits until all channels have purged the messages they sent */
+    protected void waitUntilPurged() {
+        for(int i=0; i < 20; i++) {
+            boolean done=true;
+            for(JChannel ch: channels)
+                if(!purged(ch))
+                    done=false;
+            if(done)
+                return;
+            Util.sleep(500);
+        }
+        for(JChannel ch: channels)
+            assert purged(ch) : ch.getName() + ": window is " + nakack(ch).getWindow(ch.getAddress());
+    }
+
+    protected static boolean purged(JChannel ch) {
+        Table<Message> win=nakack(ch).getWindow(ch.getAddress());
+        return win.getLow() == win.getHighestDelivered();
+    }
+
+    protected static STABLE  stable(JChannel ch) {return (STABLE)ch.getProtocolStack().findProtocol(STABLE.class);}
+    protected static NAKACK2 nakack(JChannel ch) {return (NAKACK2)ch.getProtocolStack().findProtocol(NAKACK2.class);}
+
+    protected static JChannel create(String name) throws Exception {
+        Protocol[] protocols={
+          new SHARED_LOOPBACK(),
+          new SHARED_LOOPBACK_PING().timeout(1000),
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE().setValue("tree_fanout", 2).setValue("desired_avg_gossip", 0L).setValue("max_bytes", 0L),
+          new GMS()
+        };
+        return new JChannel(protocols).name(name);
+    }
+}
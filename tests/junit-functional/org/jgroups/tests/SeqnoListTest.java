@@ -1,6 +1,8 @@
 package org.jgroups.tests;
 
 import org.jgroups.Global;
+import org.jgroups.util.Bits;
+import org.jgroups.util.ByteArrayDataInputStream;
 import org.jgroups.util.SeqnoList;
 import org.jgroups.util.Util;
 import org.testng.annotations.Test;
@@ -123,6 +125,60 @@ public class SeqnoListTest {
         assert buf.length == expected_size;
     }
 
+    /** Many small gaps are serialized as bitmap, which has to be smaller than the list of seqnos */
+    public void testBitmapSerialization() throws Exception {
+        SeqnoList list=smallGaps().useBitmap(true);
+        int list_size=Global.INT_SIZE + 334 * Global.BYTE_SIZE; // lower bound of the size of the list format
+        byte[] buf=Util.streamableToByteBuffer(list);
+        System.out.println("list.size()=" + list.size() + ", serialized size=" + buf.length);
+        assert buf.length == list.serializedSize();
+        assert buf.length < list_size;
+
+        SeqnoList list2=(SeqnoList)Util.streamableFromByteBuffer(SeqnoList.class, buf);
+        assert list.size() == list2.size();
+        List<Long> expected=new ArrayList<Long>(), actual=new ArrayList<Long>();
+        for(long seqno: list)
+            expected.add(seqno);
+        for(long seqno: list2)
+            actual.add(seqno);
+        assert expected.equals(actual) : "expected=" + expected + "\nactual:  " + actual;
+        assert list2.numRanges() == list.numRanges();
+    }
+
+    /** Unless enabled, a list is never serialized as bitmap, so that members older than 4.0 can read it */
+    public void testNoBitmapByDefault() throws Exception {
+        SeqnoList list=smallGaps();
+        byte[] buf=Util.streamableToByteBuffer(list);
+        assert buf.length == list.serializedSize();
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(buf);
+        int len=in.readInt();
+        assert len == list.numRanges() : "expected the number of elements, but got " + len;
+        for(int i=0; i < len; i++) { // reads the list like SeqnoList.readFrom() of 3.x
+            if(in.readBoolean()) {
+                long[] range=Bits.readLongSequence(in);
+                assert range[0] == list.getFrom(i) && range[1] == list.getTo(i);
+            }
+            else
+                assert Bits.readLong(in) == list.getFrom(i);
+        }
+        assert in.position() == buf.length;
+    }
+
+    public void testSingleRangeSerialization() throws Exception {
+        SeqnoList list=new SeqnoList(100, 100000).useBitmap(true);
+        byte[] buf=Util.streamableToByteBuffer(list);
+        assert buf.length == list.serializedSize() && buf.length < 20; // not a bitmap
+        SeqnoList list2=(SeqnoList)Util.streamableFromByteBuffer(SeqnoList.class, buf);
+        assert list2.size() == list.size() && list2.numRanges() == 1 && list2.getFrom(0) == 100 && list2.getTo(0) == 100000;
+    }
+
+    protected static SeqnoList smallGaps() {
+        SeqnoList list=new SeqnoList();
+        for(long i=1000; i < 2000; i+=3)
+            list.add(i, i+1);
+        return list.add(2005);
+    }
+
     protected static void _testIteration(SeqnoList list, List<Long> expected) {
         System.out.println("list = " + list);
         assert list.size() == expected.size();
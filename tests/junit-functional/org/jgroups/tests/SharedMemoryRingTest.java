@@ -0,0 +1,140 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.SharedMemoryRing;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Functional tests of SharedMemoryRing
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class SharedMemoryRingTest {
+    protected File             file;
+    protected SharedMemoryRing producer, consumer;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        file=File.createTempFile("ring", ".shm");
+        producer=SharedMemoryRing.create(file, 256);
+        consumer=SharedMemoryRing.open(file);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        consumer.close();
+        producer.delete();
+    }
+
+    public void testCreate() {
+        assert SharedMemoryRing.isSupported();
+        assert producer.capacity() == 256 && consumer.capacity() == 256;
+        assert consumer.isEmpty();
+        assert consumer.poll() == -1;
+    }
+
+    public void testOfferAndPoll() {
+        for(int i=1; i <= 5; i++) {
+            byte[] buf=bytes(i * 10, (byte)i);
+            assert producer.offer(buf, 0, buf.length);
+        }
+        for(int i=1; i <= 5; i++) {
+            int length=consumer.poll();
+            assert length == i * 10 : "length=" + length;
+            assert Arrays.equals(Arrays.copyOf(consumer.buffer(), length), bytes(i * 10, (byte)i));
+        }
+        assert consumer.poll() == -1 && consumer.isEmpty();
+    }
+
+    public void testOfferWithOffset() {
+        byte[] buf={1,2,3,4,5,6,7,8};
+        assert producer.offer(buf, 2, 4);
+        assert consumer.poll() == 4;
+        assert Arrays.equals(Arrays.copyOf(consumer.buffer(), 4), new byte[]{3,4,5,6});
+    }
+
+    public void testFull() {
+        byte[] buf=bytes(60, (byte)1); // record size is 64
+        for(int i=0; i < 4; i++)
+            assert producer.offer(buf, 0, buf.length);
+        assert !producer.offer(buf, 0, buf.length);
+        assert !producer.offer(bytes(300, (byte)1), 0, 300); // bigger than the ring
+        assert consumer.poll() == 60;
+        assert producer.offer(buf, 0, buf.length);
+        assert producer.size() == 256;
+    }
+
+    /** Records of varying sizes wrap around the end of the ring many times */
+    public void testWrapAround() {
+        int next_offer=0, next_poll=0;
+        while(next_poll < 1000) {
+            while(next_offer < 1000) {
+                byte[] buf=bytes(next_offer % 100, (byte)next_offer);
+                if(!producer.offer(buf, 0, buf.length))
+                    break;
+                next_offer++;
+            }
+            int length=consumer.poll();
+            assert length == next_poll % 100 : "length=" + length + ", expected=" + next_poll % 100;
+            assert Arrays.equals(Arrays.copyOf(consumer.buffer(), length), bytes(length, (byte)next_poll));
+            next_poll++;
+        }
+        assert consumer.isEmpty();
+    }
+
+    public void testConcurrentProducer() throws Exception {
+        final int NUM=100000;
+        Thread thread=new Thread() {
+            public void run() {
+                byte[] buf=new byte[Global.INT_SIZE];
+                for(int i=0; i < NUM;) {
+                    buf[0]=(byte)(i >>> 24); buf[1]=(byte)(i >>> 16); buf[2]=(byte)(i >>> 8); buf[3]=(byte)i;
+                    if(producer.offer(buf, 0, buf.length))
+                        i++;
+                    else
+                        Thread.yield();
+                }
+            }
+        };
+        thread.start();
+        for(int i=0; i < NUM;) {
+            int length=consumer.poll();
+            if(length < 0) {
+                Thread.yield();
+                continue;
+            }
+            byte[] buf=consumer.buffer();
+            int val=((buf[0] & 0xff) << 24) | ((buf[1] & 0xff) << 16) | ((buf[2] & 0xff) << 8) | (buf[3] & 0xff);
+            assert length == Global.INT_SIZE && val == i : "received " + val + ", expected " + i;
+            i++;
+        }
+        thread.join(10000);
+        assert consumer.isEmpty();
+    }
+
+    public void testOpenInvalidFile() throws Exception {
+        File tmp=File.createTempFile("ring", ".shm");
+        try {
+            SharedMemoryRing.open(tmp);
+            assert false : "opening an empty file should have failed";
+        }
+        catch(java.io.IOException expected) {
+            System.out.println("caught expected exception: " + expected);
+        }
+        finally {
+            tmp.delete();
+        }
+    }
+
+    protected static byte[] bytes(int length, byte val) {
+        byte[] buf=new byte[length];
+        Arrays.fill(buf, val);
+        return buf;
+    }
+}
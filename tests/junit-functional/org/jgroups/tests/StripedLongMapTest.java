@@ -0,0 +1,126 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.StripedLongMap;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link StripedLongMap}
+ * @author Ryan Emerson
+ * @since 4.0
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class StripedLongMapTest {
+
+    public void testInvalidArguments() {
+        try {
+            new StripedLongMap<Integer>(0, 10, 0);
+            assert false : "0 stripes should be rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+        try {
+            new StripedLongMap<Integer>(4, 10, -1);
+            assert false : "a negative max_recycled should be rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+    }
+
+    public void testNumStripes() {
+        assert new StripedLongMap<Integer>(1, 10, 0).getNumStripes() == 1;
+        assert new StripedLongMap<Integer>(5, 10, 0).getNumStripes() == 8;
+        assert new StripedLongMap<Integer>(64, 10, 0).getNumStripes() == 64;
+    }
+
+    public void testPutGetRemove() {
+        StripedLongMap<Integer> map=new StripedLongMap<Integer>(8, 2, 0);
+        long[] keys={0, 1, -1, 63, 64, 1L << 48, (1L << 48) | 5, Long.MAX_VALUE, Long.MIN_VALUE};
+        for(int i=0; i < keys.length; i++)
+            assert map.put(keys[i], i) == null;
+        assert map.size() == keys.length && !map.isEmpty();
+        for(int i=0; i < keys.length; i++)
+            assert map.get(keys[i]) == i;
+        assert map.get(2) == null;
+
+        assert map.put(63, 100) == 3 && map.get(63) == 100;
+        assert map.putIfAbsent(63, 200) == 100 && map.get(63) == 100;
+        assert map.putIfAbsent(2, 200) == null && map.get(2) == 200;
+
+        assert map.remove(2) == 200 && map.remove(2) == null && map.get(2) == null;
+        assert map.size() == keys.length;
+        map.clear();
+        assert map.isEmpty();
+        System.out.println("map = " + map);
+    }
+
+    /** Each stripe keeps at most max_recycled values */
+    public void testRecycle() {
+        StripedLongMap<Integer> map=new StripedLongMap<Integer>(1, 10, 2);
+        assert map.pollRecycled(1) == null;
+        assert map.recycle(1, 1) && map.recycle(2, 2);
+        assert !map.recycle(3, 3);
+        assert map.getNumRecycled() == 2;
+        assert map.pollRecycled(5) == 2 && map.pollRecycled(5) == 1 && map.pollRecycled(5) == null;
+        assert map.getNumRecycled() == 0;
+
+        map=new StripedLongMap<Integer>(4, 10, 0);
+        assert !map.recycle(1, 1) && map.pollRecycled(1) == null;
+        try {
+            map.recycle(1, null);
+            assert false : "null values should be rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+    }
+
+    /** Threads adding and removing disjoint keys concurrently, while recycling the removed values */
+    public void testConcurrentAccess() throws Exception {
+        final StripedLongMap<Long> map=new StripedLongMap<Long>(16, 16, 8);
+        final int THREADS=8, NUM=10000;
+        final CountDownLatch start=new CountDownLatch(1);
+        final AtomicInteger failures=new AtomicInteger();
+        Thread[] threads=new Thread[THREADS];
+        for(int i=0; i < threads.length; i++) {
+            final long base=(long)i << 48;
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch(InterruptedException e) {
+                    }
+                    for(long j=0; j < NUM; j++) {
+                        long key=base | j;
+                        if(map.putIfAbsent(key, key) != null)
+                            failures.incrementAndGet();
+                        if(j % 2 == 0) {
+                            Long value=map.remove(key);
+                            if(value == null || value != key)
+                                failures.incrementAndGet();
+                            else
+                                map.recycle(key, value);
+                            map.pollRecycled(key + 1);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for(Thread thread: threads)
+            thread.join(30000);
+        assert failures.get() == 0 : "failures: " + failures.get();
+        assert map.size() == THREADS * NUM / 2 : "size: " + map.size();
+        for(int i=0; i < THREADS; i++)
+            for(long j=0; j < NUM; j++) {
+                long key=((long)i << 48) | j;
+                Long value=map.get(key);
+                assert j % 2 == 0? value == null : value == key;
+            }
+        assert map.getNumRecycled() <= 16 * 8;
+    }
+}
@@ -736,6 +736,17 @@ public class TableTest {
         assert buf.get(6) == null;
     }
 
+    public void testContains() {
+        final Table<Integer> buf=new Table<Integer>(3, 10, 0);
+        for(int i: Arrays.asList(1,2,4,5))
+            buf.add(i, i);
+        assert buf.contains(1) && buf.contains(2) && !buf.contains(3) && buf.contains(5);
+        assert !buf.contains(6) && !buf.contains(100);
+        buf.removeMany(true, 0); // removes 1 and 2: delivered seqnos are duplicates, too
+        assert buf.contains(1) && buf.contains(2) && !buf.contains(3);
+        assert buf.contains(0);
+    }
+
     public void testGetList() {
         final Table<Integer> buf=new Table<Integer>(3, 10, 0);
         for(int i: Arrays.asList(1,2,3,4,5))
@@ -0,0 +1,208 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.ThreadPerTaskExecutor;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests ThreadPerTaskExecutor
+ * @author Ryan Emerson
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class ThreadPerTaskExecutorTest {
+
+    public void testRunsEveryTask() throws Exception {
+        ThreadPerTaskExecutor executor=create(10, 100);
+        final AtomicInteger count=new AtomicInteger();
+        final CountDownLatch done=new CountDownLatch(100);
+        for(int i=0; i < 100; i++)
+            executor.execute(new Runnable() {
+                public void run() {
+                    count.incrementAndGet();
+                    done.countDown();
+                }
+            });
+        assert done.await(10, TimeUnit.SECONDS);
+        assert count.get() == 100;
+        assert executor.getNumTasks() == 100;
+        executor.shutdown();
+        assert executor.awaitTermination(10, TimeUnit.SECONDS);
+        assert executor.getActiveCount() == 0 && executor.getLargestActiveCount() <= 10;
+    }
+
+    /** A handler blocking at the cap must not block the caller: the task is queued and run when a thread is free */
+    public void testCapQueuesTasks() throws Exception {
+        ThreadPerTaskExecutor executor=create(2, 10);
+        CountDownLatch latch=new CountDownLatch(1);
+        executor.execute(new Blocker(latch));
+        executor.execute(new Blocker(latch));
+        assert executor.getActiveCount() == 2;
+
+        final CountDownLatch ran=new CountDownLatch(1);
+        Submitter submitter=new Submitter(executor, new Runnable() {
+            public void run() {ran.countDown();}
+        });
+        submitter.start();
+        submitter.join(10000);
+        assert !submitter.isAlive() : "the caller must not block while 2 tasks are running";
+        assert executor.getQueue().size() == 1 && ran.getCount() == 1 && executor.getActiveCount() == 2;
+
+        latch.countDown();
+        assert ran.await(10, TimeUnit.SECONDS) : "the queued task should have been run";
+        executor.shutdown();
+        assert executor.awaitTermination(10, TimeUnit.SECONDS);
+        assert executor.getNumTasks() == 3 && executor.getNumQueued() == 1 && executor.getLargestActiveCount() == 2;
+    }
+
+    /**
+     * The receiver thread submits a handler which blocks until the receiver has submitted another message. With a
+     * blocking executor at the cap, this would deadlock
+     */
+    public void testBlockingHandlerAtCap() throws Exception {
+        final ThreadPerTaskExecutor executor=create(1, 10);
+        final CountDownLatch second_submitted=new CountDownLatch(1), second_ran=new CountDownLatch(1);
+        executor.execute(new Runnable() { // e.g. an RPC handler waiting for a response
+            public void run() {
+                try {
+                    second_submitted.await();
+                }
+                catch(InterruptedException e) {
+                }
+            }
+        });
+        executor.execute(new Runnable() { // e.g. the response
+            public void run() {second_ran.countDown();}
+        });
+        second_submitted.countDown();
+        assert second_ran.await(10, TimeUnit.SECONDS);
+        executor.shutdown();
+        assert executor.awaitTermination(10, TimeUnit.SECONDS);
+        assert executor.getLargestActiveCount() == 1;
+    }
+
+    public void testQueueFull() throws Exception {
+        ThreadPerTaskExecutor executor=create(1, 2);
+        CountDownLatch latch=new CountDownLatch(1);
+        for(int i=0; i < 3; i++)
+            executor.execute(new Blocker(latch));
+        try {
+            executor.execute(new Blocker(latch));
+            assert false : "the task should have been rejected as the queue is full";
+        }
+        catch(RejectedExecutionException expected) {
+        }
+        assert executor.getNumRejected() == 1 && executor.getQueue().size() == 2;
+        latch.countDown();
+        executor.shutdown();
+        assert executor.awaitTermination(10, TimeUnit.SECONDS);
+        assert executor.getNumTasks() == 3;
+    }
+
+    /** A task throwing an exception doesn't prevent its thread from running the queued tasks */
+    public void testExceptionInTask() throws Exception {
+        ThreadPerTaskExecutor executor=create(1, 10);
+        final CountDownLatch latch=new CountDownLatch(1), ran=new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    latch.await();
+                }
+                catch(InterruptedException e) {
+                }
+                throw new IllegalStateException("thrown on purpose");
+            }
+        });
+        executor.execute(new Runnable() {
+            public void run() {ran.countDown();}
+        });
+        latch.countDown();
+        assert ran.await(10, TimeUnit.SECONDS);
+        executor.shutdown();
+        assert executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    public void testIncreaseMaxThreads() throws Exception {
+        ThreadPerTaskExecutor executor=create(1, 10);
+        CountDownLatch latch=new CountDownLatch(1);
+        executor.execute(new Blocker(latch));
+        executor.execute(new Blocker(latch));
+        assert executor.getActiveCount() == 1 && executor.getQueue().size() == 1;
+
+        executor.setMaxThreads(2);
+        for(int i=0; i < 100 && !executor.getQueue().isEmpty(); i++)
+            Util.sleep(100);
+        assert executor.getActiveCount() == 2 && executor.getQueue().isEmpty() : "the queued task should have been started: " + executor;
+        latch.countDown();
+        executor.shutdown();
+        assert executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    public void testShutdownNowReturnsQueuedTasks() throws Exception {
+        ThreadPerTaskExecutor executor=create(1, 10);
+        CountDownLatch latch=new CountDownLatch(1);
+        executor.execute(new Blocker(latch));
+        Blocker queued=new Blocker(latch);
+        executor.execute(queued);
+
+        List<Runnable> tasks=executor.shutdownNow(); // interrupts the running task
+        assert tasks.size() == 1 && tasks.get(0) == queued : tasks + ", " + executor;
+        assert executor.awaitTermination(10, TimeUnit.SECONDS) : executor;
+        assert executor.getNumTasks() == 1 : "the queued task should not have been run: " + executor;
+
+        executor.execute(new Blocker(latch)); // discarded
+        assert executor.getNumTasks() == 1 && executor.getActiveCount() == 0 : executor;
+    }
+
+    public void testInvalidMaxThreads() {
+        try {
+            create(0, 10);
+            assert false : "max_threads of 0 should have been rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+    }
+
+
+    protected static ThreadPerTaskExecutor create(int max_threads, int max_queued) {
+        return new ThreadPerTaskExecutor(new DefaultThreadFactory("test", true, true), "test", max_threads, max_queued, true);
+    }
+
+
+    protected static class Blocker implements Runnable {
+        protected final CountDownLatch latch;
+
+        public Blocker(CountDownLatch latch) {
+            this.latch=latch;
+        }
+
+        public void run() {
+            try {
+                latch.await();
+            }
+            catch(InterruptedException e) {
+            }
+        }
+    }
+
+    protected static class Submitter extends Thread {
+        protected final ThreadPerTaskExecutor executor;
+        protected final Runnable              task;
+
+        public Submitter(ThreadPerTaskExecutor executor, Runnable task) {
+            this.executor=executor;
+            this.task=task;
+        }
+
+        public void run() {
+            executor.execute(task);
+        }
+    }
+}
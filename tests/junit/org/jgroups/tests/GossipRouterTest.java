@@ -2,6 +2,7 @@ package org.jgroups.tests;
 
 import org.jgroups.Global;
 import org.jgroups.JChannel;
+import org.jgroups.Message;
 import org.jgroups.ReceiverAdapter;
 import org.jgroups.View;
 import org.jgroups.protocols.*;
@@ -104,6 +105,95 @@ public class GossipRouterTest {
         Util.close(b,a);
     }
 
+    /** Tests multicast and unicast messages through a router which serves its clients with selector threads */
+    public void testNioRouter() throws Exception {
+        router=new GossipRouter(gossip_router_port, bind_addr_str);
+        router.setNio(true);
+        router.setNumSelectors(2);
+        router.start();
+
+        a=createTunnelChannel("A");
+        b=createTunnelChannel("B");
+        MyMessageReceiver ra=new MyMessageReceiver(), rb=new MyMessageReceiver();
+        a.setReceiver(ra);
+        b.setReceiver(rb);
+        a.connect("demo");
+        b.connect("demo");
+        Util.waitUntilAllChannelsHaveSameSize(20000, 500, a, b);
+
+        for(int i=1; i <= 10; i++)
+            a.send(null, i);
+        for(int i=11; i <= 15; i++)
+            b.send(a.getAddress(), i);
+
+        for(int i=0; i < 20 && (ra.size() < 15 || rb.size() < 10); i++)
+            Util.sleep(500);
+        System.out.println("A: " + ra.list + "\nB: " + rb.list);
+        assert ra.size() == 15 : "A received " + ra.list;
+        assert rb.size() == 10 : "B received " + rb.list;
+        System.out.println(router.dumpClientStats());
+        assert router.getNumForwardedMessages() > 0;
+    }
+
+    /**
+     * Tests a router with backpressure and a small client queue: the senders are suspended and resumed, and no message
+     * is dropped, also when both clients fill each other's queues
+     */
+    public void testNioRouterWithBackpressure() throws Exception {
+        router=new GossipRouter(gossip_router_port, bind_addr_str);
+        router.setNio(true);
+        router.setClientQueueSize(10);
+        router.setFullQueuePolicy("backpressure");
+        router.start();
+
+        a=createTunnelChannel("A");
+        b=createTunnelChannel("B");
+        MyMessageReceiver ra=new MyMessageReceiver(), rb=new MyMessageReceiver();
+        a.setReceiver(ra);
+        b.setReceiver(rb);
+        a.connect("demo");
+        b.connect("demo");
+        Util.waitUntilAllChannelsHaveSameSize(20000, 500, a, b);
+
+        final int NUM=1000;
+        for(int i=1; i <= NUM; i++) {
+            a.send(null, i);
+            b.send(null, i);
+        }
+        for(int i=0; i < 40 && (ra.size() < 2 * NUM || rb.size() < 2 * NUM); i++)
+            Util.sleep(500);
+        System.out.println(router.dumpClientStats());
+        assert ra.size() == 2 * NUM : "A received " + ra.size() + " messages";
+        assert rb.size() == 2 * NUM : "B received " + rb.size() + " messages";
+        assert router.getNumDroppedMessages() == 0;
+    }
+
+    /** Tests TUNNEL sending bundles of multicasts and unicasts to the router as single MESSAGE_LIST requests */
+    public void testBundledTunnel() throws Exception {
+        router=new GossipRouter(gossip_router_port, bind_addr_str);
+        router.start();
+
+        a=createTunnelChannel("A");
+        b=createTunnelChannel("B");
+        for(JChannel ch: Arrays.asList(a, b))
+            ch.getProtocolStack().getTransport().setValue("bundle", true);
+        MyMessageReceiver ra=new MyMessageReceiver(), rb=new MyMessageReceiver();
+        a.setReceiver(ra);
+        b.setReceiver(rb);
+        a.connect("demo");
+        b.connect("demo");
+        Util.waitUntilAllChannelsHaveSameSize(20000, 500, a, b);
+
+        for(int i=1; i <= 100; i++) // bundles contain messages for both the cluster and B
+            a.send(i % 2 == 0? null : b.getAddress(), i);
+
+        for(int i=0; i < 20 && (ra.size() < 50 || rb.size() < 100); i++)
+            Util.sleep(500);
+        System.out.println("A: " + ra.list + "\nB: " + rb.list);
+        assert ra.size() == 50 : "A received " + ra.list;
+        assert rb.size() == 100 : "B received " + rb.list;
+    }
+
     protected JChannel createTunnelChannel(String name) throws Exception {
         return createTunnelChannel(name, true);
     }
@@ -123,6 +213,23 @@ public class GossipRouterTest {
     }
 
 
+    protected static class MyMessageReceiver extends ReceiverAdapter {
+        protected final List<Integer> list=new ArrayList<Integer>();
+
+        public void receive(Message msg) {
+            synchronized(list) {
+                list.add((Integer)msg.getObject());
+            }
+        }
+
+        public int size() {
+            synchronized(list) {
+                return list.size();
+            }
+        }
+    }
+
+
     private static class MyReceiver extends ReceiverAdapter {
         private final String name;
         private final Lock lock;